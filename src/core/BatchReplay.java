@@ -0,0 +1,170 @@
+package core;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Headless batch replay of a query file.
+ * Every query is pushed through {@link QuerySearch#findQuery()} and {@link SearchHistory#addEntry(QuerySearch)}
+ * with a configurable number of worker threads. Afterwards the throughput, latency percentiles and the
+ * final history size are reported on stdout.
+ * <p>
+ * Usage: <code>--replay &lt;query file&gt; [--threads n] [--engine stub|bing] [--history file] [--repeat n]</code>
+ * @author Florian Bethe, Tino Liebusch
+ */
+public class BatchReplay {
+	private static final String DEFAULT_REPLAY_HISTORY = "replay-history.ser";
+	
+	private final List<String> queries;
+	private final SearchEngine engine;
+	private final SearchHistory history;
+	private final int threads;
+	
+	/**
+	 * Constructor.
+	 * @param queries Queries to replay, in order
+	 * @param engine Engine to perform the searches with
+	 * @param history History to record the searches in
+	 * @param threads Number of concurrent workers
+	 */
+	public BatchReplay(List<String> queries, SearchEngine engine, SearchHistory history, int threads) {
+		this.queries = queries;
+		this.engine = engine;
+		this.history = history;
+		this.threads = Math.max(1, threads);
+	}
+	
+	/**
+	 * Runs the replay and prints the report.
+	 * @throws InterruptedException If interrupted while waiting for the workers
+	 */
+	public void run() throws InterruptedException {
+		// Latencies are written by index, so no synchronization is needed for the array itself
+		final long[] latencies = new long[queries.size()];
+		final AtomicInteger failures = new AtomicInteger();
+		ExecutorService workers = Executors.newFixedThreadPool(threads);
+		
+		long start = System.nanoTime();
+		for(int i = 0; i < queries.size(); i++) {
+			final int index = i;
+			workers.execute(new Runnable() {
+				@Override
+				public void run() {
+					long begin = System.nanoTime();
+					try {
+						QuerySearch search = engine.newSearch(queries.get(index));
+						search.findQuery();
+						history.addEntry(search);
+					} catch(Exception e) {
+						failures.incrementAndGet();
+						e.printStackTrace();
+					}
+					latencies[index] = System.nanoTime() - begin;
+				}
+			});
+		}
+		workers.shutdown();
+		workers.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+		long elapsed = System.nanoTime() - start;
+		
+		Arrays.sort(latencies);
+		double seconds = elapsed / 1e9;
+		System.out.println(String.format(Locale.ROOT, "Replayed %d queries (%d failed) with %d threads on engine %s in %.3f s",
+				queries.size(), failures.get(), threads, engine, seconds));
+		System.out.println(String.format(Locale.ROOT, "Throughput: %.1f queries/s", queries.size() / seconds));
+		System.out.println(String.format(Locale.ROOT, "Latency p50: %.2f ms, p90: %.2f ms, p99: %.2f ms, max: %.2f ms",
+				percentile(latencies, 50) / 1e6, percentile(latencies, 90) / 1e6,
+				percentile(latencies, 99) / 1e6, percentile(latencies, 100) / 1e6));
+		System.out.println(QuerySearch.getRequestGate());
+		System.out.println("Final history size: " + history.getHistoryDateOrdered().size());
+	}
+	
+	/**
+	 * Nearest-rank percentile of a sorted array.
+	 * @param sorted Sorted values
+	 * @param p Percentile (0-100)
+	 * @return Value at the percentile, 0 if there are no values
+	 */
+	private static long percentile(long[] sorted, double p) {
+		if(sorted.length == 0)
+			return 0;
+		int rank = (int) Math.ceil(p / 100.0 * sorted.length);
+		return sorted[Math.min(sorted.length - 1, Math.max(0, rank - 1))];
+	}
+	
+	/**
+	 * Reads the non-empty lines of a query file.
+	 * @param fileName Path of the query file
+	 * @return List of queries
+	 * @throws IOException If the file can't be read
+	 */
+	private static List<String> readQueries(String fileName) throws IOException {
+		List<String> queries = new ArrayList<String>();
+		try(final BufferedReader reader = new BufferedReader(new FileReader(fileName))) {
+			String line;
+			while((line = reader.readLine()) != null) {
+				line = line.trim();
+				if(!line.isEmpty())
+					queries.add(line);
+			}
+		}
+		return queries;
+	}
+	
+	/**
+	 * Command line entry point.
+	 * @param args Query file followed by the options
+	 */
+	public static void main(String[] args) throws Exception {
+		String usage = "Usage: --replay <query file> [--threads n] [--engine stub|bing] [--history file] [--repeat n]";
+		if(args.length < 1) {
+			System.err.println(usage);
+			return;
+		}
+		
+		int threads = Runtime.getRuntime().availableProcessors();
+		int repeat = 1;
+		SearchEngine engine = SearchEngine.STUB;
+		String historyFile = DEFAULT_REPLAY_HISTORY;
+		for(int i = 1; i < args.length; i += 2) {
+			if(i + 1 == args.length) {
+				System.err.println("Missing value for option: " + args[i]);
+				System.err.println(usage);
+				return;
+			}
+			switch(args[i]) {
+				case "--threads":
+					threads = Integer.parseInt(args[i + 1]);
+					break;
+				case "--engine":
+					engine = SearchEngine.forName(args[i + 1]);
+					break;
+				case "--history":
+					historyFile = args[i + 1];
+					break;
+				case "--repeat":
+					repeat = Integer.parseInt(args[i + 1]);
+					break;
+				default:
+					System.err.println("Unknown option: " + args[i]);
+					return;
+			}
+		}
+		
+		List<String> queries = new ArrayList<String>();
+		List<String> fileQueries = readQueries(args[0]);
+		for(int r = 0; r < repeat; r++)
+			queries.addAll(fileQueries);
+		
+		new BatchReplay(queries, engine, new SearchHistory(historyFile), threads).run();
+	}
+}
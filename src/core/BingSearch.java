@@ -1,6 +1,9 @@
 package core;
 
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLConnection;
 import java.net.URLEncoder;
@@ -8,9 +11,8 @@ import java.util.ArrayList;
 import java.util.Base64;
 
 import javax.json.Json;
-import javax.json.JsonArray;
-import javax.json.JsonObject;
-import javax.json.JsonReader;
+import javax.json.JsonObjectBuilder;
+import javax.json.stream.JsonParser;
 
 /**
  * Implements the {@link QuerySearch} for the Bing API.
@@ -26,8 +28,17 @@ public class BingSearch extends QuerySearch {
 	
 	/**
 	 * General pattern of the URL Bing's API expects.
+	 * Can be overridden with the system property <code>searchhistory.bing.urlPattern</code> (e.g. to point at
+	 * a {@link StubEngineServer StubEngineServer}); the pattern takes the encoded query and the result count.
 	 */
-	private final static String bingUrlPattern = "https://api.datamarket.azure.com/Bing/Search/Web?Query=%%27%s%%27&$format=json&$top=%s";
+	private final static String bingUrlPattern = System.getProperty("searchhistory.bing.urlPattern",
+			"https://api.datamarket.azure.com/Bing/Search/Web?Query=%%27%s%%27&$format=json&$top=%s");
+	
+	/**
+	 * Connect and read timeouts for the connection to Bing.
+	 */
+	private final static int connectTimeoutMs = Integer.getInteger("searchhistory.engine.connectTimeoutMs", 3000);
+	private final static int readTimeoutMs = Integer.getInteger("searchhistory.engine.readTimeoutMs", 5000);
 
 	/**
 	 * Constructor.
@@ -41,9 +52,26 @@ public class BingSearch extends QuerySearch {
 	/**
 	 * Implementation of {@link QuerySearch#queryEngine()}.
 	 * Uses Bing API to retrieve the maximum number of relevant results for the given query and
-	 * adds them to the result list.
+	 * publishes them one by one while the response is parsed.
+	 * Every request is recorded as a {@link HistoryEvents.EngineRequest} flight recorder event.
 	 */
 	protected void queryEngine() throws IOException {
+		HistoryEvents.EngineRequest event = new HistoryEvents.EngineRequest();
+		event.begin();
+		try {
+			this.request(event);
+		} finally {
+			event.queryLength = query.length();
+			event.resultCount = (results == null) ? 0 : results.size();
+			event.commit();
+		}
+	}
+	
+	/**
+	 * Sends the request to Bing and parses the response.
+	 * @param event Event to record the status and the response size in
+	 */
+	private void request(HistoryEvents.EngineRequest event) throws IOException {
 		// Encode the account key into the proper format for bing
         String accountKeyEncoder = Base64.getEncoder().encodeToString(
         		(bingAccountKey + ":" + bingAccountKey).getBytes());
@@ -53,21 +81,103 @@ public class BingSearch extends QuerySearch {
         
         // Connect to the bing server
         URLConnection bingConnection = requestUrl.openConnection();
+        bingConnection.setConnectTimeout(connectTimeoutMs);
+        bingConnection.setReadTimeout(readTimeoutMs);
         bingConnection.setRequestProperty("Authorization", "Basic " + accountKeyEncoder);
         
+        // Turn HTTP errors into exceptions the request layer can decide to retry on
+        if(bingConnection instanceof HttpURLConnection) {
+        	HttpURLConnection httpConnection = (HttpURLConnection) bingConnection;
+        	int status = httpConnection.getResponseCode();
+        	event.status = status;
+        	if(status >= 400) {
+        		httpConnection.disconnect();
+        		throw new EngineException(status, "Bing returned HTTP " + status);
+        	}
+        }
+        
         this.results = new ArrayList<SearchResult>();
         
-        // Read the JSON data from the connection stream
-        try (final JsonReader reader = Json.createReader(bingConnection.getInputStream())) {
-        	JsonObject jsonData = reader.readObject();
-        	JsonArray jsonResults = jsonData.getJsonObject("d").getJsonArray("results");
-        	
-        	// Iterate over the 'results' objects from bing
-        	// Don't ask me why the standard JsonArray iterator iterates over values,
-        	// I'd also much rather use for-each...
-        	for(int i = 0; i < jsonResults.size(); i++) {
-        		results.add(new SearchResult(this.query, jsonResults.getJsonObject(i)));
+        // Parse the JSON data from the connection stream as it arrives, publishing every result object
+        // in 'd.results' as soon as it is complete
+        CountingInputStream response = new CountingInputStream(bingConnection.getInputStream());
+        try (final JsonParser parser = Json.createParser(response)) {
+        	int depth = 0;
+        	int resultsDepth = -1;
+        	String key = null;
+        	JsonObjectBuilder result = null;
+        	while(parser.hasNext()) {
+        		switch(parser.next()) {
+        			case KEY_NAME:
+        				key = parser.getString();
+        				break;
+        			case START_ARRAY:
+        				depth++;
+        				if((depth == 3) && "results".equals(key))
+        					resultsDepth = depth;
+        				break;
+        			case END_ARRAY:
+        				if(depth == resultsDepth)
+        					resultsDepth = -1;
+        				depth--;
+        				break;
+        			case START_OBJECT:
+        				depth++;
+        				if((resultsDepth > 0) && (depth == resultsDepth + 1))
+        					result = Json.createObjectBuilder();
+        				break;
+        			case END_OBJECT:
+        				if((result != null) && (depth == resultsDepth + 1)) {
+        					this.publish(new SearchResult(this.query, result.build()));
+        					result = null;
+        				}
+        				depth--;
+        				break;
+        			case VALUE_STRING:
+        				// Only the plain fields of a result are needed, not the nested metadata
+        				if((result != null) && (depth == resultsDepth + 1))
+        					result.add(key, parser.getString());
+        				break;
+        			default:
+        				break;
+        		}
         	}
+        } finally {
+        	event.bytesRead = response.count;
         }
 	}
+	
+	/**
+	 * Counts the bytes read from the response.
+	 */
+	private static class CountingInputStream extends FilterInputStream {
+		long count = 0;
+		
+		CountingInputStream(InputStream in) {
+			super(in);
+		}
+		
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if(b >= 0)
+				count++;
+			return b;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int read = super.read(b, off, len);
+			if(read > 0)
+				count += read;
+			return read;
+		}
+		
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(n);
+			count += skipped;
+			return skipped;
+		}
+	}
 }
@@ -0,0 +1,232 @@
+package core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bipartite graph between queries and the pages clicked from their results.
+ * Two queries are related if the user clicked the same pages from both; their score is the dot product of
+ * their click vectors over the pages. Scores and each query's top related queries are updated as clicks
+ * come in, so {@link #getRelatedQueries(String)} only copies a precomputed list.
+ * <p>
+ * A click on a page fans out to every other query which led to that page, i.e. it costs time proportional
+ * to the degree of the page. Queries and URLs are normalized before they become nodes.
+ * @author Florian Bethe, Tino Liebusch
+ */
+public class CoClickGraph implements HistoryListener {
+	public static final int DEFAULT_TOP_K = 5;
+	
+	private final int topK;
+	// Query to clicked URL to clicks
+	private final Map<String, Map<String, Integer>> queryEdges = new HashMap<String, Map<String, Integer>>();
+	// URL to queries it was clicked from to clicks
+	private final Map<String, Map<String, Integer>> urlEdges = new HashMap<String, Map<String, Integer>>();
+	// Query to related query to score
+	private final Map<String, Map<String, Long>> scores = new HashMap<String, Map<String, Long>>();
+	// Query to its related queries ordered by descending score (at most topK)
+	private final Map<String, String[]> related = new HashMap<String, String[]>();
+	
+	/**
+	 * Default constructor.
+	 * Keeps the top 5 related queries per query.
+	 */
+	public CoClickGraph() {
+		this(DEFAULT_TOP_K);
+	}
+	
+	/**
+	 * Constructor.
+	 * @param topK Number of related queries kept per query
+	 */
+	public CoClickGraph(int topK) {
+		this.topK = Math.max(1, topK);
+	}
+	
+	@Override
+	public synchronized void searchAdded(QuerySearch search) {
+		for(SearchResult result : search.getResults()) {
+			if(result.getClickCounter() > 0)
+				this.addClicks(search.getQuery(), result, result.getClickCounter());
+		}
+	}
+	
+	@Override
+	public synchronized void resultClicked(SearchResult result) {
+		this.addClicks(result.getQuery(), result, 1);
+	}
+	
+	@Override
+	public synchronized void searchesRemoved(Collection<QuerySearch> searches) {
+		for(QuerySearch search : searches) {
+			for(SearchResult result : search.getResults()) {
+				if(result.getClickCounter() > 0)
+					this.addClicks(search.getQuery(), result, -result.getClickCounter());
+			}
+		}
+	}
+	
+	/**
+	 * Gets the queries most related to the given one.
+	 * @param query Query (normalized internally)
+	 * @return Related (normalized) queries, most related first
+	 */
+	public synchronized List<String> getRelatedQueries(String query) {
+		String[] top = related.get(QueryTrie.normalize(query));
+		return (top == null) ? Collections.<String>emptyList() : new ArrayList<String>(Arrays.asList(top));
+	}
+	
+	/**
+	 * Gets the score between two queries.
+	 * @param a First query
+	 * @param b Second query
+	 * @return Dot product of the click vectors of both queries
+	 */
+	public synchronized long getScore(String a, String b) {
+		Map<String, Long> row = scores.get(QueryTrie.normalize(a));
+		Long score = (row == null) ? null : row.get(QueryTrie.normalize(b));
+		return (score == null) ? 0L : score;
+	}
+	
+	/**
+	 * Changes the weight of a query-URL edge and updates the scores of all queries sharing the URL.
+	 * @param rawQuery Query of the search
+	 * @param result Clicked result
+	 * @param delta Change of the click count (negative for removed searches)
+	 */
+	private void addClicks(String rawQuery, SearchResult result, int delta) {
+		String query = QueryTrie.normalize(rawQuery);
+		String url = UrlNormalizer.normalize(result.getUrl());
+		if(query.isEmpty() || (delta == 0))
+			return;
+		
+		Map<String, Integer> neighbours = urlEdges.get(url);
+		if(neighbours == null) {
+			neighbours = new HashMap<String, Integer>();
+			urlEdges.put(url, neighbours);
+		}
+		
+		// Score(q, other) = sum over urls of w(q, url) * w(other, url), so it changes by delta * w(other, url)
+		boolean decreased = false;
+		for(Map.Entry<String, Integer> neighbour : neighbours.entrySet()) {
+			String other = neighbour.getKey();
+			if(other.equals(query))
+				continue;
+			long change = (long) delta * neighbour.getValue();
+			long score = this.addScore(query, other, change);
+			this.addScore(other, query, change);
+			if(change > 0) {
+				this.offer(query, other, score);
+				this.offer(other, query, score);
+			} else {
+				decreased = true;
+				this.rebuildTop(other);
+			}
+		}
+		if(decreased)
+			this.rebuildTop(query);
+		
+		add(neighbours, query, delta);
+		Map<String, Integer> urls = queryEdges.get(query);
+		if(urls == null) {
+			urls = new HashMap<String, Integer>();
+			queryEdges.put(query, urls);
+		}
+		add(urls, url, delta);
+		
+		if(neighbours.isEmpty())
+			urlEdges.remove(url);
+		if(urls.isEmpty())
+			queryEdges.remove(query);
+	}
+	
+	private long addScore(String query, String other, long change) {
+		Map<String, Long> row = scores.get(query);
+		if(row == null) {
+			row = new HashMap<String, Long>();
+			scores.put(query, row);
+		}
+		Long old = row.get(other);
+		long score = ((old == null) ? 0L : old) + change;
+		if(score <= 0) {
+			row.remove(other);
+			if(row.isEmpty())
+				scores.remove(query);
+		} else {
+			row.put(other, score);
+		}
+		return score;
+	}
+	
+	/**
+	 * Adds a weight change to an edge map, removing the edge once it drops to zero.
+	 * @return New weight of the edge
+	 */
+	private static int add(Map<String, Integer> edges, String key, int delta) {
+		Integer old = edges.get(key);
+		int weight = ((old == null) ? 0 : old) + delta;
+		if(weight <= 0)
+			edges.remove(key);
+		else
+			edges.put(key, weight);
+		return weight;
+	}
+	
+	/**
+	 * Moves a query with an increased score into the top list of another query, in O(k).
+	 * @param query Query whose top list is updated
+	 * @param other Related query
+	 * @param score New score between both
+	 */
+	private void offer(String query, String other, long score) {
+		String[] top = related.get(query);
+		if(top == null)
+			top = new String[0];
+		
+		// Drop the old position of the query (its score only grew, so it can only move up)
+		int length = top.length;
+		for(int i = 0; i < length; i++) {
+			if(top[i].equals(other)) {
+				System.arraycopy(top, i + 1, top, i, length - i - 1);
+				length--;
+				break;
+			}
+		}
+		
+		int position = length;
+		while((position > 0) && (this.getRawScore(query, top[position - 1]) < score))
+			position--;
+		if(position >= topK) {
+			related.put(query, Arrays.copyOf(top, length));
+			return;
+		}
+		String[] updated = new String[Math.min(topK, length + 1)];
+		System.arraycopy(top, 0, updated, 0, position);
+		updated[position] = other;
+		System.arraycopy(top, position, updated, position + 1, updated.length - position - 1);
+		related.put(query, updated);
+	}
+	
+	/**
+	 * Recomputes the top list of a query from all its scores; needed after scores decreased.
+	 * @param query Query whose top list is rebuilt
+	 */
+	private void rebuildTop(String query) {
+		Map<String, Long> row = scores.get(query);
+		related.remove(query);
+		if(row == null)
+			return;
+		for(Map.Entry<String, Long> entry : row.entrySet())
+			this.offer(query, entry.getKey(), entry.getValue());
+	}
+	
+	private long getRawScore(String query, String other) {
+		Map<String, Long> row = scores.get(query);
+		Long score = (row == null) ? null : row.get(other);
+		return (score == null) ? 0L : score;
+	}
+}
@@ -0,0 +1,244 @@
+package core;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+
+/**
+ * Number of searches and clicks per day, week and month of the in-memory history.
+ * The counts are maintained incrementally as searches are added, clicked and archived, so date facets
+ * and timelines never have to walk the history. Searches and their clicks are counted on the (local) date
+ * of the search; weeks start on the first day of the week of the default locale.
+ * @author Florian Bethe, Tino Liebusch
+ */
+public class DateHistogram implements HistoryListener, Serializable {
+	private static final long serialVersionUID = 7315040563811935124L;
+	
+	/**
+	 * Size of the histogram buckets.
+	 */
+	public enum Granularity {
+		DAY(Calendar.DAY_OF_MONTH),
+		WEEK(Calendar.WEEK_OF_YEAR),
+		MONTH(Calendar.MONTH);
+		
+		private final int calendarField;
+		
+		private Granularity(int calendarField) {
+			this.calendarField = calendarField;
+		}
+	}
+	
+	private static final int SEARCHES = 0;
+	private static final int CLICKS = 1;
+	
+	private final String timeZoneId;
+	// Bucket start (millis) to {searches, clicks}
+	private final EnumMap<Granularity, TreeMap<Long, int[]>> buckets =
+			new EnumMap<Granularity, TreeMap<Long, int[]>>(Granularity.class);
+	private long totalSearches = 0;
+	private long totalClicks = 0;
+	// Sum of all counted search timestamps; together with the totals it identifies the counted history
+	private long timestampSum = 0;
+	private transient Calendar calendar;
+	
+	/**
+	 * Default constructor.
+	 * Creates an empty histogram in the default time zone.
+	 */
+	public DateHistogram() {
+		this.timeZoneId = TimeZone.getDefault().getID();
+		for(Granularity granularity : Granularity.values())
+			buckets.put(granularity, new TreeMap<Long, int[]>());
+		this.calendar = Calendar.getInstance(TimeZone.getTimeZone(timeZoneId));
+	}
+	
+	@Override
+	public synchronized void searchAdded(QuerySearch search) {
+		int clicks = 0;
+		for(SearchResult result : search.getResults())
+			clicks += result.getClickCounter();
+		this.add(search.getTimestamp(), 1, clicks);
+		timestampSum += search.getTimestamp().getTime();
+	}
+	
+	/**
+	 * Counts the click on the date of its search.
+	 * Clicks on results which aren't part of the in-memory history aren't counted.
+	 */
+	@Override
+	public synchronized void resultClicked(QuerySearch search, SearchResult result) {
+		if(search != null)
+			this.add(search.getTimestamp(), 0, 1);
+	}
+	
+	@Override
+	public synchronized void searchesRemoved(Collection<QuerySearch> searches) {
+		for(QuerySearch search : searches) {
+			int clicks = 0;
+			for(SearchResult result : search.getResults())
+				clicks += result.getClickCounter();
+			this.add(search.getTimestamp(), -1, -clicks);
+			timestampSum -= search.getTimestamp().getTime();
+		}
+	}
+	
+	/**
+	 * Gets all non-empty buckets of the given size.
+	 * @param granularity Bucket size
+	 * @return Buckets ordered by date
+	 */
+	public synchronized List<Bucket> getBuckets(Granularity granularity) {
+		List<Bucket> result = new ArrayList<Bucket>();
+		for(Map.Entry<Long, int[]> entry : buckets.get(granularity).entrySet()) {
+			result.add(new Bucket(new Date(entry.getKey()), this.bucketEnd(granularity, entry.getKey()),
+					entry.getValue()[SEARCHES], entry.getValue()[CLICKS]));
+		}
+		return result;
+	}
+	
+	/**
+	 * Gets the number of counted searches.
+	 * @return Searches in the histogram
+	 */
+	public synchronized long getTotalSearches() {
+		return totalSearches;
+	}
+	
+	/**
+	 * Gets the number of counted clicks.
+	 * @return Clicks in the histogram
+	 */
+	public synchronized long getTotalClicks() {
+		return totalClicks;
+	}
+	
+	/**
+	 * Checks whether the histogram counts exactly the given searches, e.g. after loading it from disk.
+	 * A histogram from another time zone never matches, since its buckets would be shifted.
+	 * @param searches Searches of the history
+	 * @return Do the totals match the searches
+	 */
+	public synchronized boolean matches(List<QuerySearch> searches) {
+		if(!timeZoneId.equals(TimeZone.getDefault().getID()) || (totalSearches != searches.size()))
+			return false;
+		long clicks = 0;
+		long timestamps = 0;
+		for(QuerySearch search : searches) {
+			timestamps += search.getTimestamp().getTime();
+			for(SearchResult result : search.getResults())
+				clicks += result.getClickCounter();
+		}
+		return (clicks == totalClicks) && (timestamps == timestampSum);
+	}
+	
+	/**
+	 * Adds the given counts to the buckets of all sizes containing the date.
+	 */
+	private void add(Date date, int searches, int clicks) {
+		totalSearches += searches;
+		totalClicks += clicks;
+		for(Granularity granularity : Granularity.values()) {
+			TreeMap<Long, int[]> map = buckets.get(granularity);
+			Long start = this.bucketStart(granularity, date);
+			int[] counts = map.get(start);
+			if(counts == null) {
+				counts = new int[2];
+				map.put(start, counts);
+			}
+			counts[SEARCHES] += searches;
+			counts[CLICKS] += clicks;
+			if((counts[SEARCHES] <= 0) && (counts[CLICKS] <= 0))
+				map.remove(start);
+		}
+	}
+	
+	private long bucketStart(Granularity granularity, Date date) {
+		calendar.setTime(date);
+		calendar.set(Calendar.HOUR_OF_DAY, 0);
+		calendar.set(Calendar.MINUTE, 0);
+		calendar.set(Calendar.SECOND, 0);
+		calendar.set(Calendar.MILLISECOND, 0);
+		if(granularity == Granularity.WEEK)
+			calendar.set(Calendar.DAY_OF_WEEK, calendar.getFirstDayOfWeek());
+		else if(granularity == Granularity.MONTH)
+			calendar.set(Calendar.DAY_OF_MONTH, 1);
+		return calendar.getTimeInMillis();
+	}
+	
+	private Date bucketEnd(Granularity granularity, long start) {
+		calendar.setTimeInMillis(start);
+		calendar.add(granularity.calendarField, 1);
+		return calendar.getTime();
+	}
+	
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		this.calendar = Calendar.getInstance(TimeZone.getTimeZone(timeZoneId));
+	}
+	
+	/**
+	 * Counts of a single histogram bucket.
+	 */
+	public static class Bucket {
+		private final Date start;
+		private final Date end;
+		private final int searches;
+		private final int clicks;
+		
+		/**
+		 * Constructor.
+		 * @param start First instant of the bucket
+		 * @param end First instant after the bucket
+		 * @param searches Number of searches
+		 * @param clicks Number of clicks on results of these searches
+		 */
+		public Bucket(Date start, Date end, int searches, int clicks) {
+			this.start = start;
+			this.end = end;
+			this.searches = searches;
+			this.clicks = clicks;
+		}
+		
+		/**
+		 * Gets the first instant of the bucket.
+		 * @return Start date
+		 */
+		public Date getStart() {
+			return start;
+		}
+		
+		/**
+		 * Gets the first instant after the bucket.
+		 * @return End date (exclusive)
+		 */
+		public Date getEnd() {
+			return end;
+		}
+		
+		/**
+		 * Gets the number of searches.
+		 * @return Searches in the bucket
+		 */
+		public int getSearches() {
+			return searches;
+		}
+		
+		/**
+		 * Gets the number of clicks.
+		 * @return Clicks on results of the searches in the bucket
+		 */
+		public int getClicks() {
+			return clicks;
+		}
+	}
+}
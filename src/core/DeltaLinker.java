@@ -0,0 +1,95 @@
+package core;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Links repeated searches to the previous run of the same query, so they are stored as deltas.
+ * Every new search is linked to the latest earlier search with the same engine, query and result count
+ * (see {@link QuerySearch#linkDelta(QuerySearch, int)}); after a number of deltas a search is stored in full
+ * again, which bounds the work of rebuilding a search when it is read.
+ * <p>
+ * A search must never be stored against a search which has left the in-memory history, as that search would
+ * be written into the history file again. When searches are removed, the searches based on them are therefore
+ * stored in full from then on. The checkpoint interval is set with the system property
+ * <code>searchhistory.delta.checkpointInterval</code> (default 8; 1 disables delta storage).
+ * @author Florian Bethe, Tino Liebusch
+ */
+public class DeltaLinker implements HistoryListener {
+	private final int checkpointInterval;
+	// Latest search per engine, result count and normalized query
+	private final Map<String, QuerySearch> latest = new HashMap<String, QuerySearch>();
+	// Searches stored against each search
+	private final Map<QuerySearch, List<QuerySearch>> dependents = new IdentityHashMap<QuerySearch, List<QuerySearch>>();
+	
+	/**
+	 * Default constructor.
+	 * Reads the checkpoint interval from the system properties.
+	 */
+	public DeltaLinker() {
+		this(Integer.getInteger("searchhistory.delta.checkpointInterval", 8));
+	}
+	
+	/**
+	 * Constructor.
+	 * @param checkpointInterval Maximum length of a delta chain
+	 */
+	public DeltaLinker(int checkpointInterval) {
+		this.checkpointInterval = checkpointInterval;
+	}
+	
+	@Override
+	public synchronized void searchAdded(QuerySearch search) {
+		if(search.getTimestamp() == null)
+			return;
+		String key = search.getClass().getName() + '\u0000' + search.getMaxResults() + '\u0000'
+				+ QueryTrie.normalize(search.getQuery());
+		QuerySearch previous = latest.get(key);
+		
+		// Stored searches keep the form they were read in; only new searches are linked
+		if(!search.isRestored() && (search.getDeltaBase() == null) && (previous != null)
+				&& !previous.getTimestamp().after(search.getTimestamp()))
+			search.linkDelta(previous, checkpointInterval);
+		
+		QuerySearch base = search.getDeltaBase();
+		if(base != null) {
+			List<QuerySearch> list = dependents.get(base);
+			if(list == null) {
+				list = new ArrayList<QuerySearch>(1);
+				dependents.put(base, list);
+			}
+			list.add(search);
+		}
+		if((previous == null) || !previous.getTimestamp().after(search.getTimestamp()))
+			latest.put(key, search);
+	}
+	
+	@Override
+	public synchronized void searchesRemoved(Collection<QuerySearch> searches) {
+		Map<QuerySearch, Boolean> removed = new IdentityHashMap<QuerySearch, Boolean>();
+		for(QuerySearch search : searches)
+			removed.put(search, Boolean.TRUE);
+		
+		for(QuerySearch search : searches) {
+			List<QuerySearch> based = dependents.remove(search);
+			if(based != null) {
+				for(QuerySearch dependent : based) {
+					if(!removed.containsKey(dependent))
+						dependent.unlinkDelta();
+				}
+			}
+			QuerySearch base = search.getDeltaBase();
+			List<QuerySearch> siblings = (base == null) ? null : dependents.get(base);
+			if(siblings != null) {
+				siblings.remove(search);
+				if(siblings.isEmpty())
+					dependents.remove(base);
+			}
+		}
+		latest.values().removeAll(removed.keySet());
+	}
+}
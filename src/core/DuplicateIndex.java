@@ -0,0 +1,382 @@
+package core;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Groups the results of the history which show the same page: the same canonical URL (see
+ * {@link UrlNormalizer#canonicalize(java.net.URL)}), or the same path on a mirror host with a nearly identical
+ * headline and summary. Texts are compared by 64-bit SimHash fingerprints over their terms and term pairs;
+ * two results are near-duplicates if their fingerprints differ in at most {@link #MAX_DISTANCE} bits.
+ * <p>
+ * To find such fingerprints without comparing against every group, the fingerprint is cut into
+ * {@link #MAX_DISTANCE} + 1 bands of 16 bits: two fingerprints within the distance agree on at least one band
+ * (pigeonhole principle), so only the groups sharing a band value with the new result are candidates.
+ * Groups keep the merged click count of their members, so a page counts as clicked no matter in which
+ * variant it was clicked.
+ * <p>
+ * Groups only count their results and keep the latest one as the representative of the page. If that one is
+ * removed, the latest remaining variant is looked up in the history.
+ * @author Florian Bethe, Tino Liebusch
+ */
+public class DuplicateIndex implements HistoryListener {
+	public static final int MAX_DISTANCE = 3;
+	private static final int BANDS = MAX_DISTANCE + 1;
+	private static final int BAND_BITS = 64 / BANDS;
+	
+	// Canonical URL of every member variant to its group
+	private final Map<String, Group> groups = new HashMap<String, Group>();
+	// Per band: band value to the groups having it
+	private final List<Map<Integer, List<Group>>> bands = new ArrayList<Map<Integer, List<Group>>>(BANDS);
+	private int groupCount;
+	private int resultCount;
+	// History to look up representatives in, if the index is kept alongside one
+	private final SearchHistory history;
+	
+	/**
+	 * Default constructor.
+	 * Creates an empty index for results which are never removed.
+	 */
+	public DuplicateIndex() {
+		this(null);
+	}
+	
+	/**
+	 * Constructor.
+	 * Creates an empty index for the searches of a history.
+	 * @param history History the index is registered with
+	 */
+	public DuplicateIndex(SearchHistory history) {
+		this.history = history;
+		for(int band = 0; band < BANDS; band++)
+			bands.add(new HashMap<Integer, List<Group>>());
+	}
+	
+	@Override
+	public synchronized void searchAdded(QuerySearch search) {
+		for(SearchResult result : search.getResults())
+			this.add(result);
+	}
+	
+	@Override
+	public synchronized void resultClicked(SearchResult result) {
+		Group group = groups.get(UrlNormalizer.canonicalize(result.getUrl()));
+		if(group != null)
+			group.clicks++;
+	}
+	
+	@Override
+	public synchronized void searchesRemoved(Collection<QuerySearch> searches) {
+		Map<Group, Boolean> orphaned = new IdentityHashMap<Group, Boolean>();
+		for(QuerySearch search : searches) {
+			for(SearchResult result : search.getResults())
+				this.remove(result, orphaned);
+		}
+		if(!orphaned.isEmpty())
+			this.findLatest(orphaned, searches);
+	}
+	
+	/**
+	 * Gets the representative of the duplicates of a result: the latest variant of the page.
+	 * @param result Result of the history
+	 * @return Representative, or the result itself if it isn't in the index
+	 */
+	public synchronized SearchResult getCanonical(SearchResult result) {
+		Group group = groups.get(UrlNormalizer.canonicalize(result.getUrl()));
+		return ((group == null) || (group.latest == null)) ? result : group.latest;
+	}
+	
+	/**
+	 * Gets the number of clicks on a result and all its duplicates.
+	 * @param result Result of the history
+	 * @return Merged click count
+	 */
+	public synchronized int getMergedClicks(SearchResult result) {
+		Group group = groups.get(UrlNormalizer.canonicalize(result.getUrl()));
+		return (group == null) ? result.getClickCounter() : group.clicks;
+	}
+	
+	/**
+	 * Collapses a list of results of the history: of every group of duplicates, only the first is kept.
+	 * @param results Results, e.g. of an index search
+	 * @return Results without duplicates, in their original order
+	 */
+	public synchronized List<SearchResult> collapse(List<SearchResult> results) {
+		Map<Object, Boolean> seen = new IdentityHashMap<Object, Boolean>();
+		List<SearchResult> collapsed = new ArrayList<SearchResult>(results.size());
+		for(SearchResult result : results) {
+			Object group = groups.get(UrlNormalizer.canonicalize(result.getUrl()));
+			if(seen.put((group == null) ? result : group, Boolean.TRUE) == null)
+				collapsed.add(result);
+		}
+		return collapsed;
+	}
+	
+	/**
+	 * Gets the number of distinct pages.
+	 * @return Number of groups of duplicates
+	 */
+	public synchronized int getGroupCount() {
+		return groupCount;
+	}
+	
+	/**
+	 * Gets the number of indexed results.
+	 * @return Number of results, counting every duplicate
+	 */
+	public synchronized int size() {
+		return resultCount;
+	}
+	
+	/**
+	 * Collapses the duplicates within a single result list, e.g. of a new search: only the first result of
+	 * every page is kept, and the clicks of the dropped duplicates are added to it.
+	 * @param results Results of one search
+	 * @return Results without duplicates (the given list if there were none)
+	 */
+	public static List<SearchResult> collapseWithin(List<SearchResult> results) {
+		DuplicateIndex index = new DuplicateIndex();
+		Map<Group, SearchResult> first = new IdentityHashMap<Group, SearchResult>();
+		List<SearchResult> kept = new ArrayList<SearchResult>(results.size());
+		for(SearchResult result : results) {
+			Group group = index.add(result);
+			if(group.size == 1) {
+				first.put(group, result);
+				kept.add(result);
+			} else {
+				first.get(group).addClicks(result.getClickCounter());
+			}
+		}
+		return (kept.size() == results.size()) ? results : kept;
+	}
+	
+	/**
+	 * Command line entry point; collapses the duplicates within the searches of a history (e.g. one recorded
+	 * before duplicates were collapsed when adding searches) and prints how many pages it contains.
+	 * @param args <code>[--history file]</code>
+	 */
+	public static void main(String[] args) {
+		String historyFile = null;
+		for(int i = 0; i < args.length; i++) {
+			if("--history".equals(args[i]) && (i + 1 < args.length))
+				historyFile = args[++i];
+			else
+				throw new IllegalArgumentException("Unknown argument: " + args[i]);
+		}
+		
+		SearchHistory history = (historyFile == null) ? new SearchHistory() : new SearchHistory(historyFile);
+		long start = System.nanoTime();
+		int removed = history.collapseDuplicates();
+		DuplicateIndex index = new DuplicateIndex();
+		for(QuerySearch search : history.getHistoryDateOrdered())
+			index.searchAdded(search);
+		System.out.println("Removed " + removed + " duplicate results in "
+				+ (System.nanoTime() - start) / 1000000 + " ms");
+		System.out.println(index.size() + " results show " + index.getGroupCount() + " distinct pages");
+	}
+	
+	/**
+	 * Checks whether a single result list contains duplicates, without changing it.
+	 * @param results Results of one search
+	 * @return Would {@link #collapseWithin(List)} drop any result
+	 */
+	public static boolean hasDuplicates(List<SearchResult> results) {
+		DuplicateIndex index = new DuplicateIndex();
+		for(SearchResult result : results) {
+			if(index.add(result).size > 1)
+				return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Adds a result to the group of its page, creating the group if there is none.
+	 * @param result Result to add
+	 * @return Group of the result
+	 */
+	private Group add(SearchResult result) {
+		String canonical = UrlNormalizer.canonicalize(result.getUrl());
+		Group group = groups.get(canonical);
+		if(group == null) {
+			long fingerprint = fingerprint(result);
+			String path = UrlNormalizer.canonicalPath(result.getUrl());
+			group = this.findNear(fingerprint, path);
+			if(group == null) {
+				group = new Group(fingerprint, path);
+				for(int band = 0; band < BANDS; band++) {
+					Map<Integer, List<Group>> buckets = bands.get(band);
+					Integer value = bandValue(fingerprint, band);
+					List<Group> bucket = buckets.get(value);
+					if(bucket == null) {
+						bucket = new ArrayList<Group>(1);
+						buckets.put(value, bucket);
+					}
+					bucket.add(group);
+				}
+				groupCount++;
+			}
+			groups.put(canonical, group);
+			group.aliases.add(canonical);
+		}
+		group.add(result);
+		resultCount++;
+		return group;
+	}
+	
+	/**
+	 * Removes a result from the group of its page; empty groups are dropped.
+	 * @param result Result to remove
+	 * @param orphaned Groups whose representative was removed, to add the group to
+	 */
+	private void remove(SearchResult result, Map<Group, Boolean> orphaned) {
+		Group group = groups.get(UrlNormalizer.canonicalize(result.getUrl()));
+		if(group == null)
+			return;
+		group.size--;
+		group.clicks -= result.getClickCounter();
+		resultCount--;
+		if(group.latest == result) {
+			group.latest = null;
+			orphaned.put(group, Boolean.TRUE);
+		}
+		if(group.size > 0)
+			return;
+		orphaned.remove(group);
+		for(String alias : group.aliases)
+			groups.remove(alias);
+		for(int band = 0; band < BANDS; band++) {
+			Map<Integer, List<Group>> buckets = bands.get(band);
+			Integer value = bandValue(group.fingerprint, band);
+			List<Group> bucket = buckets.get(value);
+			bucket.remove(group);
+			if(bucket.isEmpty())
+				buckets.remove(value);
+		}
+		groupCount--;
+	}
+	
+	/**
+	 * Looks up the new representatives of groups whose latest variant was removed: the latest of their
+	 * remaining results in the history. Listeners are called with the write lock of the history held, so
+	 * its searches can be read directly; the removed searches may still be among them and are skipped.
+	 * @param orphaned Groups without representative
+	 * @param removed Removed searches
+	 */
+	private void findLatest(Map<Group, Boolean> orphaned, Collection<QuerySearch> removed) {
+		if(history == null)
+			return;
+		Map<QuerySearch, Boolean> skipped = new IdentityHashMap<QuerySearch, Boolean>();
+		for(QuerySearch search : removed)
+			skipped.put(search, Boolean.TRUE);
+		List<QuerySearch> searches = history.entries();
+		for(int i = searches.size() - 1; (i >= 0) && !orphaned.isEmpty(); i--) {
+			if(skipped.containsKey(searches.get(i)))
+				continue;
+			List<SearchResult> results = searches.get(i).getResults();
+			for(int j = results.size() - 1; (j >= 0) && !orphaned.isEmpty(); j--) {
+				Group group = groups.get(UrlNormalizer.canonicalize(results.get(j).getUrl()));
+				if((group != null) && (orphaned.remove(group) != null))
+					group.latest = results.get(j);
+			}
+		}
+	}
+	
+	/**
+	 * Finds a group with the same path and a fingerprint within the maximum distance.
+	 */
+	private Group findNear(long fingerprint, String path) {
+		for(int band = 0; band < BANDS; band++) {
+			List<Group> bucket = bands.get(band).get(bandValue(fingerprint, band));
+			if(bucket == null)
+				continue;
+			for(Group candidate : bucket) {
+				if((Long.bitCount(candidate.fingerprint ^ fingerprint) <= MAX_DISTANCE) && candidate.path.equals(path))
+					return candidate;
+			}
+		}
+		return null;
+	}
+	
+	private static Integer bandValue(long fingerprint, int band) {
+		return (int) ((fingerprint >>> (band * BAND_BITS)) & ((1L << BAND_BITS) - 1));
+	}
+	
+	/**
+	 * Computes the SimHash fingerprint of the headline and summary of a result.
+	 * Every term and every pair of adjacent terms votes on each bit with the corresponding bit of its hash;
+	 * headline terms count twice.
+	 * @param result Result to fingerprint
+	 * @return 64-bit fingerprint
+	 */
+	static long fingerprint(SearchResult result) {
+		int[] votes = new int[64];
+		addFeatures(votes, TextAnalyzer.terms(result.getHeadline()), 2);
+		addFeatures(votes, TextAnalyzer.terms(result.getSummary()), 1);
+		long fingerprint = 0L;
+		for(int bit = 0; bit < 64; bit++) {
+			if(votes[bit] > 0)
+				fingerprint |= 1L << bit;
+		}
+		return fingerprint;
+	}
+	
+	private static void addFeatures(int[] votes, List<String> terms, int weight) {
+		for(int i = 0; i < terms.size(); i++) {
+			vote(votes, hash(terms.get(i)), weight);
+			if(i > 0)
+				vote(votes, hash(terms.get(i - 1) + ' ' + terms.get(i)), weight);
+		}
+	}
+	
+	private static void vote(int[] votes, long hash, int weight) {
+		for(int bit = 0; bit < 64; bit++)
+			votes[bit] += (((hash >>> bit) & 1L) != 0) ? weight : -weight;
+	}
+	
+	/**
+	 * 64-bit FNV-1a hash of the UTF-8 bytes, finished with a MurmurHash3 mix.
+	 */
+	private static long hash(String feature) {
+		long hash = 0xcbf29ce484222325L;
+		for(byte b : feature.getBytes(StandardCharsets.UTF_8)) {
+			hash ^= (b & 0xff);
+			hash *= 0x100000001b3L;
+		}
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+	
+	/**
+	 * Results showing the same page.
+	 */
+	private static class Group {
+		final long fingerprint;
+		final String path;
+		// Canonical URLs of the variants; all of them map to this group
+		final List<String> aliases = new ArrayList<String>(1);
+		// Latest variant added; null if it was removed and there is no history to find the next one in
+		SearchResult latest;
+		int size;
+		int clicks;
+		
+		Group(long fingerprint, String path) {
+			this.fingerprint = fingerprint;
+			this.path = path;
+		}
+		
+		void add(SearchResult result) {
+			latest = result;
+			size++;
+			clicks += result.getClickCounter();
+		}
+	}
+}
@@ -0,0 +1,236 @@
+package core;
+
+import java.awt.AWTEvent;
+import java.awt.EventQueue;
+import java.awt.Toolkit;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Opt-in detector for stalls of the Event Dispatch Thread.
+ * Installed as the system {@link EventQueue}, it times every dispatched event. A monitor thread samples the
+ * stack of the EDT while an event takes longer than half the threshold, so every stall above the threshold
+ * is logged together with the handler of the application which caused it and the stack at that time.
+ * Stall durations are collected in a histogram which is logged on exit.
+ * <p>
+ * Enabled with the system property <code>searchhistory.edtWatchdog</code>; the threshold is set with
+ * <code>searchhistory.edtWatchdog.thresholdMs</code> (default 100).
+ * @author Florian Bethe, Tino Liebusch
+ */
+public class EdtWatchdog extends EventQueue {
+	private static final Logger LOGGER = Logger.getLogger(EdtWatchdog.class.getName());
+	// Upper bounds of the histogram buckets in milliseconds; the last bucket is open
+	private static final long[] BUCKET_BOUNDS = { 100, 250, 500, 1000, 2500, 5000 };
+	// Anonymous and synthetic classes, e.g. the listeners created in initComponents
+	private static final Pattern ANONYMOUS_CLASS = Pattern.compile(".*\\$\\d+.*");
+	
+	private final long thresholdNanos;
+	private final Thread monitor;
+	
+	// Written by the EDT, read by the monitor
+	private volatile long dispatchStart = 0L;
+	private volatile Thread dispatchThread = null;
+	private volatile StackTraceElement[] sampledStack = null;
+	private int depth = 0;
+	
+	private final long[] histogram = new long[BUCKET_BOUNDS.length + 1];
+	private final Map<String, long[]> byHandler = new HashMap<String, long[]>();
+	private long dispatched = 0;
+	private long stalls = 0;
+	private long maxStallNanos = 0;
+	
+	/**
+	 * Constructor.
+	 * Doesn't install the queue yet, see {@link #install()}.
+	 * @param thresholdMillis Dispatch time in milliseconds above which an event counts as a stall
+	 */
+	public EdtWatchdog(long thresholdMillis) {
+		this.thresholdNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, thresholdMillis));
+		this.monitor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				monitor();
+			}
+		}, "edt-watchdog");
+		monitor.setDaemon(true);
+	}
+	
+	/**
+	 * Installs a watchdog if enabled by the system properties.
+	 * @return Installed watchdog, or null if disabled
+	 */
+	public static EdtWatchdog installFromSystemProperties() {
+		if(!Boolean.getBoolean("searchhistory.edtWatchdog"))
+			return null;
+		EdtWatchdog watchdog = new EdtWatchdog(Integer.getInteger("searchhistory.edtWatchdog.thresholdMs", 100));
+		watchdog.install();
+		return watchdog;
+	}
+	
+	/**
+	 * Replaces the system event queue by this one and starts the monitor.
+	 * The statistics are logged when the application exits.
+	 */
+	public void install() {
+		Toolkit.getDefaultToolkit().getSystemEventQueue().push(this);
+		monitor.start();
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				LOGGER.info(EdtWatchdog.this.toString());
+			}
+		});
+	}
+	
+	@Override
+	protected void dispatchEvent(AWTEvent event) {
+		// Modal dialogs dispatch nested events; only the outermost dispatch is timed
+		if(depth++ > 0) {
+			try {
+				super.dispatchEvent(event);
+			} finally {
+				depth--;
+			}
+			return;
+		}
+		
+		sampledStack = null;
+		dispatchThread = Thread.currentThread();
+		long start = System.nanoTime();
+		dispatchStart = start;
+		try {
+			super.dispatchEvent(event);
+		} finally {
+			dispatchStart = 0L;
+			depth--;
+			this.record(event, System.nanoTime() - start, sampledStack);
+		}
+	}
+	
+	/**
+	 * Samples the EDT stack while an event is dispatched for longer than half the threshold.
+	 */
+	private void monitor() {
+		long interval = Math.max(1L, TimeUnit.NANOSECONDS.toMillis(thresholdNanos) / 4);
+		while(true) {
+			try {
+				Thread.sleep(interval);
+			} catch(InterruptedException e) {
+				return;
+			}
+			long start = dispatchStart;
+			Thread thread = dispatchThread;
+			if((start != 0L) && (thread != null) && (System.nanoTime() - start >= thresholdNanos / 2)) {
+				StackTraceElement[] stack = thread.getStackTrace();
+				// Only keep the sample if it still belongs to the same dispatch
+				if(dispatchStart == start)
+					sampledStack = stack;
+			}
+		}
+	}
+	
+	/**
+	 * Counts a dispatched event and logs it if it was a stall.
+	 * @param event Dispatched event
+	 * @param nanos Dispatch duration
+	 * @param stack Sampled stack of the EDT during the dispatch (may be null)
+	 */
+	private void record(AWTEvent event, long nanos, StackTraceElement[] stack) {
+		String handler = null;
+		synchronized(this) {
+			dispatched++;
+			if(nanos < thresholdNanos)
+				return;
+			stalls++;
+			maxStallNanos = Math.max(maxStallNanos, nanos);
+			long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+			int bucket = 0;
+			while((bucket < BUCKET_BOUNDS.length) && (millis >= BUCKET_BOUNDS[bucket]))
+				bucket++;
+			histogram[bucket]++;
+			
+			handler = findHandler(stack);
+			if(handler == null)
+				handler = event.getClass().getSimpleName() + " from " + event.getSource().getClass().getSimpleName();
+			long[] perHandler = byHandler.get(handler);
+			if(perHandler == null) {
+				perHandler = new long[2];
+				byHandler.put(handler, perHandler);
+			}
+			perHandler[0]++;
+			perHandler[1] += millis;
+		}
+		
+		if(LOGGER.isLoggable(Level.WARNING)) {
+			StringBuilder message = new StringBuilder();
+			message.append(String.format(Locale.ROOT, "EDT stalled for %d ms in %s",
+					TimeUnit.NANOSECONDS.toMillis(nanos), handler));
+			if(stack != null) {
+				for(StackTraceElement frame : stack)
+					message.append("\n\tat ").append(frame);
+			}
+			LOGGER.warning(message.toString());
+		}
+	}
+	
+	/**
+	 * Identifies the handler of the application from a stack sample: the outermost named method of the
+	 * application's own classes, e.g. <code>SearchHistoryUI.performSearch</code> rather than the anonymous
+	 * listener calling it.
+	 * @param stack Stack sample, outermost frame last
+	 * @return Class and method name, or null if no application frame was found
+	 */
+	private static String findHandler(StackTraceElement[] stack) {
+		if(stack == null)
+			return null;
+		String packagePrefix = EdtWatchdog.class.getPackage().getName() + ".";
+		for(int i = stack.length - 1; i >= 0; i--) {
+			String className = stack[i].getClassName();
+			if(!className.startsWith(packagePrefix) || className.equals(EdtWatchdog.class.getName())
+					|| ANONYMOUS_CLASS.matcher(className).matches() || stack[i].getMethodName().startsWith("lambda$"))
+				continue;
+			return className.substring(packagePrefix.length()) + "." + stack[i].getMethodName();
+		}
+		return null;
+	}
+	
+	/**
+	 * Gets the number of stalls so far.
+	 * @return Events dispatched for longer than the threshold
+	 */
+	public synchronized long getStallCount() {
+		return stalls;
+	}
+	
+	@Override
+	public synchronized String toString() {
+		StringBuilder summary = new StringBuilder();
+		summary.append(String.format(Locale.ROOT, "EDT: %d events, %d stalls over %d ms (max %d ms)",
+				dispatched, stalls, TimeUnit.NANOSECONDS.toMillis(thresholdNanos),
+				TimeUnit.NANOSECONDS.toMillis(maxStallNanos)));
+		if(stalls == 0)
+			return summary.toString();
+		
+		summary.append("\nStall histogram:");
+		long lower = TimeUnit.NANOSECONDS.toMillis(thresholdNanos);
+		for(int i = 0; i < histogram.length; i++) {
+			if(histogram[i] > 0) {
+				summary.append(String.format(Locale.ROOT, "\n\t%6d ms - %s: %d", lower,
+						(i < BUCKET_BOUNDS.length) ? BUCKET_BOUNDS[i] + " ms" : "...", histogram[i]));
+			}
+			if(i < BUCKET_BOUNDS.length)
+				lower = Math.max(lower, BUCKET_BOUNDS[i]);
+		}
+		summary.append("\nBy handler:");
+		for(Map.Entry<String, long[]> entry : byHandler.entrySet()) {
+			summary.append(String.format(Locale.ROOT, "\n\t%s: %d stalls, %d ms in total",
+					entry.getKey(), entry.getValue()[0], entry.getValue()[1]));
+		}
+		return summary.toString();
+	}
+}
@@ -0,0 +1,40 @@
+package core;
+
+import java.io.IOException;
+
+/**
+ * Signals that a search engine answered with an HTTP error status.
+ * @author Florian Bethe, Tino Liebusch
+ */
+public class EngineException extends IOException {
+	private static final long serialVersionUID = 7405113926518305742L;
+	
+	private final int statusCode;
+	
+	/**
+	 * Constructor.
+	 * @param statusCode HTTP status code returned by the engine
+	 * @param message Error message
+	 */
+	public EngineException(int statusCode, String message) {
+		super(message);
+		this.statusCode = statusCode;
+	}
+	
+	/**
+	 * Gets the HTTP status code returned by the engine.
+	 * @return HTTP status code
+	 */
+	public int getStatusCode() {
+		return statusCode;
+	}
+	
+	/**
+	 * Checks whether repeating the request may succeed: the engine was overloaded (429) or had a
+	 * server-side error (5xx).
+	 * @return Is the error retryable
+	 */
+	public boolean isRetryable() {
+		return (statusCode == 429) || (statusCode >= 500);
+	}
+}
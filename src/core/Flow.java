@@ -0,0 +1,75 @@
+package core;
+
+/**
+ * Interfaces for streams with backpressure, with the same signatures and rules as
+ * <code>java.util.concurrent.Flow</code>, which isn't available on Java 8.
+ * Once the project moves to Java 9, these can be replaced by the JDK interfaces by changing the imports.
+ * <p>
+ * A {@link Publisher Publisher} emits items to each {@link Subscriber Subscriber} only as far as the
+ * subscriber has requested them through its {@link Subscription Subscription}. Signals to one subscriber
+ * never overlap, and a stream ends with exactly one of {@link Subscriber#onComplete()} and
+ * {@link Subscriber#onError(Throwable)} unless it has been cancelled.
+ * @author Florian Bethe, Tino Liebusch
+ */
+public final class Flow {
+	
+	private Flow() {
+	}
+	
+	/**
+	 * Producer of items for any number of subscribers.
+	 * @param <T> Type of the items
+	 */
+	public interface Publisher<T> {
+		/**
+		 * Adds a subscriber; it is first handed its subscription through {@link Subscriber#onSubscribe(Subscription)}.
+		 * @param subscriber Subscriber to add
+		 */
+		void subscribe(Subscriber<? super T> subscriber);
+	}
+	
+	/**
+	 * Receiver of the items of a publisher.
+	 * @param <T> Type of the items
+	 */
+	public interface Subscriber<T> {
+		/**
+		 * Called before any other signal.
+		 * @param subscription Subscription to request items with
+		 */
+		void onSubscribe(Subscription subscription);
+		
+		/**
+		 * Called with the next item, only if it has been requested.
+		 * @param item Next item
+		 */
+		void onNext(T item);
+		
+		/**
+		 * Called when the stream has failed; no more signals follow.
+		 * @param throwable Cause of the failure
+		 */
+		void onError(Throwable throwable);
+		
+		/**
+		 * Called when all items have been emitted; no more signals follow.
+		 */
+		void onComplete();
+	}
+	
+	/**
+	 * Link between a publisher and one subscriber.
+	 */
+	public interface Subscription {
+		/**
+		 * Requests more items.
+		 * @param n Number of additional items (Long.MAX_VALUE for all); values below 1 fail the stream
+		 */
+		void request(long n);
+		
+		/**
+		 * Stops the stream for this subscriber; signals already under way may still arrive.
+		 */
+		void cancel();
+	}
+}
@@ -0,0 +1,577 @@
+package core;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.json.Json;
+import javax.json.stream.JsonGenerator;
+import javax.json.stream.JsonGeneratorFactory;
+
+/**
+ * Estimates the memory held by the searches of a history and how it grows, to size the heap (and the
+ * off-heap {@link TextArena TextArena}) for a longer history before it runs out.
+ * <p>
+ * The analyzer walks the searches in date order and attributes every object to the field referencing it
+ * when it is first reached, so objects shared between searches or results (e.g. a query string used by a
+ * search and all its results) count once. Sizes are estimates for a 64-bit HotSpot JVM: 12 byte object
+ * headers and 4 byte references with compressed oops (16 and 8 without), 8 byte alignment, and strings as
+ * Latin-1 or UTF-16 byte arrays from Java 9 on (char arrays before). Off-heap texts count their UTF-8
+ * bytes.
+ * <p>
+ * Afterwards the indexes of the history are walked. They count everything they reference which wasn't
+ * reached through the searches (e.g. per-result entries and their arrays), while the searches, results and
+ * strings they share with the history only count with the references to them. Collections of the JDK are
+ * estimated from their size (as hash tables or arrays of references), since their internals aren't accessible.
+ * <p>
+ * For every field the report lists the instances, the distinct values and the bytes spent on instances
+ * equal to an earlier one (which interning or sharing the texts would save). The growth section spreads
+ * the bytes of the searches over the days they were made; the projection adds the average size of a search,
+ * including its share of the indexes, for a number of further searches.
+ * @author Florian Bethe, Tino Liebusch
+ */
+public class FootprintAnalyzer {
+	public static final int DEFAULT_PROJECTED_SEARCHES = 10000;
+	
+	private static final boolean COMPRESSED_OOPS = Runtime.getRuntime().maxMemory() < (32L << 30);
+	private static final boolean COMPACT_STRINGS = !System.getProperty("java.specification.version").startsWith("1.");
+	private static final int HEADER = COMPRESSED_OOPS ? 12 : 16;
+	private static final int REFERENCE = COMPRESSED_OOPS ? 4 : 8;
+	private static final int ARRAY_HEADER = COMPRESSED_OOPS ? 16 : 24;
+	
+	private static final Map<Class<?>, Long> shallowSizes = new HashMap<Class<?>, Long>();
+	
+	// Keyed by class and field name, in the order of the report
+	private final Map<String, FieldUsage> fields = new LinkedHashMap<String, FieldUsage>();
+	// Day (yyyy-MM-dd) to its searches and bytes
+	private final Map<String, long[]> days = new TreeMap<String, long[]>();
+	// Objects counted so far, across all fields; off-heap texts by handle
+	private final Map<Object, Boolean> reached = new IdentityHashMap<Object, Boolean>();
+	private final Set<Long> reachedTexts = new HashSet<Long>();
+	// Index class name to its bytes, in the order of the report
+	private final Map<String, Long> indexes = new LinkedHashMap<String, Long>();
+	private int searchCount;
+	private int resultCount;
+	private int deltaCount;
+	private long heapBytes;
+	private long offHeapBytes;
+	private long indexBytes;
+	private Date first;
+	private Date last;
+	
+	/**
+	 * Constructor.
+	 * Analyzes the searches currently in the history and its indexes.
+	 * @param history History to analyze
+	 */
+	public FootprintAnalyzer(SearchHistory history) {
+		this(history.getHistoryDateOrdered());
+		// Indexes referring back to the history must not pull it in
+		reached.put(history, Boolean.TRUE);
+		for(HistoryListener index : history.getIndexes()) {
+			long bytes;
+			synchronized(index) {
+				bytes = this.deepSize(index);
+			}
+			indexes.put(index.getClass().getSimpleName(), bytes);
+			indexBytes += bytes;
+		}
+	}
+	
+	/**
+	 * Constructor.
+	 * Analyzes the given searches.
+	 * @param searches Searches in date order
+	 */
+	public FootprintAnalyzer(List<QuerySearch> searches) {
+		SimpleDateFormat dayFormat = new SimpleDateFormat("yyyy-MM-dd");
+		for(QuerySearch search : searches) {
+			long before = heapBytes + offHeapBytes;
+			this.addSearch(search);
+			long[] day = days.get(dayFormat.format(search.getTimestamp()));
+			if(day == null) {
+				day = new long[2];
+				days.put(dayFormat.format(search.getTimestamp()), day);
+			}
+			day[0]++;
+			day[1] += heapBytes + offHeapBytes - before;
+			if(first == null)
+				first = search.getTimestamp();
+			last = search.getTimestamp();
+		}
+	}
+	
+	/**
+	 * Gets the estimated heap memory of the searches.
+	 * @return Bytes on the heap
+	 */
+	public long getHeapBytes() {
+		return heapBytes;
+	}
+	
+	/**
+	 * Gets the memory of the texts of the results in the off-heap arena.
+	 * @return Bytes off-heap
+	 */
+	public long getOffHeapBytes() {
+		return offHeapBytes;
+	}
+	
+	/**
+	 * Gets the estimated heap memory of the indexes beyond the searches they share with the history.
+	 * @return Bytes on the heap
+	 */
+	public long getIndexBytes() {
+		return indexBytes;
+	}
+	
+	/**
+	 * Gets the average memory of a search including its results and its share of the indexes, on and off
+	 * the heap.
+	 * @return Bytes per search, 0 for an empty history
+	 */
+	public double getBytesPerSearch() {
+		return (searchCount == 0) ? 0.0 : (double) this.getTotalBytes() / searchCount;
+	}
+	
+	private long getTotalBytes() {
+		return heapBytes + offHeapBytes + indexBytes;
+	}
+	
+	/**
+	 * Gets the number of searches per day between the first and the last search.
+	 * @return Searches per day, 0 for an empty history
+	 */
+	public double getSearchesPerDay() {
+		return (searchCount == 0) ? 0.0 : searchCount / this.getSpanDays();
+	}
+	
+	/**
+	 * Projects the memory of the history after further searches of the average size.
+	 * @param additionalSearches Number of further searches
+	 * @return Projected bytes, on and off the heap
+	 */
+	public long project(int additionalSearches) {
+		return this.getTotalBytes() + Math.round(additionalSearches * this.getBytesPerSearch());
+	}
+	
+	/**
+	 * Writes the report as JSON.
+	 * @param out Stream to write to; it is not closed
+	 * @param additionalSearches Number of further searches for the projection
+	 */
+	public void writeReport(OutputStream out, int additionalSearches) {
+		JsonGeneratorFactory factory = Json.createGeneratorFactory(
+				Collections.singletonMap(JsonGenerator.PRETTY_PRINTING, Boolean.TRUE));
+		JsonGenerator generator = factory.createGenerator(out);
+		generator.writeStartObject();
+		
+		Runtime runtime = Runtime.getRuntime();
+		TextArena arena = TextArena.shared();
+		generator.writeStartObject("jvm")
+				.write("compressedOops", COMPRESSED_OOPS)
+				.write("compactStrings", COMPACT_STRINGS)
+				.write("heapUsedBytes", runtime.totalMemory() - runtime.freeMemory())
+				.write("heapMaxBytes", runtime.maxMemory())
+				.write("arenaAllocatedBytes", arena.getAllocatedBytes())
+				.write("arenaReservedBytes", arena.getReservedBytes())
+				.writeEnd();
+		
+		generator.writeStartObject("history")
+				.write("searches", searchCount)
+				.write("results", resultCount)
+				.write("deltaSearches", deltaCount)
+				.write("heapBytes", heapBytes)
+				.write("offHeapBytes", offHeapBytes)
+				.write("indexBytes", indexBytes)
+				.write("totalBytes", this.getTotalBytes())
+				.writeEnd();
+		
+		generator.writeStartArray("indexes");
+		for(Map.Entry<String, Long> entry : indexes.entrySet()) {
+			generator.writeStartObject()
+					.write("index", entry.getKey())
+					.write("bytes", entry.getValue())
+					.writeEnd();
+		}
+		generator.writeEnd();
+		
+		generator.writeStartArray("fields");
+		for(Map.Entry<String, FieldUsage> entry : fields.entrySet()) {
+			FieldUsage usage = entry.getValue();
+			generator.writeStartObject()
+					.write("field", entry.getKey())
+					.write("storage", usage.offHeap ? "off-heap" : "heap")
+					.write("instances", usage.instances)
+					.write("bytes", usage.bytes)
+					.write("bytesPerInstance", (usage.instances == 0) ? 0.0 : (double) usage.bytes / usage.instances);
+			if(usage.values != null) {
+				generator.write("distinctValues", usage.values.size())
+						.write("duplicateBytes", usage.duplicateBytes)
+						.write("duplicationRatio", (usage.bytes == 0) ? 0.0 : (double) usage.duplicateBytes / usage.bytes);
+			}
+			generator.writeEnd();
+		}
+		generator.writeEnd();
+		
+		SimpleDateFormat timeFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ");
+		generator.writeStartObject("growth");
+		if(first != null) {
+			generator.write("firstSearch", timeFormat.format(first))
+					.write("lastSearch", timeFormat.format(last));
+		}
+		generator.write("spanDays", this.getSpanDays())
+				.write("searchesPerDay", this.getSearchesPerDay())
+				.write("bytesPerDay", this.getTotalBytes() / this.getSpanDays())
+				.write("bytesPerSearch", this.getBytesPerSearch());
+		generator.writeStartArray("daily");
+		for(Map.Entry<String, long[]> day : days.entrySet()) {
+			generator.writeStartObject()
+					.write("date", day.getKey())
+					.write("searches", day.getValue()[0])
+					.write("bytes", day.getValue()[1])
+					.writeEnd();
+		}
+		generator.writeEnd();
+		generator.writeEnd();
+		
+		double perDay = this.getSearchesPerDay();
+		double heapShare = (this.getTotalBytes() == 0) ? 1.0
+				: (double) (heapBytes + indexBytes) / this.getTotalBytes();
+		long projected = this.project(additionalSearches);
+		generator.writeStartObject("projection")
+				.write("additionalSearches", additionalSearches)
+				.write("heapBytes", Math.round(projected * heapShare))
+				.write("offHeapBytes", projected - Math.round(projected * heapShare))
+				.write("totalBytes", projected);
+		if(perDay > 0.0)
+			generator.write("daysUntilReached", additionalSearches / perDay);
+		generator.writeEnd();
+		
+		generator.writeEnd();
+		generator.flush();
+	}
+	
+	/**
+	 * Command line entry point; analyzes a history and writes the report.
+	 * @param args <code>[--history file] [--out report.json] [--project searches]</code>
+	 * @throws IOException If the report can't be written
+	 */
+	public static void main(String[] args) throws IOException {
+		String historyFile = null;
+		String outFile = null;
+		int additionalSearches = DEFAULT_PROJECTED_SEARCHES;
+		for(int i = 0; i < args.length; i++) {
+			if("--history".equals(args[i]) && (i + 1 < args.length))
+				historyFile = args[++i];
+			else if("--out".equals(args[i]) && (i + 1 < args.length))
+				outFile = args[++i];
+			else if("--project".equals(args[i]) && (i + 1 < args.length))
+				additionalSearches = Integer.parseInt(args[++i]);
+			else
+				throw new IllegalArgumentException("Unknown argument: " + args[i]);
+		}
+		
+		SearchHistory history = (historyFile == null) ? new SearchHistory() : new SearchHistory(historyFile);
+		FootprintAnalyzer analyzer = new FootprintAnalyzer(history);
+		if(outFile == null) {
+			analyzer.writeReport(System.out, additionalSearches);
+			System.out.println();
+		} else {
+			try(OutputStream out = new FileOutputStream(outFile)) {
+				analyzer.writeReport(out, additionalSearches);
+			}
+		}
+	}
+	
+	/**
+	 * Accounts a search and everything reachable from it that hasn't been reached before.
+	 */
+	private void addSearch(QuerySearch search) {
+		searchCount++;
+		this.account(search.getClass().getSimpleName(), false, false, search, null, shallowSize(search.getClass()));
+		this.account("QuerySearch.query", false, true, search.getQuery(), search.getQuery(),
+				stringSize(search.getQuery()));
+		this.account("QuerySearch.time", false, true, search.getTimestamp(), search.getTimestamp(),
+				shallowSize(Date.class));
+		
+		List<SearchResult> results = search.getResults();
+		if(results != null) {
+			this.account("QuerySearch.results", false, false, results, null,
+					shallowSize(results.getClass()) + arraySize(results.size(), REFERENCE));
+			if(search.getDeltaBase() != null) {
+				// Delta: base and ops references plus the chain length, and one op per result
+				deltaCount++;
+				this.count("QuerySearch.delta", false, false, null,
+						align(HEADER + 2 * REFERENCE + 4) + arraySize(results.size(), 4));
+			}
+			for(SearchResult result : results)
+				this.addResult(result);
+		}
+	}
+	
+	/**
+	 * Accounts a result, its query and its texts.
+	 */
+	private void addResult(SearchResult result) {
+		resultCount++;
+		this.account("SearchResult", false, false, result, null, shallowSize(result.getClass()));
+		this.account("SearchResult.query", false, true, result.getQuery(), result.getQuery(),
+				stringSize(result.getQuery()));
+		if(result.getStoredAt() != null) {
+			this.account("SearchResult.storedAt", false, true, result.getStoredAt(), result.getStoredAt(),
+					shallowSize(Date.class));
+		}
+		
+		long[] handles = result.getTextHandles();
+		int[] lengths = result.getTextLengths();
+		String[] names = {"SearchResult.url", "SearchResult.headline", "SearchResult.summary"};
+		for(int i = 0; i < handles.length; i++) {
+			if(handles[i] == TextArena.EMPTY)
+				continue;
+			// Texts shared with a copy of the result are only decoded once
+			if(!reachedTexts.contains(handles[i]))
+				this.account(names[i], true, true, handles[i], text(result, i), lengths[i]);
+		}
+	}
+	
+	/**
+	 * Gets a text of a result in the order of {@link SearchResult#getTextHandles()}.
+	 */
+	private static String text(SearchResult result, int index) {
+		switch(index) {
+			case 0:
+				return result.getUrlText();
+			case 1:
+				return result.getHeadline();
+			default:
+				return result.getSummary();
+		}
+	}
+	
+	/**
+	 * Accounts an object for a field and adds its size to the totals unless it was reached before, from
+	 * this or any other field.
+	 */
+	private void account(String name, boolean offHeap, boolean trackValues, Object instance, Object value,
+			long size) {
+		if(instance == null)
+			return;
+		boolean first = offHeap ? reachedTexts.add((Long) instance) : (reached.put(instance, Boolean.TRUE) == null);
+		if(first)
+			this.count(name, offHeap, trackValues, value, size);
+	}
+	
+	/**
+	 * Adds the size of an instance of a field to the field and the totals.
+	 */
+	private void count(String name, boolean offHeap, boolean trackValues, Object value, long size) {
+		this.usage(name, offHeap, trackValues).add(value, size);
+		if(offHeap)
+			offHeapBytes += size;
+		else
+			heapBytes += size;
+	}
+	
+	private FieldUsage usage(String name, boolean offHeap, boolean trackValues) {
+		FieldUsage usage = fields.get(name);
+		if(usage == null) {
+			usage = new FieldUsage(offHeap, trackValues);
+			fields.put(name, usage);
+		}
+		return usage;
+	}
+	
+	/**
+	 * Estimates the memory of an object and everything it references which hasn't been reached before.
+	 * Classes of the project are walked field by field; strings and arrays are sized exactly, collections and
+	 * maps of the JDK from their size, and other JDK objects only count their own fields.
+	 * @param root Object to start from
+	 * @return Size in bytes
+	 */
+	private long deepSize(Object root) {
+		long bytes = 0;
+		ArrayDeque<Object> pending = new ArrayDeque<Object>();
+		pending.push(root);
+		while(!pending.isEmpty()) {
+			Object object = pending.pop();
+			if((object instanceof Enum) || (object instanceof Class) || (reached.put(object, Boolean.TRUE) != null))
+				continue;
+			Class<?> type = object.getClass();
+			if(object instanceof String) {
+				bytes += stringSize((String) object);
+			} else if(type.isArray()) {
+				bytes += arraySize(Array.getLength(object), fieldSize(type.getComponentType()));
+				if(!type.getComponentType().isPrimitive())
+					pushAll(pending, Arrays.asList((Object[]) object));
+			} else if(object instanceof Map) {
+				Map<?, ?> map = (Map<?, ?>) object;
+				bytes += shallowSize(type) + hashTableSize(map.size());
+				pushAll(pending, map.keySet());
+				pushAll(pending, map.values());
+			} else if(object instanceof Collection) {
+				Collection<?> collection = (Collection<?>) object;
+				bytes += shallowSize(type) + ((object instanceof Set) ? shallowSize(HashMap.class)
+						+ hashTableSize(collection.size()) : arraySize(collection.size(), REFERENCE));
+				pushAll(pending, collection);
+			} else if(isJdkClass(type)) {
+				bytes += shallowSize(type);
+			} else {
+				bytes += shallowSize(type);
+				for(Class<?> current = type; current != null; current = current.getSuperclass()) {
+					for(Field field : current.getDeclaredFields()) {
+						if(Modifier.isStatic(field.getModifiers()) || field.getType().isPrimitive())
+							continue;
+						try {
+							field.setAccessible(true);
+							Object value = field.get(object);
+							if(value != null)
+								pending.push(value);
+						} catch(IllegalAccessException | RuntimeException e) {
+							// Not accessible (e.g. a class of the JDK further up); only its reference counts
+						}
+					}
+				}
+			}
+		}
+		return bytes;
+	}
+	
+	private static void pushAll(ArrayDeque<Object> pending, Collection<?> objects) {
+		for(Object object : objects) {
+			if(object != null)
+				pending.push(object);
+		}
+	}
+	
+	/**
+	 * Estimates the table and entries of a hash map with the given number of entries.
+	 */
+	private static long hashTableSize(int entries) {
+		int capacity = Integer.highestOneBit(Math.max(1, (int) (entries / 0.75f)) * 2 - 1);
+		return arraySize(Math.max(16, capacity), REFERENCE) + entries * align(HEADER + 4 + 3 * REFERENCE);
+	}
+	
+	private static boolean isJdkClass(Class<?> type) {
+		String name = type.getName();
+		return name.startsWith("java.") || name.startsWith("javax.") || name.startsWith("jdk.")
+				|| name.startsWith("sun.") || name.startsWith("com.sun.");
+	}
+	
+	/**
+	 * Gets the days between the first and the last search, at least one.
+	 */
+	private double getSpanDays() {
+		if(first == null)
+			return 1.0;
+		return Math.max(1.0, (double) (last.getTime() - first.getTime()) / TimeUnit.DAYS.toMillis(1));
+	}
+	
+	/**
+	 * Estimates the size of an instance of a class from its instance fields.
+	 * @param type Class
+	 * @return Shallow size in bytes
+	 */
+	static synchronized long shallowSize(Class<?> type) {
+		Long size = shallowSizes.get(type);
+		if(size == null) {
+			long bytes = HEADER;
+			for(Class<?> current = type; current != null; current = current.getSuperclass()) {
+				for(Field field : current.getDeclaredFields()) {
+					if(!Modifier.isStatic(field.getModifiers()))
+						bytes += fieldSize(field.getType());
+				}
+			}
+			size = align(bytes);
+			shallowSizes.put(type, size);
+		}
+		return size;
+	}
+	
+	/**
+	 * Estimates the size of a string including its character array.
+	 * @param text String
+	 * @return Size in bytes
+	 */
+	static long stringSize(String text) {
+		if(text == null)
+			return 0L;
+		int bytesPerChar = 2;
+		if(COMPACT_STRINGS) {
+			bytesPerChar = 1;
+			for(int i = 0; i < text.length(); i++) {
+				if(text.charAt(i) > 0xff) {
+					bytesPerChar = 2;
+					break;
+				}
+			}
+		}
+		return shallowSize(String.class) + arraySize(text.length(), bytesPerChar);
+	}
+	
+	private static long arraySize(int length, int elementSize) {
+		return align(ARRAY_HEADER + (long) length * elementSize);
+	}
+	
+	private static int fieldSize(Class<?> type) {
+		if(!type.isPrimitive())
+			return REFERENCE;
+		if((type == Long.TYPE) || (type == Double.TYPE))
+			return 8;
+		if((type == Integer.TYPE) || (type == Float.TYPE))
+			return 4;
+		if((type == Short.TYPE) || (type == Character.TYPE))
+			return 2;
+		return 1;
+	}
+	
+	private static long align(long bytes) {
+		return (bytes + 7) & ~7L;
+	}
+	
+	/**
+	 * Instances, distinct values and bytes of a field.
+	 */
+	private static class FieldUsage {
+		final boolean offHeap;
+		final Set<Object> values;
+		long instances;
+		long bytes;
+		long duplicateBytes;
+		
+		FieldUsage(boolean offHeap, boolean trackValues) {
+			this.offHeap = offHeap;
+			this.values = trackValues ? new HashSet<Object>() : null;
+		}
+		
+		/**
+		 * Accounts an instance which hasn't been reached before.
+		 * @param value Value of the instance, to detect equal instances; ignored unless values are tracked
+		 * @param size Size of the instance
+		 */
+		void add(Object value, long size) {
+			instances++;
+			bytes += size;
+			if((values != null) && !values.add(value))
+				duplicateBytes += size;
+		}
+	}
+}
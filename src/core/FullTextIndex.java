@@ -0,0 +1,477 @@
+package core;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Ranked full-text index over the results in the history.
+ * Every {@link SearchResult SearchResult} is a document with the fields headline, summary and URL.
+ * Documents are scored with BM25F: the per-field term frequencies are length-normalized, weighted with
+ * the field boosts and then saturated once, so a term in the headline counts more than one in the summary.
+ * <p>
+ * On disk the index is a sequence of segments with varint-encoded postings. A save only appends a
+ * segment with the documents added since the last save; the file is rewritten as a whole only after
+ * documents have been removed.
+ * @author Florian Bethe, Tino Liebusch
+ */
+public class FullTextIndex implements HistoryListener {
+	private static final int HEADLINE = 0;
+	private static final int SUMMARY = 1;
+	private static final int URL = 2;
+	private static final int FIELDS = 3;
+	
+	private static final float[] BOOSTS = { 3.0f, 1.0f, 1.5f };
+	private static final float[] LENGTH_NORMALIZATION = { 0.5f, 0.75f, 0.5f };
+	private static final float K1 = 1.2f;
+	
+	private static final int SEGMENT_MAGIC = 0x46545331;
+	// Term frequencies of the three fields are packed into one int with 10 bits each
+	private static final int TF_BITS = 10;
+	private static final int TF_MAX = (1 << TF_BITS) - 1;
+	
+	private final ArrayList<SearchResult> docs = new ArrayList<SearchResult>();
+	private int[] fieldLengths = new int[FIELDS * 64];
+	private final long[] totalLengths = new long[FIELDS];
+	private final Map<String, Postings> postings = new HashMap<String, Postings>();
+	private final Map<QuerySearch, int[]> docRanges = new IdentityHashMap<QuerySearch, int[]>();
+	private final BitSet dead = new BitSet();
+	private int deadCount = 0;
+	// Score accumulator of the documents, reused between queries; only touched entries are non-zero
+	private float[] scores = new float[64];
+	private int[] touched = new int[16];
+	
+	// Persistence state: documents below persistedDocs are on disk, dirty terms have postings beyond it
+	private int persistedDocs = 0;
+	private boolean rewrite = true;
+	private final Set<String> dirtyTerms = new HashSet<String>();
+	
+	@Override
+	public synchronized void searchAdded(QuerySearch search) {
+		int first = docs.size();
+		for(SearchResult result : search.getResults())
+			this.addDoc(result);
+		docRanges.put(search, new int[] { first, docs.size() - first });
+	}
+	
+	@Override
+	public synchronized void searchesRemoved(Collection<QuerySearch> searches) {
+		for(QuerySearch search : searches) {
+			int[] range = docRanges.remove(search);
+			if(range == null)
+				continue;
+			for(int doc = range[0]; doc < range[0] + range[1]; doc++) {
+				if(!dead.get(doc)) {
+					dead.set(doc);
+					deadCount++;
+					for(int field = 0; field < FIELDS; field++)
+						totalLengths[field] -= fieldLengths[doc * FIELDS + field];
+					// The postings keep the document until the next compaction, but it no longer counts for the IDF
+					for(String term : this.frequencies(docs.get(doc), null).keySet())
+						postings.get(term).live--;
+				}
+			}
+		}
+		
+		// Physically drop the dead documents once they make up half of the index
+		if(deadCount * 2 > docs.size())
+			this.compact();
+	}
+	
+	/**
+	 * Deleted texts mustn't linger in the stored index, so the next save drops all dead documents and
+	 * rewrites it instead of appending.
+	 */
+	@Override
+	public synchronized void searchesDeleted(Collection<QuerySearch> searches) {
+		this.searchesRemoved(searches);
+		rewrite = true;
+	}
+	
+	/**
+	 * Searches the index.
+	 * @param query Query text; analyzed like the documents
+	 * @param maxAmount Maximum number of results
+	 * @return Results ranked by descending BM25F score
+	 */
+	public synchronized List<SearchResult> search(String query, int maxAmount) {
+		Set<String> terms = new LinkedHashSet<String>(TextAnalyzer.terms(query));
+		int liveDocs = docs.size() - deadCount;
+		if(terms.isEmpty() || (liveDocs == 0) || (maxAmount <= 0))
+			return Collections.emptyList();
+		
+		float[] averageLengths = new float[FIELDS];
+		for(int field = 0; field < FIELDS; field++)
+			averageLengths[field] = Math.max(1.0f, (float) totalLengths[field] / liveDocs);
+		
+		// Term-at-a-time accumulation; only touched documents are ranked afterwards
+		if(scores.length < docs.size())
+			scores = new float[Math.max(docs.size(), scores.length * 2)];
+		int touchedCount = 0;
+		for(String term : terms) {
+			Postings list = postings.get(term);
+			if((list == null) || (list.live == 0))
+				continue;
+			double idf = Math.log(1.0 + (liveDocs - list.live + 0.5) / (list.live + 0.5));
+			for(int i = 0; i < list.size; i++) {
+				int doc = list.docs[i];
+				if(dead.get(doc))
+					continue;
+				int packed = list.tfs[i];
+				float tf = 0.0f;
+				for(int field = 0; field < FIELDS; field++) {
+					int fieldTf = (packed >>> (field * TF_BITS)) & TF_MAX;
+					if(fieldTf > 0) {
+						float norm = 1.0f - LENGTH_NORMALIZATION[field] + LENGTH_NORMALIZATION[field]
+								* fieldLengths[doc * FIELDS + field] / averageLengths[field];
+						tf += BOOSTS[field] * fieldTf / norm;
+					}
+				}
+				if(scores[doc] == 0.0f) {
+					if(touchedCount == touched.length)
+						touched = Arrays.copyOf(touched, touchedCount * 2);
+					touched[touchedCount++] = doc;
+				}
+				scores[doc] += (float) (idf * tf / (K1 + tf));
+			}
+		}
+		
+		// Keep the best documents in a min-heap of bounded size
+		final float[] finalScores = scores;
+		PriorityQueue<Integer> best = new PriorityQueue<Integer>(Math.min(maxAmount, Math.max(1, touchedCount)),
+				new Comparator<Integer>() {
+					@Override
+					public int compare(Integer a, Integer b) {
+						return Float.compare(finalScores[a], finalScores[b]);
+					}
+				});
+		for(int i = 0; i < touchedCount; i++) {
+			best.add(touched[i]);
+			if(best.size() > maxAmount)
+				best.poll();
+		}
+		SearchResult[] ranked = new SearchResult[best.size()];
+		for(int i = ranked.length - 1; i >= 0; i--)
+			ranked[i] = docs.get(best.poll());
+		for(int i = 0; i < touchedCount; i++)
+			scores[touched[i]] = 0.0f;
+		return Arrays.asList(ranked);
+	}
+	
+	/**
+	 * Gets the number of indexed (live) results.
+	 * @return Number of documents
+	 */
+	public synchronized int size() {
+		return docs.size() - deadCount;
+	}
+	
+	/**
+	 * Adds a document to the in-memory index.
+	 */
+	private void addDoc(SearchResult result) {
+		int doc = docs.size();
+		docs.add(result);
+		if(fieldLengths.length < (doc + 1) * FIELDS)
+			fieldLengths = Arrays.copyOf(fieldLengths, fieldLengths.length * 2);
+		
+		int[] lengths = new int[FIELDS];
+		Map<String, int[]> frequencies = this.frequencies(result, lengths);
+		for(int field = 0; field < FIELDS; field++) {
+			fieldLengths[doc * FIELDS + field] = lengths[field];
+			totalLengths[field] += lengths[field];
+		}
+		
+		for(Map.Entry<String, int[]> entry : frequencies.entrySet()) {
+			int packed = 0;
+			for(int field = 0; field < FIELDS; field++)
+				packed |= Math.min(TF_MAX, entry.getValue()[field]) << (field * TF_BITS);
+			this.postingsFor(entry.getKey()).add(doc, packed);
+			dirtyTerms.add(entry.getKey());
+		}
+	}
+	
+	/**
+	 * Analyzes the fields of a document.
+	 * @param result Document
+	 * @param lengths Receives the number of terms per field; may be null
+	 * @return Term frequencies per field of every term
+	 */
+	private Map<String, int[]> frequencies(SearchResult result, int[] lengths) {
+		Map<String, int[]> frequencies = new HashMap<String, int[]>();
+		List<List<String>> fields = Arrays.asList(TextAnalyzer.terms(result.getHeadline()),
+				TextAnalyzer.terms(result.getSummary()), TextAnalyzer.urlTerms(result.getUrlText()));
+		for(int field = 0; field < FIELDS; field++) {
+			List<String> terms = fields.get(field);
+			if(lengths != null)
+				lengths[field] = terms.size();
+			for(String term : terms) {
+				int[] tf = frequencies.get(term);
+				if(tf == null) {
+					tf = new int[FIELDS];
+					frequencies.put(term, tf);
+				}
+				tf[field]++;
+			}
+		}
+		return frequencies;
+	}
+	
+	private Postings postingsFor(String term) {
+		Postings list = postings.get(term);
+		if(list == null) {
+			list = new Postings();
+			postings.put(term, list);
+		}
+		return list;
+	}
+	
+	/**
+	 * Rebuilds the index from the live documents only.
+	 * The documents are renumbered, so the next save rewrites the whole file.
+	 */
+	private void compact() {
+		List<Map.Entry<QuerySearch, int[]>> live = new ArrayList<Map.Entry<QuerySearch, int[]>>(docRanges.entrySet());
+		Collections.sort(live, new Comparator<Map.Entry<QuerySearch, int[]>>() {
+			@Override
+			public int compare(Map.Entry<QuerySearch, int[]> a, Map.Entry<QuerySearch, int[]> b) {
+				return Integer.compare(a.getValue()[0], b.getValue()[0]);
+			}
+		});
+		
+		docs.clear();
+		Arrays.fill(totalLengths, 0);
+		postings.clear();
+		docRanges.clear();
+		dead.clear();
+		deadCount = 0;
+		dirtyTerms.clear();
+		for(Map.Entry<QuerySearch, int[]> entry : live)
+			this.searchAdded(entry.getKey());
+		rewrite = true;
+	}
+	
+	/**
+	 * Loads the index from disk and binds it to the searches currently in the history.
+	 * The stored documents have to match the results of the searches in order; searches beyond the stored
+	 * documents are indexed afterwards. If the file doesn't match, the index stays empty.
+	 * @param file Index file
+	 * @param searches Searches in the order they will be (or have been) fed to this index
+	 * @return Did the file match, i.e. are all the searches indexed now
+	 */
+	public synchronized boolean load(File file, List<QuerySearch> searches) {
+		if(!file.exists())
+			return false;
+		
+		List<SearchResult> results = new ArrayList<SearchResult>();
+		for(QuerySearch search : searches)
+			results.addAll(search.getResults());
+		
+		try(final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			while(in.available() > 0) {
+				if(in.readInt() != SEGMENT_MAGIC)
+					throw new IOException("Corrupt full-text index segment");
+				int first = readVarint(in);
+				int count = readVarint(in);
+				if(first != docs.size())
+					throw new IOException("Full-text index segments out of order");
+				
+				for(int i = 0; i < count; i++) {
+					int doc = first + i;
+					int hash = in.readInt();
+					if((doc >= results.size()) || (hash != docHash(results.get(doc))))
+						throw new IOException("Full-text index doesn't match the history");
+					docs.add(results.get(doc));
+					if(fieldLengths.length < (doc + 1) * FIELDS)
+						fieldLengths = Arrays.copyOf(fieldLengths, fieldLengths.length * 2);
+					for(int field = 0; field < FIELDS; field++) {
+						int length = readVarint(in);
+						fieldLengths[doc * FIELDS + field] = length;
+						totalLengths[field] += length;
+					}
+				}
+				
+				int termCount = readVarint(in);
+				for(int t = 0; t < termCount; t++) {
+					Postings list = this.postingsFor(in.readUTF());
+					int postingCount = readVarint(in);
+					int doc = first;
+					for(int p = 0; p < postingCount; p++) {
+						doc += readVarint(in);
+						list.add(doc, readVarint(in));
+					}
+				}
+			}
+		} catch(IOException e) {
+			System.err.println("Rebuilding full-text index: " + e.getMessage());
+			this.clear();
+			return false;
+		}
+		
+		// Bind the loaded documents to their searches and index what's missing
+		persistedDocs = docs.size();
+		rewrite = false;
+		int doc = 0;
+		for(QuerySearch search : searches) {
+			if(doc + search.getResults().size() <= persistedDocs) {
+				docRanges.put(search, new int[] { doc, search.getResults().size() });
+				doc += search.getResults().size();
+			} else if(doc < persistedDocs) {
+				// Segments always end at search boundaries, so this can only be a foreign file
+				System.err.println("Rebuilding full-text index: segment boundary inside a search");
+				this.clear();
+				return false;
+			} else {
+				this.searchAdded(search);
+			}
+		}
+		return true;
+	}
+	
+	private void clear() {
+		docs.clear();
+		Arrays.fill(totalLengths, 0);
+		postings.clear();
+		docRanges.clear();
+		dead.clear();
+		deadCount = 0;
+		dirtyTerms.clear();
+		persistedDocs = 0;
+		rewrite = true;
+	}
+	
+	/**
+	 * Saves the index.
+	 * Appends a segment with the documents added since the last save, or rewrites the file if documents
+	 * have been removed in the meantime.
+	 * @param file Index file
+	 */
+	public synchronized void save(File file) {
+		try {
+			if(rewrite) {
+				if(deadCount > 0)
+					this.compact();
+				File temp = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp");
+				try(final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+					this.writeSegment(out, 0, postings.keySet());
+				}
+				Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+				rewrite = false;
+			} else if(persistedDocs < docs.size()) {
+				try(final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)))) {
+					this.writeSegment(out, persistedDocs, dirtyTerms);
+				}
+			}
+			persistedDocs = docs.size();
+			dirtyTerms.clear();
+		} catch(IOException e) {
+			e.printStackTrace();
+			rewrite = true;
+		}
+	}
+	
+	/**
+	 * Writes the documents from the given one up to the current end as a segment.
+	 */
+	private void writeSegment(DataOutputStream out, int first, Collection<String> terms) throws IOException {
+		out.writeInt(SEGMENT_MAGIC);
+		writeVarint(out, first);
+		writeVarint(out, docs.size() - first);
+		for(int doc = first; doc < docs.size(); doc++) {
+			out.writeInt(docHash(docs.get(doc)));
+			for(int field = 0; field < FIELDS; field++)
+				writeVarint(out, fieldLengths[doc * FIELDS + field]);
+		}
+		
+		List<String> segmentTerms = new ArrayList<String>();
+		for(String term : terms) {
+			Postings list = postings.get(term);
+			if((list != null) && (list.size > 0) && (list.docs[list.size - 1] >= first))
+				segmentTerms.add(term);
+		}
+		writeVarint(out, segmentTerms.size());
+		for(String term : segmentTerms) {
+			Postings list = postings.get(term);
+			int start = list.firstFrom(first);
+			out.writeUTF(term);
+			writeVarint(out, list.size - start);
+			int previous = first;
+			for(int i = start; i < list.size; i++) {
+				writeVarint(out, list.docs[i] - previous);
+				writeVarint(out, list.tfs[i]);
+				previous = list.docs[i];
+			}
+		}
+	}
+	
+	/**
+	 * Hash identifying a document, used to check that a stored index still matches the history.
+	 */
+	private static int docHash(SearchResult result) {
+		return result.getUrlText().hashCode() * 31 + result.getHeadline().hashCode();
+	}
+	
+	private static void writeVarint(DataOutputStream out, int value) throws IOException {
+		while((value & ~0x7f) != 0) {
+			out.writeByte((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte(value);
+	}
+	
+	private static int readVarint(DataInputStream in) throws IOException {
+		int value = 0;
+		for(int shift = 0; shift < 35; shift += 7) {
+			int b = in.readUnsignedByte();
+			value |= (b & 0x7f) << shift;
+			if((b & 0x80) == 0)
+				return value;
+		}
+		throw new IOException("Malformed varint");
+	}
+	
+	/**
+	 * Postings list of a term: ascending document ids and their packed field term frequencies.
+	 */
+	private static class Postings {
+		int[] docs = new int[2];
+		int[] tfs = new int[2];
+		int size = 0;
+		// Number of postings of live documents, the document frequency of the IDF
+		int live = 0;
+		
+		void add(int doc, int packedTf) {
+			if(size == docs.length) {
+				docs = Arrays.copyOf(docs, size * 2);
+				tfs = Arrays.copyOf(tfs, size * 2);
+			}
+			docs[size] = doc;
+			tfs[size] = packedTf;
+			size++;
+			live++;
+		}
+		
+		/**
+		 * Finds the index of the first posting for a document id not lower than the given one.
+		 */
+		int firstFrom(int doc) {
+			int index = Arrays.binarySearch(docs, 0, size, doc);
+			return (index >= 0) ? index : (-index - 1);
+		}
+	}
+}
@@ -0,0 +1,333 @@
+package core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Character trigram index over the vocabulary of the history (the words of the queries and result headlines),
+ * to find the words within a small edit distance of a mistyped word without comparing it to every word.
+ * <p>
+ * Every word is padded with a boundary mark at both ends and split into trigrams. An edit changes at most
+ * three trigrams, so a word within distance k of the query shares at least (trigrams of the query - 3k) of
+ * them; only the words reaching that count are candidates and verified with a Levenshtein distance bounded
+ * to k, which only computes the diagonal band of width 2k + 1 and stops as soon as a row exceeds k. Words
+ * too short for the trigram count to rule much out use bigrams (at least bigrams - 2k shared) instead, and
+ * are compared to all words of similar length if even that count is zero.
+ * <p>
+ * Words are reference-counted by the searches containing them. A word no longer in any search is dropped
+ * together with its postings, and its id is given to the next new word.
+ * @author Florian Bethe, Tino Liebusch
+ */
+public class FuzzyIndex implements HistoryListener {
+	public static final int DEFAULT_MAX_DISTANCE = 2;
+	
+	private static final char PAD = '\0';
+	
+	private final Map<String, Integer> ids = new HashMap<String, Integer>();
+	private final List<String> terms = new ArrayList<String>();
+	private int[] refs = new int[64];
+	// Ids of dropped words, reused before the id range grows
+	private final IntList freeIds = new IntList();
+	// Bigram or trigram (chars and length packed into a long) to the ids of the words containing it
+	private final Map<Long, IntList> postings = new HashMap<Long, IntList>();
+	// Word length to the ids of the words with that length
+	private final List<IntList> byLength = new ArrayList<IntList>();
+	private int liveCount;
+	
+	// Scratch space of the candidate count, reused between lookups
+	private int[] counts = new int[64];
+	private final IntList touched = new IntList();
+	private int verified;
+	
+	@Override
+	public synchronized void searchAdded(QuerySearch search) {
+		for(String word : words(search))
+			this.add(word);
+	}
+	
+	@Override
+	public synchronized void searchesRemoved(Collection<QuerySearch> searches) {
+		for(QuerySearch search : searches) {
+			for(String word : words(search))
+				this.remove(word);
+		}
+	}
+	
+	/**
+	 * Finds the words of the history within an edit distance of the given word.
+	 * The distance is capped by the word length so short words don't match everything: words of up to two
+	 * characters only match exactly, words of up to five characters within distance 1.
+	 * @param word Word (lowercase)
+	 * @param maxDistance Maximum number of inserted, deleted or replaced characters
+	 * @return Matching words, closest and most frequent first; includes the word itself if it occurs
+	 */
+	public synchronized List<String> expand(String word, int maxDistance) {
+		final int k = Math.min(maxDistance, lengthCap(word.length()));
+		verified = 0;
+		final Map<String, Integer> matches = new HashMap<String, Integer>();
+		if(k <= 0) {
+			if(ids.containsKey(word))
+				matches.put(word, 0);
+		} else {
+			// Trigrams are more selective, but for short words only bigrams leave a positive count
+			long[] grams = grams(word, 3);
+			int threshold = grams.length - 3 * k;
+			if(threshold < 2) {
+				grams = grams(word, 2);
+				threshold = grams.length - 2 * k;
+			}
+			if(threshold <= 0) {
+				for(int length = Math.max(1, word.length() - k); length <= word.length() + k; length++) {
+					if(length >= byLength.size())
+						break;
+					IntList bucket = byLength.get(length);
+					for(int i = 0; i < bucket.size; i++)
+						this.verify(bucket.values[i], word, k, matches);
+				}
+			} else {
+				for(long gram : grams) {
+					IntList list = postings.get(gram);
+					if(list == null)
+						continue;
+					for(int i = 0; i < list.size; i++) {
+						int id = list.values[i];
+						if(counts[id]++ == 0)
+							touched.add(id);
+					}
+				}
+				for(int i = 0; i < touched.size; i++) {
+					int id = touched.values[i];
+					if((counts[id] >= threshold) && (Math.abs(terms.get(id).length() - word.length()) <= k))
+						this.verify(id, word, k, matches);
+					counts[id] = 0;
+				}
+				touched.size = 0;
+			}
+		}
+		
+		List<String> expansion = new ArrayList<String>(matches.keySet());
+		Collections.sort(expansion, new Comparator<String>() {
+			@Override
+			public int compare(String a, String b) {
+				int byDistance = Integer.compare(matches.get(a), matches.get(b));
+				if(byDistance != 0)
+					return byDistance;
+				int byFrequency = Integer.compare(refs[ids.get(b)], refs[ids.get(a)]);
+				return (byFrequency != 0) ? byFrequency : a.compareTo(b);
+			}
+		});
+		return expansion;
+	}
+	
+	/**
+	 * Gets the number of distinct words in the history.
+	 * @return Size of the vocabulary
+	 */
+	public synchronized int size() {
+		return liveCount;
+	}
+	
+	/**
+	 * Computes the Levenshtein distance of two strings if it doesn't exceed a bound.
+	 * Only the band of the dynamic programming matrix within the bound of the diagonal is computed, and the
+	 * computation stops once a whole row exceeds it.
+	 * @param a First string
+	 * @param b Second string
+	 * @param max Bound of the distance
+	 * @return Distance, or max + 1 if it exceeds the bound
+	 */
+	public static int distance(String a, String b, int max) {
+		int n = a.length();
+		int m = b.length();
+		int over = max + 1;
+		if(Math.abs(n - m) > max)
+			return over;
+		
+		int[] previous = new int[m + 1];
+		int[] current = new int[m + 1];
+		for(int j = 0; j <= m; j++)
+			previous[j] = (j <= max) ? j : over;
+		for(int i = 1; i <= n; i++) {
+			int from = Math.max(1, i - max);
+			int to = Math.min(m, i + max);
+			int rowMin = over;
+			if(from == 1) {
+				current[0] = (i <= max) ? i : over;
+				rowMin = current[0];
+			} else {
+				current[from - 1] = over;
+			}
+			char c = a.charAt(i - 1);
+			for(int j = from; j <= to; j++) {
+				int value = previous[j - 1] + ((c == b.charAt(j - 1)) ? 0 : 1);
+				value = Math.min(value, Math.min(previous[j], current[j - 1]) + 1);
+				current[j] = Math.min(value, over);
+				rowMin = Math.min(rowMin, current[j]);
+			}
+			if(to < m)
+				current[to + 1] = over;
+			if(rowMin > max)
+				return over;
+			int[] swap = previous;
+			previous = current;
+			current = swap;
+		}
+		return Math.min(previous[m], over);
+	}
+	
+	/**
+	 * Gets the largest edit distance allowed for a word of the given length.
+	 * @param length Length of the word
+	 * @return Maximum distance
+	 */
+	static int lengthCap(int length) {
+		if(length <= 2)
+			return 0;
+		return (length <= 5) ? 1 : Integer.MAX_VALUE;
+	}
+	
+	/**
+	 * Gets the number of words whose distance was computed by the last lookup.
+	 * @return Verified candidates
+	 */
+	synchronized int getVerified() {
+		return verified;
+	}
+	
+	/**
+	 * Adds an occurrence of a word.
+	 * @param word Word (lowercase)
+	 */
+	void add(String word) {
+		Integer id = ids.get(word);
+		if(id == null) {
+			if(freeIds.size > 0) {
+				id = freeIds.values[--freeIds.size];
+				terms.set(id, word);
+			} else {
+				id = terms.size();
+				terms.add(word);
+				if(id == refs.length) {
+					refs = Arrays.copyOf(refs, id * 2);
+					counts = new int[id * 2];
+				}
+			}
+			ids.put(word, id);
+			for(int n = 2; n <= 3; n++) {
+				for(long gram : grams(word, n)) {
+					IntList list = postings.get(gram);
+					if(list == null) {
+						list = new IntList();
+						postings.put(gram, list);
+					}
+					list.add(id);
+				}
+			}
+			while(byLength.size() <= word.length())
+				byLength.add(new IntList());
+			byLength.get(word.length()).add(id);
+		}
+		if(refs[id]++ == 0)
+			liveCount++;
+	}
+	
+	/**
+	 * Removes an occurrence of a word; drops the word with its postings once it has none left.
+	 * @param word Word (lowercase)
+	 */
+	private void remove(String word) {
+		Integer id = ids.get(word);
+		if((id == null) || (--refs[id] > 0))
+			return;
+		liveCount--;
+		ids.remove(word);
+		terms.set(id, null);
+		for(int n = 2; n <= 3; n++) {
+			for(long gram : grams(word, n)) {
+				IntList list = postings.get(gram);
+				list.remove(id);
+				if(list.size == 0)
+					postings.remove(gram);
+			}
+		}
+		byLength.get(word.length()).remove(id);
+		freeIds.add(id);
+	}
+	
+	/**
+	 * Computes the distance of a word of the vocabulary and records it if it is within the bound.
+	 */
+	private void verify(int id, String word, int k, Map<String, Integer> matches) {
+		verified++;
+		String term = terms.get(id);
+		int distance = distance(word, term, k);
+		if(distance <= k)
+			matches.put(term, distance);
+	}
+	
+	/**
+	 * Gets the distinct words of the query and the result headlines of a search.
+	 */
+	private static Set<String> words(QuerySearch search) {
+		Set<String> words = new HashSet<String>(TextAnalyzer.tokenize(search.getQuery()));
+		for(SearchResult result : search.getResults())
+			words.addAll(TextAnalyzer.tokenize(result.getHeadline()));
+		return words;
+	}
+	
+	/**
+	 * Splits a word padded with a boundary mark at both ends into its distinct n-grams.
+	 * @param word Word
+	 * @param n Length of the n-grams, 2 or 3
+	 * @return N-grams, the chars and the length packed into a long each
+	 */
+	private static long[] grams(String word, int n) {
+		String padded = PAD + word + PAD;
+		Set<Long> grams = new HashSet<Long>();
+		for(int i = 0; i + n <= padded.length(); i++) {
+			long gram = n;
+			for(int j = i; j < i + n; j++)
+				gram = (gram << 16) | padded.charAt(j);
+			grams.add(gram);
+		}
+		long[] packed = new long[grams.size()];
+		int i = 0;
+		for(Long gram : grams)
+			packed[i++] = gram;
+		return packed;
+	}
+	
+	/**
+	 * Growable list of ints.
+	 */
+	private static class IntList {
+		int[] values = new int[4];
+		int size;
+		
+		void add(int value) {
+			if(size == values.length)
+				values = Arrays.copyOf(values, size * 2);
+			values[size++] = value;
+		}
+		
+		/**
+		 * Removes a value; the order of the others is not kept.
+		 */
+		void remove(int value) {
+			for(int i = 0; i < size; i++) {
+				if(values[i] == value) {
+					values[i] = values[--size];
+					return;
+				}
+			}
+		}
+	}
+}
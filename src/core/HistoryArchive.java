@@ -0,0 +1,269 @@
+package core;
+
+import java.io.*;
+import java.lang.ref.SoftReference;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Archive of cold history searches.
+ * The archive is a directory of GZIP-compressed segment files, each holding a date-ordered, serialized
+ * list of searches. Segments are never resident in memory unless they are read; warm segments are then
+ * kept behind a {@link SoftReference} so the garbage collector can still drop them under memory pressure.
+ * <p>
+ * Retention runs often archive only a few searches. Instead of leaving a trail of tiny segments, these are
+ * appended to the newest segment (by rewriting it) until that segment reaches the configured size.
+ * @author Florian Bethe, Tino Liebusch
+ */
+public class HistoryArchive {
+	private static final Pattern SEGMENT_NAME = Pattern.compile("segment-(\\d+)-(\\d+)\\.ser\\.gz");
+	
+	private final File directory;
+	private final long segmentBytes;
+	private long archiveAgeMillis;
+	private final List<Segment> segments = new ArrayList<Segment>();
+	
+	/**
+	 * Constructor.
+	 * Picks up the segments already present in the directory. Segments are appended to until they reach
+	 * the size given by the system property <code>searchhistory.archive.segmentKiB</code> (default 4 MiB).
+	 * @param directory Directory of the segment files (created when the first segment is written)
+	 */
+	public HistoryArchive(File directory) {
+		this(directory, Integer.getInteger("searchhistory.archive.segmentKiB", 4096) * 1024L);
+	}
+	
+	/**
+	 * Constructor.
+	 * Picks up the segments already present in the directory.
+	 * @param directory Directory of the segment files (created when the first segment is written)
+	 * @param segmentBytes Compressed size up to which new searches are appended to the newest segment
+	 */
+	public HistoryArchive(File directory, long segmentBytes) {
+		this.directory = directory;
+		this.segmentBytes = segmentBytes;
+		this.archiveAgeMillis = Long.MAX_VALUE;
+		this.refresh();
+	}
+	
+	/**
+	 * Picks up the segments written into the directory by someone else, e.g. another instance sharing
+	 * the history (see {@link HistoryLog HistoryLog}), and drops the segments they merged into a new one.
+	 * Known segments keep their cached searches.
+	 */
+	public synchronized void refresh() {
+		File[] files = directory.listFiles();
+		if(files == null)
+			return;
+		Set<File> known = new HashSet<File>();
+		for(Iterator<Segment> iter = segments.iterator(); iter.hasNext(); ) {
+			Segment segment = iter.next();
+			if(segment.file.exists())
+				known.add(segment.file);
+			else
+				iter.remove();
+		}
+		for(File file : files) {
+			Matcher matcher = SEGMENT_NAME.matcher(file.getName());
+			if(matcher.matches() && !known.contains(file))
+				segments.add(new Segment(file, Long.parseLong(matcher.group(1)), Long.parseLong(matcher.group(2))));
+		}
+		this.sortSegments();
+	}
+	
+	/**
+	 * Sets the age after which segments are no longer cached after being read.
+	 * @param archiveAgeMillis Archive age in milliseconds
+	 */
+	public synchronized void setArchiveAge(long archiveAgeMillis) {
+		this.archiveAgeMillis = archiveAgeMillis;
+	}
+	
+	/**
+	 * Archives a list of searches.
+	 * If the newest segment is still smaller than the segment size and only holds older searches, it is
+	 * replaced by a segment with its searches followed by the new ones; otherwise a new segment is written.
+	 * @param searches Date-ordered searches; must not be empty
+	 * @throws IOException If the segment can't be written
+	 */
+	public void seal(List<QuerySearch> searches) throws IOException {
+		Segment tail = this.appendableTail(searches.get(0).getTimestamp().getTime());
+		if(tail != null) {
+			try {
+				List<QuerySearch> merged = new ArrayList<QuerySearch>(tail.load());
+				merged.addAll(searches);
+				searches = merged;
+			} catch(IOException | ClassNotFoundException e) {
+				// An unreadable segment stays as it is; the searches get a segment of their own
+				e.printStackTrace();
+				tail = null;
+			}
+		}
+		
+		long first = searches.get(0).getTimestamp().getTime();
+		long last = searches.get(searches.size() - 1).getTimestamp().getTime();
+		
+		if(!directory.exists() && !directory.mkdirs())
+			throw new IOException("Can't create archive directory " + directory);
+		File file = new File(directory, "segment-" + first + "-" + last + ".ser.gz");
+		// Another segment may cover the same range (e.g. from an earlier, interrupted run), so never overwrite
+		for(int i = 1; file.exists(); i++)
+			file = new File(directory, "segment-" + first + "-" + (last + i) + ".ser.gz");
+		
+		File temp = new File(directory, file.getName() + ".tmp");
+		try(final ObjectOutputStream oos = new ObjectOutputStream(new BufferedOutputStream(
+				new GZIPOutputStream(new FileOutputStream(temp))))) {
+			oos.writeObject(new ArrayList<QuerySearch>(searches));
+		}
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		
+		synchronized(this) {
+			Matcher matcher = SEGMENT_NAME.matcher(file.getName());
+			matcher.matches();
+			segments.add(new Segment(file, first, Long.parseLong(matcher.group(2))));
+			if(tail != null)
+				segments.remove(tail);
+			this.sortSegments();
+		}
+		// The merged segment is in place before the old one goes; a crash in between leaves searches twice, not lost
+		if(tail != null)
+			Files.deleteIfExists(tail.file.toPath());
+	}
+	
+	/**
+	 * Gets the newest segment if new searches can be appended to it.
+	 * @param firstMillis Time of the oldest new search
+	 * @return Segment smaller than the segment size ending before the new searches, or null if there is none
+	 */
+	private synchronized Segment appendableTail(long firstMillis) {
+		if(segments.isEmpty())
+			return null;
+		Segment tail = segments.get(segments.size() - 1);
+		for(Segment segment : segments) {
+			if(segment.lastMillis > tail.lastMillis)
+				return null;
+		}
+		if((tail.lastMillis > firstMillis) || (tail.file.length() >= segmentBytes))
+			return null;
+		return tail;
+	}
+	
+	/**
+	 * Gets the segments of the archive.
+	 * @return Segments ordered by date
+	 */
+	public synchronized List<Segment> getSegments() {
+		return new ArrayList<Segment>(segments);
+	}
+	
+	/**
+	 * Gets the number of archived segments.
+	 * @return Number of segments
+	 */
+	public synchronized int getSegmentCount() {
+		return segments.size();
+	}
+	
+	/**
+	 * Finds all archived searches whose query or any result headline contains all the given words.
+	 * Reads the segments one at a time, so at most one uncached segment is in memory.
+	 * @param query Words to search for
+	 * @return Matching searches ordered by date
+	 */
+	public List<QuerySearch> findSearches(String query) {
+		List<QuerySearch> matches = new ArrayList<QuerySearch>();
+		for(Segment segment : this.getSegments()) {
+			List<QuerySearch> searches;
+			try {
+				searches = segment.load();
+			} catch(IOException | ClassNotFoundException e) {
+				e.printStackTrace();
+				continue;
+			}
+			for(QuerySearch search : searches) {
+				if(SearchHistory.matches(query, search))
+					matches.add(search);
+			}
+		}
+		return matches;
+	}
+	
+	private void sortSegments() {
+		Collections.sort(segments, new Comparator<Segment>() {
+			@Override
+			public int compare(Segment a, Segment b) {
+				return Long.compare(a.firstMillis, b.firstMillis);
+			}
+		});
+	}
+	
+	/**
+	 * A single archive segment.
+	 */
+	public class Segment {
+		private final File file;
+		private final long firstMillis;
+		private final long lastMillis;
+		private SoftReference<List<QuerySearch>> cache;
+		
+		private Segment(File file, long firstMillis, long lastMillis) {
+			this.file = file;
+			this.firstMillis = firstMillis;
+			this.lastMillis = lastMillis;
+			this.cache = new SoftReference<List<QuerySearch>>(null);
+		}
+		
+		/**
+		 * Reads the searches of the segment.
+		 * Warm segments are served from (and put into) the soft cache.
+		 * @return Date-ordered searches of the segment
+		 * @throws IOException If the segment can't be read
+		 * @throws ClassNotFoundException If the segment contains unknown classes
+		 */
+		@SuppressWarnings("unchecked")
+		public List<QuerySearch> load() throws IOException, ClassNotFoundException {
+			List<QuerySearch> searches = cache.get();
+			if(searches != null)
+				return searches;
+			
+			try(final ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(
+					new GZIPInputStream(new FileInputStream(file))))) {
+				searches = Collections.unmodifiableList((ArrayList<QuerySearch>) ois.readObject());
+			}
+			if(this.isWarm())
+				cache = new SoftReference<List<QuerySearch>>(searches);
+			return searches;
+		}
+		
+		/**
+		 * Checks whether the segment still belongs to the warm tier.
+		 * @return Is the newest search of the segment younger than the archive age
+		 */
+		public boolean isWarm() {
+			long archiveAge;
+			synchronized(HistoryArchive.this) {
+				archiveAge = archiveAgeMillis;
+			}
+			return (System.currentTimeMillis() - lastMillis) < archiveAge;
+		}
+		
+		public long getFirstMillis() {
+			return firstMillis;
+		}
+		
+		public long getLastMillis() {
+			return lastMillis;
+		}
+	}
+}
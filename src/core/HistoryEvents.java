@@ -0,0 +1,494 @@
+package core;
+
+import java.awt.Container;
+import java.lang.annotation.Annotation;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Java Flight Recorder events of the application, so engine searches, persistence, history searches and
+ * panel rebuilds show up as named events next to GC and I/O in a recording. While no recording is running
+ * (or an event type is disabled), an event only checks whether its type is enabled; no Flight Recorder
+ * event is created and no lock is taken.
+ * <p>
+ * The events are enabled like the built-in ones, e.g. <code>-XX:StartFlightRecording</code> or with a
+ * settings file listing <code>core.Search</code> etc. The project targets Java 8, so the classes here don't
+ * depend on <code>jdk.jfr</code>: whether the JVM has Flight Recorder support (OpenJDK 8u262 or later) is
+ * checked once, and only then are the event types defined through <code>jdk.jfr.EventFactory</code> by
+ * reflection. The events are then created and committed through method handles, which the JIT compiles
+ * like direct calls. Without Flight Recorder support, the events do nothing.
+ * @author Florian Bethe, Tino Liebusch
+ */
+public final class HistoryEvents {
+	private static final String CATEGORY = "Search History";
+	private static final boolean AVAILABLE = isAvailable();
+	
+	private HistoryEvents() {
+	}
+	
+	/**
+	 * A search with the engine, including the request gate and the offline fallback.
+	 */
+	public static class Search extends Recorded {
+		private static final Type TYPE = new Type("core.Search", "Search",
+				"Search with the engine, as performed by QuerySearch", CATEGORY, "Engine")
+				.field(String.class, "engine", "Engine", null, false)
+				.field(Integer.TYPE, "queryLength", "Query Length", null, false)
+				.field(Integer.TYPE, "resultCount", "Result Count", null, false)
+				.field(Boolean.TYPE, "offline", "Answered Offline",
+						"The engine was unavailable and the results were taken from the history", false)
+				.field(Boolean.TYPE, "failed", "Failed", null, false);
+		
+		public String engine;
+		public int queryLength;
+		public int resultCount;
+		public boolean offline;
+		public boolean failed;
+		
+		/**
+		 * Default constructor.
+		 */
+		public Search() {
+			super(TYPE);
+		}
+		
+		@Override
+		Object[] values() {
+			return new Object[] {engine, queryLength, resultCount, offline, failed};
+		}
+	}
+	
+	/**
+	 * A single request to the Bing API.
+	 */
+	public static class EngineRequest extends Recorded {
+		private static final Type TYPE = new Type("core.EngineRequest", "Engine Request",
+				"HTTP request to the search engine, from connecting until the response is parsed", CATEGORY, "Engine")
+				.field(Integer.TYPE, "queryLength", "Query Length", null, false)
+				.field(Integer.TYPE, "resultCount", "Result Count", null, false)
+				.field(Integer.TYPE, "status", "HTTP Status", null, false)
+				.field(Long.TYPE, "bytesRead", "Bytes Read", null, true);
+		
+		public int queryLength;
+		public int resultCount;
+		public int status;
+		public long bytesRead;
+		
+		/**
+		 * Default constructor.
+		 */
+		public EngineRequest() {
+			super(TYPE);
+		}
+		
+		@Override
+		Object[] values() {
+			return new Object[] {queryLength, resultCount, status, bytesRead};
+		}
+	}
+	
+	/**
+	 * Reading the history file.
+	 */
+	public static class HistoryLoad extends Recorded {
+		private static final Type TYPE = new Type("core.HistoryLoad", "History Load", null, CATEGORY, "Persistence")
+				.field(String.class, "path", "Path", null, false)
+				.field(Long.TYPE, "bytesRead", "Bytes Read", null, true)
+				.field(Integer.TYPE, "historySize", "History Size", "Number of searches read", false);
+		
+		public String path;
+		public long bytesRead;
+		public int historySize;
+		
+		/**
+		 * Default constructor.
+		 */
+		public HistoryLoad() {
+			super(TYPE);
+		}
+		
+		@Override
+		Object[] values() {
+			return new Object[] {path, bytesRead, historySize};
+		}
+	}
+	
+	/**
+	 * Writing the history file and its sidecars.
+	 */
+	public static class HistorySave extends Recorded {
+		private static final Type TYPE = new Type("core.HistorySave", "History Save", null, CATEGORY, "Persistence")
+				.field(String.class, "path", "Path", null, false)
+				.field(Long.TYPE, "bytesWritten", "Bytes Written", "Size of the written history file, without the sidecars",
+						true)
+				.field(Integer.TYPE, "historySize", "History Size", "Number of searches written", false);
+		
+		public String path;
+		public long bytesWritten;
+		public int historySize;
+		
+		/**
+		 * Default constructor.
+		 */
+		public HistorySave() {
+			super(TYPE);
+		}
+		
+		@Override
+		Object[] values() {
+			return new Object[] {path, bytesWritten, historySize};
+		}
+	}
+	
+	/**
+	 * Adding a search to the history, including appending it to the shared log.
+	 */
+	public static class HistoryAdd extends Recorded {
+		private static final Type TYPE = new Type("core.HistoryAdd", "History Add", null, CATEGORY, "Persistence")
+				.field(Integer.TYPE, "queryLength", "Query Length", null, false)
+				.field(Integer.TYPE, "resultCount", "Result Count", null, false)
+				.field(Integer.TYPE, "historySize", "History Size", "Number of searches in memory after adding", false)
+				.field(Long.TYPE, "bytesWritten", "Bytes Written", "Size of the log record", true);
+		
+		public int queryLength;
+		public int resultCount;
+		public int historySize;
+		public long bytesWritten;
+		
+		/**
+		 * Default constructor.
+		 */
+		public HistoryAdd() {
+			super(TYPE);
+		}
+		
+		@Override
+		Object[] values() {
+			return new Object[] {queryLength, resultCount, historySize, bytesWritten};
+		}
+	}
+	
+	/**
+	 * A search in the history (words, full text, similarity, completions or the archive).
+	 */
+	public static class HistorySearch extends Recorded {
+		private static final Type TYPE = new Type("core.HistorySearch", "History Search", null, CATEGORY, "History")
+				.field(String.class, "mode", "Mode", null, false)
+				.field(Integer.TYPE, "queryLength", "Query Length", null, false)
+				.field(Integer.TYPE, "resultCount", "Result Count", null, false)
+				.field(Integer.TYPE, "historySize", "History Size", "Number of searches in memory", false);
+		
+		public String mode;
+		public int queryLength;
+		public int resultCount;
+		public int historySize;
+		
+		/**
+		 * Default constructor.
+		 */
+		public HistorySearch() {
+			super(TYPE);
+		}
+		
+		/**
+		 * Creates and begins the event.
+		 * @param mode Kind of search
+		 * @param query Query of the search
+		 * @return Started event
+		 */
+		static HistorySearch start(String mode, String query) {
+			HistorySearch event = new HistorySearch();
+			event.mode = mode;
+			event.queryLength = (query == null) ? 0 : query.length();
+			event.begin();
+			return event;
+		}
+		
+		/**
+		 * Commits the event.
+		 * @param resultCount Number of results
+		 * @param historySize Number of searches in memory
+		 */
+		void finish(int resultCount, int historySize) {
+			this.resultCount = resultCount;
+			this.historySize = historySize;
+			this.commit();
+		}
+		
+		@Override
+		Object[] values() {
+			return new Object[] {mode, queryLength, resultCount, historySize};
+		}
+	}
+	
+	/**
+	 * Rebuilding the components of a panel of the UI on the Event Dispatch Thread.
+	 */
+	public static class PanelRebuild extends Recorded {
+		private static final Type TYPE = new Type("core.PanelRebuild", "Panel Rebuild", null, CATEGORY, "UI")
+				.field(String.class, "view", "View", null, false)
+				.field(Integer.TYPE, "componentCount", "Component Count", null, false);
+		
+		public String view;
+		public int componentCount;
+		
+		/**
+		 * Default constructor.
+		 */
+		public PanelRebuild() {
+			super(TYPE);
+		}
+		
+		/**
+		 * Creates and begins the event.
+		 * @param view Name of the rebuilt view
+		 * @return Started event
+		 */
+		static PanelRebuild start(String view) {
+			PanelRebuild event = new PanelRebuild();
+			event.view = view;
+			event.begin();
+			return event;
+		}
+		
+		/**
+		 * Commits the event.
+		 * @param panel Rebuilt panel
+		 */
+		void finish(Container panel) {
+			this.componentCount = panel.getComponentCount();
+			this.commit();
+		}
+		
+		@Override
+		Object[] values() {
+			return new Object[] {view, componentCount};
+		}
+	}
+	
+	/**
+	 * Base of the events: times the event and hands its values to Flight Recorder on commit.
+	 */
+	public abstract static class Recorded {
+		private final Type type;
+		// Flight Recorder event while one is being recorded, otherwise null
+		private Object event;
+		
+		/**
+		 * Constructor.
+		 * @param type Definition of the event type
+		 */
+		Recorded(Type type) {
+			this.type = type;
+		}
+		
+		/**
+		 * Starts timing the event.
+		 */
+		public void begin() {
+			if(AVAILABLE)
+				event = Jfr.begin(type);
+		}
+		
+		/**
+		 * Ends timing the event and writes it to the recording, if one is running.
+		 */
+		public void commit() {
+			if(event != null) {
+				Jfr.commit(event, this.values());
+				event = null;
+			}
+		}
+		
+		/**
+		 * Gets the values of the fields, in the order of the definition.
+		 * @return Values
+		 */
+		abstract Object[] values();
+	}
+	
+	/**
+	 * Definition of an event type: name, labels and fields.
+	 */
+	static class Type {
+		final String name;
+		final String label;
+		final String description;
+		final String[] category;
+		final List<Object[]> fields = new ArrayList<Object[]>();
+		// Event type of Flight Recorder; written before the factory is published
+		Object eventType;
+		// Event factory of Flight Recorder; created on the first event
+		volatile Object factory;
+		
+		Type(String name, String label, String description, String... category) {
+			this.name = name;
+			this.label = label;
+			this.description = description;
+			this.category = category;
+		}
+		
+		/**
+		 * Adds a field.
+		 * @param type Type of the field (primitive or String)
+		 * @param name Name
+		 * @param label Label
+		 * @param description Description, or null
+		 * @param bytes Is the field an amount of bytes
+		 * @return This type
+		 */
+		Type field(Class<?> type, String name, String label, String description, boolean bytes) {
+			fields.add(new Object[] {type, name, label, description, bytes});
+			return this;
+		}
+	}
+	
+	/**
+	 * Checks once whether the JVM supports Flight Recorder events.
+	 */
+	private static boolean isAvailable() {
+		try {
+			Class.forName("jdk.jfr.EventFactory");
+			return true;
+		} catch(ClassNotFoundException | LinkageError e) {
+			return false;
+		}
+	}
+	
+	/**
+	 * Access to the <code>jdk.jfr</code> API by reflection; only loaded if it is available.
+	 * The event types are defined by reflection once; the calls made for every event use method handles
+	 * whose types are erased to <code>Object</code>, so they can be invoked exactly without the JFR classes.
+	 */
+	private static class Jfr {
+		private static final MethodHandle TYPE_ENABLED = find("jdk.jfr.EventType", "isEnabled", Boolean.TYPE);
+		private static final MethodHandle NEW_EVENT = find("jdk.jfr.EventFactory", "newEvent", load("jdk.jfr.Event"));
+		private static final MethodHandle BEGIN = find("jdk.jfr.Event", "begin", Void.TYPE);
+		private static final MethodHandle SET = find("jdk.jfr.Event", "set", Void.TYPE, Integer.TYPE, Object.class);
+		private static final MethodHandle COMMIT = find("jdk.jfr.Event", "commit", Void.TYPE);
+		private static Method create;
+		private static Method eventType;
+		private static Constructor<?> annotation;
+		private static Constructor<?> valueDescriptor;
+		private static volatile boolean broken = (TYPE_ENABLED == null) || (NEW_EVENT == null) || (BEGIN == null)
+				|| (SET == null) || (COMMIT == null);
+		
+		static {
+			try {
+				Class<?> factoryClass = Class.forName("jdk.jfr.EventFactory");
+				create = factoryClass.getMethod("create", List.class, List.class);
+				eventType = factoryClass.getMethod("getEventType");
+				annotation = Class.forName("jdk.jfr.AnnotationElement").getConstructor(Class.class, Object.class);
+				valueDescriptor = Class.forName("jdk.jfr.ValueDescriptor").getConstructor(Class.class, String.class,
+						List.class);
+			} catch(ReflectiveOperationException e) {
+				e.printStackTrace();
+				broken = true;
+			}
+		}
+		
+		/**
+		 * Creates and begins an event of the given type.
+		 * @return Event, or null if it isn't recorded
+		 */
+		static Object begin(Type type) {
+			if(broken)
+				return null;
+			try {
+				Object factory = type.factory;
+				if(factory == null)
+					factory = define(type);
+				if(!(boolean) TYPE_ENABLED.invokeExact(type.eventType))
+					return null;
+				Object event = (Object) NEW_EVENT.invokeExact(factory);
+				BEGIN.invokeExact(event);
+				return event;
+			} catch(Error e) {
+				throw e;
+			} catch(Throwable e) {
+				e.printStackTrace();
+				broken = true;
+				return null;
+			}
+		}
+		
+		/**
+		 * Sets the values of an event and commits it.
+		 */
+		static void commit(Object event, Object[] values) {
+			try {
+				for(int i = 0; i < values.length; i++)
+					SET.invokeExact(event, i, values[i]);
+				COMMIT.invokeExact(event);
+			} catch(Error e) {
+				throw e;
+			} catch(Throwable e) {
+				e.printStackTrace();
+				broken = true;
+			}
+		}
+		
+		/**
+		 * Defines the event type of Flight Recorder on first use.
+		 * @return Event factory of the type
+		 */
+		private static synchronized Object define(Type type) throws ReflectiveOperationException {
+			if(type.factory == null) {
+				List<Object> annotations = new ArrayList<Object>();
+				annotations.add(annotation("Name", type.name));
+				annotations.add(annotation("Label", type.label));
+				annotations.add(annotation("Category", type.category));
+				if(type.description != null)
+					annotations.add(annotation("Description", type.description));
+				List<Object> fields = new ArrayList<Object>();
+				for(Object[] field : type.fields) {
+					List<Object> fieldAnnotations = new ArrayList<Object>();
+					fieldAnnotations.add(annotation("Label", field[2]));
+					if(field[3] != null)
+						fieldAnnotations.add(annotation("Description", field[3]));
+					if((Boolean) field[4])
+						fieldAnnotations.add(annotation("DataAmount", "BYTES"));
+					fields.add(valueDescriptor.newInstance(field[0], field[1], fieldAnnotations));
+				}
+				Object factory = create.invoke(null, annotations, fields);
+				type.eventType = eventType.invoke(factory);
+				type.factory = factory;
+			}
+			return type.factory;
+		}
+		
+		@SuppressWarnings("unchecked")
+		private static Object annotation(String name, Object value) throws ReflectiveOperationException {
+			Class<? extends Annotation> type = (Class<? extends Annotation>) Class.forName("jdk.jfr." + name);
+			return annotation.newInstance(type, value);
+		}
+		
+		private static Class<?> load(String name) {
+			try {
+				return Class.forName(name);
+			} catch(ClassNotFoundException e) {
+				return null;
+			}
+		}
+		
+		/**
+		 * Looks up a public instance method as a handle taking and returning <code>Object</code> for references.
+		 * @return Handle, or null if the method can't be found
+		 */
+		private static MethodHandle find(String owner, String name, Class<?> returnType, Class<?>... parameters) {
+			try {
+				MethodHandle handle = MethodHandles.publicLookup().findVirtual(Class.forName(owner), name,
+						MethodType.methodType(returnType, parameters));
+				return handle.asType(handle.type().erase());
+			} catch(ReflectiveOperationException | NullPointerException e) {
+				e.printStackTrace();
+				return null;
+			}
+		}
+	}
+}
@@ -0,0 +1,348 @@
+package core;
+
+import java.io.*;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.NoSuchElementException;
+
+import javax.json.Json;
+import javax.json.JsonException;
+import javax.json.stream.JsonGenerator;
+import javax.json.stream.JsonGeneratorFactory;
+import javax.json.stream.JsonParser;
+import javax.json.stream.JsonParserFactory;
+
+/**
+ * JSON representation of the history records.
+ * Writes {@link QuerySearch QuerySearch} and {@link SearchResult SearchResult} objects through a
+ * streaming {@link JsonGenerator}, so callers never have to build the whole document in memory.
+ * @author Florian Bethe, Tino Liebusch
+ */
+public class HistoryJson {
+	private static final JsonGeneratorFactory generatorFactory = Json.createGeneratorFactory(null);
+	private static final JsonParserFactory parserFactory = Json.createParserFactory(null);
+	
+	private HistoryJson() {
+	}
+	
+	/**
+	 * Writes a list of searches as JSON array.
+	 * @param generator Generator to write to; has to be at a position where a value is expected
+	 * @param searches Searches to write
+	 */
+	public static void writeSearches(JsonGenerator generator, List<QuerySearch> searches) {
+		generator.writeStartArray();
+		for(QuerySearch search : searches)
+			writeSearch(generator, search);
+		generator.writeEnd();
+	}
+	
+	/**
+	 * Writes a single search including its results as JSON object.
+	 * @param generator Generator to write to; has to be at a position where a value is expected
+	 * @param search Search to write
+	 */
+	public static void writeSearch(JsonGenerator generator, QuerySearch search) {
+		generator.writeStartObject();
+		generator.write("query", search.getQuery());
+		generator.write("engine", SearchEngine.forSearch(search).name().toLowerCase(Locale.ROOT));
+		if(search.getTimestamp() != null)
+			generator.write("timestamp", search.getTimestamp().getTime());
+		else
+			generator.writeNull("timestamp");
+		generator.write("maxResults", search.getMaxResults());
+		generator.writeStartArray("results");
+		if(search.getResults() != null) {
+			for(SearchResult result : search.getResults())
+				writeResult(generator, result);
+		}
+		generator.writeEnd();
+		generator.writeEnd();
+	}
+	
+	/**
+	 * Writes a single search result as JSON object.
+	 * @param generator Generator to write to; has to be at a position where a value is expected
+	 * @param result Result to write
+	 */
+	public static void writeResult(JsonGenerator generator, SearchResult result) {
+		generator.writeStartObject();
+		generator.write("url", result.getUrlText());
+		generator.write("headline", result.getHeadline());
+		generator.write("summary", result.getSummary());
+		generator.write("clicks", result.getClickCounter());
+		generator.writeEnd();
+	}
+	
+	/**
+	 * Exports a history as NDJSON.
+	 * The archive segments are streamed one at a time, followed by the in-memory searches, so the export
+	 * is ordered by date.
+	 * @param history History to export
+	 * @param out Stream to write to (not closed)
+	 * @return Number of exported searches
+	 * @throws IOException If writing fails or an archive segment can't be read
+	 */
+	public static int exportNdjson(SearchHistory history, OutputStream out) throws IOException {
+		Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+		// A generator writes a single JSON text, so each line gets its own generator on a shared writer
+		Writer lineWriter = new FilterWriter(writer) {
+			@Override
+			public void close() throws IOException {
+				this.flush();
+			}
+		};
+		
+		int count = 0;
+		try {
+			for(HistoryArchive.Segment segment : history.getArchive().getSegments()) {
+				for(QuerySearch search : history.withoutDeleted(segment.load()))
+					count += writeLine(lineWriter, search);
+			}
+		} catch(ClassNotFoundException e) {
+			throw new IOException("Archive segment contains unknown classes", e);
+		}
+		for(QuerySearch search : history.getHistoryDateOrdered())
+			count += writeLine(lineWriter, search);
+		writer.flush();
+		return count;
+	}
+	
+	/**
+	 * Writes a single search as one NDJSON line.
+	 */
+	private static int writeLine(Writer lineWriter, QuerySearch search) throws IOException {
+		try(final JsonGenerator generator = generatorFactory.createGenerator(lineWriter)) {
+			writeSearch(generator, search);
+		}
+		lineWriter.write('\n');
+		return 1;
+	}
+	
+	/**
+	 * Imports NDJSON searches into a history.
+	 * The lines are parsed lazily while the history merges them, so memory use does not depend on the
+	 * size of the input. Malformed lines are reported and skipped.
+	 * @param history History to merge the searches into
+	 * @param in Stream to read from (not closed)
+	 * @return Number of searches added to the history
+	 */
+	public static int importNdjson(SearchHistory history, InputStream in) {
+		final BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+		return history.mergeEntries(new Iterator<QuerySearch>() {
+			private QuerySearch next = null;
+			private int lineNumber = 0;
+			
+			@Override
+			public boolean hasNext() {
+				try {
+					String line;
+					while((next == null) && ((line = reader.readLine()) != null)) {
+						lineNumber++;
+						if(line.trim().isEmpty())
+							continue;
+						try {
+							next = readSearch(line);
+						} catch(JsonException | IllegalArgumentException | IOException e) {
+							System.err.println("Skipping malformed history record in line " + lineNumber + ": " + e.getMessage());
+						}
+					}
+				} catch(IOException e) {
+					throw new UncheckedIOException(e);
+				}
+				return next != null;
+			}
+			
+			@Override
+			public QuerySearch next() {
+				if(!hasNext())
+					throw new NoSuchElementException();
+				QuerySearch search = next;
+				next = null;
+				return search;
+			}
+		});
+	}
+	
+	/**
+	 * Parses a single search record as written by {@link #writeSearch(JsonGenerator, QuerySearch)}.
+	 * Unknown keys are ignored and the keys may come in any order; the results are only created once the
+	 * whole record (and thus the query they belong to) has been read.
+	 * @param line JSON text of the record
+	 * @return Restored search
+	 * @throws IOException If a result URL is malformed
+	 */
+	public static QuerySearch readSearch(String line) throws IOException {
+		String query = null;
+		SearchEngine engine = SearchEngine.BING;
+		Date timestamp = null;
+		int maxResults = 10;
+		List<ParsedResult> parsed = new ArrayList<ParsedResult>();
+		
+		try(final JsonParser parser = parserFactory.createParser(new StringReader(line))) {
+			expect(parser, JsonParser.Event.START_OBJECT);
+			JsonParser.Event event;
+			while((event = parser.next()) != JsonParser.Event.END_OBJECT) {
+				if(event != JsonParser.Event.KEY_NAME)
+					throw new JsonException("Expected a key, got " + event);
+				String key = parser.getString();
+				event = parser.next();
+				switch(key) {
+					case "query":
+						query = parser.getString();
+						break;
+					case "engine":
+						engine = SearchEngine.forName(parser.getString());
+						break;
+					case "timestamp":
+						if(event == JsonParser.Event.VALUE_NUMBER)
+							timestamp = new Date(parser.getLong());
+						break;
+					case "maxResults":
+						maxResults = parser.getInt();
+						break;
+					case "results":
+						if(event != JsonParser.Event.START_ARRAY)
+							throw new JsonException("Expected an array of results");
+						while(parser.next() == JsonParser.Event.START_OBJECT)
+							parsed.add(readResult(parser));
+						break;
+					default:
+						skipValue(parser, event);
+						break;
+				}
+			}
+		}
+		
+		if(query == null)
+			throw new JsonException("Record has no query");
+		if(timestamp == null)
+			throw new JsonException("Record has no timestamp");
+		ArrayList<SearchResult> results = new ArrayList<SearchResult>(parsed.size());
+		for(ParsedResult result : parsed)
+			results.add(result.toResult(query));
+		QuerySearch search = engine.newSearch(query);
+		search.restore(timestamp, results, maxResults);
+		return search;
+	}
+	
+	/**
+	 * Parses the remainder of a result object (after its START_OBJECT event).
+	 */
+	private static ParsedResult readResult(JsonParser parser) throws MalformedURLException {
+		String url = null;
+		String headline = "";
+		String summary = "";
+		int clicks = 0;
+		
+		JsonParser.Event event;
+		while((event = parser.next()) != JsonParser.Event.END_OBJECT) {
+			String key = parser.getString();
+			event = parser.next();
+			switch(key) {
+				case "url":
+					url = parser.getString();
+					break;
+				case "headline":
+					headline = parser.getString();
+					break;
+				case "summary":
+					summary = parser.getString();
+					break;
+				case "clicks":
+					clicks = parser.getInt();
+					break;
+				default:
+					skipValue(parser, event);
+					break;
+			}
+		}
+		if(url == null)
+			throw new JsonException("Result has no URL");
+		return new ParsedResult(new URL(url), headline, summary, clicks);
+	}
+	
+	private static void expect(JsonParser parser, JsonParser.Event expected) {
+		JsonParser.Event event = parser.next();
+		if(event != expected)
+			throw new JsonException("Expected " + expected + ", got " + event);
+	}
+	
+	/**
+	 * Skips a (possibly nested) value whose first event has already been consumed.
+	 */
+	private static void skipValue(JsonParser parser, JsonParser.Event first) {
+		if((first != JsonParser.Event.START_OBJECT) && (first != JsonParser.Event.START_ARRAY))
+			return;
+		int depth = 1;
+		while(depth > 0) {
+			JsonParser.Event event = parser.next();
+			if((event == JsonParser.Event.START_OBJECT) || (event == JsonParser.Event.START_ARRAY))
+				depth++;
+			else if((event == JsonParser.Event.END_OBJECT) || (event == JsonParser.Event.END_ARRAY))
+				depth--;
+		}
+	}
+	
+	/**
+	 * Command line entry point for exporting and importing histories.
+	 * @param args <code>export|import &lt;ndjson file&gt; [--history file]</code>
+	 */
+	public static void main(String[] args) throws IOException {
+		if((args.length < 2) || !(args[0].equals("export") || args[0].equals("import"))) {
+			System.err.println("Usage: export|import <ndjson file> [--history file]");
+			return;
+		}
+		SearchHistory history = ((args.length >= 4) && args[2].equals("--history"))
+				? new SearchHistory(args[3]) : new SearchHistory();
+		
+		if(args[0].equals("export")) {
+			try(final OutputStream out = new BufferedOutputStream(new FileOutputStream(args[1]))) {
+				System.out.println("Exported " + exportNdjson(history, out) + " searches to " + args[1]);
+			}
+		} else {
+			try(final InputStream in = new BufferedInputStream(new FileInputStream(args[1]))) {
+				System.out.println("Imported " + importNdjson(history, in) + " new searches from " + args[1]);
+			}
+		}
+	}
+	
+	/**
+	 * Components of a result read before the query of its record is known.
+	 */
+	private static class ParsedResult {
+		private final URL url;
+		private final String headline;
+		private final String summary;
+		private final int clicks;
+		
+		/**
+		 * Constructor.
+		 * @param url URL of the result page
+		 * @param headline Headline of the result page
+		 * @param summary Summary of the result page
+		 * @param clicks Click counter
+		 */
+		ParsedResult(URL url, String headline, String summary, int clicks) {
+			this.url = url;
+			this.headline = headline;
+			this.summary = summary;
+			this.clicks = clicks;
+		}
+		
+		/**
+		 * Creates the result for the query of the record.
+		 * @param query Query of the record
+		 * @return Search result
+		 */
+		SearchResult toResult(String query) {
+			return new SearchResult(query, url, headline, summary, clicks);
+		}
+	}
+}
@@ -0,0 +1,68 @@
+package core;
+
+import java.util.Collection;
+import java.util.Collections;
+
+/**
+ * Listener for changes of a {@link SearchHistory SearchHistory}.
+ * Used by the indexes kept alongside the history to update themselves incrementally.
+ * Listeners are called while the history holds its write lock, so they see the changes in history order,
+ * but they must not call back into the writing methods of the history.
+ * @author Florian Bethe, Tino Liebusch
+ */
+public interface HistoryListener {
+	
+	/**
+	 * Called after a search has been added to the history.
+	 * When the listener is registered, this is also called for every search already in the history.
+	 * @param search Added search
+	 */
+	void searchAdded(QuerySearch search);
+	
+	/**
+	 * Called after the user clicked on a result of a search in the history.
+	 * The click counter of the result has already been incremented.
+	 * @param result Clicked result
+	 */
+	default void resultClicked(SearchResult result) {
+	}
+	
+	/**
+	 * Called after the user clicked on a result, together with the search the result belongs to.
+	 * By default this just calls {@link #resultClicked(SearchResult)}; listeners which need the search
+	 * (e.g. its date) override this one instead.
+	 * @param search Search containing the result, or null if it is no longer in the in-memory history
+	 * @param result Clicked result
+	 */
+	default void resultClicked(QuerySearch search, SearchResult result) {
+		this.resultClicked(result);
+	}
+	
+	/**
+	 * Called after searches have been removed from the in-memory history, e.g. because they were archived.
+	 * Listeners holding on to the searches or their results should drop them.
+	 * @param searches Removed searches
+	 */
+	default void searchesRemoved(Collection<QuerySearch> searches) {
+	}
+
+	/**
+	 * Called after searches have been deleted by the user (see {@link Tombstones Tombstones}).
+	 * Unlike archived searches, deleted searches are gone for good, so also listeners which keep covering
+	 * the archive have to forget them. By default this just calls {@link #searchesRemoved(Collection)}.
+	 * @param searches Deleted searches
+	 */
+	default void searchesDeleted(Collection<QuerySearch> searches) {
+		this.searchesRemoved(searches);
+	}
+	
+	/**
+	 * Called before a search of the in-memory history gets a new result list, e.g. when its duplicates are
+	 * collapsed or a single result is deleted; {@link #searchAdded(QuerySearch)} follows with the new results.
+	 * The search itself stays in the history. By default this just calls {@link #searchesDeleted(Collection)}.
+	 * @param search Search whose results are replaced
+	 */
+	default void resultsReplacing(QuerySearch search) {
+		this.searchesDeleted(Collections.singletonList(search));
+	}
+}
@@ -0,0 +1,675 @@
+package core;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+import java.util.zip.CRC32;
+
+/**
+ * Append log shared by all instances (windows or processes) using the same history file.
+ * Every change of a history (added searches, clicks, deletions and archiving) is appended to the log as a
+ * small record; the other instances tail the log and apply the records of everyone else, so they pick up
+ * new entries without reloading the history file. Since the records survive a crash, the log also serves as
+ * a write-ahead log: a history replays it after loading the history file.
+ * <p>
+ * Writers hold an exclusive {@link FileLock} on a separate lock file while appending. A checkpoint (saving the
+ * full history) takes the same lock, first applies the records of the others, then writes the history file
+ * and finally replaces the log by an empty one with a new generation. Readers notice the new generation,
+ * finish reading the old log (which no longer grows) and continue with the new one. Records may be applied
+ * more than once around a checkpoint, so applying them has to be idempotent.
+ * <p>
+ * A record is framed as <code>length, CRC-32, writer id, type, payload</code>; the log file starts with a
+ * magic number and its generation. A record torn by a crash is cut off by the next writer, which appends in
+ * its place and forces the records to disk before releasing the lock; readers therefore wait at an invalid
+ * record instead of skipping it.
+ * @author Florian Bethe, Tino Liebusch
+ */
+public class HistoryLog {
+	private static final int MAGIC = 0x53484c47;
+	private static final int HEADER_SIZE = 12;
+	private static final int FRAME_SIZE = 8;
+	private static final int MAX_RECORD_SIZE = 64 << 20;
+	private static final byte ADD = 1;
+	private static final byte CLICK = 2;
+	private static final byte DELETE_QUERY = 3;
+	private static final byte DELETE_RANGE = 4;
+	private static final byte DELETE_RESULT = 5;
+	private static final byte ARCHIVE = 6;
+	// File locks belong to the whole JVM and must not overlap within it, so all logs of a lock file share one
+	private static final ConcurrentMap<String, SharedLock> LOCKS = new ConcurrentHashMap<String, SharedLock>();
+	
+	private final File logFile;
+	private final SharedLock sharedLock;
+	private final Replayer replayer;
+	// Distinguishes the records of this instance from the ones of the others
+	private final long writerId = UUID.randomUUID().getMostSignificantBits();
+	// End of the records checked by this instance's last append and the generation it belongs to; guarded by
+	// the writer lock
+	private long appendGeneration;
+	private long appendEnd = 0;
+	// Guarded by this
+	private boolean reading = false;
+	private FileChannel reader;
+	private long generation;
+	
+	/**
+	 * Receives the changes other instances recorded in the log.
+	 * Searches are identified by their timestamp and query; applying a change twice must not change anything.
+	 */
+	public interface Replayer {
+		
+		/**
+		 * Called for consecutive added searches.
+		 * @param searches Added searches
+		 */
+		void searchesAdded(List<QuerySearch> searches);
+		
+		/**
+		 * Called after a result has been clicked.
+		 * @param time Timestamp of the search in milliseconds since the epoch
+		 * @param query Query of the search
+		 * @param url URL of the clicked result
+		 * @param clicks Click counter of the result after the click
+		 */
+		void resultClicked(long time, String query, String url, int clicks);
+		
+		/**
+		 * Called after all searches of a query have been deleted.
+		 * @param query Deleted query
+		 * @param deletedAt Time of the deletion in milliseconds since the epoch
+		 */
+		void queryDeleted(String query, long deletedAt);
+		
+		/**
+		 * Called after all searches in a date range have been deleted.
+		 * @param begin First deleted time in milliseconds since the epoch
+		 * @param end Last deleted time in milliseconds since the epoch
+		 */
+		void rangeDeleted(long begin, long end);
+		
+		/**
+		 * Called after a single result has been deleted.
+		 * @param time Timestamp of the search in milliseconds since the epoch
+		 * @param query Query of the search
+		 * @param url URL of the deleted result
+		 */
+		void resultDeleted(long time, String query, String url);
+		
+		/**
+		 * Called after searches have been moved into the archive.
+		 * @param times Timestamps of the archived searches in milliseconds since the epoch
+		 * @param queries Queries of the archived searches
+		 */
+		void searchesArchived(long[] times, String[] queries);
+	}
+	
+	/**
+	 * Constructor.
+	 * Creates the log if there is none yet.
+	 * @param logFile Log file
+	 * @param lockFile File locked by the writers; never replaced
+	 * @param replayer Receives the records of the other instances
+	 */
+	public HistoryLog(File logFile, File lockFile, Replayer replayer) {
+		this.logFile = logFile.getAbsoluteFile();
+		this.replayer = replayer;
+		String lockPath = lockFile.getAbsolutePath();
+		LOCKS.putIfAbsent(lockPath, new SharedLock(lockFile.getAbsoluteFile()));
+		this.sharedLock = LOCKS.get(lockPath);
+		try {
+			this.acquire();
+			try {
+				this.ensureLog();
+			} finally {
+				this.release();
+			}
+		} catch(IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Encodes an added search.
+	 * Has to be called before the search is linked as a delta (see {@link DeltaLinker DeltaLinker}),
+	 * so the record holds the full search.
+	 * @param search Added search
+	 * @return Record to append
+	 * @throws IOException If the search can't be serialized
+	 */
+	public static byte[] added(QuerySearch search) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+		bytes.write(ADD);
+		try(final ObjectOutputStream oos = new ObjectOutputStream(bytes)) {
+			oos.writeObject(search);
+		}
+		return bytes.toByteArray();
+	}
+	
+	/**
+	 * Encodes a click on a result.
+	 * @param search Search containing the result
+	 * @param result Clicked result (with the incremented click counter)
+	 * @return Record to append
+	 */
+	public static byte[] clicked(QuerySearch search, SearchResult result) {
+		Encoder out = new Encoder(CLICK);
+		out.writeSearch(search);
+		out.writeUTF(result.getUrlText());
+		out.writeInt(result.getClickCounter());
+		return out.toByteArray();
+	}
+	
+	/**
+	 * Encodes the deletion of all searches of a query.
+	 * @param query Deleted query
+	 * @param deletedAt Time of the deletion in milliseconds since the epoch
+	 * @return Record to append
+	 */
+	public static byte[] queryDeleted(String query, long deletedAt) {
+		Encoder out = new Encoder(DELETE_QUERY);
+		out.writeUTF(query);
+		out.writeLong(deletedAt);
+		return out.toByteArray();
+	}
+	
+	/**
+	 * Encodes the deletion of all searches in a date range.
+	 * @param begin First deleted time in milliseconds since the epoch
+	 * @param end Last deleted time in milliseconds since the epoch
+	 * @return Record to append
+	 */
+	public static byte[] rangeDeleted(long begin, long end) {
+		Encoder out = new Encoder(DELETE_RANGE);
+		out.writeLong(begin);
+		out.writeLong(end);
+		return out.toByteArray();
+	}
+	
+	/**
+	 * Encodes the deletion of a single result.
+	 * @param search Search containing the result
+	 * @param result Deleted result
+	 * @return Record to append
+	 */
+	public static byte[] resultDeleted(QuerySearch search, SearchResult result) {
+		Encoder out = new Encoder(DELETE_RESULT);
+		out.writeSearch(search);
+		out.writeUTF(result.getUrlText());
+		return out.toByteArray();
+	}
+	
+	/**
+	 * Encodes the archiving of searches.
+	 * @param searches Archived searches
+	 * @return Record to append
+	 */
+	public static byte[] archived(List<QuerySearch> searches) {
+		Encoder out = new Encoder(ARCHIVE);
+		out.writeInt(searches.size());
+		for(QuerySearch search : searches)
+			out.writeSearch(search);
+		return out.toByteArray();
+	}
+	
+	/**
+	 * Appends records to the log under the writer lock.
+	 * @param records Records created by the static encoding methods
+	 * @throws IOException If the log can't be written
+	 */
+	public void append(List<byte[]> records) throws IOException {
+		if(records.isEmpty())
+			return;
+		// Frame all records first, so the lock is only held for a single write
+		int total = 0;
+		for(byte[] record : records)
+			total += FRAME_SIZE + 8 + record.length;
+		ByteBuffer buffer = ByteBuffer.allocate(total);
+		CRC32 crc = new CRC32();
+		for(byte[] record : records) {
+			ByteBuffer writer = ByteBuffer.allocate(8).putLong(0, writerId);
+			crc.reset();
+			crc.update(writer.array());
+			crc.update(record);
+			buffer.putInt(8 + record.length).putInt((int) crc.getValue()).put(writer.array()).put(record);
+		}
+		buffer.flip();
+		
+		this.acquire();
+		try {
+			this.ensureLog();
+			try(final FileChannel channel = FileChannel.open(logFile.toPath(), StandardOpenOption.READ,
+					StandardOpenOption.WRITE)) {
+				long position = this.validEnd(channel);
+				if(channel.size() > position) {
+					// No one else is writing, so this is what remains of a writer which crashed
+					System.err.println("Truncating torn history log record at " + position + " in " + logFile);
+					channel.truncate(position);
+				}
+				while(buffer.hasRemaining())
+					position += channel.write(buffer, position);
+				channel.force(false);
+				appendEnd = position;
+			}
+		} finally {
+			this.release();
+		}
+	}
+	
+	/**
+	 * Finds the end of the last complete record of the log.
+	 * Only the records after the end found by the last append of the same generation are checked.
+	 * Has to be called with the writer lock held.
+	 * @param channel Log opened for reading
+	 * @return Position after the last complete record
+	 */
+	private long validEnd(FileChannel channel) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		readFully(channel, header, 0);
+		long current = header.getLong(4);
+		long position = appendEnd;
+		if((current != appendGeneration) || (position < HEADER_SIZE) || (position > channel.size())) {
+			appendGeneration = current;
+			position = HEADER_SIZE;
+		}
+		ByteBuffer body;
+		while((body = readRecord(channel, position)) != null)
+			position += FRAME_SIZE + body.capacity();
+		return position;
+	}
+	
+	/**
+	 * Appends a single record to the log under the writer lock.
+	 * @param record Record created by one of the static encoding methods
+	 * @throws IOException If the log can't be written
+	 */
+	public void append(byte[] record) throws IOException {
+		this.append(Collections.singletonList(record));
+	}
+	
+	/**
+	 * Gets the size of the log, which grows until the next checkpoint.
+	 * @return Size in bytes
+	 */
+	public long size() {
+		return Math.max(0L, logFile.length() - HEADER_SIZE);
+	}
+	
+	/**
+	 * Takes the writer lock and applies the records of the other instances, so the caller can change shared
+	 * files (e.g. the archive) based on the latest state. The lock is reentrant and released by closing.
+	 * @return Lock to close
+	 * @throws IOException If the lock can't be taken
+	 */
+	public WriteLock lock() throws IOException {
+		this.acquire();
+		try {
+			this.poll();
+		} catch(IOException | RuntimeException e) {
+			this.release();
+			throw e;
+		}
+		return new WriteLock();
+	}
+	
+	/**
+	 * Writes a checkpoint: under the writer lock, the records of the others are applied, the given action
+	 * saves the full history, and the log is replaced by an empty one with a new generation.
+	 * @param save Saves the history file and tells whether it was written; the log is only replaced if so
+	 * @throws IOException If the lock can't be taken or the log can't be replaced
+	 */
+	public void checkpoint(BooleanSupplier save) throws IOException {
+		WriteLock lock = this.lock();
+		try {
+			if(!save.getAsBoolean())
+				return;
+			File temp = new File(logFile.getParentFile(), logFile.getName() + ".tmp");
+			this.writeHeader(temp);
+			Files.move(temp.toPath(), logFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			// Switch to the new generation right away
+			this.poll();
+		} finally {
+			lock.close();
+		}
+	}
+	
+	/**
+	 * Starts reading the log at the beginning of the current generation.
+	 * Has to be called before the history file is loaded: records which are already part of it are then applied
+	 * once more, but none can be missed, even if another instance writes a checkpoint in between.
+	 * @throws IOException If the log can't be opened
+	 */
+	public synchronized void startReading() throws IOException {
+		if(reader != null)
+			reader.close();
+		reader = null;
+		reading = true;
+		this.openReader();
+	}
+	
+	/**
+	 * Applies the records the other instances appended since the last call.
+	 * Incomplete records at the end of the log are left for the next call. Nothing is applied before
+	 * {@link #startReading()} has been called.
+	 * @return Number of applied records
+	 * @throws IOException If the log can't be read
+	 */
+	public synchronized int poll() throws IOException {
+		if(!reading || ((reader == null) && !this.openReader()))
+			return 0;
+		int applied = 0;
+		while(true) {
+			applied += this.readRecords();
+			if(readGeneration(logFile) == generation)
+				return applied;
+			// A checkpoint replaced the log; the old one doesn't grow anymore once the new one exists
+			applied += this.readRecords();
+			reader.close();
+			reader = null;
+			if(!this.openReader())
+				return applied;
+		}
+	}
+	
+	/**
+	 * Opens the current log for reading; positioned after its header.
+	 * @return Could the log be opened
+	 */
+	private boolean openReader() throws IOException {
+		FileChannel channel;
+		try {
+			channel = FileChannel.open(logFile.toPath(), StandardOpenOption.READ);
+		} catch(NoSuchFileException e) {
+			// Recreated by the next writer
+			return false;
+		}
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		if(!readFully(channel, header, 0) || (header.getInt(0) != MAGIC)) {
+			channel.close();
+			return false;
+		}
+		generation = header.getLong(4);
+		channel.position(HEADER_SIZE);
+		reader = channel;
+		return true;
+	}
+	
+	/**
+	 * Reads and applies the complete records after the current reader position.
+	 */
+	private int readRecords() throws IOException {
+		int applied = 0;
+		List<QuerySearch> added = new ArrayList<QuerySearch>();
+		while(true) {
+			long position = reader.position();
+			// Either a record which is still being written, or one torn by a crash which the next writer replaces
+			ByteBuffer body = readRecord(reader, position);
+			if(body == null)
+				break;
+			int length = body.capacity();
+			reader.position(position + FRAME_SIZE + length);
+			if(body.getLong(0) == writerId)
+				continue;
+			
+			try {
+				if(body.get(8) == ADD) {
+					try(final ObjectInputStream ois = new ObjectInputStream(
+							new ByteArrayInputStream(body.array(), 9, length - 9))) {
+						added.add((QuerySearch) ois.readObject());
+					}
+				} else {
+					// Keep the order of the changes
+					this.flushAdded(added);
+					this.replay(new DataInputStream(new ByteArrayInputStream(body.array(), 8, length - 8)));
+				}
+				applied++;
+			} catch(IOException | ClassNotFoundException | ClassCastException e) {
+				e.printStackTrace();
+			}
+		}
+		this.flushAdded(added);
+		return applied;
+	}
+	
+	/**
+	 * Reads the record at a position.
+	 * @param channel Log
+	 * @param position Position of the record's frame
+	 * @return Body of the record (writer id, type and payload), or null if there is no complete, intact record
+	 */
+	private static ByteBuffer readRecord(FileChannel channel, long position) throws IOException {
+		ByteBuffer frame = ByteBuffer.allocate(FRAME_SIZE);
+		if(!readFully(channel, frame, position))
+			return null;
+		int length = frame.getInt(0);
+		if((length < 9) || (length > MAX_RECORD_SIZE) || (position + FRAME_SIZE + length > channel.size()))
+			return null;
+		ByteBuffer body = ByteBuffer.allocate(length);
+		if(!readFully(channel, body, position + FRAME_SIZE))
+			return null;
+		CRC32 crc = new CRC32();
+		crc.update(body.array());
+		return ((int) crc.getValue() == frame.getInt(4)) ? body : null;
+	}
+	
+	private void flushAdded(List<QuerySearch> added) {
+		if(added.isEmpty())
+			return;
+		try {
+			replayer.searchesAdded(new ArrayList<QuerySearch>(added));
+		} catch(RuntimeException e) {
+			e.printStackTrace();
+		}
+		added.clear();
+	}
+	
+	/**
+	 * Decodes a record other than an added search and passes it to the replayer.
+	 */
+	private void replay(DataInputStream in) throws IOException {
+		try {
+			switch(in.readByte()) {
+				case CLICK:
+					replayer.resultClicked(in.readLong(), in.readUTF(), in.readUTF(), in.readInt());
+					break;
+				case DELETE_QUERY:
+					replayer.queryDeleted(in.readUTF(), in.readLong());
+					break;
+				case DELETE_RANGE:
+					replayer.rangeDeleted(in.readLong(), in.readLong());
+					break;
+				case DELETE_RESULT:
+					replayer.resultDeleted(in.readLong(), in.readUTF(), in.readUTF());
+					break;
+				case ARCHIVE:
+					int count = in.readInt();
+					long[] times = new long[count];
+					String[] queries = new String[count];
+					for(int i = 0; i < count; i++) {
+						times[i] = in.readLong();
+						queries[i] = in.readUTF();
+					}
+					replayer.searchesArchived(times, queries);
+					break;
+				default:
+					// Written by a newer version
+					break;
+			}
+		} catch(RuntimeException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Creates the log if it is missing or has no valid header.
+	 * Has to be called with the writer lock held.
+	 */
+	private void ensureLog() throws IOException {
+		if(readGeneration(logFile) != null)
+			return;
+		File temp = new File(logFile.getParentFile(), logFile.getName() + ".tmp");
+		this.writeHeader(temp);
+		Files.move(temp.toPath(), logFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+	
+	/**
+	 * Writes an empty log with a new generation.
+	 */
+	private void writeHeader(File file) throws IOException {
+		try(final DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+			out.writeInt(MAGIC);
+			long next;
+			do {
+				next = UUID.randomUUID().getLeastSignificantBits();
+			} while(next == generation);
+			out.writeLong(next);
+		}
+	}
+	
+	/**
+	 * Reads the generation from the header of a log.
+	 * @return Generation, or null if the log is missing or has no valid header
+	 */
+	private static Long readGeneration(File file) {
+		try(final DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+			if(in.readInt() != MAGIC)
+				return null;
+			return in.readLong();
+		} catch(IOException e) {
+			return null;
+		}
+	}
+	
+	/**
+	 * Reads from a position until the buffer is full.
+	 * @return Could the buffer be filled, i.e. are there enough bytes
+	 */
+	private static boolean readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while(buffer.hasRemaining()) {
+			int read = channel.read(buffer, position + buffer.position());
+			if(read < 0)
+				return false;
+		}
+		return true;
+	}
+	
+	private void acquire() throws IOException {
+		sharedLock.lock.lock();
+		try {
+			if(sharedLock.lock.getHoldCount() == 1) {
+				sharedLock.channel = FileChannel.open(sharedLock.file.toPath(), StandardOpenOption.CREATE,
+						StandardOpenOption.WRITE);
+				sharedLock.fileLock = sharedLock.channel.lock();
+			}
+		} catch(IOException | RuntimeException e) {
+			this.release();
+			throw e;
+		}
+	}
+	
+	private void release() {
+		try {
+			if(sharedLock.lock.getHoldCount() == 1 && (sharedLock.channel != null)) {
+				// Closing the channel releases the file lock
+				sharedLock.channel.close();
+				sharedLock.channel = null;
+				sharedLock.fileLock = null;
+			}
+		} catch(IOException e) {
+			e.printStackTrace();
+		} finally {
+			sharedLock.lock.unlock();
+		}
+	}
+	
+	/**
+	 * Writer lock held by the caller of {@link HistoryLog#lock()}.
+	 */
+	public class WriteLock implements Closeable {
+		private boolean closed = false;
+		
+		private WriteLock() {
+		}
+		
+		@Override
+		public void close() {
+			if(!closed) {
+				closed = true;
+				release();
+			}
+		}
+	}
+	
+	/**
+	 * Lock of a lock file within this JVM, together with the file lock while it is held.
+	 */
+	private static class SharedLock {
+		final File file;
+		final ReentrantLock lock = new ReentrantLock();
+		FileChannel channel;
+		FileLock fileLock;
+		
+		SharedLock(File file) {
+			this.file = file;
+		}
+	}
+	
+	/**
+	 * Writes the fields of a record.
+	 */
+	private static class Encoder {
+		private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+		private final DataOutputStream out = new DataOutputStream(bytes);
+		
+		Encoder(byte type) {
+			bytes.write(type);
+		}
+		
+		void writeSearch(QuerySearch search) {
+			this.writeLong((search.getTimestamp() == null) ? Long.MIN_VALUE : search.getTimestamp().getTime());
+			this.writeUTF(search.getQuery());
+		}
+		
+		void writeUTF(String value) {
+			try {
+				out.writeUTF(value);
+			} catch(IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+		
+		void writeLong(long value) {
+			try {
+				out.writeLong(value);
+			} catch(IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+		
+		void writeInt(int value) {
+			try {
+				out.writeInt(value);
+			} catch(IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+		
+		byte[] toByteArray() {
+			return bytes.toByteArray();
+		}
+	}
+}
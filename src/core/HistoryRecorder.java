@@ -0,0 +1,43 @@
+package core;
+
+/**
+ * Subscriber which records a streamed search in the history once it has completed
+ * (see {@link QuerySearch#findQueryAsync()}). Failed searches and searches answered from stored results
+ * (see {@link QuerySearch#isStale()}) aren't recorded.
+ * @author Florian Bethe, Tino Liebusch
+ */
+public class HistoryRecorder implements Flow.Subscriber<SearchResult> {
+	private final SearchHistory history;
+	private final QuerySearch search;
+	
+	/**
+	 * Constructor.
+	 * @param history History to record the search in
+	 * @param search Search whose stream this subscribes to
+	 */
+	public HistoryRecorder(SearchHistory history, QuerySearch search) {
+		this.history = history;
+		this.search = search;
+	}
+	
+	@Override
+	public void onSubscribe(Flow.Subscription subscription) {
+		// The results themselves are taken from the completed search
+		subscription.request(Long.MAX_VALUE);
+	}
+	
+	@Override
+	public void onNext(SearchResult item) {
+	}
+	
+	@Override
+	public void onError(Throwable throwable) {
+		throwable.printStackTrace();
+	}
+	
+	@Override
+	public void onComplete() {
+		if(!search.isStale())
+			history.addEntry(search);
+	}
+}
@@ -0,0 +1,225 @@
+package core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.json.Json;
+import javax.json.stream.JsonGenerator;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local HTTP/JSON service exposing the search history to other tools on the same machine.
+ * The server only binds to the loopback interface. Requests are handled by a pool with one thread per core;
+ * since {@link SearchHistory} hands out immutable snapshots, readers never block each other or the writers.
+ * <p>
+ * Endpoints (all GET, all returning a JSON array of searches):
+ * <ul>
+ * <li><code>/history/search?q=words[&amp;limit=n]</code> - searches whose query or result headline contain all words</li>
+ * <li><code>/history/range?from=millis&amp;to=millis</code> - searches within the (inclusive) date range; both bounds optional</li>
+ * <li><code>/history/recent?n=count</code> - the most recent searches, newest last</li>
+ * </ul>
+ * @author Florian Bethe, Tino Liebusch
+ */
+public class HistoryService {
+	public static final int DEFAULT_PORT = 8377;
+	
+	private final SearchHistory history;
+	private final HttpServer server;
+	private final ExecutorService workers;
+	
+	/**
+	 * Constructor.
+	 * Binds the server to the loopback interface, but doesn't start it yet.
+	 * @param history History to serve
+	 * @param port Local port to listen on
+	 * @throws IOException If the port can't be bound
+	 */
+	public HistoryService(SearchHistory history, int port) throws IOException {
+		this.history = history;
+		this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		this.workers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		
+		server.createContext("/history/search", new JsonHandler() {
+			@Override
+			protected List<QuerySearch> query(Map<String, String> params) {
+				String words = params.get("q");
+				if((words == null) || words.trim().isEmpty())
+					throw new IllegalArgumentException("Missing parameter 'q'");
+				List<QuerySearch> matches = HistoryService.this.history.findSearches(words.trim());
+				int limit = intParam(params, "limit", matches.size());
+				return matches.subList(Math.max(0, matches.size() - limit), matches.size());
+			}
+		});
+		server.createContext("/history/range", new JsonHandler() {
+			@Override
+			protected List<QuerySearch> query(Map<String, String> params) {
+				Date from = params.containsKey("from") ? new Date(longParam(params, "from")) : null;
+				Date to = params.containsKey("to") ? new Date(longParam(params, "to")) : null;
+				return HistoryService.this.history.getHistoryDateOrdered(from, to);
+			}
+		});
+		server.createContext("/history/recent", new JsonHandler() {
+			@Override
+			protected List<QuerySearch> query(Map<String, String> params) {
+				return HistoryService.this.history.getRecentSearches(intParam(params, "n", 5));
+			}
+		});
+		server.setExecutor(workers);
+	}
+	
+	/**
+	 * Starts serving requests in the background.
+	 */
+	public void start() {
+		server.start();
+	}
+	
+	/**
+	 * Stops the server, giving running requests up to a second to finish.
+	 */
+	public void stop() {
+		server.stop(1);
+		workers.shutdown();
+	}
+	
+	/**
+	 * Gets the address the server is bound to.
+	 * @return Local socket address
+	 */
+	public InetSocketAddress getAddress() {
+		return server.getAddress();
+	}
+	
+	/**
+	 * Base handler answering GET requests with a list of searches as JSON.
+	 * Invalid parameters result in a 400 response with an error object.
+	 */
+	private static abstract class JsonHandler implements HttpHandler {
+		/**
+		 * Performs the actual history query.
+		 * @param params Decoded query parameters
+		 * @return Searches to respond with
+		 * @throws IllegalArgumentException If the parameters are invalid
+		 */
+		protected abstract List<QuerySearch> query(Map<String, String> params);
+		
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			try {
+				if(!"GET".equals(exchange.getRequestMethod())) {
+					respondError(exchange, 405, "Only GET is supported");
+					return;
+				}
+				
+				List<QuerySearch> searches;
+				try {
+					searches = query(parseQuery(exchange.getRequestURI().getRawQuery()));
+				} catch(IllegalArgumentException e) {
+					respondError(exchange, 400, e.getMessage());
+					return;
+				}
+				
+				exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+				exchange.sendResponseHeaders(200, 0);
+				try(final Writer writer = new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8);
+						final JsonGenerator generator = Json.createGenerator(writer)) {
+					HistoryJson.writeSearches(generator, searches);
+				}
+			} finally {
+				exchange.close();
+			}
+		}
+		
+		/**
+		 * Sends an error response with a JSON error object.
+		 * @param exchange Current exchange
+		 * @param status HTTP status code
+		 * @param message Error message
+		 * @throws IOException If the response can't be written
+		 */
+		private static void respondError(HttpExchange exchange, int status, String message) throws IOException {
+			byte[] body = Json.createObjectBuilder().add("error", String.valueOf(message)).build()
+					.toString().getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+			exchange.sendResponseHeaders(status, body.length);
+			try(final OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+		}
+	}
+	
+	/**
+	 * Parses a raw URL query string into its decoded parameters.
+	 * @param rawQuery Raw query string (may be null)
+	 * @return Map of parameter names to values
+	 */
+	static Map<String, String> parseQuery(String rawQuery) throws UnsupportedEncodingException {
+		Map<String, String> params = new HashMap<String, String>();
+		if(rawQuery == null)
+			return params;
+		for(String pair : rawQuery.split("&")) {
+			int split = pair.indexOf('=');
+			if(split < 0)
+				params.put(URLDecoder.decode(pair, "UTF-8"), "");
+			else
+				params.put(URLDecoder.decode(pair.substring(0, split), "UTF-8"),
+						URLDecoder.decode(pair.substring(split + 1), "UTF-8"));
+		}
+		return params;
+	}
+	
+	private static int intParam(Map<String, String> params, String name, int defaultValue) {
+		if(!params.containsKey(name))
+			return defaultValue;
+		try {
+			return Math.max(0, Integer.parseInt(params.get(name)));
+		} catch(NumberFormatException e) {
+			throw new IllegalArgumentException("Parameter '" + name + "' has to be a number");
+		}
+	}
+	
+	private static long longParam(Map<String, String> params, String name) {
+		try {
+			return Long.parseLong(params.get(name));
+		} catch(NumberFormatException e) {
+			throw new IllegalArgumentException("Parameter '" + name + "' has to be a timestamp in milliseconds");
+		}
+	}
+	
+	/**
+	 * Command line entry point; serves the given history until the process is killed.
+	 * @param args <code>[port] [--history file]</code>
+	 */
+	public static void main(String[] args) throws IOException {
+		int port = DEFAULT_PORT;
+		String historyFile = null;
+		for(int i = 0; i < args.length; i++) {
+			if("--history".equals(args[i]) && (i + 1 < args.length))
+				historyFile = args[++i];
+			else
+				port = Integer.parseInt(args[i]);
+		}
+		
+		SearchHistory history = (historyFile == null) ? new SearchHistory() : new SearchHistory(historyFile);
+		HistoryService service = new HistoryService(history, port);
+		service.start();
+		System.out.println("Serving search history on http://" + service.getAddress().getHostString() + ":"
+				+ service.getAddress().getPort() + "/history/");
+	}
+}
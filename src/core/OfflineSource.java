@@ -0,0 +1,21 @@
+package core;
+
+import java.util.List;
+
+/**
+ * Source of stored results for searches which can't reach their engine (see
+ * {@link QuerySearch#setOfflineSource(OfflineSource)}).
+ * @author Florian Bethe, Tino Liebusch
+ */
+public interface OfflineSource {
+	
+	/**
+	 * Finds stored results answering a query.
+	 * The returned results are stale copies (see {@link SearchResult#isStale()}) which may be handed out as
+	 * the results of a new search.
+	 * @param query Query of the search
+	 * @param maxAmount Maximum number of results
+	 * @return Stored results, best first; empty if nothing matches
+	 */
+	List<SearchResult> findStoredResults(String query, int maxAmount);
+}
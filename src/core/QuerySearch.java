@@ -1,21 +1,71 @@
 package core;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.function.BiConsumer;
 
 /**
  * Query search for a search engine.
  * Contains the query, the returned results, the timestamp and the maximum number of results expected.
+ * <p>
+ * A repeated search can be linked to the previous run of the same query (see {@link DeltaLinker DeltaLinker}).
+ * It is then serialized as a delta against that run: for every result either the position of the same result
+ * in the previous run plus its click counter, or the result itself if it is new. Removed and reordered results
+ * are implied by the positions. The full result list is rebuilt when the search is read, sharing the texts
+ * of unchanged results with the previous run.
+ * <p>
+ * If the engine can't be reached, a search is answered from the {@link OfflineSource OfflineSource} set with
+ * {@link #setOfflineSource(OfflineSource)} (usually the history) instead of failing; its results are then
+ * marked as stale (see {@link #isStale()}).
  * @author Florian Bethe, Tino Liebusch
  */
-public abstract class QuerySearch implements Serializable {
+public abstract class QuerySearch implements Serializable, Cloneable {
 	private static final long serialVersionUID = -8022814148564187528L;
 	
+	/**
+	 * Request layer shared by all searches; coalesces identical searches and rate-limits the engines.
+	 */
+	private static final RequestGate requestGate = RequestGate.fromSystemProperties();
+	
+	/**
+	 * Source of stored results for searches which can't reach their engine.
+	 */
+	private static volatile OfflineSource offlineSource;
+	
+	/**
+	 * The serialized fields; for delta-encoded searches 'results' only holds the new results.
+	 */
+	private static final ObjectStreamField[] serialPersistentFields = {
+		new ObjectStreamField("query", String.class),
+		new ObjectStreamField("results", ArrayList.class),
+		new ObjectStreamField("time", Date.class),
+		new ObjectStreamField("maxResults", Integer.TYPE),
+		new ObjectStreamField("deltaBase", QuerySearch.class),
+		new ObjectStreamField("deltaOps", int[].class),
+		new ObjectStreamField("deltaClicks", int[].class)
+	};
+	
 	protected String query;
 	protected ArrayList<SearchResult> results; 
 	private Date time;
 	protected int maxResults;
+	// Previous run this search is stored against (null for a full search)
+	private transient volatile Delta delta;
+	// Read from a stored history, so it already has its final form
+	private transient boolean restored;
+	// Stream of a running asynchronous search; shared by its attempts
+	private transient volatile ResultPublisher stream;
+	// Answered from the offline source instead of the engine
+	private transient boolean stale;
 	
 	/**
 	 * Constructor.
@@ -39,14 +89,315 @@ public abstract class QuerySearch implements Serializable {
 	
 	/**
 	 * Exposed method to perform the query search.
-	 * Utilizes {@link #queryEngine() queryEngine()} to perform the search.
+	 * Utilizes {@link #queryEngine() queryEngine()} to perform the search, going through the shared
+	 * {@link RequestGate RequestGate}: a concurrent identical search may answer this one instead,
+	 * and the engine call may be delayed by the rate limit.
 	 * Sets the timestamp for the search and (re-)initializes the result list.
+	 * If the engine is unreachable and the offline source knows the query, the stored results are used.
+	 * The search is recorded as a {@link HistoryEvents.Search} flight recorder event.
 	 * @throws Exception Pass-through from {@link #queryEngine() queryEngine()}
 	 */
 	public void findQuery() throws Exception {
+		HistoryEvents.Search event = new HistoryEvents.Search();
+		event.begin();
+		this.results = new ArrayList<SearchResult>(maxResults);
+		this.time = new Date(System.currentTimeMillis());
+		this.stale = false;
+		try {
+			requestGate.execute(this);
+		} catch(Exception e) {
+			if(!this.answerOffline(e)) {
+				event.failed = true;
+				throw e;
+			}
+		} finally {
+			this.commit(event);
+		}
+	}
+	
+	/**
+	 * Performs the query search without blocking, streaming the results as the engine delivers them.
+	 * Goes through the shared {@link RequestGate RequestGate} like {@link #findQuery()}; the returned stream
+	 * completes once {@link #getResults() getResults()} holds the final results, or fails with the exception
+	 * of the engine. Engines which don't stream emit all results at the end. If the engine is unreachable,
+	 * the stream completes with the stored results of the offline source instead (if it has any).
+	 * Like {@link #findQuery()}, the search is recorded as a {@link HistoryEvents.Search} flight recorder event.
+	 * @return Stream of the results; any number of subscribers may subscribe at any time
+	 */
+	public Flow.Publisher<SearchResult> findQueryAsync() {
+		final ResultPublisher publisher = new ResultPublisher();
+		final HistoryEvents.Search event = new HistoryEvents.Search();
+		event.begin();
 		this.results = new ArrayList<SearchResult>(maxResults);
 		this.time = new Date(System.currentTimeMillis());
-		this.queryEngine();
+		this.stale = false;
+		this.stream = publisher;
+		requestGate.executeAsync(this).whenComplete(new BiConsumer<Void, Throwable>() {
+			@Override
+			public void accept(Void ignored, Throwable failure) {
+				stream = null;
+				Throwable cause = (failure instanceof CompletionException) ? failure.getCause() : failure;
+				event.failed = (cause != null) && !((cause instanceof Exception) && answerOffline((Exception) cause));
+				commit(event);
+				if(!event.failed)
+					publisher.complete(results);
+				else
+					publisher.fail(cause);
+			}
+		});
+		return publisher;
+	}
+	
+	/**
+	 * Fills in and commits the flight recorder event of a finished search.
+	 * @param event Event begun when the search started
+	 */
+	private void commit(HistoryEvents.Search event) {
+		event.engine = this.getClass().getSimpleName();
+		event.queryLength = query.length();
+		event.resultCount = (results == null) ? 0 : results.size();
+		event.offline = stale;
+		event.commit();
+	}
+	
+	/**
+	 * Sets the source answering searches whose engine can't be reached.
+	 * @param source Source of stored results, or null to let such searches fail
+	 */
+	public static void setOfflineSource(OfflineSource source) {
+		offlineSource = source;
+	}
+	
+	/**
+	 * Replaces the results with stored ones after the engine turned out to be unavailable or too slow.
+	 * @param failure Failure of the engine call
+	 * @return Was the search answered (false if the failure isn't about availability or nothing is stored)
+	 */
+	private boolean answerOffline(Exception failure) {
+		OfflineSource source = offlineSource;
+		boolean unavailable = RequestGate.isUnavailable(failure)
+				|| (failure instanceof RequestGate.DeadlineExceededException);
+		if((source == null) || !unavailable)
+			return false;
+		List<SearchResult> stored = source.findStoredResults(query, maxResults);
+		if(stored.isEmpty())
+			return false;
+		this.results = new ArrayList<SearchResult>(stored);
+		this.stale = true;
+		return true;
+	}
+	
+	/**
+	 * Checks whether the results were taken from the offline source because the engine couldn't be reached.
+	 * Such searches repeat what is already stored and shouldn't be added to the history.
+	 * @return Are the results stale
+	 */
+	public boolean isStale() {
+		return stale;
+	}
+	
+	/**
+	 * Adds a result delivered by the engine, and emits it right away if the search is streamed
+	 * (see {@link #findQueryAsync()}). Engines should call this for every result as soon as it is parsed.
+	 * @param result Next result of the engine
+	 */
+	protected void publish(SearchResult result) {
+		results.add(result);
+		ResultPublisher current = stream;
+		if(current != null)
+			current.offer(result);
+	}
+	
+	/**
+	 * Gets the request layer used by all searches, e.g. to report its statistics.
+	 * @return Shared request gate
+	 */
+	public static RequestGate getRequestGate() {
+		return requestGate;
+	}
+	
+	/**
+	 * Restores a search which has been performed before, e.g. when importing a history.
+	 * @param time Timestamp of the original search
+	 * @param results Results of the original search
+	 * @param maxResults Maximum number of results of the original search
+	 */
+	void restore(Date time, ArrayList<SearchResult> results, int maxResults) {
+		this.time = time;
+		this.results = results;
+		this.maxResults = maxResults;
+	}
+	
+	/**
+	 * Creates an independent attempt of this search for the request layer.
+	 * The attempt is a shallow copy with its own result list, so several attempts (retries or hedged
+	 * requests) may query the engine concurrently without interfering with each other or this search.
+	 * @return Copy of this search to perform the engine call on
+	 */
+	QuerySearch newAttempt() {
+		try {
+			QuerySearch attempt = (QuerySearch) super.clone();
+			attempt.results = new ArrayList<SearchResult>(maxResults);
+			return attempt;
+		} catch(CloneNotSupportedException e) {
+			throw new AssertionError(e);
+		}
+	}
+	
+	/**
+	 * Links this search to a previous run of the same query, so it is stored as a delta against it.
+	 * Nothing is linked if the results have less than half in common or if the delta chain of the previous
+	 * run is already at the checkpoint interval; the search is then stored in full (a checkpoint).
+	 * @param base Previous run of the same query
+	 * @param checkpointInterval Maximum length of a delta chain
+	 * @return Was the search linked
+	 */
+	boolean linkDelta(QuerySearch base, int checkpointInterval) {
+		Delta baseDelta = base.delta;
+		int chainLength = (baseDelta == null) ? 1 : baseDelta.chainLength + 1;
+		if((results == null) || (base.results == null) || (chainLength >= checkpointInterval))
+			return false;
+		
+		// Match every result to an unused equal result of the base
+		Map<Integer, List<Integer>> candidates = new HashMap<Integer, List<Integer>>();
+		for(int i = 0; i < base.results.size(); i++) {
+			Integer hash = base.results.get(i).contentHash();
+			List<Integer> positions = candidates.get(hash);
+			if(positions == null) {
+				positions = new ArrayList<Integer>(1);
+				candidates.put(hash, positions);
+			}
+			positions.add(i);
+		}
+		int[] ops = new int[results.size()];
+		int literals = 0;
+		for(int i = 0; i < results.size(); i++) {
+			SearchResult result = results.get(i);
+			List<Integer> positions = candidates.get(result.contentHash());
+			ops[i] = -(++literals);
+			if(positions == null)
+				continue;
+			for(int p = 0; p < positions.size(); p++) {
+				if(result.hasSameContent(base.results.get(positions.get(p)))) {
+					ops[i] = positions.remove(p);
+					literals--;
+					break;
+				}
+			}
+		}
+		if(2 * literals > results.size())
+			return false;
+		
+		this.delta = new Delta(base, ops, chainLength);
+		return true;
+	}
+	
+	/**
+	 * Stores this search in full from now on, e.g. because its previous run is leaving the history.
+	 */
+	void unlinkDelta() {
+		this.delta = null;
+	}
+	
+	/**
+	 * Replaces the results, e.g. without a result the user deleted. The new list is stored in full, as a
+	 * delta against the previous run would describe the old list.
+	 * @param results New results
+	 */
+	void replaceResults(ArrayList<SearchResult> results) {
+		this.delta = null;
+		this.results = results;
+	}
+	
+	/**
+	 * Gets the previous run this search is stored against.
+	 * @return Base of the delta, or null if the search is stored in full
+	 */
+	QuerySearch getDeltaBase() {
+		Delta current = delta;
+		return (current == null) ? null : current.base;
+	}
+	
+	/**
+	 * Checks whether the search was read from a stored history (rather than performed or imported).
+	 * @return Has the search been deserialized
+	 */
+	boolean isRestored() {
+		return restored;
+	}
+	
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		ObjectOutputStream.PutField fields = out.putFields();
+		fields.put("query", query);
+		fields.put("time", time);
+		fields.put("maxResults", maxResults);
+		
+		Delta current = delta;
+		if(current == null) {
+			fields.put("results", results);
+		} else {
+			// Click counters change over time, so they are taken from the results at every write
+			ArrayList<SearchResult> literals = new ArrayList<SearchResult>();
+			int[] clicks = new int[current.ops.length];
+			for(int i = 0; i < current.ops.length; i++) {
+				if(current.ops[i] < 0)
+					literals.add(results.get(i));
+				else
+					clicks[i] = results.get(i).getClickCounter();
+			}
+			fields.put("results", literals);
+			fields.put("deltaBase", current.base);
+			fields.put("deltaOps", current.ops);
+			fields.put("deltaClicks", clicks);
+		}
+		out.writeFields();
+	}
+	
+	@SuppressWarnings("unchecked")
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		ObjectInputStream.GetField fields = in.readFields();
+		query = (String) fields.get("query", null);
+		time = (Date) fields.get("time", null);
+		maxResults = fields.get("maxResults", 10);
+		ArrayList<SearchResult> stored = (ArrayList<SearchResult>) fields.get("results", null);
+		
+		// The base precedes this search in the stream (or is written inline), so its results are complete
+		QuerySearch base = (QuerySearch) fields.get("deltaBase", null);
+		if(base == null) {
+			results = stored;
+		} else {
+			int[] ops = (int[]) fields.get("deltaOps", null);
+			int[] clicks = (int[]) fields.get("deltaClicks", null);
+			if((ops == null) || (clicks == null) || (stored == null) || (base.results == null))
+				throw new java.io.InvalidObjectException("Incomplete result delta");
+			results = new ArrayList<SearchResult>(ops.length);
+			for(int i = 0; i < ops.length; i++) {
+				if(ops[i] >= 0)
+					results.add(new SearchResult(base.results.get(ops[i]), query, clicks[i]));
+				else
+					results.add(stored.get(-ops[i] - 1));
+			}
+			Delta baseDelta = base.delta;
+			delta = new Delta(base, ops, (baseDelta == null) ? 1 : baseDelta.chainLength + 1);
+		}
+		restored = true;
+	}
+	
+	/**
+	 * Link of a search to the previous run it is stored against.
+	 */
+	private static class Delta {
+		final QuerySearch base;
+		// Per result: position in the base results, or -(index + 1) into the new results
+		final int[] ops;
+		// Number of deltas to follow to reach a full search
+		final int chainLength;
+		
+		Delta(QuerySearch base, int[] ops, int chainLength) {
+			this.base = base;
+			this.ops = ops;
+			this.chainLength = chainLength;
+		}
 	}
 	
 	/**
@@ -56,6 +407,14 @@ public abstract class QuerySearch implements Serializable {
 	 */
 	protected abstract void queryEngine() throws Exception;
 	
+	/**
+	 * Checks whether calls to the engine count against a quota and therefore have to be rate-limited.
+	 * @return Is the engine rate-limited (true unless overridden)
+	 */
+	protected boolean isRateLimited() {
+		return true;
+	}
+	
 	/**
 	 * Gets the results of the search.
 	 * If no search has yet been conducted, null will be returned.
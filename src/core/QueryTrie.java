@@ -0,0 +1,305 @@
+package core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Prefix trie over historical queries for autocompletion.
+ * Every query is weighted by a time-decayed frequency: each occurrence contributes <code>2^(t / halfLife)</code>,
+ * so recent searches outweigh old ones while frequent queries still rank high. Scores are kept as base-2
+ * logarithms to avoid overflowing over the years.
+ * <p>
+ * Since a score only ever increases on insertion, every node can cache its top-k completions and keep
+ * them up to date along the inserted path. A completion lookup is then a walk down the prefix plus a copy
+ * of the cached list, independent of the number of stored queries. Deleting an occurrence (see
+ * {@link #remove(String, long)}) lowers a score, so the caches along its path are recomputed from the children.
+ * @author Florian Bethe, Tino Liebusch
+ */
+public class QueryTrie implements HistoryListener {
+	public static final int MAX_COMPLETIONS = 10;
+	
+	private final double halfLifeMillis;
+	private final Node root = new Node();
+	private int queryCount;
+	
+	/**
+	 * Default constructor.
+	 * The half-life of the recency weighting is read from the system property
+	 * <code>searchhistory.autocomplete.halfLifeDays</code> (default 30 days).
+	 */
+	public QueryTrie() {
+		this(Integer.getInteger("searchhistory.autocomplete.halfLifeDays", 30) * 24L * 3600L * 1000L);
+	}
+	
+	/**
+	 * Constructor.
+	 * @param halfLifeMillis Time after which an occurrence of a query only counts half as much
+	 */
+	public QueryTrie(long halfLifeMillis) {
+		this.halfLifeMillis = halfLifeMillis;
+	}
+	
+	@Override
+	public void searchAdded(QuerySearch search) {
+		long time = (search.getTimestamp() != null) ? search.getTimestamp().getTime() : System.currentTimeMillis();
+		this.insert(search.getQuery(), time);
+	}
+	
+	/**
+	 * Forgets the deleted searches; archived searches stay completable, so {@link #searchesRemoved(Collection)}
+	 * is left alone.
+	 */
+	@Override
+	public void searchesDeleted(Collection<QuerySearch> searches) {
+		for(QuerySearch search : searches) {
+			if(search.getTimestamp() != null)
+				this.remove(search.getQuery(), search.getTimestamp().getTime());
+		}
+	}
+	
+	/**
+	 * Records an occurrence of a query.
+	 * @param query Query as entered by the user
+	 * @param timeMillis Time of the occurrence
+	 */
+	public synchronized void insert(String query, long timeMillis) {
+		String key = normalize(query);
+		if(key.isEmpty())
+			return;
+		
+		// Walk (and extend) the path, remembering it for the top-k update
+		Node[] path = new Node[key.length() + 1];
+		Node node = root;
+		path[0] = node;
+		for(int i = 0; i < key.length(); i++) {
+			node = node.childOrCreate(key.charAt(i));
+			path[i + 1] = node;
+		}
+		
+		double weight = timeMillis / halfLifeMillis;
+		if(node.query == null) {
+			node.logScore = weight;
+			queryCount++;
+		} else {
+			node.logScore = logAdd(node.logScore, weight);
+		}
+		node.occurrences++;
+		// Display the most recently used spelling
+		node.query = query.trim();
+		
+		for(Node ancestor : path)
+			ancestor.offer(node);
+	}
+	
+	/**
+	 * Removes an occurrence of a query, e.g. because the user deleted the search.
+	 * The query disappears once its last occurrence is removed.
+	 * @param query Query as entered by the user
+	 * @param timeMillis Time of the occurrence
+	 */
+	public synchronized void remove(String query, long timeMillis) {
+		String key = normalize(query);
+		if(key.isEmpty())
+			return;
+		
+		Node[] path = new Node[key.length() + 1];
+		Node node = root;
+		path[0] = node;
+		for(int i = 0; i < key.length(); i++) {
+			node = node.child(key.charAt(i));
+			if(node == null)
+				return;
+			path[i + 1] = node;
+		}
+		if(node.query == null)
+			return;
+		
+		if(--node.occurrences <= 0) {
+			node.query = null;
+			node.occurrences = 0;
+			queryCount--;
+		} else {
+			double score = logSub(node.logScore, timeMillis / halfLifeMillis);
+			// Rounding may leave nothing of the remaining occurrences; keep them just below the removed one
+			node.logScore = Double.isNaN(score) || Double.isInfinite(score) ? node.logScore - 1.0 : score;
+		}
+		
+		// The score dropped, so nodes further down may now rank higher: rebuild the caches bottom-up
+		for(int i = path.length - 1; i >= 0; i--)
+			path[i].rebuildTop();
+	}
+	
+	/**
+	 * Gets the best completions for a prefix.
+	 * @param prefix Prefix typed by the user
+	 * @param k Maximum number of completions (at most {@link #MAX_COMPLETIONS})
+	 * @return Completions, best first
+	 */
+	public synchronized List<String> complete(String prefix, int k) {
+		String key = normalize(prefix);
+		Node node = root;
+		for(int i = 0; (i < key.length()) && (node != null); i++)
+			node = node.child(key.charAt(i));
+		
+		List<String> completions = new ArrayList<String>();
+		if((node == null) || (node.top == null))
+			return completions;
+		for(int i = 0; (i < node.top.length) && (i < k); i++)
+			completions.add(node.top[i].query);
+		return completions;
+	}
+	
+	/**
+	 * Checks whether a query has occurred.
+	 * @param query Query (normalized internally)
+	 * @return Is the query in the trie
+	 */
+	public synchronized boolean contains(String query) {
+		String key = normalize(query);
+		Node node = root;
+		for(int i = 0; (i < key.length()) && (node != null); i++)
+			node = node.child(key.charAt(i));
+		return (node != null) && (node.query != null);
+	}
+	
+	/**
+	 * Gets the number of distinct queries in the trie.
+	 * @return Number of distinct queries
+	 */
+	public synchronized int size() {
+		return queryCount;
+	}
+	
+	/**
+	 * Normalizes a query for use as key: trimmed, lowercase and with single spaces.
+	 * @param query Query to normalize
+	 * @return Normalized query
+	 */
+	static String normalize(String query) {
+		return query.trim().toLowerCase(Locale.ROOT).replaceAll("\\s+", " ");
+	}
+	
+	/**
+	 * Computes log2(2^a + 2^b) without leaving the log domain.
+	 */
+	private static double logAdd(double a, double b) {
+		double max = Math.max(a, b);
+		return max + Math.log1p(Math.pow(2.0, Math.min(a, b) - max)) / Math.log(2.0);
+	}
+	
+	/**
+	 * Computes log2(2^a - 2^b) for a > b without leaving the log domain.
+	 */
+	private static double logSub(double a, double b) {
+		return a + Math.log1p(-Math.pow(2.0, b - a)) / Math.log(2.0);
+	}
+	
+	/**
+	 * Trie node.
+	 * Children are kept in sorted parallel arrays, which is a lot smaller than a map per node.
+	 */
+	private static class Node {
+		char[] keys;
+		Node[] children;
+		int childCount;
+		// Set if a query ends at this node
+		String query;
+		double logScore;
+		int occurrences;
+		// Best terminal nodes below (and including) this node, ordered by descending score
+		Node[] top;
+		
+		Node child(char c) {
+			if(keys == null)
+				return null;
+			int index = Arrays.binarySearch(keys, 0, childCount, c);
+			return (index >= 0) ? children[index] : null;
+		}
+		
+		Node childOrCreate(char c) {
+			if(keys == null) {
+				keys = new char[2];
+				children = new Node[2];
+			}
+			int index = Arrays.binarySearch(keys, 0, childCount, c);
+			if(index >= 0)
+				return children[index];
+			
+			index = -index - 1;
+			if(childCount == keys.length) {
+				keys = Arrays.copyOf(keys, childCount * 2);
+				children = Arrays.copyOf(children, childCount * 2);
+			}
+			System.arraycopy(keys, index, keys, index + 1, childCount - index);
+			System.arraycopy(children, index, children, index + 1, childCount - index);
+			Node node = new Node();
+			keys[index] = c;
+			children[index] = node;
+			childCount++;
+			return node;
+		}
+		
+		/**
+		 * Recomputes the cached top-k from this node and the caches of its children.
+		 */
+		void rebuildTop() {
+			List<Node> candidates = new ArrayList<Node>();
+			if(query != null)
+				candidates.add(this);
+			for(int i = 0; i < childCount; i++) {
+				if(children[i].top != null)
+					candidates.addAll(Arrays.asList(children[i].top));
+			}
+			if(candidates.isEmpty()) {
+				top = null;
+				return;
+			}
+			Node[] sorted = candidates.toArray(new Node[candidates.size()]);
+			Arrays.sort(sorted, new Comparator<Node>() {
+				@Override
+				public int compare(Node a, Node b) {
+					return Double.compare(b.logScore, a.logScore);
+				}
+			});
+			top = Arrays.copyOf(sorted, Math.min(sorted.length, MAX_COMPLETIONS));
+		}
+		
+		/**
+		 * Offers a terminal node whose score just increased to the cached top-k.
+		 */
+		void offer(Node terminal) {
+			if(top == null) {
+				top = new Node[] { terminal };
+				return;
+			}
+			
+			int index = -1;
+			for(int i = 0; i < top.length; i++) {
+				if(top[i] == terminal) {
+					index = i;
+					break;
+				}
+			}
+			if(index < 0) {
+				if(top.length < MAX_COMPLETIONS) {
+					top = Arrays.copyOf(top, top.length + 1);
+				} else if(top[top.length - 1].logScore >= terminal.logScore) {
+					return;
+				}
+				index = top.length - 1;
+				top[index] = terminal;
+			}
+			
+			// Bubble the node up to its position
+			while((index > 0) && (top[index - 1].logScore < terminal.logScore)) {
+				top[index] = top[index - 1];
+				top[index - 1] = terminal;
+				index--;
+			}
+		}
+	}
+}
@@ -0,0 +1,541 @@
+package core;
+
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Request layer between {@link QuerySearch#findQuery()} and the engines.
+ * <ul>
+ * <li>Single-flight: concurrent searches for the same engine, query and result count share one upstream
+ *     call; the followers get copies of the leader's results.</li>
+ * <li>Rate limiting: upstream calls to engines with a quota take a token from a token bucket. Without a token the call waits in line
+ *     until its reserved token has been refilled.</li>
+ * <li>Tail latency: every search has an overall deadline. Retryable failures (timeouts, refused connections,
+ *     HTTP 429/5xx) are retried with full-jitter exponential backoff while the deadline allows. Optionally, a
+ *     second (hedged) attempt is started once the first one takes longer than the observed p95 latency;
+ *     whichever succeeds first wins.</li>
+ * <li>Offline detection: once a call fails because its engine is unavailable, further calls to that engine
+ *     fail right away with an {@link EngineUnavailableException} instead of waiting for their own timeouts.
+ *     After the offline interval a single call probes the engine again; its success ends the offline state.</li>
+ * </ul>
+ * Engine calls run on separate {@link QuerySearch#newAttempt() attempts} of the search, so concurrent
+ * attempts never share a result list. The number of saved calls, the time spent throttled, retries
+ * and hedges are counted for reporting.
+ * @author Florian Bethe, Tino Liebusch
+ */
+public class RequestGate {
+	private final ConcurrentHashMap<String, CompletableFuture<ArrayList<SearchResult>>> inFlight =
+			new ConcurrentHashMap<String, CompletableFuture<ArrayList<SearchResult>>>();
+	private final TokenBucket bucket;
+	private final long deadlineNanos;
+	private final int maxRetries;
+	private final long backoffBaseMillis;
+	private final long backoffMaxMillis;
+	private final boolean hedging;
+	private final long offlineNanos;
+	// Per engine (search class): System.nanoTime() until which it counts as unavailable; 0 while it is reachable
+	private final ConcurrentHashMap<String, AtomicLong> offlineUntil = new ConcurrentHashMap<String, AtomicLong>();
+	private final LatencyTracker latencies = new LatencyTracker(128);
+	private final ExecutorService attempts = Executors.newCachedThreadPool(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "engine-request");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	
+	private final AtomicLong upstreamCalls = new AtomicLong();
+	private final AtomicLong retries = new AtomicLong();
+	private final AtomicLong hedges = new AtomicLong();
+	private final AtomicLong hedgeWins = new AtomicLong();
+	private final AtomicLong deadlinesExceeded = new AtomicLong();
+	private final AtomicLong savedCalls = new AtomicLong();
+	private final AtomicLong throttledCalls = new AtomicLong();
+	private final AtomicLong throttledNanos = new AtomicLong();
+	private final AtomicLong offlineRejections = new AtomicLong();
+	
+	/**
+	 * Constructor.
+	 * @param ratePerSecond Sustained upstream calls per second; 0 or less disables the rate limit
+	 * @param burst Number of calls which may be made at once after a quiet period
+	 * @param deadlineMillis Overall time a search may take, including retries
+	 * @param maxRetries Maximum number of retries after a retryable failure
+	 * @param backoffBaseMillis Backoff cap for the first retry; doubles with every further retry
+	 * @param backoffMaxMillis Upper limit for the backoff cap
+	 * @param hedging Start a second attempt if the first one is slower than the p95 latency
+	 * @param offlineMillis Time calls fail right away after the engine was found unavailable; 0 disables this
+	 */
+	public RequestGate(double ratePerSecond, int burst, long deadlineMillis, int maxRetries,
+			long backoffBaseMillis, long backoffMaxMillis, boolean hedging, long offlineMillis) {
+		this.bucket = (ratePerSecond > 0) ? new TokenBucket(ratePerSecond, Math.max(1, burst)) : null;
+		this.deadlineNanos = TimeUnit.MILLISECONDS.toNanos(deadlineMillis);
+		this.maxRetries = Math.max(0, maxRetries);
+		this.backoffBaseMillis = backoffBaseMillis;
+		this.backoffMaxMillis = backoffMaxMillis;
+		this.hedging = hedging;
+		this.offlineNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0L, offlineMillis));
+	}
+	
+	/**
+	 * Creates the gate from the system properties (prefix <code>searchhistory.engine.</code>):
+	 * <code>ratePerSecond</code> (default 5), <code>burst</code> (5), <code>deadlineMs</code> (10000),
+	 * <code>maxRetries</code> (2), <code>backoffBaseMs</code> (200), <code>backoffMaxMs</code> (2000),
+	 * <code>hedge</code> (false) and <code>offlineMs</code> (30000).
+	 * @return Configured gate
+	 */
+	public static RequestGate fromSystemProperties() {
+		return new RequestGate(Double.parseDouble(System.getProperty("searchhistory.engine.ratePerSecond", "5")),
+				Integer.getInteger("searchhistory.engine.burst", 5),
+				Integer.getInteger("searchhistory.engine.deadlineMs", 10000),
+				Integer.getInteger("searchhistory.engine.maxRetries", 2),
+				Integer.getInteger("searchhistory.engine.backoffBaseMs", 200),
+				Integer.getInteger("searchhistory.engine.backoffMaxMs", 2000),
+				Boolean.getBoolean("searchhistory.engine.hedge"),
+				Integer.getInteger("searchhistory.engine.offlineMs", 30000));
+	}
+	
+	/**
+	 * Performs the engine search for the given query search in the background.
+	 * @param search Search whose results are to be filled
+	 * @return Future which completes once the results have been filled, or with the exception of the engine
+	 */
+	public CompletableFuture<Void> executeAsync(final QuerySearch search) {
+		return CompletableFuture.runAsync(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					execute(search);
+				} catch(Exception e) {
+					throw new CompletionException(e);
+				}
+			}
+		}, attempts);
+	}
+	
+	/**
+	 * Performs the engine search for the given query search.
+	 * @param search Search whose results are to be filled
+	 * @throws Exception Pass-through from the engine (also for followers of a failed call)
+	 */
+	public void execute(QuerySearch search) throws Exception {
+		String key = search.getClass().getName() + '\u0000' + search.getMaxResults() + '\u0000'
+				+ QueryTrie.normalize(search.getQuery());
+		CompletableFuture<ArrayList<SearchResult>> flight = new CompletableFuture<ArrayList<SearchResult>>();
+		CompletableFuture<ArrayList<SearchResult>> leader = inFlight.putIfAbsent(key, flight);
+		
+		if(leader != null) {
+			// Someone is already asking the engine the same thing; wait for the answer
+			savedCalls.incrementAndGet();
+			ArrayList<SearchResult> results;
+			try {
+				results = leader.get();
+			} catch(ExecutionException e) {
+				if(e.getCause() instanceof Exception)
+					throw (Exception) e.getCause();
+				throw e;
+			}
+			search.results = new ArrayList<SearchResult>(results.size());
+			for(SearchResult result : results)
+				search.results.add(new SearchResult(result, search.getQuery()));
+			return;
+		}
+		
+		try {
+			AtomicLong offline = this.checkAvailable(search);
+			try {
+				search.results = this.callWithRetries(search, System.nanoTime() + deadlineNanos);
+				offline.set(0L);
+			} catch(Exception e) {
+				if((offlineNanos > 0) && isUnavailable(e))
+					offline.set((System.nanoTime() + offlineNanos) | 1L);
+				throw e;
+			}
+			flight.complete(search.getResults());
+		} catch(Exception e) {
+			flight.completeExceptionally(e);
+			throw e;
+		} finally {
+			inFlight.remove(key, flight);
+		}
+	}
+	
+	/**
+	 * Fails right away while the engine of a search counts as unavailable. Once the offline interval has
+	 * passed, exactly one caller gets through to probe the engine; the others keep failing until it is done.
+	 * @param search Search about to call its engine
+	 * @return Offline state of the engine
+	 * @throws EngineUnavailableException If the call shouldn't be made
+	 */
+	private AtomicLong checkAvailable(QuerySearch search) throws EngineUnavailableException {
+		String engine = search.getClass().getName();
+		AtomicLong offline = offlineUntil.get(engine);
+		if(offline == null) {
+			offlineUntil.putIfAbsent(engine, new AtomicLong());
+			offline = offlineUntil.get(engine);
+		}
+		long until = offline.get();
+		if(until == 0L)
+			return offline;
+		long now = System.nanoTime();
+		if((now - until < 0) || !offline.compareAndSet(until, (now + offlineNanos) | 1L)) {
+			offlineRejections.incrementAndGet();
+			throw new EngineUnavailableException("Engine unavailable, next attempt in "
+					+ Math.max(0L, TimeUnit.NANOSECONDS.toMillis(offline.get() - now)) + " ms");
+		}
+		return offline;
+	}
+	
+	/**
+	 * Calls the engine, retrying retryable failures with full-jitter exponential backoff.
+	 * @param search Search to perform
+	 * @param deadline Deadline as {@link System#nanoTime()} value
+	 * @return Results of the successful attempt
+	 * @throws Exception Failure of the last attempt, or a timeout if the deadline passed
+	 */
+	private ArrayList<SearchResult> callWithRetries(QuerySearch search, long deadline) throws Exception {
+		for(int retry = 0; ; retry++) {
+			try {
+				return this.callHedged(search, deadline);
+			} catch(Exception e) {
+				if((retry >= maxRetries) || !isRetryable(e))
+					throw e;
+				long cap = Math.min(backoffMaxMillis, backoffBaseMillis << Math.min(retry, 20));
+				long backoffNanos = TimeUnit.MILLISECONDS.toNanos(ThreadLocalRandom.current().nextLong(cap + 1));
+				if(System.nanoTime() + backoffNanos >= deadline)
+					throw e;
+				retries.incrementAndGet();
+				TimeUnit.NANOSECONDS.sleep(backoffNanos);
+			}
+		}
+	}
+	
+	/**
+	 * Performs one (possibly hedged) call within the deadline.
+	 * @param search Search to perform
+	 * @param deadline Deadline as {@link System#nanoTime()} value
+	 * @return Results of the first successful attempt
+	 * @throws Exception Failure of the attempt(s), or a timeout if the deadline passed
+	 */
+	private ArrayList<SearchResult> callHedged(QuerySearch search, long deadline) throws Exception {
+		ExecutorCompletionService<ArrayList<SearchResult>> completion =
+				new ExecutorCompletionService<ArrayList<SearchResult>>(attempts);
+		Future<ArrayList<SearchResult>> first = completion.submit(this.attempt(search, deadline));
+		Future<ArrayList<SearchResult>> second = null;
+		try {
+			Future<ArrayList<SearchResult>> done = null;
+			long hedgeDelay = hedging ? latencies.percentile(95) : -1L;
+			if(hedgeDelay > 0) {
+				done = completion.poll(Math.min(hedgeDelay, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+				if((done == null) && (System.nanoTime() < deadline)) {
+					hedges.incrementAndGet();
+					second = completion.submit(this.attempt(search, deadline));
+				}
+			}
+			
+			// Take the first successful attempt; a failure only counts once no attempt is left
+			int pending = (second == null) ? 1 : 2;
+			Exception failure = null;
+			while(pending > 0) {
+				if(done == null)
+					done = completion.poll(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+				if(done == null) {
+					deadlinesExceeded.incrementAndGet();
+					throw new DeadlineExceededException("Engine request exceeded its deadline");
+				}
+				pending--;
+				try {
+					ArrayList<SearchResult> results = unwrap(done);
+					if(done == second)
+						hedgeWins.incrementAndGet();
+					return results;
+				} catch(Exception e) {
+					failure = e;
+				}
+				done = null;
+			}
+			throw failure;
+		} finally {
+			first.cancel(true);
+			if(second != null)
+				second.cancel(true);
+		}
+	}
+	
+	/**
+	 * Creates the task for a single engine call on a fresh attempt of the search.
+	 */
+	private Callable<ArrayList<SearchResult>> attempt(final QuerySearch search, final long deadline) {
+		return new Callable<ArrayList<SearchResult>>() {
+			@Override
+			public ArrayList<SearchResult> call() throws Exception {
+				if(search.isRateLimited())
+					acquire(deadline);
+				upstreamCalls.incrementAndGet();
+				QuerySearch attempt = search.newAttempt();
+				long start = System.nanoTime();
+				attempt.queryEngine();
+				latencies.record(System.nanoTime() - start);
+				return attempt.getResults();
+			}
+		};
+	}
+	
+	private static ArrayList<SearchResult> unwrap(Future<ArrayList<SearchResult>> future) throws Exception {
+		try {
+			return future.get();
+		} catch(ExecutionException e) {
+			if(e.getCause() instanceof Exception)
+				throw (Exception) e.getCause();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Checks whether a failed engine call may succeed when repeated.
+	 * @param e Failure of the call
+	 * @return Is the failure transient
+	 */
+	private static boolean isRetryable(Exception e) {
+		if(e instanceof DeadlineExceededException)
+			return false;
+		if(e instanceof EngineException)
+			return ((EngineException) e).isRetryable();
+		return (e instanceof SocketTimeoutException) || (e instanceof ConnectException);
+	}
+	
+	/**
+	 * Checks whether a failed search means that the engine can't be used right now (rather than that the
+	 * request was wrong): the network or the engine is down, overloaded or too slow. The gate's own deadline
+	 * doesn't count, since a single slow request says little about the engine.
+	 * @param e Failure of the search
+	 * @return Is the engine unavailable
+	 */
+	static boolean isUnavailable(Exception e) {
+		if(e instanceof DeadlineExceededException)
+			return false;
+		if(e instanceof EngineException)
+			return ((EngineException) e).isRetryable();
+		return (e instanceof InterruptedIOException) || (e instanceof SocketException)
+				|| (e instanceof UnknownHostException) || (e instanceof EngineUnavailableException);
+	}
+	
+	/**
+	 * Waits for a token of the rate limit (if enabled).
+	 * A caller which doesn't get to make its call (the wait would pass the deadline, or it is interrupted
+	 * while waiting, e.g. because its hedge won) returns its reservation, so it doesn't delay later callers.
+	 * @param deadline Deadline as {@link System#nanoTime()} value
+	 * @throws InterruptedException If interrupted while waiting
+	 * @throws DeadlineExceededException If the token would only be available after the deadline
+	 */
+	private void acquire(long deadline) throws InterruptedException, DeadlineExceededException {
+		if(bucket == null)
+			return;
+		long waitNanos = bucket.reserve();
+		if(waitNanos <= 0)
+			return;
+		if(System.nanoTime() + waitNanos - deadline >= 0) {
+			bucket.refund();
+			deadlinesExceeded.incrementAndGet();
+			throw new DeadlineExceededException("Rate limit wait of "
+					+ TimeUnit.NANOSECONDS.toMillis(waitNanos) + " ms exceeds the deadline");
+		}
+		try {
+			TimeUnit.NANOSECONDS.sleep(waitNanos);
+		} catch(InterruptedException e) {
+			bucket.refund();
+			throw e;
+		}
+		// Only counted once the wait is over, a refunded wait never makes a call
+		throttledCalls.incrementAndGet();
+		throttledNanos.addAndGet(waitNanos);
+	}
+	
+	/**
+	 * Gets the number of calls actually made to the engines.
+	 * @return Upstream calls
+	 */
+	public long getUpstreamCalls() {
+		return upstreamCalls.get();
+	}
+	
+	/**
+	 * Gets the number of searches answered by another search's upstream call.
+	 * @return Saved calls
+	 */
+	public long getSavedCalls() {
+		return savedCalls.get();
+	}
+	
+	/**
+	 * Gets the number of upstream calls which had to wait for the rate limit.
+	 * @return Throttled calls
+	 */
+	public long getThrottledCalls() {
+		return throttledCalls.get();
+	}
+	
+	/**
+	 * Gets the total time upstream calls waited for the rate limit.
+	 * @return Throttled time in milliseconds
+	 */
+	public long getThrottledMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(throttledNanos.get());
+	}
+	
+	/**
+	 * Gets the number of retries after retryable failures.
+	 * @return Retries
+	 */
+	public long getRetries() {
+		return retries.get();
+	}
+	
+	/**
+	 * Gets the number of hedged attempts started.
+	 * @return Hedged attempts
+	 */
+	public long getHedges() {
+		return hedges.get();
+	}
+	
+	/**
+	 * Gets the number of hedged attempts which finished before the original attempt.
+	 * @return Hedge wins
+	 */
+	public long getHedgeWins() {
+		return hedgeWins.get();
+	}
+	
+	/**
+	 * Gets the number of calls which exceeded their deadline.
+	 * @return Exceeded deadlines
+	 */
+	public long getDeadlinesExceeded() {
+		return deadlinesExceeded.get();
+	}
+	
+	/**
+	 * Gets the number of calls which failed right away because the engine was unavailable.
+	 * @return Calls rejected while offline
+	 */
+	public long getOfflineRejections() {
+		return offlineRejections.get();
+	}
+	
+	@Override
+	public String toString() {
+		return String.format(Locale.ROOT, "Engine calls: %d upstream, %d saved by coalescing, %d throttled for %d ms in total, "
+				+ "%d retries, %d hedged (%d won), %d deadlines exceeded, %d rejected while offline",
+				this.getUpstreamCalls(), this.getSavedCalls(), this.getThrottledCalls(), this.getThrottledMillis(),
+				this.getRetries(), this.getHedges(), this.getHedgeWins(), this.getDeadlinesExceeded(),
+				this.getOfflineRejections());
+	}
+	
+	/**
+	 * Signals that an engine call did not finish within its deadline.
+	 */
+	public static class DeadlineExceededException extends InterruptedIOException {
+		private static final long serialVersionUID = -3183064935519837312L;
+		
+		public DeadlineExceededException(String message) {
+			super(message);
+		}
+	}
+	
+	/**
+	 * Signals that a call wasn't made because the engine was found unavailable shortly before.
+	 */
+	public static class EngineUnavailableException extends java.io.IOException {
+		private static final long serialVersionUID = 2784459133360264385L;
+		
+		public EngineUnavailableException(String message) {
+			super(message);
+		}
+	}
+	
+	/**
+	 * Ring buffer of the latest successful call latencies.
+	 */
+	private static class LatencyTracker {
+		private final long[] samples;
+		private int count = 0;
+		private int next = 0;
+		
+		LatencyTracker(int size) {
+			this.samples = new long[size];
+		}
+		
+		synchronized void record(long nanos) {
+			samples[next] = nanos;
+			next = (next + 1) % samples.length;
+			count = Math.min(count + 1, samples.length);
+		}
+		
+		/**
+		 * Gets a latency percentile over the recorded samples.
+		 * @param p Percentile (0-100)
+		 * @return Latency in nanoseconds, -1 while there are too few samples for a meaningful value
+		 */
+		synchronized long percentile(double p) {
+			if(count < 20)
+				return -1L;
+			long[] sorted = Arrays.copyOf(samples, count);
+			Arrays.sort(sorted);
+			return sorted[Math.min(count - 1, (int) Math.ceil(p / 100.0 * count) - 1)];
+		}
+	}
+	
+	/**
+	 * Token bucket handing out reservations.
+	 * Tokens may go negative: a caller without a token reserves the next one and is told how long to wait,
+	 * which queues the callers in order of arrival without holding a lock while waiting.
+	 */
+	private static class TokenBucket {
+		private final double tokensPerNano;
+		private final int capacity;
+		private double tokens;
+		private long lastRefill;
+		
+		TokenBucket(double ratePerSecond, int capacity) {
+			this.tokensPerNano = ratePerSecond / 1e9;
+			this.capacity = capacity;
+			this.tokens = capacity;
+			this.lastRefill = System.nanoTime();
+		}
+		
+		synchronized long reserve() {
+			long now = System.nanoTime();
+			tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerNano);
+			lastRefill = now;
+			tokens -= 1.0;
+			return (tokens >= 0.0) ? 0L : (long) Math.ceil(-tokens / tokensPerNano);
+		}
+		
+		/**
+		 * Returns a reserved token which wasn't used.
+		 */
+		synchronized void refund() {
+			tokens = Math.min(capacity, tokens + 1.0);
+		}
+	}
+}
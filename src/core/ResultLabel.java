@@ -21,6 +21,13 @@ public class ResultLabel extends JLabel {
 	private static final long serialVersionUID = 4221537970955575561L;
 	
 	protected Link resultLink;
+	protected final SearchResult result;
+	protected final boolean expressiveLabel;
+	
+	/**
+	 * Color of links to pages the user has already visited.
+	 */
+	private static final String VISITED_COLOR = "#551A8B";
 	
 	/**
 	 * Constructor.
@@ -42,17 +49,27 @@ public class ResultLabel extends JLabel {
 	 * @param expressiveLabel Off-switch for displaying summary
 	 */
 	public ResultLabel(SearchResult result, int horAlignment, boolean expressiveLabel) {
+		this(result, horAlignment, expressiveLabel, null);
+	}
+	
+	/**
+	 * Constructor.
+	 * Creates new label for the given result with the given alignment (from {@link javax.swing.SwingConstants SwingConstants}).
+	 * If expressiveLabel is false, the result summary will be omitted. If a history is given, clicks are recorded
+	 * in it and pages visited before are shown in the visited link color.
+	 * @param result Search result
+	 * @param horAlignment Alignment of label text
+	 * @param expressiveLabel Off-switch for displaying summary
+	 * @param history History to record clicks in and look up the visited state (may be null)
+	 */
+	public ResultLabel(SearchResult result, int horAlignment, boolean expressiveLabel, SearchHistory history) {
 		super("", null, horAlignment);
 		
-		if(expressiveLabel) {
-			this.setText("<html>&nbsp;<a href=\"" + result.getUrl().toString() + "\">" + result.getHeadline()
-			+ "</a><p>" + result.getSummary() + "</p></html>");
-		} else {
-			this.setText("<html>&nbsp;<a href=\"" + result.getUrl().toString() + "\">" + result.getHeadline()
-			+ "</a></html>");
-		}
+		this.result = result;
+		this.expressiveLabel = expressiveLabel;
+		this.updateText((history != null) && history.isVisited(result));
 		
-		resultLink = new Link(result.getUrl().toString(), 2, result.getHeadline().length() + 1);
+		resultLink = new Link(result.getUrlText(), 2, result.getHeadline().length() + 1);
 		
 		// Listen for clicks on the links in the label
 		this.addMouseListener(new MouseAdapter() {
@@ -61,7 +78,12 @@ public class ResultLabel extends JLabel {
 				if(ResultLabel.this.isOverLink(evt.getPoint())) {
 					try {
 						Desktop.getDesktop().browse(new URI(resultLink.url));
-						result.incrementClickCounter();
+						if(history != null) {
+							history.recordClick(result);
+							updateText(true);
+						} else {
+							result.incrementClickCounter();
+						}
 					} catch (IOException | URISyntaxException e) {
 						e.printStackTrace();
 						JOptionPane.showMessageDialog(null,
@@ -95,6 +117,28 @@ public class ResultLabel extends JLabel {
 		});
 	}
 	
+	/**
+	 * Sets the label text for the result.
+	 * @param visited Display the link in the visited color
+	 */
+	protected void updateText(boolean visited) {
+		String headline = visited ? ("<font color=\"" + VISITED_COLOR + "\">" + result.getHeadline() + "</font>")
+				: result.getHeadline();
+		// Results stored in the history, shown because the engine was unreachable; the note stays outside
+		// the anchor, which the link range covers exactly
+		String note = "";
+		if(result.isStale())
+			note = " <font color=\"gray\">(offline, from " + java.text.DateFormat.getDateInstance(
+					java.text.DateFormat.MEDIUM).format(result.getStoredAt()) + ")</font>";
+		if(expressiveLabel) {
+			this.setText("<html>&nbsp;<a href=\"" + result.getUrlText() + "\">" + headline
+			+ "</a>" + note + "<p>" + result.getSummary() + "</p></html>");
+		} else {
+			this.setText("<html>&nbsp;<a href=\"" + result.getUrlText() + "\">" + headline
+			+ "</a>" + note + "</html>");
+		}
+	}
+	
 	@Override
 	public Dimension getPreferredSize() {
 		// TODO: how to incorporate scrolling bar?
@@ -0,0 +1,186 @@
+package core;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stream of the results of one search as the engine delivers them (see {@link QuerySearch#findQueryAsync()}).
+ * Every result is kept until the search is done, so a subscriber gets all results from the first one,
+ * however late it subscribes; each subscriber is fed at its own pace as far as it has requested.
+ * The engine itself is never held up: a search has at most a few dozen results, so buffering them is cheap.
+ * <p>
+ * Several attempts of a search (retries or hedged requests) may feed the same stream; a result whose
+ * canonical URL (see {@link UrlNormalizer#canonicalize(java.net.URL)}) has already been emitted is dropped,
+ * so subscribers see every page once. Signals are delivered on the thread
+ * which emitted the result or requested it; subscribers updating Swing components have to move to the
+ * Event Dispatch Thread themselves.
+ * @author Florian Bethe, Tino Liebusch
+ */
+public class ResultPublisher implements Flow.Publisher<SearchResult> {
+	// Guarded by this
+	private final List<SearchResult> published = new ArrayList<SearchResult>();
+	private final Set<String> urls = new HashSet<String>();
+	private boolean done = false;
+	private Throwable error = null;
+	
+	private final List<ResultSubscription> subscriptions = new CopyOnWriteArrayList<ResultSubscription>();
+	
+	@Override
+	public void subscribe(Flow.Subscriber<? super SearchResult> subscriber) {
+		if(subscriber == null)
+			throw new NullPointerException("subscriber");
+		ResultSubscription subscription = new ResultSubscription(subscriber);
+		subscriber.onSubscribe(subscription);
+		// Added only after onSubscribe, so no signal can overtake it; the drain catches up on missed results
+		subscriptions.add(subscription);
+		subscription.drain();
+		if(subscription.cancelled)
+			subscriptions.remove(subscription);
+	}
+	
+	/**
+	 * Emits a result to all subscribers (as far as they have requested it).
+	 * @param result Result delivered by the engine
+	 * @return Was the result emitted (false if its page was already emitted or the stream has ended)
+	 */
+	boolean offer(SearchResult result) {
+		synchronized(this) {
+			if(!this.add(result))
+				return false;
+		}
+		this.drainAll();
+		return true;
+	}
+	
+	/**
+	 * Ends the stream successfully. Results of the final list which haven't been emitted yet (e.g. because
+	 * the engine doesn't stream) are emitted first.
+	 * @param results Final results of the search
+	 */
+	void complete(List<SearchResult> results) {
+		synchronized(this) {
+			if(done)
+				return;
+			if(results != null) {
+				for(SearchResult result : results)
+					this.add(result);
+			}
+			done = true;
+		}
+		this.drainAll();
+	}
+	
+	/**
+	 * Ends the stream with an error; subscribers are told right away, without the results they haven't
+	 * requested yet.
+	 * @param cause Cause of the failure
+	 */
+	void fail(Throwable cause) {
+		synchronized(this) {
+			if(done)
+				return;
+			error = cause;
+			done = true;
+		}
+		this.drainAll();
+	}
+	
+	/**
+	 * Checks whether the stream has ended.
+	 * @return Has the search completed or failed
+	 */
+	public synchronized boolean isDone() {
+		return done;
+	}
+	
+	private boolean add(SearchResult result) {
+		if(done || !urls.add(UrlNormalizer.canonicalize(result.getUrl())))
+			return false;
+		published.add(result);
+		return true;
+	}
+	
+	private void drainAll() {
+		for(ResultSubscription subscription : subscriptions)
+			subscription.drain();
+	}
+	
+	/**
+	 * Subscription of one subscriber; remembers how far the subscriber has got and how much it has requested.
+	 */
+	private class ResultSubscription implements Flow.Subscription {
+		private final Flow.Subscriber<? super SearchResult> subscriber;
+		private final AtomicLong demand = new AtomicLong();
+		// Number of threads wanting to drain; only the first one delivers, so signals never overlap
+		private final AtomicInteger drainers = new AtomicInteger();
+		private volatile boolean cancelled = false;
+		// Only touched by the draining thread
+		private int position = 0;
+		private volatile Throwable invalidRequest = null;
+		
+		ResultSubscription(Flow.Subscriber<? super SearchResult> subscriber) {
+			this.subscriber = subscriber;
+		}
+		
+		@Override
+		public void request(long n) {
+			if(n <= 0) {
+				invalidRequest = new IllegalArgumentException("Non-positive request: " + n);
+			} else {
+				long current;
+				do {
+					current = demand.get();
+				} while(!demand.compareAndSet(current, (current + n < 0) ? Long.MAX_VALUE : current + n));
+			}
+			this.drain();
+		}
+		
+		@Override
+		public void cancel() {
+			cancelled = true;
+			subscriptions.remove(this);
+		}
+		
+		/**
+		 * Delivers everything which is due: requested results, then the end of the stream.
+		 */
+		void drain() {
+			if(drainers.getAndIncrement() != 0)
+				return;
+			do {
+				while(!cancelled) {
+					SearchResult next = null;
+					boolean finished;
+					Throwable failure;
+					synchronized(ResultPublisher.this) {
+						if((position < published.size()) && (demand.get() > 0))
+							next = published.get(position);
+						failure = (invalidRequest != null) ? invalidRequest : error;
+						finished = (failure != null) ? done || (invalidRequest != null)
+								: done && (position == published.size());
+					}
+					
+					if(finished) {
+						this.cancel();
+						if(failure != null)
+							subscriber.onError(failure);
+						else
+							subscriber.onComplete();
+					} else if(next != null) {
+						position++;
+						if(demand.get() != Long.MAX_VALUE)
+							demand.decrementAndGet();
+						subscriber.onNext(next);
+						continue;
+					}
+					break;
+				}
+			} while(drainers.decrementAndGet() != 0);
+		}
+	}
+}
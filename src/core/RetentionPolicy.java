@@ -0,0 +1,69 @@
+package core;
+
+/**
+ * Retention policy for the tiered history storage.
+ * <ul>
+ * <li>Hot: searches younger than the hot age stay in memory as part of the main history.</li>
+ * <li>Warm: older searches are moved into compressed archive segments; segments younger than the
+ *     archive age are softly cached after being read, so repeated searches over them are fast but the
+ *     garbage collector may still reclaim them.</li>
+ * <li>Archived: segments older than the archive age are only read on demand and never cached.</li>
+ * </ul>
+ * @author Florian Bethe, Tino Liebusch
+ */
+public class RetentionPolicy {
+	private static final long DAY_MILLIS = 24L * 3600L * 1000L;
+	
+	private final long hotAgeMillis;
+	private final long archiveAgeMillis;
+	private final long intervalMillis;
+	
+	/**
+	 * Constructor.
+	 * @param hotAgeMillis Age after which searches leave the in-memory history
+	 * @param archiveAgeMillis Age after which archive segments are no longer cached
+	 * @param intervalMillis Delay between two runs of the retention job
+	 */
+	public RetentionPolicy(long hotAgeMillis, long archiveAgeMillis, long intervalMillis) {
+		this.hotAgeMillis = hotAgeMillis;
+		this.archiveAgeMillis = Math.max(hotAgeMillis, archiveAgeMillis);
+		this.intervalMillis = intervalMillis;
+	}
+	
+	/**
+	 * Creates the policy from the system properties <code>searchhistory.retention.hotDays</code> (default 180),
+	 * <code>searchhistory.retention.archiveDays</code> (default 730) and
+	 * <code>searchhistory.retention.intervalMinutes</code> (default 60).
+	 * @return Configured retention policy
+	 */
+	public static RetentionPolicy fromSystemProperties() {
+		return new RetentionPolicy(
+				Integer.getInteger("searchhistory.retention.hotDays", 180) * DAY_MILLIS,
+				Integer.getInteger("searchhistory.retention.archiveDays", 730) * DAY_MILLIS,
+				Integer.getInteger("searchhistory.retention.intervalMinutes", 60) * 60L * 1000L);
+	}
+	
+	/**
+	 * Gets the age after which searches leave the in-memory history.
+	 * @return Hot age in milliseconds
+	 */
+	public long getHotAgeMillis() {
+		return hotAgeMillis;
+	}
+	
+	/**
+	 * Gets the age after which archive segments are no longer cached.
+	 * @return Archive age in milliseconds
+	 */
+	public long getArchiveAgeMillis() {
+		return archiveAgeMillis;
+	}
+	
+	/**
+	 * Gets the delay between two runs of the retention job.
+	 * @return Interval in milliseconds
+	 */
+	public long getIntervalMillis() {
+		return intervalMillis;
+	}
+}
@@ -0,0 +1,50 @@
+package core;
+
+import java.util.Locale;
+
+/**
+ * Available search engines.
+ * Used wherever the engine has to be chosen by name (command line, imported records) instead of
+ * constructing the engine-specific {@link QuerySearch} directly.
+ * @author Florian Bethe, Tino Liebusch
+ */
+public enum SearchEngine {
+	BING {
+		@Override
+		public QuerySearch newSearch(String query) {
+			return new BingSearch(query);
+		}
+	},
+	STUB {
+		@Override
+		public QuerySearch newSearch(String query) {
+			return new StubSearch(query);
+		}
+	};
+	
+	/**
+	 * Creates a new (not yet performed) search for the given query with this engine.
+	 * @param query Search query
+	 * @return Engine-specific query search
+	 */
+	public abstract QuerySearch newSearch(String query);
+	
+	/**
+	 * Determines the engine which performed a search.
+	 * @param search Engine-specific query search
+	 * @return The engine of the search
+	 */
+	public static SearchEngine forSearch(QuerySearch search) {
+		return (search instanceof StubSearch) ? STUB : BING;
+	}
+	
+	/**
+	 * Looks up the engine by its (case-insensitive) name.
+	 * @param name Name of the engine, e.g. "bing" or "stub"
+	 * @return The engine
+	 * @throws IllegalArgumentException If there is no engine with the given name
+	 */
+	public static SearchEngine forName(String name) {
+		return SearchEngine.valueOf(name.trim().toUpperCase(Locale.ROOT));
+	}
+}
@@ -1,18 +1,100 @@
 package core;
 
 import java.io.*;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.BooleanSupplier;
 
 /**
  * Stores the search history of the user.
+ * The history is safe for concurrent use: writers are serialized by a {@link StampedLock}, while readers
+ * use optimistic reads and get immutable snapshot views. Entries are only ever appended to the backing
+ * array (or copied into a new array), so a view handed out once never changes underneath its reader.
+ * <p>
+ * Only the hot tier of the history is kept in memory; older searches are moved into the
+ * {@link HistoryArchive HistoryArchive} by a background retention job (see {@link RetentionPolicy RetentionPolicy}).
+ * <p>
+ * Deleting searches only records a {@link Tombstones tombstone}, which every read honours right away; a background
+ * compaction then drops the searches from memory, the indexes and the history file.
+ * <p>
+ * Several instances (windows or processes) may use the same history file: every change is appended to a shared
+ * {@link HistoryLog HistoryLog}, which the other instances tail, and saving writes a checkpoint of the log.
  * @author Florian Bethe, Tino Liebusch
  */
-public class SearchHistory {
-	private ArrayList<QuerySearch> history;
+public class SearchHistory implements OfflineSource {
+	private final StampedLock lock = new StampedLock();
+	private final Object saveLock = new Object();
+	// Guarded by lock; slots below size are never overwritten once published
+	private QuerySearch[] entries;
+	private int size;
 	private String historyPath;
-	private static final String DEFAULT_HISTORY_PATH = "history.ser";
+	private final List<HistoryListener> listeners = new CopyOnWriteArrayList<HistoryListener>();
+	// Guarded by lock; listeners registered before the full history was loaded
+	private final List<HistoryListener> deferredListeners = new ArrayList<HistoryListener>();
+	private final Object loadLock = new Object();
+	private volatile boolean loaded = false;
+	// Guarded by lock; number of leading entries read from the recent sidecar while loading is deferred
+	private int provisionalCount;
+	private final QueryTrie queryTrie = new QueryTrie();
+	private final HistoryArchive archive;
+	// Replaced by the stored indexes once the full history is loaded
+	private volatile VisitedIndex visitedIndex = new VisitedIndex();
+	private final FullTextIndex fullTextIndex = new FullTextIndex();
+	private volatile DateHistogram dateHistogram = new DateHistogram();
+	private volatile SemanticIndex semanticIndex = new SemanticIndex();
+	private final SessionIndex sessionIndex = new SessionIndex();
+	private final CoClickGraph coClickGraph = new CoClickGraph();
+	private final DeltaLinker deltaLinker = new DeltaLinker();
+	private final DuplicateIndex duplicateIndex = new DuplicateIndex(this);
+	private final FuzzyIndex fuzzyIndex = new FuzzyIndex();
+	private ScheduledExecutorService retentionExecutor;
+	private final Tombstones tombstones;
+	// Tombstone version the compaction has caught up with; reads filter deleted searches while it lags behind
+	private volatile int compactedVersion = 0;
+	private ExecutorService compactionExecutor;
+	private final AtomicBoolean compactionScheduled = new AtomicBoolean();
+	private final AtomicBoolean checkpointScheduled = new AtomicBoolean();
+	private final HistoryLog log;
+	private ScheduledExecutorService logExecutor;
+	private final List<Runnable> remoteChangeListeners = new CopyOnWriteArrayList<Runnable>();
+	static final String DEFAULT_HISTORY_PATH = "history.ser";
+	private static final int INITIAL_CAPACITY = 16;
+	private static final String VISITED_SUFFIX = ".visited";
+	private static final String FULLTEXT_SUFFIX = ".fts";
+	private static final String DATES_SUFFIX = ".dates";
+	private static final String SEMANTIC_SUFFIX = ".ann";
+	private static final String RECENT_SUFFIX = ".recent";
+	private static final String TOMBSTONES_SUFFIX = ".deleted";
+	private static final int RECENT_COUNT = 20;
+	private static final String LOG_SUFFIX = ".log";
+	private static final String LOCK_SUFFIX = ".lock";
+	// The history file is only rewritten once the log has grown beyond this size
+	private static final long CHECKPOINT_BYTES = Long.getLong("searchhistory.log.checkpointBytes", 1L << 20);
+	private static final int LOG_POLL_MS = Integer.getInteger("searchhistory.log.pollMs", 1000);
+	public static final int FUZZY_DISTANCE = Integer.getInteger("searchhistory.fuzzy.maxDistance",
+			FuzzyIndex.DEFAULT_MAX_DISTANCE);
 
 	/**
 	 * Default constructor.
@@ -28,8 +110,220 @@ public class SearchHistory {
 	 * @param fileName History file location
 	 */
 	public SearchHistory(String fileName) {
+		this(fileName, false);
+	}
+	
+	/**
+	 * Constructor.
+	 * Uses (or creates) history at the provided location. With deferred loading only the most recent searches
+	 * are read from a small sidecar file, so the cost doesn't depend on the size of the history; the rest is
+	 * loaded by {@link #finishLoading()}, usually on a background thread. Until then the history only contains
+	 * the recent searches (plus any added ones) and the indexes are empty.
+	 * @param fileName History file location
+	 * @param deferLoading Only load the recent searches now
+	 */
+	@SuppressWarnings("unchecked")
+	public SearchHistory(String fileName, boolean deferLoading) {
 		historyPath = fileName;
-		history = loadHistory();
+		archive = new HistoryArchive(new File(fileName + ".archive"));
+		Tombstones storedTombstones = loadSidecar(fileName, TOMBSTONES_SUFFIX, Tombstones.class);
+		tombstones = (storedTombstones != null) ? storedTombstones : new Tombstones();
+		log = new HistoryLog(new File(fileName + LOG_SUFFIX), new File(fileName + LOCK_SUFFIX), new LogReplayer());
+		List<QuerySearch> recent = deferLoading ? loadSidecar(fileName, RECENT_SUFFIX, ArrayList.class) : null;
+		recent = (recent == null) ? new ArrayList<QuerySearch>() : this.dropDeleted(recent, null);
+		entries = recent.toArray(new QuerySearch[Math.max(INITIAL_CAPACITY, recent.size())]);
+		size = recent.size();
+		provisionalCount = size;
+		if(!deferLoading)
+			this.finishLoading();
+	}
+	
+	/**
+	 * Loads the full history and builds the indexes, if that was deferred in the constructor.
+	 * Searches added in the meantime are kept; the recent searches shown so far stay the same objects,
+	 * so clicks recorded on them aren't lost. Listeners registered in the meantime are fed the full history.
+	 * Afterwards the changes recorded in the log since the history file was written are applied, and the log
+	 * is followed from then on. This reads the whole history file and should not be called on the Event Dispatch Thread.
+	 */
+	public void finishLoading() {
+		synchronized(loadLock) {
+			if(loaded)
+				return;
+			// Reading starts before the history file is loaded, so no change of another instance can be missed
+			try {
+				log.startReading();
+			} catch(IOException e) {
+				e.printStackTrace();
+			}
+			ArrayList<QuerySearch> loadedHistory = this.loadHistory();
+			// Deletions which didn't make it into the history file before it was last written
+			List<QuerySearch> dead = new ArrayList<QuerySearch>();
+			List<QuerySearch> full = (loadedHistory == null) ? new ArrayList<QuerySearch>() : this.dropDeleted(loadedHistory, dead);
+			
+			// The stored visited index also covers clicks on archived searches; replaying the in-memory
+			// searches on top of it is idempotent
+			VisitedIndex storedVisited = loadSidecar(historyPath, VISITED_SUFFIX, VisitedIndex.class);
+			DateHistogram storedDates = loadSidecar(historyPath, DATES_SUFFIX, DateHistogram.class);
+			SemanticIndex storedSemantic = loadSidecar(historyPath, SEMANTIC_SUFFIX, SemanticIndex.class);
+			
+			long stamp = lock.writeLock();
+			try {
+				List<QuerySearch> merged = mergeLoaded(full, Arrays.asList(entries).subList(0, size), provisionalCount);
+				entries = merged.toArray(new QuerySearch[Math.max(INITIAL_CAPACITY, merged.size())]);
+				size = merged.size();
+				provisionalCount = 0;
+				
+				visitedIndex = (storedVisited != null) ? storedVisited : new VisitedIndex();
+				this.register(deltaLinker, true);
+				this.register(queryTrie, true);
+				this.register(visitedIndex, true);
+				if(!dead.isEmpty())
+					visitedIndex.searchesDeleted(dead);
+				this.register(sessionIndex, true);
+				this.register(coClickGraph, true);
+				this.register(duplicateIndex, true);
+				this.register(fuzzyIndex, true);
+				
+				// A matching stored full-text index only needs the searches added since its last save
+				this.register(fullTextIndex, !fullTextIndex.load(new File(historyPath + FULLTEXT_SUFFIX), merged));
+				
+				// The date histogram is only reused if it counts exactly the loaded searches
+				boolean datesMatch = (storedDates != null) && storedDates.matches(merged);
+				dateHistogram = datesMatch ? storedDates : new DateHistogram();
+				this.register(dateHistogram, !datesMatch);
+				
+				// A stored similarity index only has to insert the pages it doesn't know yet
+				semanticIndex = (storedSemantic != null) ? storedSemantic : new SemanticIndex();
+				this.register(semanticIndex, true);
+				semanticIndex.reconcile();
+				
+				for(HistoryListener listener : deferredListeners)
+					this.register(listener, true);
+				deferredListeners.clear();
+				loaded = true;
+			} finally {
+				lock.unlockWrite(stamp);
+			}
+			loadLock.notifyAll();
+		}
+		this.pollLog();
+		this.startLogTailer();
+	}
+	
+	/**
+	 * Checks whether the full history has been loaded.
+	 * @return Is the history complete
+	 */
+	public boolean isLoaded() {
+		return loaded;
+	}
+	
+	/**
+	 * Waits until the full history has been loaded (by another thread).
+	 */
+	private void awaitLoaded() {
+		synchronized(loadLock) {
+			while(!loaded) {
+				try {
+					loadLock.wait();
+				} catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Combines the fully loaded history with the searches held before loading finished.
+	 * Normally the provisional searches are exactly the tail of the full history, and are used instead of
+	 * their loaded copies. If the recent sidecar is stale, all held searches which aren't in the full history
+	 * (same timestamp and query) are merged into it instead.
+	 * @param full Searches of the history file
+	 * @param current Searches held so far, starting with the provisional ones
+	 * @param provisional Number of searches read from the recent sidecar
+	 * @return Merged searches ordered by date
+	 */
+	private static List<QuerySearch> mergeLoaded(List<QuerySearch> full, List<QuerySearch> current, int provisional) {
+		List<QuerySearch> merged = new ArrayList<QuerySearch>(full.size() + current.size());
+		int tailStart = full.size() - provisional;
+		boolean tailMatches = tailStart >= 0;
+		for(int i = 0; tailMatches && (i < provisional); i++)
+			tailMatches = isSameSearch(full.get(tailStart + i), current.get(i));
+		
+		if(tailMatches) {
+			merged.addAll(full.subList(0, tailStart));
+			merged.addAll(current);
+			// Delta bases of the sidecar searches are copies outside the history; store those searches in full
+			for(QuerySearch search : current.subList(0, provisional))
+				search.unlinkDelta();
+			return merged;
+		}
+		merged.addAll(full);
+		for(QuerySearch search : current) {
+			if(!containsSearch(full, search))
+				merged.add(search);
+		}
+		// Stable, so searches with equal timestamps keep their order
+		Collections.sort(merged, new Comparator<QuerySearch>() {
+			@Override
+			public int compare(QuerySearch a, QuerySearch b) {
+				return a.getTimestamp().compareTo(b.getTimestamp());
+			}
+		});
+		return merged;
+	}
+	
+	private static boolean isSameSearch(QuerySearch a, QuerySearch b) {
+		return a.getTimestamp().equals(b.getTimestamp()) && a.getQuery().equals(b.getQuery());
+	}
+	
+	/**
+	 * Adds a listener, optionally feeding it the current searches first.
+	 * Has to be called with the write lock held.
+	 * @param listener Listener to register
+	 * @param replay Feed the listener the searches already in the history
+	 */
+	private void register(HistoryListener listener, boolean replay) {
+		if(replay) {
+			for(int i = 0; i < size; i++)
+				listener.searchAdded(entries[i]);
+		}
+		listeners.add(listener);
+	}
+	
+	/**
+	 * Registers a listener for history changes.
+	 * The listener is first fed all searches already in the history; no search can be added in between,
+	 * so the listener sees every search exactly once. While loading is deferred, the listener is only
+	 * registered (and fed) once the full history has been loaded.
+	 * @param listener Listener to register
+	 */
+	public void addHistoryListener(HistoryListener listener) {
+		long stamp = lock.writeLock();
+		try {
+			// Until the full history is there, the listener would only see the recent searches
+			if(loaded)
+				this.register(listener, true);
+			else
+				deferredListeners.add(listener);
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+	
+	/**
+	 * Unregisters a listener for history changes.
+	 * @param listener Listener to remove
+	 */
+	public void removeHistoryListener(HistoryListener listener) {
+		long stamp = lock.writeLock();
+		try {
+			deferredListeners.remove(listener);
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+		listeners.remove(listener);
 	}
 
 	/**
@@ -54,23 +348,33 @@ public class SearchHistory {
 				historyFile.createNewFile();
 				return new ArrayList<QuerySearch>();
 			}
+			if(historyFile.length() == 0)
+				return new ArrayList<QuerySearch>();
 		} catch(IOException e) {
 			e.printStackTrace();
 			return null;
 		}
 		
+		HistoryEvents.HistoryLoad event = new HistoryEvents.HistoryLoad();
+		event.begin();
+		event.path = fileName;
 		// Try-with-resources for reading an existing history file
 		try(
 				final FileInputStream fis = new FileInputStream(fileName);
-				final ObjectInputStream ois = new ObjectInputStream(fis)
+				final ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(fis))
 		) {
 			
-			return (ArrayList<QuerySearch>) ois.readObject();
+			ArrayList<QuerySearch> loadedHistory = (ArrayList<QuerySearch>) ois.readObject();
+			event.bytesRead = historyFile.length();
+			event.historySize = loadedHistory.size();
+			return loadedHistory;
 		} catch(IOException i) {
 			i.printStackTrace();
 		} catch(ClassNotFoundException c) {
 			System.err.println("History class not found");
 			c.printStackTrace();
+		} finally {
+			event.commit();
 		}
 		return null;
 	}
@@ -84,28 +388,494 @@ public class SearchHistory {
 	
 	/**
 	 * Saves history object to file.
+	 * A snapshot of the history is written to a temporary file which then replaces the history file,
+	 * so concurrent readers and a crash during the write never see a truncated history.
+	 * If loading was deferred, this waits until the full history has been loaded.
+	 * Saving to the history's own file writes a checkpoint of the {@link HistoryLog HistoryLog}: the changes of
+	 * other instances are applied first, so none of them is overwritten, and the log starts over.
 	 * @param fileName File path where history shall be saved.
      */
-	public void saveHistory(String fileName) {
+	public void saveHistory(final String fileName) {
+		// Saving only the recent searches would truncate the history file
+		this.awaitLoaded();
+		if(fileName.equals(historyPath)) {
+			try {
+				log.checkpoint(new BooleanSupplier() {
+					@Override
+					public boolean getAsBoolean() {
+						return writeHistory(fileName);
+					}
+				});
+				return;
+			} catch(IOException e) {
+				// Without the lock, still save what this instance knows
+				e.printStackTrace();
+			}
+		}
+		this.writeHistory(fileName);
+	}
+	
+	/**
+	 * Writes the history and its sidecars.
+	 * @param fileName File path where history shall be saved.
+	 * @return Has the history file been written
+	 */
+	private boolean writeHistory(String fileName) {
+		HistoryEvents.HistorySave event = new HistoryEvents.HistorySave();
+		event.begin();
+		event.path = fileName;
+		synchronized(saveLock) {
+			// Snapshot inside the save lock, so an older snapshot can never overwrite a newer one.
+			// The file format stays a serialized ArrayList for compatibility with existing histories
+			ArrayList<QuerySearch> snapshot = new ArrayList<QuerySearch>(this.live(this.snapshot()));
+			event.historySize = snapshot.size();
+			File target = new File(fileName).getAbsoluteFile();
+			File temp = new File(target.getParentFile(), target.getName() + ".tmp");
+			try {
+				try(
+						final FileOutputStream fos = new FileOutputStream(temp);
+						final ObjectOutputStream oos = new ObjectOutputStream(new BufferedOutputStream(fos))
+				) {
+					oos.writeObject(snapshot);
+				}
+				Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+			} catch(Exception ex) {
+				ex.printStackTrace();
+				return false;
+			}
+			event.bytesWritten = target.length();
+			
+			// Written after the history, so a crash in between leaves a stale (but harmless) sidecar
+			saveSidecar(fileName, RECENT_SUFFIX,
+					new ArrayList<QuerySearch>(snapshot.subList(Math.max(0, snapshot.size() - RECENT_COUNT), snapshot.size())));
+			synchronized(visitedIndex) {
+				saveSidecar(fileName, VISITED_SUFFIX, visitedIndex);
+			}
+			synchronized(dateHistogram) {
+				saveSidecar(fileName, DATES_SUFFIX, dateHistogram);
+			}
+			// The full-text index is saved incrementally, which only makes sense for the history's own file
+			if(fileName.equals(historyPath)) {
+				// The log is about to start over, so the deletions recorded in it have to be kept here
+				synchronized(tombstones) {
+					saveSidecar(fileName, TOMBSTONES_SUFFIX, tombstones);
+				}
+				fullTextIndex.save(new File(fileName + FULLTEXT_SUFFIX));
+				// A stale similarity index is reconciled on load, so it is only saved after larger changes
+				synchronized(semanticIndex) {
+					if(semanticIndex.needsSave()) {
+						saveSidecar(fileName, SEMANTIC_SUFFIX, semanticIndex);
+						semanticIndex.markSaved();
+					}
+				}
+			}
+			event.commit();
+			return true;
+		}
+	}
+	
+	/**
+	 * Saves an index kept alongside the history into a sidecar file next to the history file.
+	 * Like the history itself, the sidecar is written to a temporary file first and then replaced atomically.
+	 * @param fileName Path of the history file
+	 * @param suffix Suffix identifying the sidecar
+	 * @param index Index to save
+	 */
+	static void saveSidecar(String fileName, String suffix, Serializable index) {
+		File target = new File(fileName + suffix).getAbsoluteFile();
+		File temp = new File(target.getParentFile(), target.getName() + ".tmp");
 		try {
-			FileOutputStream fos = new FileOutputStream(fileName);
-			ObjectOutputStream oos = new ObjectOutputStream(fos);
-			oos.writeObject(history);
-			oos.close();
-			fos.close();
-		} catch(Exception ex) {
-			ex.printStackTrace();
+			try(final ObjectOutputStream oos = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+				oos.writeObject(index);
+			}
+			Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch(IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Loads an index from a sidecar file next to the history file.
+	 * @param fileName Path of the history file
+	 * @param suffix Suffix identifying the sidecar
+	 * @param type Expected type of the index
+	 * @return Loaded index, or null if there is no (readable) sidecar
+	 */
+	static <T> T loadSidecar(String fileName, String suffix, Class<T> type) {
+		File file = new File(fileName + suffix);
+		if(!file.exists())
+			return null;
+		try(final ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			return type.cast(ois.readObject());
+		} catch(IOException | ClassNotFoundException | ClassCastException e) {
+			// The index will be rebuilt from the history
+			e.printStackTrace();
+			return null;
 		}
 	}
 	
 	/**
 	 * Adds an element to the search history.
-	 * It is assumed that this search has occurred after the latest historie'd search.
+	 * The search is inserted according to its timestamp; usually this is an append, but with concurrent
+	 * searches a later-started search may finish first. Duplicates of a page within the search are collapsed
+	 * into its first result (see {@link DuplicateIndex#collapseWithin(List)}).
+	 * The search is appended to the {@link HistoryLog HistoryLog}; the history file itself is only rewritten
+	 * (on the background thread) once the log has grown beyond <code>searchhistory.log.checkpointBytes</code>.
 	 * @param search Search to append
 	 */
 	public void addEntry(QuerySearch search) {
-		history.add(search);
-		this.saveHistory(historyPath);
+		HistoryEvents.HistoryAdd event = new HistoryEvents.HistoryAdd();
+		event.begin();
+		collapseWithin(search);
+		// Encoded before the search can be linked as a delta
+		byte[] record = encodeAdded(search);
+		long stamp = lock.writeLock();
+		try {
+			this.insertOrdered(search);
+			this.fireSearchAdded(search);
+			event.historySize = size;
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+		this.appendLog(Collections.singletonList(record));
+		event.queryLength = search.getQuery().length();
+		event.resultCount = search.getResults().size();
+		event.bytesWritten = (record == null) ? 0 : record.length;
+		event.commit();
+		if(log.size() > CHECKPOINT_BYTES)
+			this.scheduleCheckpoint();
+	}
+	
+	/**
+	 * Merges searches from another history into this one, ordered by their timestamps.
+	 * The incoming searches are consumed in batches, so only one batch has to be in memory besides the
+	 * history itself and writers are only blocked for the merge of a single batch. Searches already present
+	 * (same timestamp and query) are skipped, which makes repeated imports idempotent.
+	 * The history is saved once at the end.
+	 * @param incoming Searches to merge; need not be ordered, but merging is fastest if they are
+	 * @return Number of searches actually added
+	 */
+	public int mergeEntries(Iterator<QuerySearch> incoming) {
+		final int batchSize = 4096;
+		int added = 0;
+		List<QuerySearch> batch = new ArrayList<QuerySearch>(batchSize);
+		while(incoming.hasNext()) {
+			QuerySearch search = incoming.next();
+			if(search.getTimestamp() == null)
+				continue;
+			batch.add(search);
+			if(batch.size() == batchSize) {
+				added += this.mergeBatch(batch, true);
+				batch.clear();
+			}
+		}
+		added += this.mergeBatch(batch, true);
+		this.saveHistory();
+		return added;
+	}
+	
+	/**
+	 * Merges a batch of searches into the backing array in a single pass.
+	 * @param batch Searches with timestamps
+	 * @param record Append the added searches to the log (false for searches replayed from it)
+	 * @return Number of searches actually added
+	 */
+	private int mergeBatch(List<QuerySearch> batch, boolean record) {
+		if(batch.isEmpty())
+			return 0;
+		Collections.sort(batch, new Comparator<QuerySearch>() {
+			@Override
+			public int compare(QuerySearch a, QuerySearch b) {
+				return a.getTimestamp().compareTo(b.getTimestamp());
+			}
+		});
+		
+		List<byte[]> records = new ArrayList<byte[]>();
+		long stamp = lock.writeLock();
+		try {
+			List<QuerySearch> current = Arrays.asList(entries).subList(0, size);
+			List<QuerySearch> fresh = new ArrayList<QuerySearch>(batch.size());
+			for(QuerySearch search : this.dropDeleted(batch, null)) {
+				if(!containsSearch(current, search) && !containsSearch(fresh, search)) {
+					collapseWithin(search);
+					fresh.add(search);
+				}
+			}
+			if(fresh.isEmpty())
+				return 0;
+			if(record) {
+				for(QuerySearch search : fresh)
+					records.add(encodeAdded(search));
+			}
+			
+			// Imports of newer searches only need appending
+			Date last = (size > 0) ? entries[size - 1].getTimestamp() : null;
+			if((last == null) || !fresh.get(0).getTimestamp().before(last)) {
+				for(QuerySearch search : fresh) {
+					this.insertOrdered(search);
+					this.fireSearchAdded(search);
+				}
+				return fresh.size();
+			}
+			
+			// Otherwise merge both ordered lists into a new array; on ties the existing search stays first
+			QuerySearch[] merged = new QuerySearch[Math.max(INITIAL_CAPACITY, (size + fresh.size()) * 3 / 2)];
+			int i = 0, j = 0, k = 0;
+			while((i < size) || (j < fresh.size())) {
+				if((j >= fresh.size()) || ((i < size) && (entries[i].getTimestamp() == null
+						|| !entries[i].getTimestamp().after(fresh.get(j).getTimestamp()))))
+					merged[k++] = entries[i++];
+				else
+					merged[k++] = fresh.get(j++);
+			}
+			entries = merged;
+			size = k;
+			
+			for(QuerySearch search : fresh) {
+				adopt(search);
+				this.fireSearchAdded(search);
+			}
+			return fresh.size();
+		} finally {
+			lock.unlockWrite(stamp);
+			// Never wait for the log lock while holding the history lock: the log applies records under its lock
+			this.appendLog(records);
+		}
+	}
+	
+	/**
+	 * Checks whether a date-ordered list contains a search with the same timestamp and query.
+	 * @param searches Date-ordered searches
+	 * @param search Search to look for
+	 * @return Is an equivalent search present
+	 */
+	private static boolean containsSearch(List<QuerySearch> searches, QuerySearch search) {
+		return findSearch(searches, search.getTimestamp().getTime(), search.getQuery()) != null;
+	}
+	
+	/**
+	 * Finds the search with the given timestamp and query in a date-ordered list.
+	 * @param searches Date-ordered searches
+	 * @param time Timestamp in milliseconds since the epoch
+	 * @param query Query
+	 * @return Search, or null if there is none
+	 */
+	private static QuerySearch findSearch(List<QuerySearch> searches, long time, String query) {
+		for(int i = firstAfter(searches, time - 1); i < searches.size(); i++) {
+			QuerySearch other = searches.get(i);
+			if((other.getTimestamp() == null) || (other.getTimestamp().getTime() != time))
+				break;
+			if(other.getQuery().equals(query))
+				return other;
+		}
+		return null;
+	}
+	
+	/**
+	 * Records a click of the user on a result of a search in the history.
+	 * Increments the click counter of the result and updates the indexes.
+	 * @param result Clicked result
+	 */
+	public void recordClick(SearchResult result) {
+		QuerySearch owner;
+		long stamp = lock.writeLock();
+		try {
+			result.incrementClickCounter();
+			owner = result.getOwner();
+			if((owner != null) && !this.contains(owner))
+				owner = null;
+			this.fireResultClicked(owner, result);
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+		if(owner != null)
+			this.appendLog(Collections.singletonList(HistoryLog.clicked(owner, result)));
+	}
+	
+	/**
+	 * Notifies the listeners about a click.
+	 * Has to be called with the write lock held.
+	 * @param owner Search containing the result, or null if it isn't in memory
+	 * @param result Clicked result
+	 */
+	private void fireResultClicked(QuerySearch owner, SearchResult result) {
+		for(HistoryListener listener : listeners) {
+			try {
+				listener.resultClicked(owner, result);
+			} catch(RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	/**
+	 * Checks whether the user has visited a page from any search in the history.
+	 * @param url URL of the page
+	 * @return Has the page been clicked on before
+	 */
+	public boolean isVisited(URL url) {
+		return visitedIndex.isVisited(url);
+	}
+	
+	/**
+	 * Checks whether the user has visited the page of a result, counting clicks on any of its duplicates
+	 * (e.g. the same page on a mirror host or with tracking parameters).
+	 * @param result Result of the history
+	 * @return Has the page or one of its duplicates been clicked on before
+	 */
+	public boolean isVisited(SearchResult result) {
+		return visitedIndex.isVisited(result.getUrl()) || (duplicateIndex.getMergedClicks(result) > 0);
+	}
+	
+	/**
+	 * Gets the number of clicks on a result and all its duplicates in the in-memory history.
+	 * @param result Result of the history
+	 * @return Merged click count
+	 */
+	public int getMergedClicks(SearchResult result) {
+		return duplicateIndex.getMergedClicks(result);
+	}
+	
+	/**
+	 * Gets the canonical result for the page of a result: its latest variant in the in-memory history.
+	 * @param result Result of the history
+	 * @return Canonical result, or the result itself if it has no duplicates
+	 */
+	public SearchResult getCanonicalResult(SearchResult result) {
+		return duplicateIndex.getCanonical(result);
+	}
+	
+	/**
+	 * Collapses the duplicates in a list of results of the history, e.g. of an index search:
+	 * of every page only the first (i.e. best ranked) result is kept.
+	 * @param results Results of the history
+	 * @return Results without duplicates, in their original order
+	 */
+	public List<SearchResult> collapseDuplicates(List<SearchResult> results) {
+		return duplicateIndex.collapse(results);
+	}
+	
+	/**
+	 * Collapses the duplicates within every search of the in-memory history and saves it, e.g. for histories
+	 * recorded before duplicates were collapsed when adding searches. Searches are checked on a snapshot;
+	 * only the ones with duplicates get a new result list (under the write lock).
+	 * @return Number of removed duplicate results
+	 */
+	public int collapseDuplicates() {
+		this.awaitLoaded();
+		int removed = 0;
+		for(QuerySearch search : this.snapshot()) {
+			if(!DuplicateIndex.hasDuplicates(search.getResults()))
+				continue;
+			long stamp = lock.writeLock();
+			try {
+				if(!this.contains(search))
+					continue;
+				// The indexes have to drop the results before their click counters are merged
+				this.fireResultsReplacing(search);
+				int before = search.getResults().size();
+				collapseWithin(search);
+				removed += before - search.getResults().size();
+				this.fireSearchAdded(search);
+			} finally {
+				lock.unlockWrite(stamp);
+			}
+		}
+		if(removed > 0)
+			this.saveHistory();
+		return removed;
+	}
+	
+	/**
+	 * Collapses the duplicates within a search which is about to be added (or has been taken out of the indexes).
+	 * @param search Search
+	 */
+	private static void collapseWithin(QuerySearch search) {
+		List<SearchResult> collapsed = DuplicateIndex.collapseWithin(search.getResults());
+		if(collapsed != search.getResults())
+			search.replaceResults(new ArrayList<SearchResult>(collapsed));
+	}
+	
+	/**
+	 * Gives a search of the in-memory history a new result list.
+	 * Readers keep the old result list; the listeners are told about the replacement and see the search come
+	 * back with the new one.
+	 * Has to be called with the write lock held.
+	 * @param search Search of the in-memory history
+	 * @param results New results
+	 */
+	private void replaceResults(QuerySearch search, ArrayList<SearchResult> results) {
+		this.fireResultsReplacing(search);
+		search.replaceResults(results);
+		this.fireSearchAdded(search);
+	}
+	
+	/**
+	 * Notifies the listeners about an added search.
+	 * Has to be called with the write lock held.
+	 * @param search Added search
+	 */
+	private void fireSearchAdded(QuerySearch search) {
+		for(HistoryListener listener : listeners) {
+			try {
+				listener.searchAdded(search);
+			} catch(RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	/**
+	 * Inserts a search into the backing array, keeping the date order.
+	 * Has to be called with the write lock held. Published slots are never overwritten: growing or
+	 * inserting in the middle copies into a fresh array.
+	 * @param search Search to insert
+	 */
+	private void insertOrdered(QuerySearch search) {
+		adopt(search);
+		int index = size;
+		Date time = search.getTimestamp();
+		if(time != null) {
+			while((index > 0) && (entries[index - 1].getTimestamp() != null)
+					&& entries[index - 1].getTimestamp().after(time))
+				index--;
+		}
+		
+		if(index == size) {
+			if(size == entries.length)
+				entries = Arrays.copyOf(entries, Math.max(INITIAL_CAPACITY, size * 2));
+			entries[size] = search;
+		} else {
+			QuerySearch[] copy = new QuerySearch[Math.max(entries.length, size + 1)];
+			System.arraycopy(entries, 0, copy, 0, index);
+			copy[index] = search;
+			System.arraycopy(entries, index, copy, index + 1, size - index);
+			entries = copy;
+		}
+		size++;
+	}
+	
+	/**
+	 * Gets an immutable view of the current history.
+	 * Uses an optimistic read and only falls back to the read lock if a writer interfered.
+	 * @return Snapshot of all searches, ordered by date
+	 */
+	private List<QuerySearch> snapshot() {
+		long stamp = lock.tryOptimisticRead();
+		QuerySearch[] currEntries = entries;
+		int currSize = size;
+		if(!lock.validate(stamp)) {
+			stamp = lock.readLock();
+			try {
+				currEntries = entries;
+				currSize = size;
+			} finally {
+				lock.unlockRead(stamp);
+			}
+		}
+		return Collections.unmodifiableList(Arrays.asList(currEntries).subList(0, currSize));
 	}
 	
 	/**
@@ -114,10 +884,18 @@ public class SearchHistory {
 	 * @return List of most recent searches
 	 */
 	public List<QuerySearch> getRecentSearches(int maxAmount) {
-		if(history.isEmpty())
-			return history;
-		maxAmount = Math.min(maxAmount, history.size());
-		return history.subList(history.size() - maxAmount, history.size());
+		List<QuerySearch> snapshot = this.snapshot();
+		if(this.hasPendingDeletes()) {
+			List<QuerySearch> recent = new ArrayList<QuerySearch>(maxAmount);
+			for(int i = snapshot.size() - 1; (i >= 0) && (recent.size() < maxAmount); i--) {
+				if(!tombstones.isDeleted(snapshot.get(i)))
+					recent.add(snapshot.get(i));
+			}
+			Collections.reverse(recent);
+			return Collections.unmodifiableList(recent);
+		}
+		maxAmount = Math.min(maxAmount, snapshot.size());
+		return snapshot.subList(snapshot.size() - maxAmount, snapshot.size());
 	}
 	
 	/**
@@ -130,51 +908,970 @@ public class SearchHistory {
 	
 	/**
 	 * Returns a subset of the history ordered by date.
+	 * Both bounds are inclusive; a missing bound means no limitation on that side.
 	 * @param begin Earliest date to include in result
 	 * @param end Latest date to include in result
 	 * @return List of searches within date range
 	 */
 	public List<QuerySearch> getHistoryDateOrdered(Date begin, Date end) {
-		// If we don't have a history yet or no limitations on the date, we're done
-		if((begin == null) && (end == null))
-			return history;
-		if(history.size() == 0)
-			return history;
-
-		int beginIndex = -1;
-		int endIndex = -1;
+		List<QuerySearch> snapshot = this.snapshot();
 		
-		// If only one date is missing, the other one will be set to the first/latest possible date
-		if(begin == null) {
-			begin = new Date(0);
-			beginIndex = 0;
+		// The history is ordered by date, so the bounds can be found with a binary search
+		int beginIndex = (begin == null) ? 0 : firstAfter(snapshot, begin.getTime() - 1);
+		int endIndex = (end == null) ? snapshot.size() : firstAfter(snapshot, end.getTime());
+		if(beginIndex >= endIndex)
+			return Collections.emptyList();
+		return this.live(snapshot.subList(beginIndex, endIndex));
+	}
+	
+	/**
+	 * Finds the index of the first search which happened strictly after the given time.
+	 * @param searches Date-ordered searches
+	 * @param time Time in milliseconds since the epoch
+	 * @return Index of the first later search, or the list size if there is none
+	 */
+	private static int firstAfter(List<QuerySearch> searches, long time) {
+		int low = 0;
+		int high = searches.size();
+		while(low < high) {
+			int mid = (low + high) >>> 1;
+			Date midTime = searches.get(mid).getTimestamp();
+			if((midTime == null) || (midTime.getTime() <= time))
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+	
+	/**
+	 * Starts the background retention job with the given policy.
+	 * The job runs on a low-priority daemon thread; the in-memory history is only locked for the final swap
+	 * of the backing array, so the UI is never blocked by the archiving itself.
+	 * @param policy Retention policy to apply
+	 */
+	public synchronized void startRetention(final RetentionPolicy policy) {
+		this.stopRetention();
+		archive.setArchiveAge(policy.getArchiveAgeMillis());
+		retentionExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "history-retention");
+				thread.setDaemon(true);
+				thread.setPriority(Thread.MIN_PRIORITY);
+				return thread;
+			}
+		});
+		retentionExecutor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					applyRetention(policy);
+				} catch(Exception e) {
+					e.printStackTrace();
+				}
+			}
+		}, Math.min(policy.getIntervalMillis(), 30000L), policy.getIntervalMillis(), TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Stops the background retention job (if running).
+	 */
+	public synchronized void stopRetention() {
+		if(retentionExecutor != null) {
+			retentionExecutor.shutdown();
+			retentionExecutor = null;
+		}
+	}
+	
+	/**
+	 * Moves all searches older than the hot age of the policy into a new archive segment.
+	 * The segment is written from a snapshot without holding the lock; afterwards exactly the archived
+	 * searches are dropped from a fresh copy of the backing array.
+	 * @param policy Retention policy to apply
+	 * @return Number of archived searches
+	 * @throws IOException If the archive segment can't be written
+	 */
+	public int applyRetention(RetentionPolicy policy) throws IOException {
+		// Only one instance sharing the history archives at a time, after applying what the others archived
+		HistoryLog.WriteLock exclusive = log.lock();
+		try {
+			List<QuerySearch> snapshot = this.snapshot();
+			int count = firstAfter(snapshot, System.currentTimeMillis() - policy.getHotAgeMillis());
+			if(count == 0)
+				return 0;
+			List<QuerySearch> cold = snapshot.subList(0, count);
+			archive.seal(cold);
+			
+			Map<QuerySearch, Boolean> archived = new IdentityHashMap<QuerySearch, Boolean>();
+			for(QuerySearch search : cold)
+				archived.put(search, Boolean.TRUE);
+			
+			long stamp = lock.writeLock();
+			try {
+				this.removeArchived(archived);
+			} finally {
+				lock.unlockWrite(stamp);
+			}
+			
+			log.append(HistoryLog.archived(cold));
+			this.saveHistory();
+			return count;
+		} finally {
+			exclusive.close();
 		}
-		if(end == null) {
-			end = new Date(System.currentTimeMillis());
-			endIndex = history.size() - 1;
+	}
+	
+	/**
+	 * Removes archived searches from the in-memory history.
+	 * Has to be called with the write lock held.
+	 * @param archived Archived searches (by identity)
+	 */
+	private void removeArchived(Map<QuerySearch, Boolean> archived) {
+		QuerySearch[] remaining = new QuerySearch[Math.max(INITIAL_CAPACITY, size - archived.size() + INITIAL_CAPACITY)];
+		int remainingSize = 0;
+		for(int i = 0; i < size; i++) {
+			if(!archived.containsKey(entries[i]))
+				remaining[remainingSize++] = entries[i];
 		}
+		entries = remaining;
+		size = remainingSize;
 		
-		// Determine the indices of the history by iterating through the list
-		// and finding the first entries violating the date constraints
-		// Todo: Is this right? The for loop checks for beginIndex<0 and then you check for beginIndex<0 again? Not clear what you do here at the moment
-		for(int i = 0; (i < history.size()) && (beginIndex < 0) && (endIndex < 0); i++) {
-			if(beginIndex < 0) {
-				if(!history.get(i).getTimestamp().before(begin))
-					beginIndex = i;
+		for(HistoryListener listener : listeners) {
+			try {
+				listener.searchesRemoved(archived.keySet());
+			} catch(RuntimeException e) {
+				e.printStackTrace();
 			}
-			if(endIndex < 0) {
-				if(history.get(i).getTimestamp().after(end))
-					endIndex = i-1;
+		}
+	}
+	
+	/**
+	 * Deletes all searches of a query made so far, including archived ones.
+	 * Only records a tombstone and returns immediately; the searches disappear from all reads right away and
+	 * are removed from memory and the history file by a background compaction.
+	 * @param query Query to delete (matched like the autocompletion: case and spacing are ignored)
+	 */
+	public void deleteQuery(String query) {
+		long now = System.currentTimeMillis();
+		tombstones.deleteQuery(query, now);
+		this.appendLog(Collections.singletonList(HistoryLog.queryDeleted(query, now)));
+		this.scheduleCompaction();
+	}
+	
+	/**
+	 * Deletes all searches in a date range, including archived ones.
+	 * Like {@link #deleteQuery(String)} this only records a tombstone; the range ends now at the latest,
+	 * so it never covers future searches.
+	 * @param begin Earliest date to delete (inclusive), or null for no limitation
+	 * @param end Latest date to delete (inclusive), or null for now
+	 */
+	public void deleteRange(Date begin, Date end) {
+		long now = System.currentTimeMillis();
+		long first = (begin == null) ? Long.MIN_VALUE : begin.getTime();
+		long last = (end == null) ? now : Math.min(now, end.getTime());
+		tombstones.deleteRange(first, last);
+		this.appendLog(Collections.singletonList(HistoryLog.rangeDeleted(first, last)));
+		this.scheduleCompaction();
+	}
+	
+	/**
+	 * Deletes a single result from its search (and all other results of the search showing the same page).
+	 * If the search is in memory, it gets a new result list right away and the indexes are updated for this
+	 * one search; results of archived searches are hidden when the archive is read.
+	 * @param result Result to delete, as returned by this history
+	 */
+	public void deleteResult(SearchResult result) {
+		QuerySearch owner = result.getOwner();
+		if(owner == null)
+			return;
+		long stamp = lock.writeLock();
+		try {
+			this.deleteResult(owner, result);
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+		this.appendLog(Collections.singletonList(HistoryLog.resultDeleted(owner, result)));
+		this.scheduleCompaction();
+	}
+	
+	/**
+	 * Records the tombstone for a result and drops it from its search if that is in memory.
+	 * Has to be called with the write lock held.
+	 * @param owner Search containing the result
+	 * @param result Result to delete
+	 */
+	private void deleteResult(QuerySearch owner, SearchResult result) {
+		tombstones.deleteResult(owner, result);
+		if(!this.contains(owner))
+			return;
+		
+		ArrayList<SearchResult> kept = new ArrayList<SearchResult>(owner.getResults().size());
+		for(SearchResult candidate : owner.getResults()) {
+			if(!tombstones.isDeleted(owner, candidate))
+				kept.add(candidate);
+			else if(candidate.getClickCounter() > 0)
+				visitedIndex.remove(candidate.getUrl());
+		}
+		this.replaceResults(owner, kept);
+	}
+	
+	/**
+	 * Removes the deleted searches from the in-memory history and the indexes, and saves the history.
+	 * This usually runs on a background thread after each deletion. Deleted searches are found on a snapshot
+	 * without holding the lock; afterwards exactly those are dropped from a fresh copy of the backing array.
+	 * @return Number of removed searches
+	 */
+	public int compact() {
+		this.awaitLoaded();
+		// The tombstones themselves are already in the log, and saved with the history
+		int version = tombstones.getVersion();
+		
+		Map<QuerySearch, Boolean> dead = new IdentityHashMap<QuerySearch, Boolean>();
+		for(QuerySearch search : this.snapshot()) {
+			if(tombstones.isDeleted(search))
+				dead.put(search, Boolean.TRUE);
+		}
+		if(!dead.isEmpty()) {
+			long stamp = lock.writeLock();
+			try {
+				QuerySearch[] remaining = new QuerySearch[Math.max(INITIAL_CAPACITY, size - dead.size() + INITIAL_CAPACITY)];
+				int remainingSize = 0;
+				for(int i = 0; i < size; i++) {
+					if(!dead.containsKey(entries[i]))
+						remaining[remainingSize++] = entries[i];
+				}
+				entries = remaining;
+				size = remainingSize;
+				this.fireSearchesDeleted(dead.keySet());
+			} finally {
+				lock.unlockWrite(stamp);
+			}
+		}
+		compactedVersion = version;
+		this.saveHistory();
+		return dead.size();
+	}
+	
+	/**
+	 * Runs the compaction on a background thread, unless a run which hasn't started yet is already queued.
+	 */
+	private synchronized void scheduleCompaction() {
+		if(!compactionScheduled.compareAndSet(false, true))
+			return;
+		this.backgroundExecutor().execute(new Runnable() {
+			@Override
+			public void run() {
+				compactionScheduled.set(false);
+				try {
+					compact();
+				} catch(RuntimeException e) {
+					e.printStackTrace();
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Saves the history (and thereby checkpoints the log) on the background thread, unless a checkpoint
+	 * which hasn't started yet is already queued. Until it has run, the changes are safe in the log.
+	 */
+	private synchronized void scheduleCheckpoint() {
+		if(!checkpointScheduled.compareAndSet(false, true))
+			return;
+		this.backgroundExecutor().execute(new Runnable() {
+			@Override
+			public void run() {
+				checkpointScheduled.set(false);
+				try {
+					if(log.size() > CHECKPOINT_BYTES)
+						saveHistory();
+				} catch(RuntimeException e) {
+					e.printStackTrace();
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Gets the thread for compactions and checkpoints, creating it on first use.
+	 * Has to be called while synchronized on the history.
+	 * @return Single-threaded executor
+	 */
+	private ExecutorService backgroundExecutor() {
+		if(compactionExecutor == null) {
+			compactionExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "history-compaction");
+					thread.setDaemon(true);
+					thread.setPriority(Thread.MIN_PRIORITY);
+					return thread;
+				}
+			});
+		}
+		return compactionExecutor;
+	}
+	
+	/**
+	 * Registers a callback which is run after changes of other instances sharing the history file
+	 * (see {@link HistoryLog HistoryLog}) have been applied. It runs on the thread following the log.
+	 * @param listener Callback
+	 */
+	public void addRemoteChangeListener(Runnable listener) {
+		remoteChangeListeners.add(listener);
+	}
+	
+	/**
+	 * Applies the changes other instances appended to the log since the last poll.
+	 */
+	private void pollLog() {
+		try {
+			if(log.poll() > 0) {
+				for(Runnable listener : remoteChangeListeners)
+					listener.run();
+			}
+		} catch(IOException | RuntimeException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Follows the log on a background thread.
+	 */
+	private synchronized void startLogTailer() {
+		if(logExecutor != null)
+			return;
+		logExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "history-log");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		logExecutor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				pollLog();
+			}
+		}, LOG_POLL_MS, LOG_POLL_MS, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Appends records to the log; failures are only reported, since the change itself has been made.
+	 * Must not be called with the write lock held.
+	 * @param records Records (null entries are skipped)
+	 */
+	private void appendLog(List<byte[]> records) {
+		List<byte[]> valid = new ArrayList<byte[]>(records.size());
+		for(byte[] record : records) {
+			if(record != null)
+				valid.add(record);
+		}
+		try {
+			log.append(valid);
+		} catch(IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Encodes a search for the log.
+	 * @param search Added search
+	 * @return Record, or null if the search can't be serialized
+	 */
+	private static byte[] encodeAdded(QuerySearch search) {
+		try {
+			return HistoryLog.added(search);
+		} catch(IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+	
+	/**
+	 * Notifies the listeners about deleted searches.
+	 * Has to be called with the write lock held.
+	 * @param searches Deleted searches
+	 */
+	private void fireSearchesDeleted(Collection<QuerySearch> searches) {
+		for(HistoryListener listener : listeners) {
+			try {
+				listener.searchesDeleted(searches);
+			} catch(RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	/**
+	 * Notifies the listeners that a search is about to get a new result list.
+	 * Has to be called with the write lock held.
+	 * @param search Search of the in-memory history
+	 */
+	private void fireResultsReplacing(QuerySearch search) {
+		for(HistoryListener listener : listeners) {
+			try {
+				listener.resultsReplacing(search);
+			} catch(RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	/**
+	 * Checks whether deletions have been recorded which the compaction hasn't applied yet.
+	 * @return Do reads have to filter deleted searches
+	 */
+	private boolean hasPendingDeletes() {
+		return tombstones.getVersion() != compactedVersion;
+	}
+	
+	/**
+	 * Gets the searches of the in-memory history without copying, e.g. for listeners looking up results.
+	 * Has to be called with the lock held.
+	 * @return Searches ordered by date
+	 */
+	List<QuerySearch> entries() {
+		return Arrays.asList(entries).subList(0, size);
+	}
+	
+	/**
+	 * Checks whether a search is part of the in-memory history.
+	 * Has to be called with the lock held.
+	 * @param search Search to look for (by identity)
+	 * @return Is the search in memory
+	 */
+	private boolean contains(QuerySearch search) {
+		List<QuerySearch> snapshot = Arrays.asList(entries).subList(0, size);
+		if(search.getTimestamp() == null)
+			return snapshot.contains(search);
+		long time = search.getTimestamp().getTime();
+		for(int i = firstAfter(snapshot, time - 1); i < snapshot.size(); i++) {
+			if(snapshot.get(i) == search)
+				return true;
+			if(snapshot.get(i).getTimestamp().getTime() != time)
+				break;
+		}
+		return false;
+	}
+	
+	/**
+	 * Filters the searches which have been deleted but not compacted yet.
+	 * @param searches Searches of the in-memory history
+	 * @return The searches themselves if nothing is pending, otherwise the remaining ones
+	 */
+	private List<QuerySearch> live(List<QuerySearch> searches) {
+		if(!this.hasPendingDeletes())
+			return searches;
+		List<QuerySearch> kept = new ArrayList<QuerySearch>(searches.size());
+		for(QuerySearch search : searches) {
+			if(!tombstones.isDeleted(search))
+				kept.add(search);
+		}
+		return Collections.unmodifiableList(kept);
+	}
+	
+	/**
+	 * Filters the results of searches which have been deleted but not compacted yet.
+	 * @param results Results returned by an index
+	 * @return The remaining results
+	 */
+	private List<SearchResult> liveResults(List<SearchResult> results) {
+		if(!this.hasPendingDeletes())
+			return results;
+		List<SearchResult> kept = new ArrayList<SearchResult>(results.size());
+		for(SearchResult result : results) {
+			QuerySearch owner = result.getOwner();
+			if((owner == null) || !tombstones.isDeleted(owner, result))
+				kept.add(result);
+		}
+		return kept;
+	}
+	
+	/**
+	 * Filters queries whose searches have been deleted but not compacted yet.
+	 * @param queries Queries returned by an index
+	 * @return The remaining queries
+	 */
+	private List<String> liveQueries(List<String> queries) {
+		if(!this.hasPendingDeletes())
+			return queries;
+		List<String> kept = new ArrayList<String>(queries.size());
+		for(String query : queries) {
+			if(!tombstones.isQueryDeleted(query))
+				kept.add(query);
+		}
+		return kept;
+	}
+	
+	/**
+	 * Applies the deletions to searches read from disk (e.g. an archive segment), which are shared and
+	 * therefore not changed: searches with deleted results are replaced by copies without them.
+	 * @param searches Searches read from disk
+	 * @return Searches without the deleted ones
+	 */
+	public List<QuerySearch> withoutDeleted(List<QuerySearch> searches) {
+		List<QuerySearch> kept = new ArrayList<QuerySearch>(searches.size());
+		for(QuerySearch search : searches) {
+			if(tombstones.isDeleted(search))
+				continue;
+			adopt(search);
+			if(tombstones.hasDeletedResults(search)) {
+				QuerySearch copy = search.newAttempt();
+				for(SearchResult result : search.getResults()) {
+					if(!tombstones.isDeleted(search, result))
+						copy.getResults().add(result);
+				}
+				copy.unlinkDelta();
+				search = copy;
+			}
+			kept.add(search);
+		}
+		return kept;
+	}
+	
+	/**
+	 * Applies the deletions to searches which are about to enter the in-memory history.
+	 * Deleted results are removed in place; searches stored as deltas against a changed or dropped search are
+	 * stored in full from then on.
+	 * @param searches Searches to filter
+	 * @param dead Collects the dropped searches, may be null
+	 * @return The remaining searches
+	 */
+	private List<QuerySearch> dropDeleted(List<QuerySearch> searches, List<QuerySearch> dead) {
+		Map<QuerySearch, Boolean> changed = new IdentityHashMap<QuerySearch, Boolean>();
+		List<QuerySearch> kept = new ArrayList<QuerySearch>(searches.size());
+		for(QuerySearch search : searches) {
+			if(tombstones.isDeleted(search)) {
+				changed.put(search, Boolean.TRUE);
+				if(dead != null)
+					dead.add(search);
+				continue;
+			}
+			if(tombstones.hasDeletedResults(search)) {
+				ArrayList<SearchResult> results = new ArrayList<SearchResult>(search.getResults().size());
+				for(SearchResult result : search.getResults()) {
+					if(!tombstones.isDeleted(search, result))
+						results.add(result);
+				}
+				if(results.size() != search.getResults().size()) {
+					search.replaceResults(results);
+					changed.put(search, Boolean.TRUE);
+				}
+			}
+			adopt(search);
+			kept.add(search);
+		}
+		if(!changed.isEmpty()) {
+			for(QuerySearch search : kept) {
+				if(changed.containsKey(search.getDeltaBase()))
+					search.unlinkDelta();
+			}
+		}
+		return kept;
+	}
+	
+	/**
+	 * Marks the results of a search as belonging to it (see {@link SearchResult#getOwner()}).
+	 * @param search Search entering the history
+	 */
+	private static void adopt(QuerySearch search) {
+		if(search.getResults() == null)
+			return;
+		for(SearchResult result : search.getResults())
+			result.setOwner(search);
+	}
+	
+	/**
+	 * Gets the number of searches and clicks per day, week or month of the in-memory history.
+	 * The counts are maintained incrementally, so this doesn't walk the history.
+	 * @param granularity Bucket size
+	 * @return Non-empty buckets ordered by date
+	 */
+	public List<DateHistogram.Bucket> getDateHistogram(DateHistogram.Granularity granularity) {
+		return dateHistogram.getBuckets(granularity);
+	}
+	
+	/**
+	 * Gets the queries which led to the same clicked pages as the given one.
+	 * The related queries are precomputed, so this only copies a short list.
+	 * @param query Query to find related queries for
+	 * @param maxAmount Maximum number of queries
+	 * @return Related (normalized) queries, most related first
+	 */
+	public List<String> getRelatedQueries(String query, int maxAmount) {
+		List<String> related = this.liveQueries(coClickGraph.getRelatedQueries(query));
+		return related.subList(0, Math.min(maxAmount, related.size()));
+	}
+	
+	/**
+	 * Gets the work session a search of the history belongs to.
+	 * @param search Search of the in-memory history
+	 * @return Session containing the search, or null if the search isn't in the history
+	 */
+	public SessionIndex.Session getSession(QuerySearch search) {
+		SessionIndex.Session session = sessionIndex.getSession(search);
+		if((session == null) || !this.hasPendingDeletes())
+			return session;
+		return tombstones.isDeleted(search) ? null : session.withMembers(this.live(session.getMembers()));
+	}
+	
+	/**
+	 * Searches the archived (not in-memory) part of the history.
+	 * This reads the archive segments from disk and should not be called on the Event Dispatch Thread.
+	 * @param query Words to search for
+	 * @return Matching archived searches ordered by date
+	 */
+	public List<QuerySearch> findArchivedSearches(String query) {
+		HistoryEvents.HistorySearch event = HistoryEvents.HistorySearch.start("archive", query);
+		// Archive segments aren't rewritten, so deletions are applied to what is read; a search may have
+		// matched through a deleted result
+		List<QuerySearch> matches = new ArrayList<QuerySearch>();
+		for(QuerySearch search : this.withoutDeleted(archive.findSearches(query))) {
+			if(matches(query, search))
+				matches.add(search);
+		}
+		event.finish(matches.size(), size);
+		return matches;
+	}
+	
+	/**
+	 * Gets the archive holding the searches moved out of memory.
+	 * @return History archive
+	 */
+	public HistoryArchive getArchive() {
+		return archive;
+	}
+	
+	/**
+	 * Gets the indexes kept alongside the history, e.g. to estimate their memory.
+	 * @return Indexes registered as listeners of the history
+	 */
+	List<HistoryListener> getIndexes() {
+		return Arrays.<HistoryListener>asList(deltaLinker, queryTrie, visitedIndex, sessionIndex, coClickGraph,
+				duplicateIndex, fuzzyIndex, fullTextIndex, dateHistogram, semanticIndex);
+	}
+	
+	/**
+	 * Gets autocompletions for a (partially typed) query from the history.
+	 * Completions are ranked by how often and how recently the query was searched.
+	 * @param prefix Typed prefix
+	 * @param maxAmount Maximum number of completions
+	 * @return Completions, best first
+	 */
+	public List<String> getCompletions(String prefix, int maxAmount) {
+		HistoryEvents.HistorySearch event = HistoryEvents.HistorySearch.start("completion", prefix);
+		List<String> completions = this.liveQueries(queryTrie.complete(prefix, maxAmount));
+		event.finish(completions.size(), size);
+		return completions;
+	}
+	
+	/**
+	 * Searches the full text (headline, summary and URL) of all results in the in-memory history.
+	 * @param query Query text
+	 * @param maxAmount Maximum number of results
+	 * @return Results ranked by relevance
+	 */
+	public List<SearchResult> searchFullText(String query, int maxAmount) {
+		HistoryEvents.HistorySearch event = HistoryEvents.HistorySearch.start("fulltext", query);
+		List<SearchResult> results = this.liveResults(fullTextIndex.search(query, maxAmount));
+		event.finish(results.size(), size);
+		return results;
+	}
+	
+	/**
+	 * Finds the results in the in-memory history about the same topic as the given result, even if they
+	 * share no words with it.
+	 * @param result Result to find similar results for
+	 * @param maxAmount Maximum number of results
+	 * @return Results of other pages, most similar first
+	 */
+	public List<SearchResult> findSimilarResults(SearchResult result, int maxAmount) {
+		HistoryEvents.HistorySearch event = HistoryEvents.HistorySearch.start("similar", result.getHeadline());
+		List<SearchResult> results = this.liveResults(semanticIndex.findSimilar(result, maxAmount));
+		event.finish(results.size(), size);
+		return results;
+	}
+	
+	/**
+	 * Searches the results in the in-memory history by similarity of meaning rather than by matching words.
+	 * @param query Query text
+	 * @param maxAmount Maximum number of results
+	 * @return Results, most similar first
+	 */
+	public List<SearchResult> searchSimilar(String query, int maxAmount) {
+		HistoryEvents.HistorySearch event = HistoryEvents.HistorySearch.start("semantic", query);
+		List<SearchResult> results = this.liveResults(semanticIndex.search(query, maxAmount));
+		event.finish(results.size(), size);
+		return results;
+	}
+	
+	/**
+	 * Answers a query from the stored results while the engine is unavailable.
+	 * The latest search with the same query (ignoring case and spacing) comes first; the remaining places are
+	 * filled from the full-text index. Pages are only returned once; the results are stale copies carrying
+	 * the date of the search they were taken from.
+	 * @param query Query of the search
+	 * @param maxAmount Maximum number of results
+	 * @return Stored results, best first
+	 */
+	@Override
+	public List<SearchResult> findStoredResults(String query, int maxAmount) {
+		List<SearchResult> found = new ArrayList<SearchResult>(maxAmount);
+		Set<String> urls = new HashSet<String>();
+		
+		// The trie knows every query, so the history is only scanned if the query has been searched before
+		String key = QueryTrie.normalize(query);
+		if(!loaded || queryTrie.contains(key)) {
+			List<QuerySearch> snapshot = this.live(this.snapshot());
+			for(int i = snapshot.size() - 1; i >= 0; i--) {
+				QuerySearch search = snapshot.get(i);
+				if(QueryTrie.normalize(search.getQuery()).equals(key)) {
+					for(SearchResult result : search.getResults())
+						addStale(found, urls, maxAmount, query, search, result);
+					break;
+				}
+			}
+		}
+		if(found.size() < maxAmount) {
+			for(SearchResult result : this.searchFullText(query, maxAmount * 2)) {
+				QuerySearch owner = result.getOwner();
+				if(owner != null)
+					addStale(found, urls, maxAmount, query, owner, result);
+			}
+		}
+		return found;
+	}
+	
+	/**
+	 * Adds a stale copy of a stored result, unless its page is already there or the list is full.
+	 */
+	private static void addStale(List<SearchResult> found, Set<String> urls, int maxAmount, String query,
+			QuerySearch search, SearchResult result) {
+		if((found.size() < maxAmount) && urls.add(UrlNormalizer.normalize(result.getUrl())))
+			found.add(result.staleCopy(query, search.getTimestamp()));
+	}
+	
+	/**
+	 * Finds all searches whose query or any result headline contains all the words of the given query.
+	 * @param query Words to search for (case insensitive, any order)
+	 * @return Matching searches ordered by date
+	 */
+	public List<QuerySearch> findSearches(String query) {
+		HistoryEvents.HistorySearch event = HistoryEvents.HistorySearch.start("words", query);
+		List<QuerySearch> snapshot = this.live(this.snapshot());
+		List<QuerySearch> matches = new ArrayList<QuerySearch>();
+		for(QuerySearch search : snapshot) {
+			if(matches(query, search))
+				matches.add(search);
+		}
+		event.finish(matches.size(), snapshot.size());
+		return matches;
+	}
+	
+	/**
+	 * Finds all searches whose query or any result headline contains all the words of the given query, allowing
+	 * for typos: every word also matches the words of the history within the default edit distance.
+	 * @param query Words to search for (case insensitive, any order)
+	 * @return Matching searches ordered by date
+	 * @see #FUZZY_DISTANCE
+	 */
+	public List<QuerySearch> findSearchesFuzzy(String query) {
+		return this.findSearchesFuzzy(query, FUZZY_DISTANCE);
+	}
+	
+	/**
+	 * Finds all searches whose query or any result headline contains all the words of the given query, allowing
+	 * for typos: every word also matches the words of the history within the given edit distance.
+	 * @param query Words to search for (case insensitive, any order)
+	 * @param maxDistance Maximum number of inserted, deleted or replaced characters per word
+	 * @return Matching searches ordered by date
+	 */
+	public List<QuerySearch> findSearchesFuzzy(String query, int maxDistance) {
+		HistoryEvents.HistorySearch event = HistoryEvents.HistorySearch.start("fuzzy", query);
+		List<Set<String>> words = this.expandWords(query, maxDistance);
+		List<QuerySearch> snapshot = this.live(this.snapshot());
+		List<QuerySearch> matches = new ArrayList<QuerySearch>();
+		for(QuerySearch search : snapshot) {
+			if(matches(words, search))
+				matches.add(search);
+		}
+		event.finish(matches.size(), snapshot.size());
+		return matches;
+	}
+	
+	/**
+	 * Expands the words of a query into the words of the history within an edit distance of them.
+	 * The result can be matched against texts with {@link #containsWords(List, String)}.
+	 * @param query Query text
+	 * @param maxDistance Maximum number of inserted, deleted or replaced characters per word
+	 * @return Per query word, the word itself and its matches in the history
+	 */
+	public List<Set<String>> expandWords(String query, int maxDistance) {
+		List<Set<String>> words = new ArrayList<Set<String>>();
+		for(String word : TextAnalyzer.tokenize(query)) {
+			Set<String> alternatives = new HashSet<String>(fuzzyIndex.expand(word, maxDistance));
+			alternatives.add(word);
+			words.add(alternatives);
+		}
+		return words;
+	}
+	
+	/**
+	 * Checks whether the query or any result headline of a search contains all the words of the given query.
+	 * @param query Words to search for (case insensitive, any order)
+	 * @param search Search to check
+	 * @return Does the search match
+	 */
+	static boolean matches(String query, QuerySearch search) {
+		if(containsWords(query, search.getQuery()))
+			return true;
+		for(SearchResult result : search.getResults()) {
+			if(containsWords(query, result.getHeadline()))
+				return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Checks whether the query or any result headline of a search contains one of the alternatives of every word.
+	 * @param words Alternatives per word, see {@link #expandWords(String, int)}
+	 * @param search Search to check
+	 * @return Does the search match
+	 */
+	static boolean matches(List<Set<String>> words, QuerySearch search) {
+		if(containsWords(words, search.getQuery()))
+			return true;
+		for(SearchResult result : search.getResults()) {
+			if(containsWords(words, result.getHeadline()))
+				return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Checks whether a text contains one of the alternatives of every word, e.g. of a fuzzy query.
+	 * @param words Alternatives per word, see {@link #expandWords(String, int)}
+	 * @param text Text to be searched
+	 * @return Does the text contain all the query words
+	 */
+	public static boolean containsWords(List<Set<String>> words, String text) {
+		if(words.isEmpty())
+			return false;
+		List<String> textWords = TextAnalyzer.tokenize(text);
+		for(Set<String> alternatives : words) {
+			if(Collections.disjoint(alternatives, textWords))
+				return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Helper method checking whether a text contains all the words in a query.
+	 * @param query Search query
+	 * @param text Text to be searched
+	 * @return Does the text contain all the query words
+	 */
+	public static boolean containsWords(String query, String text) {
+		List<String> queryWords = Arrays.asList(query.toLowerCase().split(" "));
+		List<String> textWords = Arrays.asList(text.toLowerCase().split(" "));
+		for(String word : queryWords) {
+			if(!textWords.contains(word))
+				return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Applies the changes of other instances read from the log. All changes are idempotent, since records
+	 * may be read again around a checkpoint.
+	 */
+	private class LogReplayer implements HistoryLog.Replayer {
+		
+		@Override
+		public void searchesAdded(List<QuerySearch> searches) {
+			List<QuerySearch> batch = new ArrayList<QuerySearch>(searches.size());
+			for(QuerySearch search : searches) {
+				if(search.getTimestamp() != null)
+					batch.add(search);
 			}
+			// Searches already present are skipped
+			mergeBatch(batch, false);
 		}
 		
-		// TODO: is this needed/correct? E.g. if the end index wasn't set because everything was earlier?
-		if(beginIndex < 0)
-			beginIndex = 0;
+		@Override
+		public void resultClicked(long time, String query, String url, int clicks) {
+			long stamp = lock.writeLock();
+			try {
+				QuerySearch search = findSearch(Arrays.asList(entries).subList(0, size), time, query);
+				SearchResult result = (search == null) ? null : findResult(search, url);
+				// Only catching up with the counter of the record makes a repeated record harmless
+				while((result != null) && (result.getClickCounter() < clicks)) {
+					result.incrementClickCounter();
+					fireResultClicked(search, result);
+				}
+			} finally {
+				lock.unlockWrite(stamp);
+			}
+		}
+		
+		@Override
+		public void queryDeleted(String query, long deletedAt) {
+			tombstones.deleteQuery(query, deletedAt);
+			scheduleCompaction();
+		}
+		
+		@Override
+		public void rangeDeleted(long begin, long end) {
+			tombstones.deleteRange(begin, end);
+			scheduleCompaction();
+		}
+		
+		@Override
+		public void resultDeleted(long time, String query, String url) {
+			long stamp = lock.writeLock();
+			try {
+				QuerySearch search = findSearch(Arrays.asList(entries).subList(0, size), time, query);
+				SearchResult result = (search == null) ? null : findResult(search, url);
+				if(result != null)
+					deleteResult(search, result);
+				else
+					tombstones.deleteResult(new Date(time), query, new URL(url));
+			} catch(MalformedURLException e) {
+				e.printStackTrace();
+			} finally {
+				lock.unlockWrite(stamp);
+			}
+			scheduleCompaction();
+		}
 		
-		if(endIndex < 0)
-			endIndex = history.size() - 1;
+		@Override
+		public void searchesArchived(long[] times, String[] queries) {
+			archive.refresh();
+			long stamp = lock.writeLock();
+			try {
+				List<QuerySearch> current = Arrays.asList(entries).subList(0, size);
+				Map<QuerySearch, Boolean> archived = new IdentityHashMap<QuerySearch, Boolean>();
+				for(int i = 0; i < times.length; i++) {
+					QuerySearch search = findSearch(current, times[i], queries[i]);
+					if(search != null)
+						archived.put(search, Boolean.TRUE);
+				}
+				if(!archived.isEmpty())
+					removeArchived(archived);
+			} finally {
+				lock.unlockWrite(stamp);
+			}
+		}
 		
-		return history.subList(beginIndex, endIndex);
+		private SearchResult findResult(QuerySearch search, String url) {
+			for(SearchResult result : search.getResults()) {
+				if(result.getUrlText().equals(url))
+					return result;
+			}
+			return null;
+		}
 	}
 }
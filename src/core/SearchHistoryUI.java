@@ -24,13 +24,31 @@ public class SearchHistoryUI extends javax.swing.JFrame {
 	
 	/**
      * Creates new form SearchHistoryUI.
+     * Only the recent searches are read before the window is built; the full history is loaded in the
+     * background and the features depending on it are enabled once it is there.
      */
     public SearchHistoryUI() {
-    	history = new SearchHistory();
+    	history = new SearchHistory(SearchHistory.DEFAULT_HISTORY_PATH, true);
+    	// Without a connection, engine searches are answered from the history
+    	QuerySearch.setOfflineSource(history);
     	lastQuery = null;
     	lastRecentSearch = null;
         initComponents();
         this.updateRecentSearches();
+        this.setHistoryFeaturesEnabled(false);
+        
+        new SwingWorker<Void, Void>() {
+        	@Override
+        	protected Void doInBackground() {
+        		history.finishLoading();
+        		return null;
+        	}
+        	
+        	@Override
+        	protected void done() {
+        		historyLoaded();
+        	}
+        }.execute();
 
         // Add shutdown hook to save the history after application exit
         Runtime.getRuntime().addShutdownHook(new Thread()
@@ -39,9 +57,64 @@ public class SearchHistoryUI extends javax.swing.JFrame {
 		    public void run()
 		    {
 		    	history.saveHistory();
+		    	java.util.logging.Logger.getLogger(SearchHistoryUI.class.getName()).info(QuerySearch.getRequestGate().toString());
 		    }
 		});
     }
+    
+    /**
+     * Called on the Event Dispatch Thread once the full history has been loaded.
+     * Enables the history features and starts the background jobs working on the full history.
+     */
+    private void historyLoaded() {
+    	this.setHistoryFeaturesEnabled(true);
+    	this.updateRecentSearches();
+    	
+        // Other windows or processes may share the history file; show their searches as they come in
+        history.addRemoteChangeListener(new Runnable() {
+        	@Override
+        	public void run() {
+        		SwingUtilities.invokeLater(new Runnable() {
+        			@Override
+        			public void run() {
+        				updateRecentSearches();
+        			}
+        		});
+        	}
+        });
+        
+        // Move cold searches into the archive in the background
+        history.startRetention(RetentionPolicy.fromSystemProperties());
+        
+        // Optionally expose the history to other local tools while the UI keeps writing to it
+        Integer servicePort = Integer.getInteger("searchhistory.service.port");
+        if(servicePort != null) {
+        	try {
+        		new HistoryService(history, servicePort).start();
+        	} catch(java.io.IOException e) {
+        		e.printStackTrace();
+        	}
+        }
+    }
+    
+    /**
+     * Enables or disables the controls which need the full history.
+     * Engine searches and the recent searches work right away.
+     * @param enabled Has the full history been loaded
+     */
+    private void setHistoryFeaturesEnabled(boolean enabled) {
+    	historyButton.setEnabled(enabled);
+    	historyButton.setToolTipText(enabled ? null : "Loading history...");
+    	if(!enabled)
+    		engineButton.setSelected(true);
+    	checkVisitedOnly.setEnabled(enabled);
+    	checkIncludeArchive.setEnabled(enabled);
+    	checkFullText.setEnabled(enabled);
+    	checkSemantic.setEnabled(enabled);
+    	checkFuzzy.setEnabled(enabled);
+    	timelineGranularity.setEnabled(enabled);
+    	timelinePanel.setEnabled(enabled);
+    }
 
     /**
      * This method is called from within the constructor to initialize the form.
@@ -62,6 +135,8 @@ public class SearchHistoryUI extends javax.swing.JFrame {
         searchButton = new javax.swing.JButton();
         jLabel2 = new javax.swing.JLabel();
         recentSearchesPanel = new javax.swing.JPanel();
+        jLabel4 = new javax.swing.JLabel();
+        relatedSearchesPanel = new javax.swing.JPanel();
         jLabel3 = new javax.swing.JLabel();
         jPanel2 = new javax.swing.JPanel();
         jScrollPane1 = new javax.swing.JScrollPane();
@@ -101,6 +176,21 @@ public class SearchHistoryUI extends javax.swing.JFrame {
             }
         });
 
+        // Suggest completions from the history while typing
+        new SuggestionPopup(searchField, new java.util.function.Function<String, List<String>>() {
+        	@Override
+        	public List<String> apply(String text) {
+        		if(!history.isLoaded())
+        			return java.util.Collections.emptyList();
+        		return history.getCompletions(text, 8);
+        	}
+        }, new java.util.function.Consumer<String>() {
+        	@Override
+        	public void accept(String text) {
+        		performSearch();
+        	}
+        });
+
         searchButton.setText("GO");
         searchButton.addActionListener(new java.awt.event.ActionListener() {
         	public void actionPerformed(java.awt.event.ActionEvent evt) {
@@ -116,6 +206,14 @@ public class SearchHistoryUI extends javax.swing.JFrame {
 
         recentSearchesPanel.setLayout(new javax.swing.BoxLayout(recentSearchesPanel, javax.swing.BoxLayout.Y_AXIS));
 
+        jLabel4.setFont(new java.awt.Font("Tahoma", 1, 14)); // NOI18N
+        jLabel4.setHorizontalAlignment(javax.swing.SwingConstants.CENTER);
+        jLabel4.setText("Related Searches");
+
+        relatedSearchesPanel.setBackground(new java.awt.Color(231, 247, 255));
+
+        relatedSearchesPanel.setLayout(new javax.swing.BoxLayout(relatedSearchesPanel, javax.swing.BoxLayout.Y_AXIS));
+
         jLabel3.setFont(new java.awt.Font("Tahoma", 1, 14)); // NOI18N
         jLabel3.setHorizontalAlignment(javax.swing.SwingConstants.CENTER);
         jLabel3.setText("Quick Links");
@@ -177,6 +275,8 @@ public class SearchHistoryUI extends javax.swing.JFrame {
                 .addComponent(searchButton))
             .addComponent(jLabel2, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE)
             .addComponent(recentSearchesPanel, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE)
+            .addComponent(jLabel4, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE)
+            .addComponent(relatedSearchesPanel, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE)
             .addComponent(jLabel3, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE)
             .addComponent(jPanel2, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE)
             .addComponent(jSeparator1)
@@ -202,6 +302,10 @@ public class SearchHistoryUI extends javax.swing.JFrame {
                 .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
                 .addComponent(recentSearchesPanel, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE)
                 .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addComponent(jLabel4)
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addComponent(relatedSearchesPanel, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE)
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
                 .addComponent(jLabel3)
                 .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
                 .addComponent(jPanel2, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE))
@@ -241,6 +345,82 @@ public class SearchHistoryUI extends javax.swing.JFrame {
 			}
         });
         optionsPanel.add(checkVisitedOnly);
+        
+        checkIncludeArchive = new javax.swing.JCheckBox("Include archive");
+        checkIncludeArchive.setSelected(false);
+        checkIncludeArchive.addActionListener(new java.awt.event.ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				if(lastQuery != null)
+					searchHistory(lastQuery);
+			}
+        });
+        optionsPanel.add(checkIncludeArchive);
+        
+        checkFullText = new javax.swing.JCheckBox("Ranked full-text");
+        checkFullText.setSelected(false);
+        checkFullText.addActionListener(new java.awt.event.ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				if(checkFullText.isSelected()) {
+					checkSemantic.setSelected(false);
+					checkFuzzy.setSelected(false);
+				}
+				if(lastQuery != null)
+					searchHistory(lastQuery);
+			}
+        });
+        optionsPanel.add(checkFullText);
+        
+        checkSemantic = new javax.swing.JCheckBox("Similar meaning");
+        checkSemantic.setSelected(false);
+        checkSemantic.addActionListener(new java.awt.event.ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				if(checkSemantic.isSelected()) {
+					checkFullText.setSelected(false);
+					checkFuzzy.setSelected(false);
+				}
+				if(lastQuery != null)
+					searchHistory(lastQuery);
+			}
+        });
+        optionsPanel.add(checkSemantic);
+        
+        checkFuzzy = new javax.swing.JCheckBox("Typo tolerant");
+        checkFuzzy.setSelected(false);
+        checkFuzzy.addActionListener(new java.awt.event.ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				if(checkFuzzy.isSelected()) {
+					checkFullText.setSelected(false);
+					checkSemantic.setSelected(false);
+				}
+				if(lastQuery != null)
+					searchHistory(lastQuery);
+			}
+        });
+        optionsPanel.add(checkFuzzy);
+        
+        // Timeline of the history from the precomputed date histogram; clicking a bar filters by its date
+        timelineGranularity = new javax.swing.JComboBox<DateHistogram.Granularity>(DateHistogram.Granularity.values());
+        timelineGranularity.addActionListener(new java.awt.event.ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				updateTimeline();
+			}
+        });
+        optionsPanel.add(timelineGranularity);
+        
+        timelinePanel = new TimelinePanel(new java.util.function.Consumer<DateHistogram.Bucket>() {
+        	@Override
+        	public void accept(DateHistogram.Bucket bucket) {
+        		lastQuery = null;
+        		lastRecentSearch = null;
+        		displayDateRange(bucket);
+        	}
+        });
+        optionsPanel.add(timelinePanel);
 
         outerHistoryPanel = new javax.swing.JPanel();
         outerHistoryPanel.setLayout(new java.awt.BorderLayout());
@@ -287,6 +467,7 @@ public class SearchHistoryUI extends javax.swing.JFrame {
      * The search history is queried for the last x searches, which will then be added as buttons.
      */
     private void updateRecentSearches() {
+    	HistoryEvents.PanelRebuild rebuild = HistoryEvents.PanelRebuild.start("recent searches");
     	recentSearchesPanel.removeAll();
         recentSearchesPanel.revalidate();
         recentSearchesPanel.repaint();
@@ -305,14 +486,93 @@ public class SearchHistoryUI extends javax.swing.JFrame {
 					lastRecentSearch = recent;
 					lastQuery = null;
 					displayRecentSearch(recent);
+					updateRelatedSearches(recent.getQuery());
 				}
 				
 			});
 			
+			currQueryButton.setComponentPopupMenu(createSessionMenu(recent));
 			recentSearchesPanel.add(currQueryButton);
 		}
 		
+		rebuild.finish(recentSearchesPanel);
 		sidebarPanel.validate();
+		this.updateTimeline();
+    }
+    
+    /**
+     * Updates the related searches panel with the queries that led to the same clicked pages as the given one.
+     * The suggestions are precomputed by the history, so this is cheap enough for the Event Dispatch Thread.
+     * @param query Query to show related searches for
+     */
+    private void updateRelatedSearches(String query) {
+    	HistoryEvents.PanelRebuild rebuild = HistoryEvents.PanelRebuild.start("related searches");
+    	relatedSearchesPanel.removeAll();
+    	for(String related : history.getRelatedQueries(query, 5)) {
+    		javax.swing.JButton relatedButton = new javax.swing.JButton(related);
+    		relatedButton.addActionListener(new java.awt.event.ActionListener() {
+				@Override
+				public void actionPerformed(ActionEvent e) {
+					searchField.setText(((JButton)e.getSource()).getText());
+					performSearch();
+				}
+    		});
+    		relatedSearchesPanel.add(relatedButton);
+    	}
+    	rebuild.finish(relatedSearchesPanel);
+    	relatedSearchesPanel.revalidate();
+    	relatedSearchesPanel.repaint();
+    	sidebarPanel.validate();
+    }
+    
+    /**
+     * Updates the timeline with the date histogram at the selected granularity.
+     */
+    private void updateTimeline() {
+    	timelinePanel.setBuckets(history.getDateHistogram(
+    			(DateHistogram.Granularity) timelineGranularity.getSelectedItem()));
+    }
+    
+    /**
+     * Displays the searches of a timeline bucket in the history panel.
+     * @param bucket Selected bucket of the timeline
+     */
+    private void displayDateRange(DateHistogram.Bucket bucket) {
+    	HistoryEvents.PanelRebuild rebuild = HistoryEvents.PanelRebuild.start("date range");
+    	historyPanel.removeAll();
+        historyPanel.revalidate();
+        historyPanel.repaint();
+        
+        javax.swing.JLabel headLine = new javax.swing.JLabel(" " + java.text.DateFormat.getDateInstance(
+        		java.text.DateFormat.MEDIUM).format(bucket.getStart()) + ": " + bucket.getSearches() + " searches");
+        headLine.setFont(new java.awt.Font("Arial", java.awt.Font.BOLD, 14));
+		historyPanel.add(headLine);
+		
+		// The range of getHistoryDateOrdered is inclusive, the bucket end isn't
+		final java.util.Date begin = bucket.getStart();
+		final java.util.Date end = new java.util.Date(bucket.getEnd().getTime() - 1);
+		javax.swing.JButton deleteButton = new javax.swing.JButton("Delete these searches");
+		deleteButton.addActionListener(new java.awt.event.ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				history.deleteRange(begin, end);
+				clearHistoryView();
+			}
+		});
+		historyPanel.add(deleteButton);
+		
+		for(QuerySearch search : history.getHistoryDateOrdered(begin, end)) {
+			historyPanel.add(createQueryButton(search));
+			for(SearchResult result : search.getResults()) {
+				if((result.getClickCounter() > 0) || !checkVisitedOnly.isSelected())
+					historyPanel.add(createResultLabel(result, false));
+			}
+		}
+		
+		rebuild.finish(historyPanel);
+		collapsiblePanel1.setState(false);
+		collapsiblePanel1.revalidate();
+		collapsiblePanel1.repaint();
     }
     
     /**
@@ -320,6 +580,7 @@ public class SearchHistoryUI extends javax.swing.JFrame {
      * @param recent QuerySearch to be used
      */
     private void displayRecentSearch(QuerySearch recent) {
+    	HistoryEvents.PanelRebuild rebuild = HistoryEvents.PanelRebuild.start("recent search");
     	historyPanel.removeAll();
         historyPanel.revalidate();
         historyPanel.repaint();
@@ -330,9 +591,10 @@ public class SearchHistoryUI extends javax.swing.JFrame {
 		
 		for(SearchResult result : recent.getResults()) {
 			if((result.getClickCounter() > 0) || !checkVisitedOnly.isSelected())
-				historyPanel.add(new ResultLabel(result, SwingConstants.LEADING, false));
+				historyPanel.add(createResultLabel(result, false));
 		}
 		
+		rebuild.finish(historyPanel);
 		collapsiblePanel1.setState(false);
 		collapsiblePanel1.revalidate();
 		collapsiblePanel1.repaint();
@@ -341,46 +603,126 @@ public class SearchHistoryUI extends javax.swing.JFrame {
     /**
      * Creates a new {@link BingSearch BingSearch} to search for the provided query.
      * Also updates the search history and displays the search results in the main panel.
+     * The search itself runs in the background and its results are displayed one by one as the engine
+     * delivers them; the history is recorded from the same stream. If the user starts another engine search
+     * in the meantime, the results of this one are still recorded but no longer displayed.
      * @param query Search query
      */
     private void searchEngine(String query) {
     	// Remove any previous search results / content
 		mainPanel.removeAll();
+		mainPanel.add(new javax.swing.JLabel(" Searching for '" + query + "'..."));
         mainPanel.revalidate();
         mainPanel.repaint();
-		
-		try {
-			// Utilize Bing to get the search results
-			BingSearch search = new BingSearch(query);
-			search.findQuery();
-			
-
-			// Some fancy border stuff; simply adds some padding for the result labels
-			javax.swing.border.CompoundBorder innerLabelBorder = new javax.swing.border.CompoundBorder(
-					javax.swing.BorderFactory.createEmptyBorder(5, 5, 5, 5),
-					javax.swing.BorderFactory.createLineBorder(java.awt.Color.DARK_GRAY, 1));
-			javax.swing.border.CompoundBorder outerLabelBorder = new javax.swing.border.CompoundBorder(
-					innerLabelBorder,
-					javax.swing.BorderFactory.createEmptyBorder(5, 5, 5, 5));
+        
+        // Utilize Bing to get the search results
+        final BingSearch search = new BingSearch(query);
+        pendingEngineSearch = search;
+        
+        Flow.Publisher<SearchResult> stream = search.findQueryAsync();
+        // Subscribed first, so the search is in the history when the display is told of the completion
+        stream.subscribe(new HistoryRecorder(history, search));
+        stream.subscribe(new Flow.Subscriber<SearchResult>() {
+        	private Flow.Subscription subscription;
+        	private int displayed = 0;
+        	
+			@Override
+			public void onSubscribe(Flow.Subscription subscription) {
+				this.subscription = subscription;
+				subscription.request(1);
+			}
 			
-			// Add the individual results as links to the main panel
-			for(SearchResult result : search.getResults()) {
-				ResultLabel currLink = new ResultLabel(result, SwingConstants.LEADING);
-				currLink.setBorder(outerLabelBorder);
-				mainPanel.add(currLink);
+			@Override
+			public void onNext(final SearchResult item) {
+				// The next result is only requested once this one is on the screen
+				SwingUtilities.invokeLater(new Runnable() {
+					@Override
+					public void run() {
+						if(pendingEngineSearch == search) {
+							if(displayed++ == 0)
+								mainPanel.removeAll();
+							addEngineResult(item);
+							mainPanel.revalidate();
+							mainPanel.repaint();
+						}
+						subscription.request(1);
+					}
+				});
 			}
 			
-			history.addEntry(search);
-			this.updateRecentSearches();
+			@Override
+			public void onError(final Throwable throwable) {
+				SwingUtilities.invokeLater(new Runnable() {
+					@Override
+					public void run() {
+						throwable.printStackTrace();
+						if(pendingEngineSearch == search) {
+							mainPanel.removeAll();
+							mainPanel.validate();
+							mainPanel.repaint();
+						}
+					}
+				});
+			}
 			
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
+			@Override
+			public void onComplete() {
+				SwingUtilities.invokeLater(new Runnable() {
+					@Override
+					public void run() {
+						if(pendingEngineSearch == search) {
+							if(displayed == 0)
+								displayEngineResults(search);
+							if(search.isStale()) {
+								mainPanel.add(new javax.swing.JLabel(" The search engine can't be reached; these results are from your history."), 0);
+								mainPanel.validate();
+								mainPanel.repaint();
+							}
+							updateRelatedSearches(search.getQuery());
+						}
+						updateRecentSearches();
+					}
+				});
+			}
+        });
+    }
+    
+    /**
+     * Displays the results of an engine search in the main panel.
+     * @param search Performed search
+     */
+    private void displayEngineResults(QuerySearch search) {
+    	HistoryEvents.PanelRebuild rebuild = HistoryEvents.PanelRebuild.start("engine results");
+    	mainPanel.removeAll();
 		
+		// Add the individual results as links to the main panel
+		for(SearchResult result : search.getResults())
+			this.addEngineResult(result);
+		
+		rebuild.finish(mainPanel);
 		mainPanel.validate();
+		mainPanel.repaint();
 		mainScrollPane.validate();
     }
     
+    /**
+     * Adds a result of an engine search as a link to the main panel.
+     * @param result Result to add
+     */
+    private void addEngineResult(SearchResult result) {
+		// Some fancy border stuff; simply adds some padding for the result labels
+		javax.swing.border.CompoundBorder innerLabelBorder = new javax.swing.border.CompoundBorder(
+				javax.swing.BorderFactory.createEmptyBorder(5, 5, 5, 5),
+				javax.swing.BorderFactory.createLineBorder(java.awt.Color.DARK_GRAY, 1));
+		javax.swing.border.CompoundBorder outerLabelBorder = new javax.swing.border.CompoundBorder(
+				innerLabelBorder,
+				javax.swing.BorderFactory.createEmptyBorder(5, 5, 5, 5));
+		
+		ResultLabel currLink = createResultLabel(result, true);
+		currLink.setBorder(outerLabelBorder);
+		mainPanel.add(currLink);
+    }
+    
     /**
      * Searches the history for the given query.
      * Here a simple binary search is done; if the query or result headline contains all the words
@@ -388,6 +730,7 @@ public class SearchHistoryUI extends javax.swing.JFrame {
      * @param query
      */
     private void searchHistory(String query) {
+    	HistoryEvents.PanelRebuild rebuild = HistoryEvents.PanelRebuild.start("history search");
     	historyPanel.removeAll();
         historyPanel.revalidate();
         historyPanel.repaint();
@@ -398,56 +741,296 @@ public class SearchHistoryUI extends javax.swing.JFrame {
 		historyPanel.add(headLine);
 
         String searchTerm = searchField.getText();
-        List<QuerySearch> historyElements = history.getHistoryDateOrdered();
-
-        // TODO: remove duplicates?
+        // Words of the history within a few typos of the search words, or null for exact matching
+        final List<java.util.Set<String>> fuzzyWords = checkFuzzy.isSelected()
+        		? history.expandWords(searchTerm, SearchHistory.FUZZY_DISTANCE) : null;
+        if(checkSemantic.isSelected()) {
+        	// Nearest neighbours by meaning, so results phrased differently are found as well
+        	for(SearchResult result : history.collapseDuplicates(history.searchSimilar(searchTerm, 50))) {
+        		if((result.getClickCounter() > 0) || !checkVisitedOnly.isSelected())
+        			historyPanel.add(createResultLabel(result, false));
+        	}
+        } else if(checkFullText.isSelected()) {
+        	// Ranked search over headlines, summaries and URLs instead of the exact word matching
+        	for(SearchResult result : history.collapseDuplicates(history.searchFullText(searchTerm, 50))) {
+        		if((result.getClickCounter() > 0) || !checkVisitedOnly.isSelected())
+        			historyPanel.add(createResultLabel(result, false));
+        	}
+        } else {
+        	this.addHistoryMatches(searchTerm, fuzzyWords, history.getHistoryDateOrdered());
+        }
+        
+        // Searching the archive reads from disk, so do it in the background and append the matches later
+        if(checkIncludeArchive.isSelected()) {
+        	new SwingWorker<List<QuerySearch>, Void>() {
+        		@Override
+        		protected List<QuerySearch> doInBackground() {
+        			return history.findArchivedSearches(searchTerm);
+        		}
+        		
+        		@Override
+        		protected void done() {
+        			try {
+        				// Only show the matches if the user didn't search for something else in the meantime
+        				if(searchTerm.equals(lastQuery)) {
+        					addHistoryMatches(searchTerm, fuzzyWords, get());
+        					historyPanel.revalidate();
+        					historyPanel.repaint();
+        				}
+        			} catch(Exception e) {
+        				e.printStackTrace();
+        			}
+        		}
+        	}.execute();
+        }
+		
+		rebuild.finish(historyPanel);
+		collapsiblePanel1.setState(false);
+		collapsiblePanel1.validate();
+		collapsiblePanel1.repaint();
+    }
+    
+    /**
+     * Adds all searches and results containing the search term to the history panel.
+     * @param searchTerm Words to search for
+     * @param fuzzyWords Alternatives per search word for a typo-tolerant search, or null to match exactly
+     * @param historyElements Searches to filter
+     */
+    private void addHistoryMatches(String searchTerm, List<java.util.Set<String>> fuzzyWords,
+    		List<QuerySearch> historyElements) {
+        // Repeated searches and mirrors of a page show the same page many times; it is listed once
+        java.util.Set<SearchResult> shown = java.util.Collections.newSetFromMap(
+        		new java.util.IdentityHashMap<SearchResult, Boolean>());
         for(QuerySearch search : historyElements){
             // Filters all history elements containing the search term (case insensitive)
-            if(containsWords(searchTerm, search.getQuery())) {
-            	javax.swing.JButton queryBtn = new javax.swing.JButton(search.getQuery());
-            	queryBtn.addActionListener(new java.awt.event.ActionListener() {
-					@Override
-					public void actionPerformed(ActionEvent e) {
-						searchEngine(((JButton)e.getSource()).getText());
-					}
-            	});
-                historyPanel.add(queryBtn);
+            if(containsWords(searchTerm, fuzzyWords, search.getQuery())) {
+                historyPanel.add(createQueryButton(search));
             }
             
             for(SearchResult result : search.getResults()) {
-            	if(containsWords(searchTerm, result.getHeadline())){
+            	if(containsWords(searchTerm, fuzzyWords, result.getHeadline())
+            			&& shown.add(history.getCanonicalResult(result))){
             		if((result.getClickCounter() > 0) || !checkVisitedOnly.isSelected())
-            			historyPanel.add(new ResultLabel(result, SwingConstants.LEADING, false));
+            			historyPanel.add(createResultLabel(result, false));
             	}
             }
         }
+    }
+    
+    /**
+     * Checks whether a text contains the search words, exactly or within a few typos.
+     * @param searchTerm Words to search for
+     * @param fuzzyWords Alternatives per search word, or null to match exactly
+     * @param text Text to be searched
+     * @return Does the text contain all the search words
+     */
+    private static boolean containsWords(String searchTerm, List<java.util.Set<String>> fuzzyWords, String text) {
+    	if(fuzzyWords == null)
+    		return SearchHistory.containsWords(searchTerm, text);
+    	return SearchHistory.containsWords(fuzzyWords, text);
+    }
+    
+    /**
+     * Creates the label for a result; its context menu offers to show similar results from the history.
+     * @param result Result to display
+     * @param expressiveLabel Also display the summary
+     * @return Result label
+     */
+    private ResultLabel createResultLabel(final SearchResult result, boolean expressiveLabel) {
+    	ResultLabel label = new ResultLabel(result, SwingConstants.LEADING, expressiveLabel, history);
+    	javax.swing.JPopupMenu menu = new javax.swing.JPopupMenu();
+    	javax.swing.JMenuItem moreLikeThis = new javax.swing.JMenuItem("More like this");
+    	moreLikeThis.setEnabled(history.isLoaded());
+    	moreLikeThis.addActionListener(new java.awt.event.ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				lastQuery = null;
+				lastRecentSearch = null;
+				displaySimilar(result);
+			}
+    	});
+    	menu.add(moreLikeThis);
+    	javax.swing.JMenuItem delete = new javax.swing.JMenuItem("Delete from history");
+    	delete.addActionListener(new java.awt.event.ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				history.deleteResult(result);
+				clearHistoryView();
+			}
+    	});
+    	menu.add(delete);
+    	label.setComponentPopupMenu(menu);
+    	return label;
+    }
+    
+    /**
+     * Displays the results of the history which are most similar to the given one in the history panel.
+     * @param result Result to find similar results for
+     */
+    private void displaySimilar(SearchResult result) {
+    	HistoryEvents.PanelRebuild rebuild = HistoryEvents.PanelRebuild.start("similar results");
+    	historyPanel.removeAll();
+        historyPanel.revalidate();
+        historyPanel.repaint();
+        
+        javax.swing.JLabel headLine = new javax.swing.JLabel(" Similar to: " + result.getHeadline());
+        headLine.setFont(new java.awt.Font("Arial", java.awt.Font.BOLD, 14));
+		historyPanel.add(headLine);
+		
+		for(SearchResult similar : history.collapseDuplicates(history.findSimilarResults(result, 50))) {
+			if((similar.getClickCounter() > 0) || !checkVisitedOnly.isSelected())
+				historyPanel.add(createResultLabel(similar, false));
+		}
 		
+		rebuild.finish(historyPanel);
 		collapsiblePanel1.setState(false);
-		collapsiblePanel1.validate();
+		collapsiblePanel1.revalidate();
 		collapsiblePanel1.repaint();
     }
     
     /**
-     * Helper method checking whether a text contains all the words in a query.
-     * @param query Search query
-     * @param text Text to be searched
-     * @return Does the text contain all the query words
+     * Creates a button for a search of the history, which repeats the search with the engine when clicked.
+     * Its context menu shows the work session of the search.
+     * @param search Search of the history
+     * @return Button for the history panel
      */
-    private boolean containsWords(String query, String text) {
-    	List<String> queryWords = Arrays.asList(query.toLowerCase().split(" "));
-    	List<String> textWords = Arrays.asList(text.toLowerCase().split(" "));
-    	for(String word : queryWords) {
-    		if(!textWords.contains(word))
-    			return false;
-    	}
-    	return true;
+    private javax.swing.JButton createQueryButton(QuerySearch search) {
+    	javax.swing.JButton queryBtn = new javax.swing.JButton(search.getQuery());
+    	queryBtn.addActionListener(new java.awt.event.ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				searchEngine(((JButton)e.getSource()).getText());
+			}
+    	});
+    	queryBtn.setComponentPopupMenu(createSessionMenu(search));
+    	return queryBtn;
+    }
+    
+    /**
+     * Creates the context menu offering to show the work session of a search or to delete its query.
+     * @param search Search of the history
+     * @return Context menu
+     */
+    private javax.swing.JPopupMenu createSessionMenu(final QuerySearch search) {
+    	javax.swing.JPopupMenu menu = new javax.swing.JPopupMenu();
+    	javax.swing.JMenuItem showSession = new javax.swing.JMenuItem("Show session");
+    	showSession.addActionListener(new java.awt.event.ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				SessionIndex.Session session = history.getSession(search);
+				if(session != null) {
+					lastQuery = null;
+					lastRecentSearch = null;
+					displaySession(session);
+				}
+			}
+    	});
+    	menu.add(showSession);
+    	javax.swing.JMenuItem delete = new javax.swing.JMenuItem("Delete all searches for '" + search.getQuery() + "'");
+    	delete.addActionListener(new java.awt.event.ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				history.deleteQuery(search.getQuery());
+				clearHistoryView();
+			}
+    	});
+    	menu.add(delete);
+    	return menu;
+    }
+    
+    /**
+     * Clears the history panel and refreshes the sidebar after a deletion.
+     * Deleting only records a tombstone in the history, so this is cheap enough for the Event Dispatch Thread.
+     */
+    private void clearHistoryView() {
+    	lastQuery = null;
+    	lastRecentSearch = null;
+    	historyPanel.removeAll();
+        historyPanel.revalidate();
+        historyPanel.repaint();
+    	relatedSearchesPanel.removeAll();
+    	relatedSearchesPanel.revalidate();
+    	relatedSearchesPanel.repaint();
+    	this.updateRecentSearches();
+    }
+    
+    /**
+     * Displays all searches of a work session in the history panel.
+     * @param session Session to display
+     */
+    private void displaySession(SessionIndex.Session session) {
+    	HistoryEvents.PanelRebuild rebuild = HistoryEvents.PanelRebuild.start("session");
+    	historyPanel.removeAll();
+        historyPanel.revalidate();
+        historyPanel.repaint();
+        
+        java.text.DateFormat format = java.text.DateFormat.getDateTimeInstance(
+        		java.text.DateFormat.MEDIUM, java.text.DateFormat.SHORT);
+        javax.swing.JLabel headLine = new javax.swing.JLabel(" Session " + format.format(session.getStart())
+        		+ " - " + format.format(session.getEnd()) + " (" + session.getMembers().size() + " searches)");
+        headLine.setFont(new java.awt.Font("Arial", java.awt.Font.BOLD, 14));
+		historyPanel.add(headLine);
+		
+		for(QuerySearch search : session.getMembers()) {
+			historyPanel.add(createQueryButton(search));
+			for(SearchResult result : search.getResults()) {
+				if((result.getClickCounter() > 0) || !checkVisitedOnly.isSelected())
+					historyPanel.add(createResultLabel(result, false));
+			}
+		}
+		
+		rebuild.finish(historyPanel);
+		collapsiblePanel1.setState(false);
+		collapsiblePanel1.revalidate();
+		collapsiblePanel1.repaint();
     }
     
     /**
      * Main method.
+     * Without arguments the UI is started; <code>--replay</code> runs the headless {@link BatchReplay BatchReplay}
+     * and <code>--serve</code> the local {@link HistoryService HistoryService}. <code>--export</code> and
+     * <code>--import</code> move histories in and out as NDJSON (see {@link HistoryJson HistoryJson}), and
+     * <code>--stub-server</code> starts a {@link StubEngineServer StubEngineServer} for engine latency tests.
+     * <code>--sessions</code> prints the work sessions of a history (see {@link SessionIndex SessionIndex}),
+     * <code>--dedupe</code> collapses the duplicate results of a history (see {@link DuplicateIndex DuplicateIndex})
+     * and <code>--analyze</code> reports its memory footprint (see {@link FootprintAnalyzer FootprintAnalyzer}).
      * @param args The command line arguments
      */
-    public static void main(String args[]) {
+    public static void main(String args[]) throws Exception {
+        if(args.length > 0) {
+            String[] modeArgs = Arrays.copyOfRange(args, 1, args.length);
+            switch(args[0]) {
+                case "--replay":
+                    BatchReplay.main(modeArgs);
+                    return;
+                case "--serve":
+                    HistoryService.main(modeArgs);
+                    return;
+                case "--sessions":
+                    SessionIndex.main(modeArgs);
+                    return;
+                case "--dedupe":
+                    DuplicateIndex.main(modeArgs);
+                    return;
+                case "--analyze":
+                    FootprintAnalyzer.main(modeArgs);
+                    return;
+                case "--stub-server":
+                    StubEngineServer.main(modeArgs);
+                    return;
+                case "--export":
+                case "--import":
+                    String[] jsonArgs = new String[args.length];
+                    jsonArgs[0] = args[0].substring(2);
+                    System.arraycopy(modeArgs, 0, jsonArgs, 1, modeArgs.length);
+                    HistoryJson.main(jsonArgs);
+                    return;
+                default:
+                    System.err.println("Unknown mode: " + args[0]);
+                    return;
+            }
+        }
+        
         /* Set the Nimbus look and feel */
         //<editor-fold defaultstate="collapsed" desc=" Look and feel setting code (optional) ">
         /* If Nimbus (introduced in Java SE 6) is not available, stay with the default look and feel.
@@ -468,6 +1051,9 @@ public class SearchHistoryUI extends javax.swing.JFrame {
         
         // Add a shutdown hook to save the history in case of application exit
 
+        /* Optionally measure how long the UI freezes */
+        EdtWatchdog.installFromSystemProperties();
+
         /* Create and display the form */
         java.awt.EventQueue.invokeLater(new Runnable() {
             public void run() {
@@ -480,6 +1066,7 @@ public class SearchHistoryUI extends javax.swing.JFrame {
     private SearchHistory history;
     private String lastQuery;
     private QuerySearch lastRecentSearch;
+    private QuerySearch pendingEngineSearch;
     
     private javax.swing.JPanel jPanel5;
     private javax.swing.JPanel optionsPanel;
@@ -490,6 +1077,12 @@ public class SearchHistoryUI extends javax.swing.JFrame {
     private javax.swing.JScrollPane historyScrollPane;
     private javax.swing.JScrollPane mainScrollPane;
     private javax.swing.JCheckBox checkVisitedOnly;
+    private javax.swing.JCheckBox checkIncludeArchive;
+    private javax.swing.JCheckBox checkFullText;
+    private javax.swing.JCheckBox checkSemantic;
+    private javax.swing.JCheckBox checkFuzzy;
+    private javax.swing.JComboBox<DateHistogram.Granularity> timelineGranularity;
+    private TimelinePanel timelinePanel;
     // Variables declaration - do not modify//GEN-BEGIN:variables
     private javax.swing.ButtonGroup searchButtonGroup;
     private core.CollapsiblePanel collapsiblePanel1;
@@ -501,6 +1094,8 @@ public class SearchHistoryUI extends javax.swing.JFrame {
     private javax.swing.JPanel jPanel2;
     private javax.swing.JPanel jPanel3;
     private javax.swing.JPanel recentSearchesPanel;
+    private javax.swing.JLabel jLabel4;
+    private javax.swing.JPanel relatedSearchesPanel;
     private javax.swing.JScrollPane jScrollPane1;
     private javax.swing.JSeparator jSeparator1;
     private javax.swing.JPanel quicklinkPanel;
@@ -1,25 +1,56 @@
 package core;
 
 import javax.json.JsonObject;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.Date;
 
 /**
  * Represents a single search result.
  * Stores all the relevant information including a click counter to obtain
  * information about the visits from the user.
+ * <p>
+ * URL, headline and summary make up most of the memory of a history, but are hardly ever read. They are
+ * therefore kept off-heap in the shared {@link TextArena TextArena} and only decoded on access. The result keeps
+ * the arena chunks of its texts, so a read never depends on the result itself still being reachable.
+ * The serialized form is unchanged, so existing history files remain readable.
  * @author Florian Bethe, Tino Liebusch
  *
  */
 public class SearchResult implements Serializable {
 	private static final long serialVersionUID = 483580055070483160L;
 	
+	/**
+	 * The serialized fields; the texts are written as plain objects just like before they moved off-heap.
+	 */
+	private static final ObjectStreamField[] serialPersistentFields = {
+		new ObjectStreamField("query", String.class),
+		new ObjectStreamField("url", URL.class),
+		new ObjectStreamField("headline", String.class),
+		new ObjectStreamField("summary", String.class),
+		new ObjectStreamField("clickCounter", Integer.TYPE)
+	};
+	
 	private String query;
-	private URL url;
-	private String headline;
-	private String summary;
+	private transient TextArena.Chunk urlChunk;
+	private transient int urlOffset;
+	private transient int urlLength;
+	private transient TextArena.Chunk headlineChunk;
+	private transient int headlineOffset;
+	private transient int headlineLength;
+	private transient TextArena.Chunk summaryChunk;
+	private transient int summaryOffset;
+	private transient int summaryLength;
 	private int clickCounter;
+	// Search of the history containing the result, so indexes returning bare results can check deletions
+	private transient QuerySearch owner;
+	// Time of the stored search a stale copy was taken from (null for results of the engine)
+	private transient Date storedAt;
 	
 	/**
 	 * Constructor.
@@ -30,11 +61,56 @@ public class SearchResult implements Serializable {
 	 * @param summary Summary (created by the engine) of the result page
 	 */
 	public SearchResult(String query, URL url, String headline, String summary) {
+		this(query, url, headline, summary, 0);
+	}
+	
+	/**
+	 * Constructor.
+	 * Restores a search result including its click counter, e.g. when importing a history.
+	 * @param query Search query which produced the result
+	 * @param url URL of the result page
+	 * @param headline Headline of the result page
+	 * @param summary Summary (created by the engine) of the result page
+	 * @param clickCounter Amount of times the result was clicked
+	 */
+	public SearchResult(String query, URL url, String headline, String summary, int clickCounter) {
 		this.query = query;
-		this.url = url;
-		this.headline = headline;
-		this.summary = summary;
-		this.clickCounter = 0;
+		this.storeTexts(url.toString(), headline, summary);
+		this.clickCounter = clickCounter;
+	}
+	
+	/**
+	 * Constructor.
+	 * Creates a copy of a result for another search, with a fresh click counter. The texts are shared
+	 * with the original in the off-heap arena instead of being stored again.
+	 * @param template Result to copy
+	 * @param query Search query of the new result
+	 */
+	SearchResult(SearchResult template, String query) {
+		this(template, query, 0);
+	}
+	
+	/**
+	 * Constructor.
+	 * Creates a copy of a result for another search with the given click counter, sharing the texts
+	 * with the original in the off-heap arena.
+	 * @param template Result to copy
+	 * @param query Search query of the new result
+	 * @param clickCounter Amount of times the new result was clicked
+	 */
+	SearchResult(SearchResult template, String query, int clickCounter) {
+		this.query = query;
+		this.urlChunk = template.urlChunk;
+		this.urlOffset = template.urlOffset;
+		this.urlLength = template.urlLength;
+		this.headlineChunk = template.headlineChunk;
+		this.headlineOffset = template.headlineOffset;
+		this.headlineLength = template.headlineLength;
+		this.summaryChunk = template.summaryChunk;
+		this.summaryOffset = template.summaryOffset;
+		this.summaryLength = template.summaryLength;
+		this.clickCounter = clickCounter;
+		TextArena.shared().share(this, urlChunk, headlineChunk, summaryChunk);
 	}
 	
 	/**
@@ -62,7 +138,20 @@ public class SearchResult implements Serializable {
 	 * @return URL of the page
 	 */
 	public URL getUrl() {
-		return url;
+		try {
+			return new URL(this.getUrlText());
+		} catch(MalformedURLException e) {
+			// Can't happen, the text was obtained from a valid URL
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	/**
+	 * Gets the result page's URL as text, without parsing it.
+	 * @return URL string of the page
+	 */
+	String getUrlText() {
+		return TextArena.shared().load(urlChunk, urlOffset, urlLength);
 	}
 	
 	/**
@@ -70,7 +159,7 @@ public class SearchResult implements Serializable {
 	 * @return Headline of the page
 	 */
 	public String getHeadline() {
-		return headline;
+		return TextArena.shared().load(headlineChunk, headlineOffset, headlineLength);
 	}
 	
 	/**
@@ -78,7 +167,7 @@ public class SearchResult implements Serializable {
 	 * @return Summary of the page
 	 */
 	public String getSummary() {
-		return summary;
+		return TextArena.shared().load(summaryChunk, summaryOffset, summaryLength);
 	}
 	
 	/**
@@ -97,4 +186,145 @@ public class SearchResult implements Serializable {
 	public void incrementClickCounter() {
 		this.clickCounter++;
 	}
+	
+	/**
+	 * Adds the clicks of a duplicate of this result which is dropped in its favour.
+	 * @param clicks Clicks of the duplicate
+	 */
+	void addClicks(int clicks) {
+		this.clickCounter += clicks;
+	}
+	
+	/**
+	 * Creates a stale copy of a stored result for a search which couldn't reach its engine.
+	 * The texts are shared with the stored result; the click counter starts at zero.
+	 * @param query Query of the search the copy is for
+	 * @param storedAt Time of the stored search the result was taken from
+	 * @return Stale copy
+	 */
+	SearchResult staleCopy(String query, Date storedAt) {
+		SearchResult copy = new SearchResult(this, query);
+		copy.storedAt = storedAt;
+		return copy;
+	}
+	
+	/**
+	 * Checks whether the result was taken from the history because the engine couldn't be reached.
+	 * @return Is the result possibly outdated
+	 */
+	public boolean isStale() {
+		return storedAt != null;
+	}
+	
+	/**
+	 * Gets the time of the stored search a stale result was taken from.
+	 * @return Time of the stored search, or null for results of the engine
+	 */
+	public Date getStoredAt() {
+		return storedAt;
+	}
+	
+	/**
+	 * Gets the search of the history containing the result.
+	 * @return Containing search, or null if the result hasn't been added to a history
+	 */
+	QuerySearch getOwner() {
+		return owner;
+	}
+	
+	/**
+	 * Sets the search of the history containing the result.
+	 * @param owner Containing search
+	 */
+	void setOwner(QuerySearch owner) {
+		this.owner = owner;
+	}
+	
+	/**
+	 * Checks whether another result shows the same page with the same headline and summary.
+	 * Click counters and queries are not compared.
+	 * @param other Result to compare with
+	 * @return Are URL, headline and summary equal
+	 */
+	boolean hasSameContent(SearchResult other) {
+		if((urlChunk == other.urlChunk) && (urlOffset == other.urlOffset) && (headlineChunk == other.headlineChunk)
+				&& (headlineOffset == other.headlineOffset) && (summaryChunk == other.summaryChunk)
+				&& (summaryOffset == other.summaryOffset))
+			return true;
+		return (urlLength == other.urlLength) && (headlineLength == other.headlineLength)
+				&& (summaryLength == other.summaryLength) && this.getUrlText().equals(other.getUrlText())
+				&& this.getHeadline().equals(other.getHeadline()) && this.getSummary().equals(other.getSummary());
+	}
+	
+	/**
+	 * Gets a hash of URL, headline and summary consistent with {@link #hasSameContent(SearchResult)}.
+	 * @return Content hash
+	 */
+	int contentHash() {
+		return (this.getUrlText().hashCode() * 31 + this.getHeadline().hashCode()) * 31
+				+ this.getSummary().hashCode();
+	}
+	
+	/**
+	 * Gets the arena handles of URL, headline and summary, e.g. to tell texts shared with a copy apart from
+	 * texts stored twice.
+	 * @return Handles in that order
+	 */
+	long[] getTextHandles() {
+		return new long[] {handle(urlChunk, urlOffset), handle(headlineChunk, headlineOffset),
+				handle(summaryChunk, summaryOffset)};
+	}
+	
+	private static long handle(TextArena.Chunk chunk, int offset) {
+		return (chunk == null) ? TextArena.EMPTY : chunk.handle(offset);
+	}
+
+	/**
+	 * Gets the encoded lengths of URL, headline and summary in the arena.
+	 * @return Lengths in UTF-8 bytes, in the order of {@link #getTextHandles()}
+	 */
+	int[] getTextLengths() {
+		return new int[] {urlLength, headlineLength, summaryLength};
+	}
+
+	/**
+	 * Moves the texts of the result into the off-heap arena.
+	 * @param url URL string
+	 * @param headline Headline
+	 * @param summary Summary
+	 */
+	private void storeTexts(String url, String headline, String summary) {
+		TextArena arena = TextArena.shared();
+		long urlHandle = arena.store(url);
+		long headlineHandle = arena.store(headline);
+		long summaryHandle = arena.store(summary);
+		urlChunk = arena.chunk(urlHandle);
+		urlOffset = TextArena.offset(urlHandle);
+		urlLength = TextArena.length(url);
+		headlineChunk = arena.chunk(headlineHandle);
+		headlineOffset = TextArena.offset(headlineHandle);
+		headlineLength = TextArena.length(headline);
+		summaryChunk = arena.chunk(summaryHandle);
+		summaryOffset = TextArena.offset(summaryHandle);
+		summaryLength = TextArena.length(summary);
+		arena.register(this, urlChunk, headlineChunk, summaryChunk);
+	}
+	
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		ObjectOutputStream.PutField fields = out.putFields();
+		fields.put("query", query);
+		fields.put("url", this.getUrl());
+		fields.put("headline", this.getHeadline());
+		fields.put("summary", this.getSummary());
+		fields.put("clickCounter", clickCounter);
+		out.writeFields();
+	}
+	
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		ObjectInputStream.GetField fields = in.readFields();
+		query = (String) fields.get("query", null);
+		URL url = (URL) fields.get("url", null);
+		this.storeTexts(url.toString(), (String) fields.get("headline", ""), (String) fields.get("summary", ""));
+		clickCounter = fields.get("clickCounter", 0);
+	}
 }
@@ -0,0 +1,636 @@
+package core;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Similarity search over the results in the history, finding pages about the same topic even if they
+ * share no words with the query.
+ * Every distinct page (by normalized URL) is a hashed TF-IDF vector of its headline and summary terms,
+ * quantized to one byte per dimension. The vectors are kept in a Hierarchical Navigable Small World graph
+ * (HNSW), an approximate nearest-neighbour index whose search visits only a few thousand vectors even for
+ * millions of pages. Pages are inserted as searches are added, by a background thread so that neither adding
+ * searches nor loading the history waits for the graph; queries see the pages inserted so far. Pages no
+ * longer in the history are skipped in the results, and the graph is rebuilt once they make up half of it.
+ * <p>
+ * The inverse document frequency is taken at the time a page is inserted, so the vectors of older pages
+ * aren't recomputed as the history grows. The index is stored as a sidecar of the history; a stale sidecar
+ * is reconciled with the history on load, so it is only rewritten once a tenth of it has changed.
+ * @author Florian Bethe, Tino Liebusch
+ */
+public class SemanticIndex implements HistoryListener, Serializable {
+	private static final long serialVersionUID = 3349718512467925042L;
+	
+	// Dimensions of the hashed vectors (power of two)
+	private static final int DIMENSIONS = 256;
+	private static final float HEADLINE_WEIGHT = 2.0f;
+	// Links per node on the upper levels and on level 0
+	private static final int M = 16;
+	private static final int M0 = 2 * M;
+	private static final int EF_CONSTRUCTION = 64;
+	private static final int EF_SEARCH = 64;
+	private static final double LEVEL_FACTOR = 1.0 / Math.log(M);
+	private static final int INITIAL_CAPACITY = 64;
+	
+	private int count = 0;
+	private String[] urls = new String[INITIAL_CAPACITY];
+	private byte[] vectors = new byte[INITIAL_CAPACITY * DIMENSIONS];
+	// Per node: number of links followed by the links on level 0
+	private int[] links0 = new int[INITIAL_CAPACITY * (M0 + 1)];
+	// Per node: the same for every level above 0 (null for nodes on level 0 only)
+	private int[][] upperLinks = new int[INITIAL_CAPACITY][];
+	private int entryPoint = -1;
+	private int maxLevel = -1;
+	// Document frequency per term and number of inserted pages
+	private final Map<String, Integer> documentFrequency = new HashMap<String, Integer>();
+	private int documents = 0;
+	
+	// Rebuilt from the history: latest result and number of results in the history per node
+	private transient Map<String, Integer> nodes = new HashMap<String, Integer>();
+	private transient SearchResult[] results = new SearchResult[INITIAL_CAPACITY];
+	private transient int[] references = new int[INITIAL_CAPACITY];
+	private transient int live = 0;
+	private transient int changes = 0;
+	// Deleted pages have been forgotten since the last save
+	private transient boolean forgotten = false;
+	private transient Random random = new Random();
+	private transient int[] visited = new int[INITIAL_CAPACITY];
+	private transient int visitMark = 0;
+	private transient ThreadPoolExecutor updates = newUpdateExecutor();
+	
+	@Override
+	public void searchAdded(final QuerySearch search) {
+		updates.execute(new Runnable() {
+			@Override
+			public void run() {
+				addResults(search.getResults());
+			}
+		});
+	}
+	
+	@Override
+	public void searchesRemoved(final Collection<QuerySearch> searches) {
+		final List<QuerySearch> removed = new ArrayList<QuerySearch>(searches);
+		updates.execute(new Runnable() {
+			@Override
+			public void run() {
+				removeResults(removed, false);
+			}
+		});
+	}
+	
+	/**
+	 * Deleted pages are also forgotten by URL, so they can't be found anymore and don't end up in the stored
+	 * index; their nodes only keep routing searches through the graph until it is rebuilt.
+	 */
+	@Override
+	public void searchesDeleted(final Collection<QuerySearch> searches) {
+		final List<QuerySearch> deleted = new ArrayList<QuerySearch>(searches);
+		updates.execute(new Runnable() {
+			@Override
+			public void run() {
+				removeResults(deleted, true);
+			}
+		});
+	}
+	
+	/**
+	 * Accounts for the pages which aren't referenced by the history after a stored index has been fed the
+	 * loaded history, e.g. because their searches were archived. Like removed pages, they are skipped in the
+	 * results and only dropped once they make up half of the graph.
+	 * Like all updates, this runs after the updates queued before.
+	 */
+	public void reconcile() {
+		updates.execute(new Runnable() {
+			@Override
+			public void run() {
+				synchronized(SemanticIndex.this) {
+					changes += count - live;
+					if(live * 2 < count)
+						rebuild();
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Inserts the pages of new results, or counts another reference to known pages.
+	 */
+	private synchronized void addResults(List<SearchResult> added) {
+		for(SearchResult result : added) {
+			String url = UrlNormalizer.normalize(result.getUrl());
+			Integer node = nodes.get(url);
+			if(node == null) {
+				byte[] vector = this.vectorize(result, true);
+				if(vector == null)
+					continue;
+				node = this.insert(url, vector);
+			}
+			if(references[node]++ == 0)
+				live++;
+			results[node] = result;
+		}
+	}
+	
+	/**
+	 * Drops the references of removed results to their pages.
+	 * @param forget Also forget the URLs of pages which are no longer referenced
+	 */
+	private synchronized void removeResults(List<QuerySearch> searches, boolean forget) {
+		for(QuerySearch search : searches) {
+			for(SearchResult result : search.getResults()) {
+				String url = UrlNormalizer.normalize(result.getUrl());
+				Integer node = nodes.get(url);
+				if((node != null) && (references[node] > 0) && (--references[node] == 0)) {
+					results[node] = null;
+					live--;
+					changes++;
+					if(forget) {
+						nodes.remove(url);
+						urls[node] = null;
+						forgotten = true;
+					}
+				}
+			}
+		}
+		if(live * 2 < count)
+			this.rebuild();
+	}
+	
+	/**
+	 * Creates the executor applying the updates in order; its thread only runs while there are updates.
+	 */
+	private static ThreadPoolExecutor newUpdateExecutor() {
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "semantic-index");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+	
+	/**
+	 * Finds the pages most similar to a result.
+	 * @param result Result to find similar pages for
+	 * @param maxAmount Maximum number of results
+	 * @return Results of other pages, most similar first
+	 */
+	public synchronized List<SearchResult> findSimilar(SearchResult result, int maxAmount) {
+		Integer node = nodes.get(UrlNormalizer.normalize(result.getUrl()));
+		byte[] vector;
+		if(node != null)
+			vector = Arrays.copyOfRange(vectors, node * DIMENSIONS, (node + 1) * DIMENSIONS);
+		else
+			vector = this.vectorize(result, false);
+		return this.toResults(vector, maxAmount, (node == null) ? -1 : node);
+	}
+	
+	/**
+	 * Finds the pages most similar to a text, e.g. a query.
+	 * @param text Text to find similar pages for
+	 * @param maxAmount Maximum number of results
+	 * @return Results, most similar first
+	 */
+	public synchronized List<SearchResult> search(String text, int maxAmount) {
+		return this.toResults(this.vectorize(text), maxAmount, -1);
+	}
+	
+	/**
+	 * Gets the number of indexed pages in the history.
+	 * @return Number of pages
+	 */
+	public synchronized int size() {
+		return live;
+	}
+	
+	/**
+	 * Checks whether enough has changed since the index was last saved to save it again.
+	 * @return Should the index be saved
+	 */
+	synchronized boolean needsSave() {
+		return forgotten || ((changes > 0) && (changes * 10L >= count));
+	}
+	
+	/**
+	 * Notes that the index has been saved.
+	 */
+	synchronized void markSaved() {
+		changes = 0;
+		forgotten = false;
+	}
+	
+	/**
+	 * Computes the vector of a result from its headline and summary.
+	 * @param result Result to vectorize
+	 * @param count Count the result's terms for the document frequencies
+	 * @return Quantized vector, or null if the result has no terms
+	 */
+	private byte[] vectorize(SearchResult result, boolean count) {
+		Map<String, Float> frequencies = new HashMap<String, Float>();
+		addTerms(frequencies, result.getHeadline(), HEADLINE_WEIGHT);
+		addTerms(frequencies, result.getSummary(), 1.0f);
+		if(count && !frequencies.isEmpty()) {
+			documents++;
+			for(String term : frequencies.keySet()) {
+				Integer df = documentFrequency.get(term);
+				documentFrequency.put(term, (df == null) ? 1 : df + 1);
+			}
+		}
+		return this.toVector(frequencies);
+	}
+	
+	/**
+	 * Computes the vector of a text.
+	 */
+	private byte[] vectorize(String text) {
+		Map<String, Float> frequencies = new HashMap<String, Float>();
+		addTerms(frequencies, text, 1.0f);
+		return this.toVector(frequencies);
+	}
+	
+	private static void addTerms(Map<String, Float> frequencies, String text, float weight) {
+		if(text == null)
+			return;
+		for(String term : TextAnalyzer.terms(text)) {
+			Float tf = frequencies.get(term);
+			frequencies.put(term, (tf == null) ? weight : tf + weight);
+		}
+	}
+	
+	/**
+	 * Hashes TF-IDF weighted terms into a vector, normalizes it to unit length and quantizes it to bytes.
+	 * Each term is added with a hashed sign, so collisions cancel out on average instead of adding up.
+	 */
+	private byte[] toVector(Map<String, Float> frequencies) {
+		float[] vector = new float[DIMENSIONS];
+		for(Map.Entry<String, Float> entry : frequencies.entrySet()) {
+			Integer df = documentFrequency.get(entry.getKey());
+			double idf = Math.log((documents + 1.0) / (((df == null) ? 0 : df) + 1.0)) + 1.0;
+			double weight = (1.0 + Math.log(entry.getValue())) * idf;
+			int hash = mix(entry.getKey().hashCode());
+			vector[hash & (DIMENSIONS - 1)] += (hash < 0) ? -weight : weight;
+		}
+		double norm = 0.0;
+		for(float value : vector)
+			norm += value * value;
+		if(norm == 0.0)
+			return null;
+		
+		double scale = 127.0 / Math.sqrt(norm);
+		byte[] quantized = new byte[DIMENSIONS];
+		for(int i = 0; i < DIMENSIONS; i++)
+			quantized[i] = (byte) Math.round(vector[i] * scale);
+		return quantized;
+	}
+	
+	/**
+	 * Spreads the bits of a string hash (finalizer of MurmurHash3).
+	 */
+	private static int mix(int hash) {
+		hash ^= hash >>> 16;
+		hash *= 0x85ebca6b;
+		hash ^= hash >>> 13;
+		hash *= 0xc2b2ae35;
+		hash ^= hash >>> 16;
+		return hash;
+	}
+	
+	/**
+	 * Similarity of a vector to a node: the dot product of the quantized vectors.
+	 */
+	private int similarity(byte[] vector, int node) {
+		int offset = node * DIMENSIONS;
+		int sum = 0;
+		for(int i = 0; i < DIMENSIONS; i++)
+			sum += vector[i] * vectors[offset + i];
+		return sum;
+	}
+	
+	private int similarity(int a, int b) {
+		int offsetA = a * DIMENSIONS;
+		int offsetB = b * DIMENSIONS;
+		int sum = 0;
+		for(int i = 0; i < DIMENSIONS; i++)
+			sum += vectors[offsetA + i] * vectors[offsetB + i];
+		return sum;
+	}
+	
+	/**
+	 * Packs a similarity and a node into a long which orders by similarity.
+	 */
+	private static long pack(int similarity, int node) {
+		return ((long) similarity << 32) | node;
+	}
+	
+	private static int nodeOf(long packed) {
+		return (int) packed;
+	}
+	
+	/**
+	 * Searches the graph and converts the nearest live nodes into results.
+	 */
+	private List<SearchResult> toResults(byte[] vector, int maxAmount, int exclude) {
+		if((vector == null) || (entryPoint < 0) || (maxAmount <= 0))
+			return Collections.emptyList();
+		
+		int ep = entryPoint;
+		for(int level = maxLevel; level > 0; level--)
+			ep = this.greedy(vector, ep, level);
+		long[] nearest = this.searchLayer(vector, ep, Math.max(EF_SEARCH, maxAmount + 1), 0);
+		
+		List<SearchResult> similar = new ArrayList<SearchResult>(maxAmount);
+		for(long packed : nearest) {
+			int node = nodeOf(packed);
+			if((node != exclude) && (references[node] > 0)) {
+				similar.add(results[node]);
+				if(similar.size() == maxAmount)
+					break;
+			}
+		}
+		return similar;
+	}
+	
+	/**
+	 * Adds a page to the graph.
+	 * @return Node of the page
+	 */
+	private int insert(String url, byte[] vector) {
+		int node = count++;
+		this.ensureCapacity(count);
+		urls[node] = url;
+		System.arraycopy(vector, 0, vectors, node * DIMENSIONS, DIMENSIONS);
+		nodes.put(url, node);
+		changes++;
+		this.link(node, (int) (-Math.log(1.0 - random.nextDouble()) * LEVEL_FACTOR));
+		return node;
+	}
+	
+	/**
+	 * Connects a node which already has its vector to its nearest neighbours on every level up to its own.
+	 */
+	private void link(int node, int level) {
+		links0[node * (M0 + 1)] = 0;
+		upperLinks[node] = (level > 0) ? new int[level * (M + 1)] : null;
+		if(entryPoint < 0) {
+			entryPoint = node;
+			maxLevel = level;
+			return;
+		}
+		
+		byte[] vector = Arrays.copyOfRange(vectors, node * DIMENSIONS, (node + 1) * DIMENSIONS);
+		int ep = entryPoint;
+		for(int l = maxLevel; l > level; l--)
+			ep = this.greedy(vector, ep, l);
+		for(int l = Math.min(level, maxLevel); l >= 0; l--) {
+			long[] candidates = this.searchLayer(vector, ep, EF_CONSTRUCTION, l);
+			int[] neighbours = this.selectNeighbours(candidates, (l == 0) ? M0 : M);
+			this.setLinks(node, l, neighbours, neighbours.length);
+			for(int neighbour : neighbours)
+				this.addLink(neighbour, node, l);
+			ep = nodeOf(candidates[0]);
+		}
+		if(level > maxLevel) {
+			maxLevel = level;
+			entryPoint = node;
+		}
+	}
+	
+	/**
+	 * Walks from a node to the most similar node reachable on a level.
+	 */
+	private int greedy(byte[] vector, int ep, int level) {
+		int current = ep;
+		int best = this.similarity(vector, current);
+		boolean improved = true;
+		while(improved) {
+			improved = false;
+			int[] links = this.links(current, level);
+			int offset = this.linkOffset(current, level);
+			for(int i = 1; i <= links[offset]; i++) {
+				int neighbour = links[offset + i];
+				int similarity = this.similarity(vector, neighbour);
+				if(similarity > best) {
+					best = similarity;
+					current = neighbour;
+					improved = true;
+				}
+			}
+		}
+		return current;
+	}
+	
+	/**
+	 * Beam search on one level.
+	 * @return Up to ef nodes (packed with their similarity), most similar first
+	 */
+	private long[] searchLayer(byte[] vector, int ep, int ef, int level) {
+		if(++visitMark == 0) {
+			Arrays.fill(visited, 0);
+			visitMark = 1;
+		}
+		PriorityQueue<Long> candidates = new PriorityQueue<Long>(ef, Collections.reverseOrder());
+		PriorityQueue<Long> found = new PriorityQueue<Long>(ef + 1);
+		long start = pack(this.similarity(vector, ep), ep);
+		visited[ep] = visitMark;
+		candidates.add(start);
+		found.add(start);
+		
+		while(!candidates.isEmpty()) {
+			long candidate = candidates.poll();
+			if((found.size() >= ef) && (candidate < found.peek()))
+				break;
+			int node = nodeOf(candidate);
+			int[] links = this.links(node, level);
+			int offset = this.linkOffset(node, level);
+			for(int i = 1; i <= links[offset]; i++) {
+				int neighbour = links[offset + i];
+				if(visited[neighbour] == visitMark)
+					continue;
+				visited[neighbour] = visitMark;
+				long packed = pack(this.similarity(vector, neighbour), neighbour);
+				if((found.size() < ef) || (packed > found.peek())) {
+					candidates.add(packed);
+					found.add(packed);
+					if(found.size() > ef)
+						found.poll();
+				}
+			}
+		}
+		
+		long[] nearest = new long[found.size()];
+		for(int i = nearest.length - 1; i >= 0; i--)
+			nearest[i] = found.poll();
+		return nearest;
+	}
+	
+	/**
+	 * Chooses the links of a node from candidates ordered by similarity: a candidate is only taken if it is
+	 * more similar to the node than to every candidate taken before, so the links point in different
+	 * directions. Remaining slots are filled with the most similar skipped candidates.
+	 */
+	private int[] selectNeighbours(long[] candidates, int max) {
+		int[] selected = new int[Math.min(max, candidates.length)];
+		int taken = 0;
+		boolean[] skipped = new boolean[candidates.length];
+		for(int i = 0; (i < candidates.length) && (taken < selected.length); i++) {
+			int candidate = nodeOf(candidates[i]);
+			int similarity = (int) (candidates[i] >> 32);
+			boolean diverse = true;
+			for(int j = 0; diverse && (j < taken); j++)
+				diverse = this.similarity(candidate, selected[j]) < similarity;
+			if(diverse)
+				selected[taken++] = candidate;
+			else
+				skipped[i] = true;
+		}
+		for(int i = 0; (i < candidates.length) && (taken < selected.length); i++) {
+			if(skipped[i])
+				selected[taken++] = nodeOf(candidates[i]);
+		}
+		return selected;
+	}
+	
+	/**
+	 * Adds a link from a node. If the node already has the maximum number of links, the new link replaces
+	 * the least similar one (or is dropped if it is the least similar itself).
+	 */
+	private void addLink(int node, int target, int level) {
+		int max = (level == 0) ? M0 : M;
+		int[] links = this.links(node, level);
+		int offset = this.linkOffset(node, level);
+		int size = links[offset];
+		if(size < max) {
+			links[offset + size + 1] = target;
+			links[offset]++;
+			return;
+		}
+		
+		long[] candidates = new long[size + 1];
+		for(int i = 0; i < size; i++)
+			candidates[i] = pack(this.similarity(node, links[offset + i + 1]), links[offset + i + 1]);
+		candidates[size] = pack(this.similarity(node, target), target);
+		Arrays.sort(candidates);
+		for(int i = 0, j = candidates.length - 1; i < j; i++, j--) {
+			long swap = candidates[i];
+			candidates[i] = candidates[j];
+			candidates[j] = swap;
+		}
+		int[] neighbours = this.selectNeighbours(candidates, max);
+		this.setLinks(node, level, neighbours, neighbours.length);
+	}
+	
+	private void setLinks(int node, int level, int[] neighbours, int size) {
+		int[] links = this.links(node, level);
+		int offset = this.linkOffset(node, level);
+		links[offset] = size;
+		System.arraycopy(neighbours, 0, links, offset + 1, size);
+	}
+	
+	private int[] links(int node, int level) {
+		return (level == 0) ? links0 : upperLinks[node];
+	}
+	
+	private int linkOffset(int node, int level) {
+		return (level == 0) ? node * (M0 + 1) : (level - 1) * (M + 1);
+	}
+	
+	/**
+	 * Rebuilds the graph from the pages still in the history.
+	 */
+	private void rebuild() {
+		int oldCount = count;
+		String[] oldUrls = urls;
+		byte[] oldVectors = vectors;
+		int[][] oldUpper = upperLinks;
+		SearchResult[] oldResults = results;
+		int[] oldReferences = references;
+		
+		int capacity = Math.max(INITIAL_CAPACITY, live);
+		count = 0;
+		urls = new String[capacity];
+		vectors = new byte[capacity * DIMENSIONS];
+		links0 = new int[capacity * (M0 + 1)];
+		upperLinks = new int[capacity][];
+		results = new SearchResult[capacity];
+		references = new int[capacity];
+		visited = new int[capacity];
+		visitMark = 0;
+		nodes.clear();
+		entryPoint = -1;
+		maxLevel = -1;
+		
+		for(int old = 0; old < oldCount; old++) {
+			if(oldReferences[old] == 0)
+				continue;
+			int node = count++;
+			urls[node] = oldUrls[old];
+			System.arraycopy(oldVectors, old * DIMENSIONS, vectors, node * DIMENSIONS, DIMENSIONS);
+			results[node] = oldResults[old];
+			references[node] = oldReferences[old];
+			nodes.put(urls[node], node);
+			// Nodes keep their level, so the shape of the graph stays the same
+			this.link(node, (oldUpper[old] == null) ? 0 : oldUpper[old].length / (M + 1));
+		}
+		live = count;
+		changes = Math.max(changes, 1);
+	}
+	
+	private void ensureCapacity(int capacity) {
+		if(capacity <= urls.length)
+			return;
+		int grown = Math.max(capacity, urls.length * 2);
+		urls = Arrays.copyOf(urls, grown);
+		vectors = Arrays.copyOf(vectors, grown * DIMENSIONS);
+		links0 = Arrays.copyOf(links0, grown * (M0 + 1));
+		upperLinks = Arrays.copyOf(upperLinks, grown);
+		results = Arrays.copyOf(results, grown);
+		references = Arrays.copyOf(references, grown);
+		visited = Arrays.copyOf(visited, grown);
+	}
+	
+	private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+		// Only the used part of the arrays is written
+		urls = Arrays.copyOf(urls, Math.max(1, count));
+		vectors = Arrays.copyOf(vectors, Math.max(1, count) * DIMENSIONS);
+		links0 = Arrays.copyOf(links0, Math.max(1, count) * (M0 + 1));
+		upperLinks = Arrays.copyOf(upperLinks, Math.max(1, count));
+		results = Arrays.copyOf(results, urls.length);
+		references = Arrays.copyOf(references, urls.length);
+		visited = Arrays.copyOf(visited, urls.length);
+		out.defaultWriteObject();
+	}
+	
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		nodes = new HashMap<String, Integer>(count * 2);
+		for(int node = 0; node < count; node++) {
+			if(urls[node] != null)
+				nodes.put(urls[node], node);
+		}
+		results = new SearchResult[urls.length];
+		references = new int[urls.length];
+		visited = new int[urls.length];
+		random = new Random();
+		updates = newUpdateExecutor();
+	}
+}
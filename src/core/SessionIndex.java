@@ -0,0 +1,396 @@
+package core;
+
+import java.io.IOException;
+import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Groups the searches of the history into work sessions as they are added.
+ * A search joins the session next to it in time if it follows within a short continuation gap, or within
+ * a longer gap if enough of its query terms already occur in the session (a reformulation of the same need).
+ * Otherwise it starts a new session. Sessions are looked up by id or by any of their searches.
+ * <p>
+ * Session ids are assigned in the order the sessions are created and are not persisted; the index is rebuilt
+ * from the history on startup. {@link #sessionize(Iterator, Consumer)} runs the same rules as a one-pass
+ * streaming job over histories too large to keep in memory.
+ * @author Florian Bethe, Tino Liebusch
+ */
+public class SessionIndex implements HistoryListener {
+	public static final long DEFAULT_CONTINUATION_GAP = TimeUnit.MINUTES.toMillis(5);
+	public static final long DEFAULT_MAX_GAP = TimeUnit.MINUTES.toMillis(30);
+	public static final double DEFAULT_MIN_OVERLAP = 0.3;
+	
+	private final long continuationGap;
+	private final long maxGap;
+	private final double minOverlap;
+	private final TreeSet<Session> sessions = new TreeSet<Session>(new Comparator<Session>() {
+		@Override
+		public int compare(Session a, Session b) {
+			int cmp = Long.compare(a.start, b.start);
+			return (cmp != 0) ? cmp : Integer.compare(a.id, b.id);
+		}
+	});
+	private final Map<Integer, Session> byId = new HashMap<Integer, Session>();
+	private final Map<QuerySearch, Session> bySearch = new IdentityHashMap<QuerySearch, Session>();
+	private int nextId = 1;
+	
+	/**
+	 * Default constructor.
+	 * Uses a continuation gap of 5 minutes and a maximum gap of 30 minutes for related queries.
+	 */
+	public SessionIndex() {
+		this(DEFAULT_CONTINUATION_GAP, DEFAULT_MAX_GAP, DEFAULT_MIN_OVERLAP);
+	}
+	
+	/**
+	 * Constructor.
+	 * @param continuationGap Gap in milliseconds within which any search continues a session
+	 * @param maxGap Gap in milliseconds within which a search with overlapping terms continues a session
+	 * @param minOverlap Share of the query terms (0-1) which has to occur in the session for the longer gap
+	 */
+	public SessionIndex(long continuationGap, long maxGap, double minOverlap) {
+		this.continuationGap = continuationGap;
+		this.maxGap = Math.max(continuationGap, maxGap);
+		this.minOverlap = minOverlap;
+	}
+	
+	@Override
+	public synchronized void searchAdded(QuerySearch search) {
+		long time = search.getTimestamp().getTime();
+		List<String> terms = TextAnalyzer.terms(search.getQuery());
+		
+		// Only the sessions directly before and after the search in time can take it
+		Session probe = new Session(Integer.MAX_VALUE, time);
+		Session best = null;
+		long bestGap = Long.MAX_VALUE;
+		for(Session candidate : new Session[] { sessions.floor(probe), sessions.higher(probe) }) {
+			if(candidate == null)
+				continue;
+			long gap = candidate.gapTo(time);
+			if((gap < bestGap) && this.accepts(candidate, gap, terms)) {
+				best = candidate;
+				bestGap = gap;
+			}
+		}
+		
+		if(best == null) {
+			best = new Session(nextId++, time);
+			byId.put(best.id, best);
+		} else {
+			sessions.remove(best);
+		}
+		best.add(search, terms);
+		sessions.add(best);
+		bySearch.put(search, best);
+	}
+	
+	@Override
+	public synchronized void searchesRemoved(Collection<QuerySearch> searches) {
+		for(QuerySearch search : searches) {
+			Session session = bySearch.remove(search);
+			if(session == null)
+				continue;
+			sessions.remove(session);
+			session.remove(search);
+			if(session.members.isEmpty())
+				byId.remove(session.id);
+			else
+				sessions.add(session);
+		}
+	}
+	
+	/**
+	 * Gets the session a search belongs to.
+	 * @param search Search of the history
+	 * @return Snapshot of the session, or null if the search isn't indexed
+	 */
+	public synchronized Session getSession(QuerySearch search) {
+		Session session = bySearch.get(search);
+		return (session == null) ? null : session.copy();
+	}
+	
+	/**
+	 * Gets a session by its id.
+	 * @param id Session id
+	 * @return Snapshot of the session, or null if there is no such session
+	 */
+	public synchronized Session getSession(int id) {
+		Session session = byId.get(id);
+		return (session == null) ? null : session.copy();
+	}
+	
+	/**
+	 * Gets the number of sessions.
+	 * @return Number of sessions
+	 */
+	public synchronized int size() {
+		return byId.size();
+	}
+	
+	/**
+	 * Checks whether a session can take a search at the given distance.
+	 */
+	private boolean accepts(Session session, long gap, List<String> terms) {
+		if(gap <= continuationGap)
+			return true;
+		if((gap > maxGap) || terms.isEmpty())
+			return false;
+		int shared = 0;
+		for(String term : terms) {
+			if(session.terms.containsKey(term))
+				shared++;
+		}
+		return shared >= minOverlap * terms.size();
+	}
+	
+	/**
+	 * Emits and forgets all sessions which ended too long before the given time to take any more searches.
+	 * Used by the streaming job, whose input is ordered by date.
+	 */
+	private void closeBefore(long time, Consumer<Session> closed) {
+		Iterator<Session> it = sessions.iterator();
+		while(it.hasNext()) {
+			Session session = it.next();
+			if(session.start >= time - maxGap)
+				break;
+			if(session.end < time - maxGap) {
+				it.remove();
+				byId.remove(session.id);
+				for(QuerySearch search : session.members)
+					bySearch.remove(search);
+				closed.accept(session);
+			}
+		}
+	}
+	
+	/**
+	 * Splits a stream of searches into sessions in a single pass.
+	 * The searches have to be ordered by date; only the sessions which may still grow are kept in memory,
+	 * every other session is handed to the consumer as soon as it is complete.
+	 * @param searches Searches ordered by date
+	 * @param consumer Receives every session once it is complete
+	 * @return Number of sessions
+	 */
+	public static int sessionize(Iterator<QuerySearch> searches, Consumer<Session> consumer) {
+		SessionIndex index = new SessionIndex();
+		while(searches.hasNext()) {
+			QuerySearch search = searches.next();
+			index.searchAdded(search);
+			index.closeBefore(search.getTimestamp().getTime(), consumer);
+		}
+		index.closeBefore(Long.MAX_VALUE, consumer);
+		return index.nextId - 1;
+	}
+	
+	/**
+	 * Command line entry point; prints the sessions of a history (optionally including its archive),
+	 * streaming through the archive segments one at a time.
+	 * @param args <code>[--history file] [--include-archive]</code>
+	 */
+	public static void main(String[] args) throws IOException {
+		String historyFile = null;
+		boolean includeArchive = false;
+		for(int i = 0; i < args.length; i++) {
+			if("--history".equals(args[i]) && (i + 1 < args.length))
+				historyFile = args[++i];
+			else if("--include-archive".equals(args[i]))
+				includeArchive = true;
+			else
+				throw new IllegalArgumentException("Unknown argument: " + args[i]);
+		}
+		
+		final SearchHistory history = (historyFile == null) ? new SearchHistory() : new SearchHistory(historyFile);
+		List<Iterable<QuerySearch>> parts = new ArrayList<Iterable<QuerySearch>>();
+		if(includeArchive) {
+			// Segments are only loaded when the stream reaches them, so one segment is in memory at a time
+			for(final HistoryArchive.Segment segment : history.getArchive().getSegments()) {
+				parts.add(new Iterable<QuerySearch>() {
+					@Override
+					public Iterator<QuerySearch> iterator() {
+						try {
+							return history.withoutDeleted(segment.load()).iterator();
+						} catch(IOException | ClassNotFoundException e) {
+							e.printStackTrace();
+							return Collections.<QuerySearch>emptyList().iterator();
+						}
+					}
+				});
+			}
+		}
+		parts.add(history.getHistoryDateOrdered());
+		
+		final DateFormat format = DateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.SHORT);
+		int count = sessionize(new ConcatIterator(parts), new Consumer<Session>() {
+			@Override
+			public void accept(Session session) {
+				StringBuilder line = new StringBuilder();
+				line.append('#').append(session.getId()).append("  ").append(format.format(session.getStart()))
+						.append(" - ").append(format.format(session.getEnd())).append("  ");
+				for(QuerySearch search : session.getMembers())
+					line.append(search.getQuery()).append(" | ");
+				System.out.println(line.substring(0, line.length() - 3));
+			}
+		});
+		System.out.println(count + " sessions");
+	}
+	
+	/**
+	 * A work session: searches close to each other in time and topic.
+	 * Instances handed out by the index are snapshots which don't change.
+	 */
+	public static class Session {
+		private final int id;
+		private long start;
+		private long end;
+		// Ordered by date
+		private final List<QuerySearch> members;
+		// Query term to number of member queries containing it
+		private final Map<String, Integer> terms;
+		
+		private Session(int id, long time) {
+			this.id = id;
+			this.start = time;
+			this.end = time;
+			this.members = new ArrayList<QuerySearch>();
+			this.terms = new HashMap<String, Integer>();
+		}
+		
+		private Session(Session other) {
+			this.id = other.id;
+			this.start = other.start;
+			this.end = other.end;
+			this.members = Collections.unmodifiableList(new ArrayList<QuerySearch>(other.members));
+			this.terms = Collections.emptyMap();
+		}
+		
+		/**
+		 * Gets the id of the session.
+		 * @return Session id
+		 */
+		public int getId() {
+			return id;
+		}
+		
+		/**
+		 * Gets the date of the first search.
+		 * @return Start of the session
+		 */
+		public Date getStart() {
+			return new Date(start);
+		}
+		
+		/**
+		 * Gets the date of the last search.
+		 * @return End of the session
+		 */
+		public Date getEnd() {
+			return new Date(end);
+		}
+		
+		/**
+		 * Gets the searches of the session.
+		 * @return Searches ordered by date
+		 */
+		public List<QuerySearch> getMembers() {
+			return members;
+		}
+		
+		private Session copy() {
+			return new Session(this);
+		}
+		
+		/**
+		 * Creates a copy of the session with only some of its searches, e.g. without deleted ones.
+		 * @param retained Searches to keep, ordered by date
+		 * @return Session snapshot with the given members, or null if none are left
+		 */
+		Session withMembers(List<QuerySearch> retained) {
+			if(retained.isEmpty())
+				return null;
+			Session session = new Session(id, retained.get(0).getTimestamp().getTime());
+			session.members.addAll(retained);
+			session.end = retained.get(retained.size() - 1).getTimestamp().getTime();
+			return session.copy();
+		}
+		
+		private long gapTo(long time) {
+			if(time < start)
+				return start - time;
+			return Math.max(0L, time - end);
+		}
+		
+		private void add(QuerySearch search, List<String> queryTerms) {
+			long time = search.getTimestamp().getTime();
+			int index = members.size();
+			while((index > 0) && (members.get(index - 1).getTimestamp().getTime() > time))
+				index--;
+			members.add(index, search);
+			start = Math.min(start, time);
+			end = Math.max(end, time);
+			for(String term : new HashSet<String>(queryTerms)) {
+				Integer count = terms.get(term);
+				terms.put(term, (count == null) ? 1 : count + 1);
+			}
+		}
+		
+		private void remove(QuerySearch search) {
+			for(int i = 0; i < members.size(); i++) {
+				if(members.get(i) == search) {
+					members.remove(i);
+					break;
+				}
+			}
+			for(String term : new HashSet<String>(TextAnalyzer.terms(search.getQuery()))) {
+				Integer count = terms.get(term);
+				if((count == null) || (count <= 1))
+					terms.remove(term);
+				else
+					terms.put(term, count - 1);
+			}
+			if(!members.isEmpty()) {
+				start = members.get(0).getTimestamp().getTime();
+				end = members.get(members.size() - 1).getTimestamp().getTime();
+			}
+		}
+	}
+	
+	/**
+	 * Iterates over several parts one after another, only asking each for its iterator when it is reached.
+	 */
+	private static class ConcatIterator implements Iterator<QuerySearch> {
+		private final Iterator<Iterable<QuerySearch>> parts;
+		private Iterator<QuerySearch> current = Collections.<QuerySearch>emptyList().iterator();
+		
+		ConcatIterator(List<Iterable<QuerySearch>> parts) {
+			this.parts = parts.iterator();
+		}
+		
+		@Override
+		public boolean hasNext() {
+			while(!current.hasNext() && parts.hasNext())
+				current = parts.next().iterator();
+			return current.hasNext();
+		}
+		
+		@Override
+		public QuerySearch next() {
+			if(!this.hasNext())
+				throw new NoSuchElementException();
+			return current.next();
+		}
+	}
+}
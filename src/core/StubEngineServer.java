@@ -0,0 +1,171 @@
+package core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local HTTP server answering in the format of Bing's search API, with injectable delays and errors.
+ * Used to measure how the {@link RequestGate} copes with slow or failing engines: point
+ * {@link BingSearch} at it with
+ * <code>-Dsearchhistory.bing.urlPattern=http://127.0.0.1:port/search?Query=%%27%s%%27&amp;$top=%s</code>.
+ * <p>
+ * Every response is delayed by the base delay; a share of the responses is additionally delayed by the
+ * slow delay (the simulated tail), and another share fails with HTTP 503.
+ * @author Florian Bethe, Tino Liebusch
+ */
+public class StubEngineServer {
+	public static final int DEFAULT_PORT = 8378;
+	
+	private final HttpServer server;
+	private final ExecutorService workers;
+	private final int delayMs;
+	private final double slowRate;
+	private final int slowMs;
+	private final double errorRate;
+	
+	/**
+	 * Constructor.
+	 * Binds the server to the loopback interface, but doesn't start it yet.
+	 * @param port Local port to listen on
+	 * @param delayMs Delay of every response in milliseconds
+	 * @param slowRate Share of responses (0-1) which are additionally delayed
+	 * @param slowMs Additional delay of the slow responses in milliseconds
+	 * @param errorRate Share of responses (0-1) which fail with HTTP 503
+	 * @throws IOException If the port can't be bound
+	 */
+	public StubEngineServer(int port, int delayMs, double slowRate, int slowMs, double errorRate) throws IOException {
+		this.delayMs = delayMs;
+		this.slowRate = slowRate;
+		this.slowMs = slowMs;
+		this.errorRate = errorRate;
+		this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		this.workers = Executors.newCachedThreadPool();
+		server.createContext("/search", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					respond(exchange);
+				} finally {
+					exchange.close();
+				}
+			}
+		});
+		server.setExecutor(workers);
+	}
+	
+	/**
+	 * Starts serving requests in the background.
+	 */
+	public void start() {
+		server.start();
+	}
+	
+	/**
+	 * Stops the server immediately.
+	 */
+	public void stop() {
+		server.stop(0);
+		workers.shutdown();
+	}
+	
+	/**
+	 * Gets the address the server is bound to.
+	 * @return Local socket address
+	 */
+	public InetSocketAddress getAddress() {
+		return server.getAddress();
+	}
+	
+	/**
+	 * Answers a single search request after the injected delay, or with an injected error.
+	 * @param exchange Current exchange
+	 * @throws IOException If the response can't be written
+	 */
+	private void respond(HttpExchange exchange) throws IOException {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		try {
+			long delay = delayMs + ((random.nextDouble() < slowRate) ? slowMs : 0);
+			if(delay > 0)
+				Thread.sleep(delay);
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return;
+		}
+		if(random.nextDouble() < errorRate) {
+			exchange.sendResponseHeaders(503, -1);
+			return;
+		}
+		
+		Map<String, String> params = HistoryService.parseQuery(exchange.getRequestURI().getRawQuery());
+		String query = params.containsKey("Query") ? params.get("Query").replace("'", "") : "";
+		int top = 10;
+		try {
+			if(params.containsKey("$top"))
+				top = Math.max(0, Integer.parseInt(params.get("$top")));
+		} catch(NumberFormatException e) {
+			// Keep the default like the real API does
+		}
+		
+		// Deterministic results per query, so runs are comparable
+		JsonArrayBuilder results = Json.createArrayBuilder();
+		String slug = query.trim().toLowerCase().replaceAll("[^a-z0-9]+", "-");
+		for(int i = 0; i < top; i++) {
+			results.add(Json.createObjectBuilder()
+					.add("Url", "http://stub.example.org/" + slug + "/" + i)
+					.add("Title", query + " - result " + (i + 1))
+					.add("Description", "Stub engine result " + (i + 1) + " for " + query));
+		}
+		byte[] body = Json.createObjectBuilder()
+				.add("d", Json.createObjectBuilder().add("results", results))
+				.build().toString().getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+		exchange.sendResponseHeaders(200, body.length);
+		try(final OutputStream out = exchange.getResponseBody()) {
+			out.write(body);
+		}
+	}
+	
+	/**
+	 * Command line entry point; serves until the process is killed.
+	 * @param args <code>[port] [--delay ms] [--slow-rate share] [--slow-ms ms] [--error-rate share]</code>
+	 */
+	public static void main(String[] args) throws IOException {
+		int port = DEFAULT_PORT;
+		int delayMs = 20;
+		double slowRate = 0.0;
+		int slowMs = 2000;
+		double errorRate = 0.0;
+		for(int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if(arg.startsWith("--") && (i + 1 >= args.length))
+				throw new IllegalArgumentException("Missing value for " + arg);
+			switch(arg) {
+				case "--delay":      delayMs = Integer.parseInt(args[++i]); break;
+				case "--slow-rate":  slowRate = Double.parseDouble(args[++i]); break;
+				case "--slow-ms":    slowMs = Integer.parseInt(args[++i]); break;
+				case "--error-rate": errorRate = Double.parseDouble(args[++i]); break;
+				default:             port = Integer.parseInt(arg); break;
+			}
+		}
+		
+		StubEngineServer server = new StubEngineServer(port, delayMs, slowRate, slowMs, errorRate);
+		server.start();
+		System.out.println("Stub engine listening on http://" + server.getAddress().getHostString() + ":"
+				+ server.getAddress().getPort() + "/search (delay " + delayMs + " ms, " + (slowRate * 100)
+				+ "% slow by " + slowMs + " ms, " + (errorRate * 100) + "% errors)");
+	}
+}
@@ -0,0 +1,74 @@
+package core;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Implements the {@link QuerySearch} with a local, deterministic stub engine.
+ * No network is involved; the results are generated from the query itself. Mainly intended
+ * for load-testing the history storage and indexing without a display or an API quota.
+ * The simulated engine latency can be set with the system property
+ * <code>searchhistory.stub.latencyMs</code> (default 0).
+ * @author Florian Bethe, Tino Liebusch
+ */
+public class StubSearch extends QuerySearch {
+	private static final long serialVersionUID = 5107423926466043117L;
+	
+	/**
+	 * Simulated latency of the stub engine in milliseconds.
+	 */
+	private final static int latencyMs = Integer.getInteger("searchhistory.stub.latencyMs", 0);
+	
+	/**
+	 * Filler words for the generated summaries.
+	 */
+	private final static String[] fillerWords = {
+		"overview", "tutorial", "reference", "guide", "example", "documentation",
+		"introduction", "discussion", "release", "notes", "download", "forum"
+	};
+
+	/**
+	 * Constructor.
+	 * Creates a new stub search with max. 10 results.
+	 * @param query Search query
+	 */
+	public StubSearch(String query) {
+		super(query);
+	}
+	
+	/**
+	 * The local stub has no quota, so load tests are never throttled.
+	 */
+	@Override
+	protected boolean isRateLimited() {
+		return false;
+	}
+	
+	/**
+	 * Implementation of {@link QuerySearch#queryEngine()}.
+	 * Sleeps for the configured latency (with +-50% jitter) and generates the maximum number of results.
+	 * The same query always produces the same URLs, headlines and summaries.
+	 */
+	protected void queryEngine() throws InterruptedException, MalformedURLException {
+		if(latencyMs > 0) {
+			long jitter = ThreadLocalRandom.current().nextLong(-latencyMs / 2, latencyMs / 2 + 1);
+			Thread.sleep(latencyMs + jitter);
+		}
+		
+		this.results = new ArrayList<SearchResult>(this.getMaxResults());
+		int seed = query.toLowerCase().hashCode();
+		String slug = Integer.toHexString(seed);
+		
+		for(int i = 0; i < this.getMaxResults(); i++) {
+			URL url = new URL("http://stub" + (i % 3) + ".example.org/" + slug + "/" + i);
+			String headline = query + " " + fillerWords[Math.floorMod(seed + i, fillerWords.length)];
+			StringBuilder summary = new StringBuilder();
+			for(int w = 0; w < 12; w++)
+				summary.append(fillerWords[Math.floorMod(seed * 31 + i * 7 + w, fillerWords.length)]).append(' ');
+			summary.append(query);
+			this.publish(new SearchResult(this.query, url, headline, summary.toString()));
+		}
+	}
+}
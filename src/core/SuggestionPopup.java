@@ -0,0 +1,184 @@
+package core;
+
+import java.awt.event.FocusAdapter;
+import java.awt.event.FocusEvent;
+import java.awt.event.KeyAdapter;
+import java.awt.event.KeyEvent;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import javax.swing.BorderFactory;
+import javax.swing.JList;
+import javax.swing.JPopupMenu;
+import javax.swing.JTextField;
+import javax.swing.ListSelectionModel;
+import javax.swing.SwingUtilities;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+
+/**
+ * Popup showing completion suggestions below a text field.
+ * The suggestions are refreshed on every edit of the field. Up/Down move the selection, Enter accepts the
+ * selected suggestion (or the typed text if none is selected) and Escape closes the popup.
+ * @author Florian Bethe, Tino Liebusch
+ */
+public class SuggestionPopup {
+	private static final int MAX_SUGGESTIONS = 8;
+	
+	private final JTextField field;
+	private final Function<String, List<String>> suggestions;
+	private final Consumer<String> acceptAction;
+	private final JPopupMenu popup;
+	private final JList<String> list;
+	// Set while the field text is changed by the popup itself
+	private boolean adjusting;
+	
+	/**
+	 * Constructor.
+	 * Attaches the popup to the given text field.
+	 * @param field Text field to complete
+	 * @param suggestions Provider of the suggestions for the current text
+	 * @param acceptAction Called with the field text when a suggestion was accepted
+	 */
+	public SuggestionPopup(JTextField field, Function<String, List<String>> suggestions, Consumer<String> acceptAction) {
+		this.field = field;
+		this.suggestions = suggestions;
+		this.acceptAction = acceptAction;
+		this.adjusting = false;
+		
+		list = new JList<String>();
+		list.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+		list.setFocusable(false);
+		list.addMouseListener(new MouseAdapter() {
+			@Override
+			public void mouseClicked(MouseEvent evt) {
+				int index = list.locationToIndex(evt.getPoint());
+				if(index >= 0)
+					accept(list.getModel().getElementAt(index));
+			}
+		});
+		
+		popup = new JPopupMenu();
+		popup.setFocusable(false);
+		popup.setBorder(BorderFactory.createLineBorder(java.awt.Color.GRAY));
+		popup.add(list);
+		
+		field.getDocument().addDocumentListener(new DocumentListener() {
+			@Override
+			public void insertUpdate(DocumentEvent e) {
+				scheduleUpdate();
+			}
+			
+			@Override
+			public void removeUpdate(DocumentEvent e) {
+				scheduleUpdate();
+			}
+			
+			@Override
+			public void changedUpdate(DocumentEvent e) {
+			}
+		});
+		
+		// Key listeners run before the key bindings, so consuming Enter here keeps the field's own action from firing
+		field.addKeyListener(new KeyAdapter() {
+			@Override
+			public void keyPressed(KeyEvent evt) {
+				if(!popup.isVisible())
+					return;
+				
+				int size = list.getModel().getSize();
+				switch(evt.getKeyCode()) {
+					case KeyEvent.VK_DOWN:
+						list.setSelectedIndex(Math.min(size - 1, list.getSelectedIndex() + 1));
+						evt.consume();
+						break;
+					case KeyEvent.VK_UP:
+						list.setSelectedIndex(Math.max(-1, list.getSelectedIndex() - 1));
+						if(list.getSelectedIndex() < 0)
+							list.clearSelection();
+						evt.consume();
+						break;
+					case KeyEvent.VK_ENTER:
+						if(list.getSelectedIndex() >= 0) {
+							accept(list.getSelectedValue());
+							evt.consume();
+						} else {
+							popup.setVisible(false);
+						}
+						break;
+					case KeyEvent.VK_ESCAPE:
+						popup.setVisible(false);
+						evt.consume();
+						break;
+					default:
+						break;
+				}
+			}
+		});
+		
+		field.addFocusListener(new FocusAdapter() {
+			@Override
+			public void focusLost(FocusEvent e) {
+				popup.setVisible(false);
+			}
+		});
+	}
+	
+	/**
+	 * Refreshes the popup after the current document event has been processed.
+	 */
+	private void scheduleUpdate() {
+		if(adjusting)
+			return;
+		SwingUtilities.invokeLater(new Runnable() {
+			@Override
+			public void run() {
+				update();
+			}
+		});
+	}
+	
+	/**
+	 * Queries the suggestions for the current text and shows or hides the popup accordingly.
+	 */
+	private void update() {
+		String text = field.getText();
+		if(text.trim().isEmpty() || !field.isFocusOwner()) {
+			popup.setVisible(false);
+			return;
+		}
+		
+		List<String> current = suggestions.apply(text);
+		// No point in suggesting exactly what has been typed already
+		if(current.isEmpty() || ((current.size() == 1) && current.get(0).equalsIgnoreCase(text.trim()))) {
+			popup.setVisible(false);
+			return;
+		}
+		
+		list.setListData(current.subList(0, Math.min(MAX_SUGGESTIONS, current.size())).toArray(new String[0]));
+		list.clearSelection();
+		popup.setPopupSize(field.getWidth(), list.getPreferredSize().height + 4);
+		if(!popup.isVisible())
+			popup.show(field, 0, field.getHeight());
+		else
+			popup.pack();
+	}
+	
+	/**
+	 * Puts the suggestion into the field and triggers the accept action.
+	 * @param suggestion Accepted suggestion
+	 */
+	private void accept(String suggestion) {
+		popup.setVisible(false);
+		adjusting = true;
+		try {
+			field.setText(suggestion);
+		} finally {
+			adjusting = false;
+		}
+		acceptAction.accept(suggestion);
+	}
+}
@@ -0,0 +1,128 @@
+package core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Text analysis for the history indexes.
+ * Splits text into lowercase letter/digit tokens, drops English stopwords and reduces the tokens
+ * with a light suffix-stripping stemmer (plural, -ing, -ed and -ly forms), which is enough to match
+ * the short engine headlines and summaries without the cost of a full Porter stemmer.
+ * @author Florian Bethe, Tino Liebusch
+ */
+public class TextAnalyzer {
+	
+	/**
+	 * Common English stopwords.
+	 */
+	private static final Set<String> STOPWORDS = new HashSet<String>(Arrays.asList(
+			"a", "about", "an", "and", "are", "as", "at", "be", "but", "by", "for", "from", "has", "have",
+			"how", "i", "if", "in", "into", "is", "it", "its", "of", "on", "or", "that", "the", "their",
+			"this", "to", "was", "what", "when", "where", "which", "who", "will", "with", "you", "your"));
+	
+	/**
+	 * Tokens without any meaning in URLs.
+	 */
+	private static final Set<String> URL_STOPWORDS = new HashSet<String>(Arrays.asList(
+			"http", "https", "www", "com", "org", "net", "html", "htm", "php", "aspx", "index"));
+	
+	private TextAnalyzer() {
+	}
+	
+	/**
+	 * Splits a text into lowercase letter/digit tokens.
+	 * @param text Text to split
+	 * @return Tokens in order of occurrence
+	 */
+	public static List<String> tokenize(String text) {
+		List<String> tokens = new ArrayList<String>();
+		int start = -1;
+		for(int i = 0; i <= text.length(); i++) {
+			boolean tokenChar = (i < text.length()) && Character.isLetterOrDigit(text.charAt(i));
+			if(tokenChar && (start < 0)) {
+				start = i;
+			} else if(!tokenChar && (start >= 0)) {
+				tokens.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+				start = -1;
+			}
+		}
+		return tokens;
+	}
+	
+	/**
+	 * Analyzes a text into index terms: tokenized, without stopwords and stemmed.
+	 * @param text Text to analyze
+	 * @return Terms in order of occurrence
+	 */
+	public static List<String> terms(String text) {
+		List<String> terms = new ArrayList<String>();
+		for(String token : tokenize(text)) {
+			if(!STOPWORDS.contains(token))
+				terms.add(stem(token));
+		}
+		return terms;
+	}
+	
+	/**
+	 * Analyzes a URL into index terms; like {@link #terms(String)} but also drops scheme, common
+	 * top-level domains and file extensions.
+	 * @param url URL string to analyze
+	 * @return Terms in order of occurrence
+	 */
+	public static List<String> urlTerms(String url) {
+		List<String> terms = new ArrayList<String>();
+		for(String token : tokenize(url)) {
+			if(!STOPWORDS.contains(token) && !URL_STOPWORDS.contains(token))
+				terms.add(stem(token));
+		}
+		return terms;
+	}
+	
+	/**
+	 * Reduces a lowercase token to its stem.
+	 * @param token Token to stem
+	 * @return Stem of the token
+	 */
+	public static String stem(String token) {
+		int length = token.length();
+		if((length < 4) || !Character.isLetter(token.charAt(length - 1)))
+			return token;
+		
+		// Plurals (Harman's S-stemmer)
+		if(token.endsWith("ies") && !token.endsWith("eies") && !token.endsWith("aies")) {
+			token = token.substring(0, length - 3) + "y";
+		} else if(token.endsWith("es") && !token.endsWith("aes") && !token.endsWith("ees") && !token.endsWith("oes")) {
+			token = token.substring(0, length - 1);
+		} else if(token.endsWith("s") && !token.endsWith("us") && !token.endsWith("ss")) {
+			token = token.substring(0, length - 1);
+		}
+		
+		// Common verb and adverb suffixes, keeping at least three characters
+		length = token.length();
+		if(token.endsWith("ing") && (length > 5)) {
+			token = undouble(token.substring(0, length - 3));
+		} else if(token.endsWith("ed") && (length > 4)) {
+			token = undouble(token.substring(0, length - 2));
+		} else if(token.endsWith("ly") && (length > 4)) {
+			token = token.substring(0, length - 2);
+		}
+		return token;
+	}
+	
+	/**
+	 * Removes a doubled final consonant left by suffix stripping ("running" -&gt; "runn" -&gt; "run").
+	 */
+	private static String undouble(String token) {
+		int length = token.length();
+		if(length < 3)
+			return token;
+		char last = token.charAt(length - 1);
+		if((last == token.charAt(length - 2)) && ("aeioulsz".indexOf(last) < 0))
+			return token.substring(0, length - 1);
+		return token;
+	}
+}
@@ -0,0 +1,276 @@
+package core;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * Off-heap storage for large, rarely read texts.
+ * Strings are UTF-8 encoded into direct {@link ByteBuffer} chunks and referenced by a <code>long</code> handle
+ * (chunk index and offset) plus their byte length; they are only decoded when read. Keeping the texts out of
+ * the Java heap makes them invisible to the garbage collector, which shrinks heap size and pause times.
+ * <p>
+ * Each chunk counts the handles into it and is dropped once none are left (and it's no longer the chunk
+ * being filled). {@link #store(String)} takes the reference of a new handle under the lock, so a chunk can't
+ * be dropped before the owner of the handle has registered. Owners are tracked with phantom references
+ * and released by a daemon thread.
+ * <p>
+ * Owners keep the {@link Chunk Chunk} of each text (see {@link #chunk(long)}) and read through it rather than
+ * through the handle: the index of a dropped chunk is handed out again, but its buffer is never reused. An owner
+ * can become unreachable in the middle of a read and have its chunk dropped, yet the chunk held by the reading
+ * thread still has the same bytes.
+ * @author Florian Bethe, Tino Liebusch
+ */
+public class TextArena {
+	public static final long EMPTY = -1L;
+	
+	private static final int CHUNK_SIZE = 1 << 20;
+	// Texts larger than this get a chunk of their own instead of wasting the rest of the current one
+	private static final int LARGE_TEXT = CHUNK_SIZE / 4;
+	
+	private static final TextArena shared = new TextArena();
+	
+	private Chunk[] chunks = new Chunk[16];
+	private final ArrayDeque<Integer> freeSlots = new ArrayDeque<Integer>();
+	private int chunkCount = 0;
+	private Chunk current = null;
+	private long allocatedBytes = 0;
+	private long liveChunkBytes = 0;
+	
+	private final ReferenceQueue<Object> collected = new ReferenceQueue<Object>();
+	private final Set<OwnerReference> owners = Collections.synchronizedSet(
+			Collections.newSetFromMap(new IdentityHashMap<OwnerReference, Boolean>()));
+	
+	/**
+	 * Constructor.
+	 * Starts the daemon thread releasing the handles of collected owners.
+	 */
+	public TextArena() {
+		Thread releaser = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while(true) {
+					try {
+						OwnerReference reference = (OwnerReference) collected.remove();
+						owners.remove(reference);
+						for(Chunk chunk : reference.texts)
+							release(chunk);
+					} catch(InterruptedException e) {
+						return;
+					}
+				}
+			}
+		}, "text-arena-releaser");
+		releaser.setDaemon(true);
+		releaser.start();
+	}
+	
+	/**
+	 * Gets the arena shared by all search results.
+	 * @return Shared arena
+	 */
+	public static TextArena shared() {
+		return shared;
+	}
+	
+	/**
+	 * Stores a text.
+	 * The returned handle holds a reference to its chunk, which is released once the owner registered for it
+	 * with {@link #register(Object, Chunk...)} is collected.
+	 * @param text Text to store
+	 * @return Handle of the text, {@link #EMPTY} for the empty string
+	 */
+	public synchronized long store(String text) {
+		if(text.isEmpty())
+			return EMPTY;
+		byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+		
+		Chunk chunk;
+		if(bytes.length > LARGE_TEXT) {
+			chunk = this.newChunk(bytes.length);
+		} else {
+			if((current == null) || (current.buffer.capacity() - current.used < bytes.length)) {
+				Chunk previous = current;
+				current = this.newChunk(CHUNK_SIZE);
+				if((previous != null) && (previous.refs == 0))
+					this.free(previous);
+			}
+			chunk = current;
+		}
+		
+		ByteBuffer writer = chunk.buffer.duplicate();
+		writer.position(chunk.used);
+		writer.put(bytes);
+		long handle = ((long) chunk.index << 32) | chunk.used;
+		chunk.used += bytes.length;
+		chunk.refs++;
+		allocatedBytes += bytes.length;
+		return handle;
+	}
+	
+	/**
+	 * Gets the chunk of a handle returned by {@link #store(String)}, for the owner to keep next to the offset.
+	 * Has to be called while the handle still holds its reference, i.e. before its owner can be collected.
+	 * @param handle Handle of the text
+	 * @return Chunk of the text, or null for {@link #EMPTY}
+	 */
+	public synchronized Chunk chunk(long handle) {
+		return (handle == EMPTY) ? null : chunks[(int) (handle >>> 32)];
+	}
+	
+	/**
+	 * Gets the offset of a text in its chunk.
+	 * @param handle Handle of the text
+	 * @return Offset in bytes
+	 */
+	public static int offset(long handle) {
+		return (int) handle;
+	}
+	
+	/**
+	 * Reads a text.
+	 * @param chunk Chunk of the text (null for the empty string)
+	 * @param offset Offset of the text in the chunk
+	 * @param length Length of the text in bytes
+	 * @return Decoded text
+	 */
+	public String load(Chunk chunk, int offset, int length) {
+		if(chunk == null)
+			return "";
+		ByteBuffer reader;
+		// Duplicating the buffer under the lock also makes the bytes written by store() visible
+		synchronized(this) {
+			reader = chunk.buffer.duplicate();
+		}
+		reader.position(offset);
+		byte[] bytes = new byte[length];
+		reader.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * Gets the encoded length of a text, to be stored alongside its handle.
+	 * @param text Text
+	 * @return Length in UTF-8 bytes
+	 */
+	public static int length(String text) {
+		return text.getBytes(StandardCharsets.UTF_8).length;
+	}
+	
+	/**
+	 * Registers the owner of texts returned by {@link #store(String)}.
+	 * The references the handles took when they were stored are released once the owner is collected.
+	 * @param owner Object holding the texts
+	 * @param texts Chunks of the texts (see {@link #chunk(long)}), one per handle; null for empty texts
+	 */
+	public void register(Object owner, Chunk... texts) {
+		owners.add(new OwnerReference(owner, texts, collected));
+	}
+	
+	/**
+	 * Registers another owner of texts which are already held by a reachable owner, e.g. for a copy.
+	 * The texts stay valid as long as any of their owners is reachable.
+	 * @param owner Object holding the texts
+	 * @param texts Chunks of the texts, one per handle; null for empty texts
+	 */
+	public void share(Object owner, Chunk... texts) {
+		synchronized(this) {
+			for(Chunk chunk : texts) {
+				if(chunk != null)
+					chunk.refs++;
+			}
+		}
+		owners.add(new OwnerReference(owner, texts, collected));
+	}
+	
+	/**
+	 * Gets the number of bytes stored in the arena so far, including those of released texts.
+	 * @return Allocated bytes
+	 */
+	public synchronized long getAllocatedBytes() {
+		return allocatedBytes;
+	}
+	
+	/**
+	 * Gets the off-heap memory currently held by the chunks.
+	 * @return Chunk capacity in bytes
+	 */
+	public synchronized long getReservedBytes() {
+		return liveChunkBytes;
+	}
+	
+	private synchronized void release(Chunk chunk) {
+		if(chunk == null)
+			return;
+		if((--chunk.refs == 0) && (chunk != current))
+			this.free(chunk);
+	}
+	
+	private Chunk newChunk(int capacity) {
+		int index;
+		if(!freeSlots.isEmpty()) {
+			index = freeSlots.poll();
+		} else {
+			if(chunkCount == chunks.length)
+				chunks = Arrays.copyOf(chunks, chunkCount * 2);
+			index = chunkCount++;
+		}
+		Chunk chunk = new Chunk(index, ByteBuffer.allocateDirect(capacity));
+		chunks[index] = chunk;
+		liveChunkBytes += capacity;
+		return chunk;
+	}
+	
+	/**
+	 * Drops a chunk; its direct memory is freed once the buffer is collected.
+	 */
+	private void free(Chunk chunk) {
+		chunks[chunk.index] = null;
+		freeSlots.add(chunk.index);
+		liveChunkBytes -= chunk.buffer.capacity();
+	}
+	
+	/**
+	 * A direct buffer with its fill level and the number of live handles into it.
+	 * Owners hold on to it to read their texts, so it is opaque outside of the arena.
+	 */
+	public static final class Chunk {
+		private final int index;
+		private final ByteBuffer buffer;
+		private int used = 0;
+		private int refs = 0;
+		
+		private Chunk(int index, ByteBuffer buffer) {
+			this.index = index;
+			this.buffer = buffer;
+		}
+		
+		/**
+		 * Gets the handle of a text in the chunk, e.g. to tell texts shared by several owners apart.
+		 * Only unique while the chunk is held.
+		 * @param offset Offset of the text
+		 * @return Handle as returned by {@link TextArena#store(String)}
+		 */
+		public long handle(int offset) {
+			return ((long) index << 32) | offset;
+		}
+	}
+	
+	/**
+	 * Phantom reference remembering the chunks of the texts of a collected owner.
+	 */
+	private static class OwnerReference extends PhantomReference<Object> {
+		final Chunk[] texts;
+		
+		OwnerReference(Object owner, Chunk[] texts, ReferenceQueue<Object> queue) {
+			super(owner, queue);
+			this.texts = texts;
+		}
+	}
+}
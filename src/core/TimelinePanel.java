@@ -0,0 +1,126 @@
+package core;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+import javax.swing.JComponent;
+
+/**
+ * Bar chart of the searches per day, week or month, drawn from a precomputed {@link DateHistogram}.
+ * Each bar shows the searches of a bucket, with the clicked share darker; the most recent buckets which
+ * fit the width are shown. Clicking a bar selects its bucket.
+ * @author Florian Bethe, Tino Liebusch
+ */
+public class TimelinePanel extends JComponent {
+	private static final long serialVersionUID = -6047326816152083452L;
+	
+	private static final int BAR_WIDTH = 8;
+	private static final int BAR_GAP = 2;
+	private static final Color SEARCH_COLOR = new Color(149, 212, 255);
+	private static final Color CLICK_COLOR = new Color(40, 110, 170);
+	private static final Color SELECTED_COLOR = new Color(255, 170, 60);
+	
+	private List<DateHistogram.Bucket> buckets = Collections.emptyList();
+	private DateHistogram.Bucket selected = null;
+	
+	/**
+	 * Constructor.
+	 * @param selectAction Called with the bucket whose bar was clicked
+	 */
+	public TimelinePanel(final Consumer<DateHistogram.Bucket> selectAction) {
+		this.setPreferredSize(new Dimension(200, 70));
+		this.setToolTipText("");
+		this.addMouseListener(new MouseAdapter() {
+			@Override
+			public void mouseClicked(MouseEvent evt) {
+				if(!isEnabled())
+					return;
+				DateHistogram.Bucket bucket = bucketAt(evt.getX());
+				if(bucket != null) {
+					selected = bucket;
+					repaint();
+					selectAction.accept(bucket);
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Replaces the shown buckets.
+	 * @param buckets Buckets ordered by date
+	 */
+	public void setBuckets(List<DateHistogram.Bucket> buckets) {
+		this.buckets = new ArrayList<DateHistogram.Bucket>(buckets);
+		if((selected != null) && !this.isShown(selected))
+			selected = null;
+		this.repaint();
+	}
+	
+	@Override
+	public String getToolTipText(MouseEvent evt) {
+		DateHistogram.Bucket bucket = this.bucketAt(evt.getX());
+		if(bucket == null)
+			return null;
+		return DateFormat.getDateInstance(DateFormat.MEDIUM).format(bucket.getStart()) + ": "
+				+ bucket.getSearches() + " searches, " + bucket.getClicks() + " clicks";
+	}
+	
+	@Override
+	protected void paintComponent(Graphics g) {
+		super.paintComponent(g);
+		int first = this.firstVisible();
+		int height = this.getHeight() - 2;
+		int max = 1;
+		for(int i = first; i < buckets.size(); i++)
+			max = Math.max(max, buckets.get(i).getSearches());
+		
+		for(int i = first; i < buckets.size(); i++) {
+			DateHistogram.Bucket bucket = buckets.get(i);
+			int x = (i - first) * (BAR_WIDTH + BAR_GAP);
+			int barHeight = Math.max(1, bucket.getSearches() * height / max);
+			int clickHeight = Math.min(barHeight, bucket.getClicks() * height / max);
+			g.setColor(this.isSelected(bucket) ? SELECTED_COLOR : SEARCH_COLOR);
+			g.fillRect(x, height - barHeight, BAR_WIDTH, barHeight);
+			g.setColor(CLICK_COLOR);
+			g.fillRect(x, height - clickHeight, BAR_WIDTH, clickHeight);
+		}
+		g.setColor(Color.DARK_GRAY);
+		g.drawLine(0, height, this.getWidth(), height);
+	}
+	
+	/**
+	 * Gets the index of the oldest bucket which still fits the width.
+	 */
+	private int firstVisible() {
+		int fitting = Math.max(1, (this.getWidth() + BAR_GAP) / (BAR_WIDTH + BAR_GAP));
+		return Math.max(0, buckets.size() - fitting);
+	}
+	
+	private DateHistogram.Bucket bucketAt(int x) {
+		int index = this.firstVisible() + x / (BAR_WIDTH + BAR_GAP);
+		if((x < 0) || (index >= buckets.size()) || (x % (BAR_WIDTH + BAR_GAP) >= BAR_WIDTH))
+			return null;
+		return buckets.get(index);
+	}
+	
+	private boolean isSelected(DateHistogram.Bucket bucket) {
+		return (selected != null) && selected.getStart().equals(bucket.getStart())
+				&& selected.getEnd().equals(bucket.getEnd());
+	}
+	
+	private boolean isShown(DateHistogram.Bucket bucket) {
+		for(DateHistogram.Bucket shown : buckets) {
+			if(shown.getStart().equals(bucket.getStart()) && shown.getEnd().equals(bucket.getEnd()))
+				return true;
+		}
+		return false;
+	}
+}
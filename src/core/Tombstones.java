@@ -0,0 +1,160 @@
+package core;
+
+import java.io.Serializable;
+import java.net.URL;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Deletions from the history, recorded as tombstones instead of rewriting the history.
+ * A tombstone covers either all searches of a query up to the time it was deleted, all searches in a
+ * date range, or a single result of a search. Recording a tombstone takes constant time (logarithmic in
+ * the number of ranges for a range); the searches themselves are removed later by the compaction of
+ * {@link SearchHistory SearchHistory}, and until then every read filters them out.
+ * <p>
+ * Tombstones are kept (as a sidecar of the history) after the compaction, since they also hide the
+ * deleted searches in the archive, whose segments aren't rewritten, and in imports.
+ * @author Florian Bethe, Tino Liebusch
+ */
+public class Tombstones implements Serializable {
+	private static final long serialVersionUID = -4113094625812373560L;
+	
+	// Normalized query to the time it was deleted at; covers the searches of the query up to then
+	private final Map<String, Long> queries = new HashMap<String, Long>();
+	// Deleted date ranges, begin to end (both inclusive); kept disjoint
+	private final TreeMap<Long, Long> ranges = new TreeMap<Long, Long>();
+	// Search (timestamp and query) to the normalized URLs of its deleted results
+	private final Map<String, Set<String>> results = new HashMap<String, Set<String>>();
+	// Incremented with every tombstone, so readers can tell whether the compaction has caught up
+	private transient volatile int version = 0;
+	
+	/**
+	 * Deletes all searches of a query up to the given time.
+	 * @param query Query (normalized internally)
+	 * @param deletedAt Time of the deletion in milliseconds since the epoch
+	 */
+	public synchronized void deleteQuery(String query, long deletedAt) {
+		String key = QueryTrie.normalize(query);
+		Long previous = queries.get(key);
+		if((previous == null) || (previous < deletedAt))
+			queries.put(key, deletedAt);
+		version++;
+	}
+	
+	/**
+	 * Deletes all searches in a date range; overlapping or adjacent ranges are merged.
+	 * @param begin First deleted time in milliseconds since the epoch
+	 * @param end Last deleted time in milliseconds since the epoch
+	 */
+	public synchronized void deleteRange(long begin, long end) {
+		if(end < begin)
+			return;
+		Map.Entry<Long, Long> before = ranges.floorEntry(begin);
+		if((before != null) && (before.getValue() >= begin - 1)) {
+			begin = before.getKey();
+			end = Math.max(end, before.getValue());
+		}
+		Map.Entry<Long, Long> next = ranges.ceilingEntry(begin);
+		while((next != null) && (next.getKey() <= end + 1)) {
+			end = Math.max(end, next.getValue());
+			ranges.remove(next.getKey());
+			next = ranges.ceilingEntry(begin);
+		}
+		ranges.put(begin, end);
+		version++;
+	}
+	
+	/**
+	 * Deletes a single result of a search.
+	 * @param search Search containing the result
+	 * @param result Result to delete
+	 */
+	public void deleteResult(QuerySearch search, SearchResult result) {
+		this.deleteResult(search.getTimestamp(), search.getQuery(), result.getUrl());
+	}
+	
+	/**
+	 * Deletes a single result of a search which is only known by its timestamp and query, e.g. one deleted
+	 * by another instance sharing the history (see {@link HistoryLog HistoryLog}).
+	 * @param timestamp Timestamp of the search
+	 * @param query Query of the search
+	 * @param url URL of the result to delete
+	 */
+	synchronized void deleteResult(Date timestamp, String query, URL url) {
+		String key = key(timestamp, query);
+		Set<String> urls = results.get(key);
+		if(urls == null) {
+			urls = new HashSet<String>(4);
+			results.put(key, urls);
+		}
+		urls.add(UrlNormalizer.normalize(url));
+		version++;
+	}
+	
+	/**
+	 * Checks whether a search as a whole has been deleted.
+	 * @param search Search to check
+	 * @return Is the search covered by a query or range tombstone
+	 */
+	public synchronized boolean isDeleted(QuerySearch search) {
+		if(search.getTimestamp() == null)
+			return false;
+		long time = search.getTimestamp().getTime();
+		Long deletedAt = queries.isEmpty() ? null : queries.get(QueryTrie.normalize(search.getQuery()));
+		if((deletedAt != null) && (time <= deletedAt))
+			return true;
+		Map.Entry<Long, Long> range = ranges.floorEntry(time);
+		return (range != null) && (time <= range.getValue());
+	}
+	
+	/**
+	 * Checks whether a result of a search has been deleted, on its own or with the search.
+	 * @param search Search containing the result
+	 * @param result Result to check
+	 * @return Is the result covered by a tombstone
+	 */
+	public synchronized boolean isDeleted(QuerySearch search, SearchResult result) {
+		if(this.isDeleted(search))
+			return true;
+		Set<String> urls = results.isEmpty() ? null : results.get(key(search));
+		return (urls != null) && urls.contains(UrlNormalizer.normalize(result.getUrl()));
+	}
+	
+	/**
+	 * Checks whether single results of a search have been deleted.
+	 * @param search Search to check
+	 * @return Does the search have deleted results
+	 */
+	public synchronized boolean hasDeletedResults(QuerySearch search) {
+		return !results.isEmpty() && results.containsKey(key(search));
+	}
+	
+	/**
+	 * Checks whether searches of a query have been deleted.
+	 * @param query Query (normalized internally)
+	 * @return Is there a tombstone for the query
+	 */
+	public synchronized boolean isQueryDeleted(String query) {
+		return !queries.isEmpty() && queries.containsKey(QueryTrie.normalize(query));
+	}
+	
+	/**
+	 * Gets the number of tombstones recorded since the tombstones were created or loaded.
+	 * @return Version of the tombstones
+	 */
+	public int getVersion() {
+		return version;
+	}
+	
+	private static String key(QuerySearch search) {
+		return key(search.getTimestamp(), search.getQuery());
+	}
+	
+	private static String key(Date timestamp, String query) {
+		return ((timestamp == null) ? "" : Long.toString(timestamp.getTime())) + '\u0000' + query;
+	}
+}
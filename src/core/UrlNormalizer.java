@@ -0,0 +1,117 @@
+package core;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Normalization of result URLs.
+ * Engines return the same page with cosmetic differences (case of scheme and host, explicit default ports,
+ * fragments, trailing slashes); the normalized form is used as key wherever pages have to be identified.
+ * The canonical form (see {@link #canonicalize(URL)}) goes further and also identifies variants of a page
+ * which differ in ways a user doesn't care about; it is used to find duplicate results.
+ * @author Florian Bethe, Tino Liebusch
+ */
+public class UrlNormalizer {
+	// Query parameters which only track where the user came from
+	private static final Set<String> TRACKING_PARAMETERS = new HashSet<String>(Arrays.asList(
+			"gclid", "dclid", "fbclid", "msclkid", "yclid", "igshid", "mc_cid", "mc_eid", "_ga", "_hsenc",
+			"_hsmi", "ref", "ref_src", "spm"));
+	// Host prefixes of mirrors serving the same pages
+	private static final String[] MIRROR_PREFIXES = { "www.", "m.", "mobile.", "amp." };
+	
+	private UrlNormalizer() {
+	}
+	
+	/**
+	 * Normalizes a URL.
+	 * Scheme and host are lowercased, default ports and the fragment are dropped and a trailing slash
+	 * of the path is removed. Path and query keep their case.
+	 * @param url URL to normalize
+	 * @return Normalized URL string
+	 */
+	public static String normalize(URL url) {
+		StringBuilder normalized = new StringBuilder(url.toString().length());
+		normalized.append(url.getProtocol().toLowerCase(Locale.ROOT)).append("://");
+		if(url.getHost() != null)
+			normalized.append(url.getHost().toLowerCase(Locale.ROOT));
+		if((url.getPort() >= 0) && (url.getPort() != url.getDefaultPort()))
+			normalized.append(':').append(url.getPort());
+		
+		String path = url.getPath();
+		if(path.endsWith("/"))
+			path = path.substring(0, path.length() - 1);
+		normalized.append(path);
+		if(url.getQuery() != null)
+			normalized.append('?').append(url.getQuery());
+		return normalized.toString();
+	}
+	
+	/**
+	 * Canonicalizes a URL for duplicate detection.
+	 * On top of {@link #normalize(URL)}, the scheme is dropped (http and https are the same page), as are
+	 * mirror host prefixes like <code>www.</code> and <code>m.</code>, tracking parameters (<code>utm_*</code>,
+	 * click ids and the like) and a trailing <code>index.html</code>; the remaining query parameters are sorted.
+	 * @param url URL to canonicalize
+	 * @return Canonical URL string (host, path and query)
+	 */
+	public static String canonicalize(URL url) {
+		String host = (url.getHost() == null) ? "" : url.getHost().toLowerCase(Locale.ROOT);
+		for(String prefix : MIRROR_PREFIXES) {
+			if(host.startsWith(prefix) && (host.indexOf('.', prefix.length()) > 0)) {
+				host = host.substring(prefix.length());
+				break;
+			}
+		}
+		StringBuilder canonical = new StringBuilder(url.toString().length());
+		canonical.append(host);
+		if((url.getPort() >= 0) && (url.getPort() != url.getDefaultPort()))
+			canonical.append(':').append(url.getPort());
+		canonical.append(canonicalPath(url));
+		return canonical.toString();
+	}
+	
+	/**
+	 * Canonicalizes path and query of a URL like {@link #canonicalize(URL)}, but without the host, so the same
+	 * page on mirrors with different host names can be recognized.
+	 * @param url URL to canonicalize
+	 * @return Canonical path and query
+	 */
+	public static String canonicalPath(URL url) {
+		String path = url.getPath();
+		String lower = path.toLowerCase(Locale.ROOT);
+		for(String index : new String[] { "index.html", "index.htm", "index.php" }) {
+			if(lower.endsWith("/" + index)) {
+				path = path.substring(0, path.length() - index.length());
+				break;
+			}
+		}
+		while(path.endsWith("/"))
+			path = path.substring(0, path.length() - 1);
+		if(url.getQuery() == null)
+			return path;
+		
+		List<String> parameters = new ArrayList<String>();
+		for(String parameter : url.getQuery().split("&")) {
+			int equals = parameter.indexOf('=');
+			String name = ((equals < 0) ? parameter : parameter.substring(0, equals)).toLowerCase(Locale.ROOT);
+			if(!parameter.isEmpty() && !name.startsWith("utm_") && !TRACKING_PARAMETERS.contains(name))
+				parameters.add(parameter);
+		}
+		if(parameters.isEmpty())
+			return path;
+		Collections.sort(parameters);
+		StringBuilder canonical = new StringBuilder(path).append('?');
+		for(int i = 0; i < parameters.size(); i++) {
+			if(i > 0)
+				canonical.append('&');
+			canonical.append(parameters.get(i));
+		}
+		return canonical.toString();
+	}
+}
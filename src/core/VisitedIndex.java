@@ -0,0 +1,161 @@
+package core;
+
+import java.io.Serializable;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Index of all result pages the user has clicked on.
+ * A Bloom filter sits in front of an exact set of normalized URLs: most of the results of a fresh search
+ * have never been visited, and the filter rules those out with a few bit lookups and without touching the
+ * (much larger) set. Positive filter answers are confirmed by the set, so there are no false positives.
+ * @author Florian Bethe, Tino Liebusch
+ */
+public class VisitedIndex implements HistoryListener, Serializable {
+	private static final long serialVersionUID = -2468172934176517032L;
+	
+	private static final int INITIAL_CAPACITY = 1024;
+	// About 1% false positives at full capacity
+	private static final int BITS_PER_ENTRY = 10;
+	private static final int HASH_FUNCTIONS = 7;
+	
+	private final Set<String> visited = new HashSet<String>();
+	private long[] bits;
+	private int capacity;
+	
+	/**
+	 * Default constructor.
+	 * Creates an empty index.
+	 */
+	public VisitedIndex() {
+		this.resize(INITIAL_CAPACITY);
+	}
+	
+	@Override
+	public void searchAdded(QuerySearch search) {
+		for(SearchResult result : search.getResults()) {
+			if(result.getClickCounter() > 0)
+				this.add(result.getUrl());
+		}
+	}
+	
+	@Override
+	public void resultClicked(SearchResult result) {
+		this.add(result.getUrl());
+	}
+	
+	/**
+	 * Forgets the pages clicked in deleted searches, even if they were clicked in other searches too:
+	 * the user wants the visit gone. The filter bits stay set, as positive answers are confirmed by the set.
+	 */
+	@Override
+	public synchronized void searchesDeleted(Collection<QuerySearch> searches) {
+		for(QuerySearch search : searches) {
+			for(SearchResult result : search.getResults()) {
+				if(result.getClickCounter() > 0)
+					this.remove(result.getUrl());
+			}
+		}
+	}
+	
+	/**
+	 * Keeps the visited pages: the search stays in the history, and the clicks of collapsed duplicates are
+	 * merged into the kept results. The history removes the pages of deleted results itself.
+	 */
+	@Override
+	public void resultsReplacing(QuerySearch search) {
+	}
+	
+	/**
+	 * Marks a page as visited.
+	 * @param url URL of the page
+	 */
+	public synchronized void add(URL url) {
+		String key = UrlNormalizer.normalize(url);
+		if(!visited.add(key))
+			return;
+		if(visited.size() > capacity) {
+			// Rebuilding keeps the false positive rate bounded as the index grows
+			this.resize(capacity * 2);
+		} else {
+			this.setBits(key);
+		}
+	}
+	
+	/**
+	 * Forgets a visited page.
+	 * @param url URL of the page
+	 */
+	public synchronized void remove(URL url) {
+		visited.remove(UrlNormalizer.normalize(url));
+	}
+	
+	/**
+	 * Checks whether a page has been visited before.
+	 * @param url URL of the page
+	 * @return Has the page been clicked on in any search
+	 */
+	public synchronized boolean isVisited(URL url) {
+		String key = UrlNormalizer.normalize(url);
+		long hash = hash(key);
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32);
+		int size = bits.length * 64;
+		for(int i = 0; i < HASH_FUNCTIONS; i++) {
+			int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % size;
+			if((bits[bit >>> 6] & (1L << bit)) == 0)
+				return false;
+		}
+		return visited.contains(key);
+	}
+	
+	/**
+	 * Gets the number of visited pages.
+	 * @return Number of distinct visited pages
+	 */
+	public synchronized int size() {
+		return visited.size();
+	}
+	
+	/**
+	 * Recreates the filter for the given capacity from the exact set.
+	 */
+	private void resize(int newCapacity) {
+		capacity = newCapacity;
+		bits = new long[(capacity * BITS_PER_ENTRY + 63) / 64];
+		for(String key : visited)
+			this.setBits(key);
+	}
+	
+	private void setBits(String key) {
+		long hash = hash(key);
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32);
+		int size = bits.length * 64;
+		for(int i = 0; i < HASH_FUNCTIONS; i++) {
+			int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % size;
+			bits[bit >>> 6] |= 1L << bit;
+		}
+	}
+	
+	/**
+	 * 64-bit FNV-1a hash of the UTF-8 bytes, finished with a MurmurHash3 mix.
+	 * Both halves are used for double hashing.
+	 */
+	private static long hash(String key) {
+		long hash = 0xcbf29ce484222325L;
+		for(byte b : key.getBytes(StandardCharsets.UTF_8)) {
+			hash ^= (b & 0xff);
+			hash *= 0x100000001b3L;
+		}
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+}
@@ -0,0 +1,120 @@
+package core;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Benchmark of the {@link FuzzyIndex FuzzyIndex}: looks up mistyped words in a generated vocabulary and compares
+ * the lookups to a scan of all words. Run with <code>java core.FuzzyIndexBenchmark</code>.
+ * @author Florian Bethe, Tino Liebusch
+ */
+public class FuzzyIndexBenchmark {
+	
+	/**
+	 * Runs the benchmark.
+	 * @param args <code>[--terms count] [--queries count] [--distance k] [--seed seed]</code>
+	 */
+	public static void main(String[] args) {
+		int termCount = 500000;
+		int queryCount = 2000;
+		int maxDistance = FuzzyIndex.DEFAULT_MAX_DISTANCE;
+		long seed = 42L;
+		for(int i = 0; i < args.length; i++) {
+			if("--terms".equals(args[i]) && (i + 1 < args.length))
+				termCount = Integer.parseInt(args[++i]);
+			else if("--queries".equals(args[i]) && (i + 1 < args.length))
+				queryCount = Integer.parseInt(args[++i]);
+			else if("--distance".equals(args[i]) && (i + 1 < args.length))
+				maxDistance = Integer.parseInt(args[++i]);
+			else if("--seed".equals(args[i]) && (i + 1 < args.length))
+				seed = Long.parseLong(args[++i]);
+			else
+				throw new IllegalArgumentException("Unknown argument: " + args[i]);
+		}
+		
+		// Pronounceable words of 3 to 14 characters, so trigrams are shared like in natural language
+		Random random = new Random(seed);
+		String[] onsets = {"b", "c", "d", "f", "g", "h", "j", "k", "l", "m", "n", "p", "r", "s", "t", "v", "w",
+				"z", "br", "ch", "cl", "cr", "dr", "fl", "gr", "pl", "pr", "sc", "sh", "sp", "st", "str", "th", "tr"};
+		String[] vowels = {"a", "e", "i", "o", "u", "y", "ai", "ea", "ee", "io", "ou"};
+		Set<String> vocabulary = new HashSet<String>();
+		while(vocabulary.size() < termCount) {
+			StringBuilder word = new StringBuilder();
+			int syllables = 1 + random.nextInt(4);
+			for(int s = 0; s < syllables; s++)
+				word.append(onsets[random.nextInt(onsets.length)]).append(vowels[random.nextInt(vowels.length)]);
+			if(random.nextBoolean())
+				word.append(onsets[random.nextInt(onsets.length)]);
+			if(word.length() >= 3)
+				vocabulary.add(word.toString());
+		}
+		String[] words = vocabulary.toArray(new String[vocabulary.size()]);
+		
+		FuzzyIndex index = new FuzzyIndex();
+		long start = System.nanoTime();
+		for(String word : words)
+			index.add(word);
+		System.out.println("Indexed " + index.size() + " words in " + (System.nanoTime() - start) / 1000000 + " ms");
+		
+		// Misspell words with up to the maximum number of random edits
+		String[] queries = new String[queryCount];
+		String[] originals = new String[queryCount];
+		for(int q = 0; q < queryCount; q++) {
+			originals[q] = words[random.nextInt(words.length)];
+			StringBuilder typo = new StringBuilder(originals[q]);
+			int edits = 1 + random.nextInt(Math.max(1, Math.min(maxDistance, FuzzyIndex.lengthCap(typo.length()))));
+			for(int e = 0; e < edits; e++) {
+				int position = random.nextInt(typo.length());
+				char c = (char) ('a' + random.nextInt(26));
+				switch(random.nextInt(3)) {
+					case 0:
+						typo.setCharAt(position, c);
+						break;
+					case 1:
+						typo.insert(position, c);
+						break;
+					default:
+						if(typo.length() > 1)
+							typo.deleteCharAt(position);
+				}
+			}
+			queries[q] = typo.toString();
+		}
+		
+		int found = 0;
+		long candidates = 0L;
+		long matches = 0L;
+		start = System.nanoTime();
+		for(int q = 0; q < queryCount; q++) {
+			List<String> expansion = index.expand(queries[q], maxDistance);
+			if(expansion.contains(originals[q]))
+				found++;
+			candidates += index.getVerified();
+			matches += expansion.size();
+		}
+		long indexed = System.nanoTime() - start;
+		System.out.printf("Index: %.3f ms per lookup, %.1f words verified, %.1f matches, %.1f%% found the original%n",
+				indexed / 1e6 / queryCount, (double) candidates / queryCount, (double) matches / queryCount,
+				100.0 * found / queryCount);
+		
+		// Scan all words with the same bounded distance; checks the index for missed matches
+		int scanned = Math.min(queryCount, 200);
+		int mismatches = 0;
+		start = System.nanoTime();
+		for(int q = 0; q < scanned; q++) {
+			int k = Math.min(maxDistance, FuzzyIndex.lengthCap(queries[q].length()));
+			Set<String> expected = new HashSet<String>();
+			for(String word : words) {
+				if(FuzzyIndex.distance(queries[q], word, k) <= k)
+					expected.add(word);
+			}
+			if(!expected.equals(new HashSet<String>(index.expand(queries[q], maxDistance))))
+				mismatches++;
+		}
+		long scan = System.nanoTime() - start;
+		System.out.printf("Scan: %.3f ms per lookup (%d lookups), %d lookups differ from the index%n",
+				scan / 1e6 / scanned, scanned, mismatches);
+	}
+}
@@ -0,0 +1,45 @@
+package core;
+
+/**
+ * Tests of the {@link HistoryJson HistoryJson} export format.
+ * The project has no test framework; run with <code>java -ea core.HistoryJsonTest</code>, a failed check
+ * ends with an {@link AssertionError}.
+ * @author Florian Bethe, Tino Liebusch
+ */
+public class HistoryJsonTest {
+	
+	/**
+	 * Runs all tests.
+	 * @param args Unused
+	 * @throws Exception If a test fails unexpectedly
+	 */
+	public static void main(String[] args) throws Exception {
+		resultsBeforeQuery();
+		System.out.println("HistoryJsonTest passed");
+	}
+	
+	/**
+	 * Other writers may put the keys of a record in any order; results listed before the query still belong
+	 * to that query.
+	 * @throws Exception If the record can't be parsed
+	 */
+	static void resultsBeforeQuery() throws Exception {
+		String line = "{\"results\":[{\"clicks\":2,\"summary\":\"Some page\",\"headline\":\"Page\","
+				+ "\"url\":\"http://example.org/page\"}],\"maxResults\":10,\"timestamp\":1500000000000,"
+				+ "\"engine\":\"bing\",\"query\":\"reversed keys\"}";
+		QuerySearch search = HistoryJson.readSearch(line);
+		check(search.getQuery().equals("reversed keys"), "Query not restored");
+		check(search.getTimestamp().getTime() == 1500000000000L, "Timestamp not restored");
+		check(search.getResults().size() == 1, "Result not restored");
+		SearchResult result = search.getResults().get(0);
+		check("reversed keys".equals(result.getQuery()), "Result has no query: " + result.getQuery());
+		check(result.getUrl().toString().equals("http://example.org/page"), "URL not restored");
+		check(result.getHeadline().equals("Page") && result.getSummary().equals("Some page"), "Texts not restored");
+		check(result.getClickCounter() == 2, "Clicks not restored");
+	}
+	
+	private static void check(boolean condition, String message) {
+		if(!condition)
+			throw new AssertionError(message);
+	}
+}
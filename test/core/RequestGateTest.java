@@ -0,0 +1,97 @@
+package core;
+
+import java.util.ArrayList;
+
+/**
+ * Tests of the {@link RequestGate RequestGate}.
+ * The project has no test framework; run with <code>java -ea core.RequestGateTest</code>, a failed check
+ * ends with an {@link AssertionError}.
+ * @author Florian Bethe, Tino Liebusch
+ */
+public class RequestGateTest {
+	
+	/**
+	 * Runs all tests.
+	 * @param args Unused
+	 * @throws Exception If a test fails unexpectedly
+	 */
+	public static void main(String[] args) throws Exception {
+		deadlineDoesNotTakeEngineOffline();
+		interruptedWaitIsNotThrottled();
+		System.out.println("RequestGateTest passed");
+	}
+	
+	/**
+	 * A single request past its deadline fails, but the next request still goes to the engine instead of
+	 * being rejected for the offline interval.
+	 * @throws Exception If the second request fails
+	 */
+	static void deadlineDoesNotTakeEngineOffline() throws Exception {
+		RequestGate gate = new RequestGate(0, 1, 100, 0, 10, 10, false, 60000);
+		try {
+			gate.execute(new TimedSearch("slow query", 1000));
+			throw new AssertionError("Request past its deadline succeeded");
+		} catch(RequestGate.DeadlineExceededException e) {
+			// Expected
+		}
+		check(!RequestGate.isUnavailable(new RequestGate.DeadlineExceededException("deadline")),
+				"Deadline counts as engine unavailable");
+		
+		TimedSearch next = new TimedSearch("fast query", 0);
+		gate.execute(next);
+		check(gate.getOfflineRejections() == 0, "Engine was taken offline after one slow request");
+		check(next.getResults().size() == 1, "Second request got no results");
+	}
+	
+	/**
+	 * A call interrupted while waiting for the rate limit never reaches the engine, so it isn't counted as a
+	 * throttled call.
+	 * @throws Exception If the first request fails
+	 */
+	static void interruptedWaitIsNotThrottled() throws Exception {
+		final RequestGate gate = new RequestGate(0.5, 1, 10000, 0, 10, 10, false, 0);
+		gate.execute(new TimedSearch("first query", 0));
+		Thread waiting = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					gate.execute(new TimedSearch("second query", 0));
+				} catch(Exception e) {
+					// Expected: interrupted while waiting for a token
+				}
+			}
+		});
+		waiting.start();
+		Thread.sleep(200);
+		waiting.interrupt();
+		waiting.join();
+		check(gate.getThrottledCalls() == 0, "Interrupted wait counted as throttled call");
+		check(gate.getThrottledMillis() == 0, "Interrupted wait counted as throttled time");
+	}
+	
+	private static void check(boolean condition, String message) {
+		if(!condition)
+			throw new AssertionError(message);
+	}
+	
+	/**
+	 * Search whose engine answers after a fixed time with a single result.
+	 */
+	private static class TimedSearch extends QuerySearch {
+		private static final long serialVersionUID = 1L;
+		private final long latencyMillis;
+		
+		TimedSearch(String query, long latencyMillis) {
+			super(query);
+			this.latencyMillis = latencyMillis;
+		}
+		
+		@Override
+		protected void queryEngine() throws Exception {
+			Thread.sleep(latencyMillis);
+			this.results = new ArrayList<SearchResult>(1);
+			this.results.add(new SearchResult(query, new java.net.URL("http://example.org/" + query.length()),
+					query, query));
+		}
+	}
+}